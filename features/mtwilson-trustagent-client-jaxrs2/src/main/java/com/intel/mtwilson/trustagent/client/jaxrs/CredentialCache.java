@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.client.jaxrs;
+
+import java.security.cert.X509Certificate;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.ws.rs.client.Invocation;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+
+/**
+ * The AIK, Privacy CA and binding key certificates last received from each
+ * trust agent, with their ETag. TrustAgentClient sends the ETag in
+ * If-None-Match and uses the cached certificate when the trust agent
+ * answers 304 Not Modified, so an unchanged certificate is neither sent
+ * nor decoded again. Trust agents that do not send an ETag are not cached.
+ *
+ * The least recently used certificates are dropped beyond MAX_ENTRIES.
+ */
+class CredentialCache {
+    private static final int MAX_ENTRIES = 4096;
+    private static final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        private static final long serialVersionUID = 0;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private static class Entry {
+        private final EntityTag etag;
+        private final X509Certificate certificate;
+
+        private Entry(EntityTag etag, X509Certificate certificate) {
+            this.etag = etag;
+            this.certificate = certificate;
+        }
+    }
+
+    private CredentialCache() {
+    }
+
+    /**
+     * @param url the address of the certificate, identifying the trust agent
+     * @param request GET request for the certificate, without If-None-Match
+     * @return the certificate in the response, or the cached one if it is
+     * not modified
+     */
+    static X509Certificate get(String url, Invocation.Builder request) {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(url);
+        }
+        if (entry != null) {
+            request.header(HttpHeaders.IF_NONE_MATCH, entry.etag.toString());
+        }
+        Response response = request.get();
+        if (entry != null && response.getStatus() == Response.Status.NOT_MODIFIED.getStatusCode()) {
+            response.close();
+            return entry.certificate;
+        }
+        if (response.getStatusInfo().getFamily() != Response.Status.Family.SUCCESSFUL) {
+            throw TrustAgentClient.toException(response);
+        }
+        X509Certificate certificate = response.readEntity(X509Certificate.class);
+        EntityTag etag = response.getEntityTag();
+        synchronized (entries) {
+            if (etag == null || certificate == null) {
+                entries.remove(url);
+            } else {
+                entries.put(url, new Entry(etag, certificate));
+            }
+        }
+        return certificate;
+    }
+}
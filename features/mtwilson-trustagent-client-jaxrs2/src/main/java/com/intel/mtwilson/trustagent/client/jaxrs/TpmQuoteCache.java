@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.client.jaxrs;
+
+import com.intel.mtwilson.trustagent.model.TpmQuoteDigest;
+import com.intel.mtwilson.trustagent.model.TpmQuoteRequest;
+import com.intel.mtwilson.trustagent.model.TpmQuoteResponse;
+import java.security.cert.X509Certificate;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.ws.rs.ProcessingException;
+
+/**
+ * The event log, TCB measurement and AIK certificate last received from
+ * each trust agent. TrustAgentClient sends their digests with the next quote
+ * request, and puts the cached values back into the response for every
+ * field the trust agent reports as unchanged, so callers always get a
+ * complete TpmQuoteResponse.
+ *
+ * Entries are kept only for trust agents that announce support in the
+ * TpmQuoteDigest.HEADER response header. The least recently polled hosts
+ * are dropped beyond MAX_HOSTS.
+ */
+class TpmQuoteCache {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(TpmQuoteCache.class);
+    private static final int MAX_HOSTS = 1024;
+    private static final Map<String, Entry> hosts = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        private static final long serialVersionUID = 0;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_HOSTS;
+        }
+    };
+
+    static class Entry {
+        private final String eventLog;
+        private final byte[] eventLogDigest;
+        private final String tcbMeasurement;
+        private final byte[] tcbMeasurementDigest;
+        private final X509Certificate aik;
+        private final byte[] aikDigest;
+
+        private Entry(String eventLog, byte[] eventLogDigest, String tcbMeasurement, byte[] tcbMeasurementDigest, X509Certificate aik, byte[] aikDigest) {
+            this.eventLog = eventLog;
+            this.eventLogDigest = eventLogDigest;
+            this.tcbMeasurement = tcbMeasurement;
+            this.tcbMeasurementDigest = tcbMeasurementDigest;
+            this.aik = aik;
+            this.aikDigest = aikDigest;
+        }
+    }
+
+    private TpmQuoteCache() {
+    }
+
+    /**
+     * Adds the digests of what is cached for the host to the request.
+     * @return the entry the digests came from, to pass to complete(), or null
+     */
+    static Entry prepare(String host, TpmQuoteRequest request) {
+        Entry entry;
+        synchronized (hosts) {
+            entry = hosts.get(host);
+        }
+        if (entry != null) {
+            request.setEventLogDigest(entry.eventLogDigest);
+            request.setTcbMeasurementDigest(entry.tcbMeasurementDigest);
+            request.setAikDigest(entry.aikDigest);
+        }
+        return entry;
+    }
+
+    /**
+     * Fills in the fields left out of the response and remembers the
+     * fields that were sent for the next request.
+     * @param sent the entry returned by prepare() for this request
+     * @param supported whether the response had the TpmQuoteDigest.HEADER
+     */
+    static void complete(String host, Entry sent, TpmQuoteResponse response, boolean supported) {
+        if (!supported) {
+            synchronized (hosts) {
+                hosts.remove(host);
+            }
+            return;
+        }
+        String eventLog = response.eventLog;
+        byte[] eventLogDigest;
+        if (Boolean.TRUE.equals(response.eventLogUnchanged)) {
+            eventLog = require(sent, "event log").eventLog;
+            eventLogDigest = sent.eventLogDigest;
+        } else {
+            eventLogDigest = TpmQuoteDigest.of(eventLog);
+        }
+        String tcbMeasurement = response.tcbMeasurement;
+        byte[] tcbMeasurementDigest;
+        if (Boolean.TRUE.equals(response.tcbMeasurementUnchanged)) {
+            tcbMeasurement = require(sent, "TCB measurement").tcbMeasurement;
+            tcbMeasurementDigest = sent.tcbMeasurementDigest;
+        } else {
+            tcbMeasurementDigest = TpmQuoteDigest.of(tcbMeasurement);
+        }
+        X509Certificate aik = response.aik;
+        byte[] aikDigest;
+        if (Boolean.TRUE.equals(response.aikUnchanged)) {
+            aik = require(sent, "AIK certificate").aik;
+            aikDigest = sent.aikDigest;
+        } else {
+            aikDigest = TpmQuoteDigest.of(aik);
+        }
+        response.eventLog = eventLog;
+        response.tcbMeasurement = tcbMeasurement;
+        response.aik = aik;
+        response.eventLogUnchanged = null;
+        response.tcbMeasurementUnchanged = null;
+        response.aikUnchanged = null;
+        Entry entry = new Entry(eventLog, eventLogDigest, tcbMeasurement, tcbMeasurementDigest, aik, aikDigest);
+        synchronized (hosts) {
+            hosts.put(host, entry);
+        }
+    }
+
+    private static Entry require(Entry sent, String field) {
+        if (sent == null) {
+            log.error("Trust agent left out the {} but no digest was sent", field);
+            throw new ProcessingException(String.format("Trust agent left out the %s but no copy is cached", field));
+        }
+        return sent;
+    }
+}
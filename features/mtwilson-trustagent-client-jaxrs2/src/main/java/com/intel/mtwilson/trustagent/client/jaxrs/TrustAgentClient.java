@@ -11,10 +11,31 @@ import com.intel.mtwilson.jaxrs2.mediatype.CryptoMediaType;
 import com.intel.mtwilson.trustagent.model.VMAttestationRequest;
 import com.intel.mtwilson.trustagent.model.VMAttestationResponse;
 import com.intel.mtwilson.trustagent.model.*;
+import java.io.IOException;
+import java.io.InputStream;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Properties;
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.ClientErrorException;
+import javax.ws.rs.ForbiddenException;
+import javax.ws.rs.InternalServerErrorException;
+import javax.ws.rs.NotAcceptableException;
+import javax.ws.rs.NotAllowedException;
+import javax.ws.rs.NotAuthorizedException;
+import javax.ws.rs.NotFoundException;
+import javax.ws.rs.NotSupportedException;
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.RedirectionException;
+import javax.ws.rs.ServerErrorException;
+import javax.ws.rs.ServiceUnavailableException;
+import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.WebTarget;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
 import org.apache.commons.lang.StringUtils;
 
 /**
@@ -74,12 +95,8 @@ public class TrustAgentClient extends MtWilsonClient {
      */        
     public X509Certificate getAik() {
         log.debug("target: {}", getTarget().getUri().toString());
-        X509Certificate aik = getTarget()
-                .path("/aik")
-                .request()
-                .accept(CryptoMediaType.APPLICATION_PKIX_CERT)
-                .get(X509Certificate.class);
-        return aik;
+        WebTarget target = getTarget().path("/aik");
+        return CredentialCache.get(target.getUri().toString(), target.request().accept(CryptoMediaType.APPLICATION_PKIX_CERT));
     }
 
      /**
@@ -125,12 +142,8 @@ public class TrustAgentClient extends MtWilsonClient {
      */        
     public X509Certificate getAikCa() {
         log.debug("target: {}", getTarget().getUri().toString());
-        X509Certificate aik = getTarget()
-                .path("/aik/ca")
-                .request()
-                .accept(CryptoMediaType.APPLICATION_PKIX_CERT)
-                .get(X509Certificate.class);
-        return aik;
+        WebTarget target = getTarget().path("/aik/ca");
+        return CredentialCache.get(target.getUri().toString(), target.request().accept(CryptoMediaType.APPLICATION_PKIX_CERT));
     }
     
      /**
@@ -228,7 +241,7 @@ public class TrustAgentClient extends MtWilsonClient {
      * @return TpmQuoteResponse object having the details of the current status of the TPM and its PCR values.
      * The output is base64-encoded in both XML and JSON output formats. 
      * @since Mt.Wilson 2.0
-     * @mtwContentTypeReturned JSON/XML
+     * @mtwContentTypeReturned TLV/JSON/XML
      * @mtwMethodType POST
      * @mtwSampleRestCall
      * <pre><xmp>
@@ -310,13 +323,7 @@ public class TrustAgentClient extends MtWilsonClient {
         TpmQuoteRequest tpmQuoteRequest = new TpmQuoteRequest();
         tpmQuoteRequest.setNonce(nonce);
         tpmQuoteRequest.setPcrs(pcrs);
-        log.debug("target: {}", getTarget().getUri().toString());
-        TpmQuoteResponse tpmQuoteResponse = getTarget()
-                .path("/tpm/quote")
-                .request()
-                .accept(MediaType.APPLICATION_XML)
-                .post(Entity.json(tpmQuoteRequest), TpmQuoteResponse.class);
-        return tpmQuoteResponse;
+        return postTpmQuote(tpmQuoteRequest);
     }
     
     /**
@@ -331,7 +338,7 @@ public class TrustAgentClient extends MtWilsonClient {
      * @return TpmQuoteResponse object having the details of the current status of the TPM and its PCR values.
      * The output is base64-encoded in both XML and JSON output formats. 
      * @since Mt.Wilson 2.0
-     * @mtwContentTypeReturned JSON/XML
+     * @mtwContentTypeReturned TLV/JSON/XML
      * @mtwMethodType POST
      * @mtwSampleRestCall
      * <pre><xmp>
@@ -362,13 +369,7 @@ public class TrustAgentClient extends MtWilsonClient {
         tpmQuoteRequest.setNonce(nonce);
         tpmQuoteRequest.setPcrs(pcrs);
         tpmQuoteRequest.setPcrbanks(pcrBank);
-        log.debug("target: {}", getTarget().getUri().toString());
-        TpmQuoteResponse tpmQuoteResponse = getTarget()
-                .path("/tpm/quote")
-                .request()
-                .accept(MediaType.APPLICATION_XML)
-                .post(Entity.json(tpmQuoteRequest), TpmQuoteResponse.class);
-        return tpmQuoteResponse;
+        return postTpmQuote(tpmQuoteRequest);
     }
     
     /**
@@ -383,7 +384,7 @@ public class TrustAgentClient extends MtWilsonClient {
      * @return TpmQuoteResponse object having the details of the current status of the TPM and its PCR values.
      * The output is base64-encoded in both XML and JSON output formats. 
      * @since Mt.Wilson 2.0
-     * @mtwContentTypeReturned JSON/XML
+     * @mtwContentTypeReturned TLV/JSON/XML
      * @mtwMethodType POST
      * @mtwSampleRestCall
      * <pre><xmp>
@@ -415,15 +416,131 @@ public class TrustAgentClient extends MtWilsonClient {
         tpmQuoteRequest.setPcrs(pcrs);
                 
         tpmQuoteRequest.setPcrbanks(StringUtils.join(pcrBanks, " "));
-        log.debug("target: {}", getTarget().getUri().toString());
-        TpmQuoteResponse tpmQuoteResponse = getTarget()
+        return postTpmQuote(tpmQuoteRequest);
+    }
+
+    /**
+     * Asks for the binary encoding first; a trust agent that does not have
+     * it answers in XML instead. The event log, TCB measurement and AIK
+     * certificate received from this host before are sent back as digests
+     * and restored from TpmQuoteCache when the trust agent leaves them out.
+     */
+    private TpmQuoteResponse postTpmQuote(TpmQuoteRequest tpmQuoteRequest) {
+        String host = getTarget().getUri().toString();
+        log.debug("target: {}", host);
+        TpmQuoteCache.Entry cached = TpmQuoteCache.prepare(host, tpmQuoteRequest);
+        Response response = getTarget()
                 .path("/tpm/quote")
                 .request()
-                .accept(MediaType.APPLICATION_XML)
-                .post(Entity.json(tpmQuoteRequest), TpmQuoteResponse.class);
+                .accept(TpmQuoteResponseCodec.MEDIA_TYPE, MediaType.APPLICATION_XML + ";q=0.5")
+                .post(Entity.json(tpmQuoteRequest));
+        if (response.getStatusInfo().getFamily() != Response.Status.Family.SUCCESSFUL) {
+            throw toException(response);
+        }
+        TpmQuoteResponse tpmQuoteResponse;
+        if (response.getMediaType() != null && response.getMediaType().isCompatible(MediaType.valueOf(TpmQuoteResponseCodec.MEDIA_TYPE))) {
+            try (InputStream in = response.readEntity(InputStream.class)) {
+                tpmQuoteResponse = TpmQuoteResponseCodec.read(in);
+            }
+            catch(IOException e) {
+                throw new ProcessingException("Cannot read binary TPM quote response", e);
+            }
+        }
+        else {
+            tpmQuoteResponse = response.readEntity(TpmQuoteResponse.class);
+        }
+        if (tpmQuoteResponse != null) {
+            TpmQuoteCache.complete(host, cached, tpmQuoteResponse, response.getHeaderString(TpmQuoteDigest.HEADER) != null);
+        }
         return tpmQuoteResponse;
     }
 
+    /**
+     * The exception Jersey throws for an unsuccessful response when the
+     * entity type is given to post or get, for the methods that read the
+     * Response themselves: NotAuthorizedException for 401,
+     * NotFoundException for 404 and so on.
+     */
+    static WebApplicationException toException(Response response) {
+        switch (response.getStatus()) {
+            case 400:
+                return new BadRequestException(response);
+            case 401:
+                return new NotAuthorizedException(response);
+            case 403:
+                return new ForbiddenException(response);
+            case 404:
+                return new NotFoundException(response);
+            case 405:
+                return new NotAllowedException(response);
+            case 406:
+                return new NotAcceptableException(response);
+            case 415:
+                return new NotSupportedException(response);
+            case 500:
+                return new InternalServerErrorException(response);
+            case 503:
+                return new ServiceUnavailableException(response);
+            default:
+                break;
+        }
+        switch (response.getStatusInfo().getFamily()) {
+            case REDIRECTION:
+                return new RedirectionException(response);
+            case CLIENT_ERROR:
+                return new ClientErrorException(response);
+            case SERVER_ERROR:
+                return new ServerErrorException(response);
+            default:
+                return new WebApplicationException(response);
+        }
+    }
+
+    /**
+     * Returns the nonce the TPM actually signed for a quote response. When the
+     * trust agent batches concurrent quote requests (tpm.quote.batch.window)
+     * the TPM quotes the Merkle root of all their nonces and the response
+     * carries batchIndex, batchSize and batchProof; otherwise the quoted nonce
+     * is the request nonce itself.
+     * @param extendedNonce - the nonce after the same IP address and asset tag
+     * extensions the verifier already applies, i.e. the value it would expect
+     * in an unbatched quote
+     * @param tpmQuoteResponse - the response from getTpmQuote
+     * @return the value to compare with the nonce (external data) inside the quote
+     * @throws IllegalArgumentException if the batch proof is malformed
+     * @since Mt.Wilson 3.2
+     * @mtwSampleApiCall
+     * <div style="word-wrap: break-word; width: 1024px"><pre><xmp>
+     *   TpmQuoteResponse tpmQuote = client.getTpmQuote(nonce, pcrs, pcrBanks);
+     *   byte[] quotedNonce = TrustAgentClient.getQuotedNonce(extendedNonce, tpmQuote);
+     * </xmp></pre></div>
+     */
+    public static byte[] getQuotedNonce(byte[] extendedNonce, TpmQuoteResponse tpmQuoteResponse) {
+        if (tpmQuoteResponse.batchProof == null || tpmQuoteResponse.batchIndex == null || tpmQuoteResponse.batchSize == null) {
+            return extendedNonce;
+        }
+        return TpmQuoteBatch.rootFromProof(extendedNonce, tpmQuoteResponse.batchIndex, tpmQuoteResponse.batchSize, tpmQuoteResponse.batchProof);
+    }
+
+    /**
+     * Checks that a batched quote response includes this request's nonce.
+     * @param extendedNonce - the nonce after the IP address and asset tag extensions
+     * @param quotedNonce - the nonce (external data) extracted from the signed quote
+     * @param tpmQuoteResponse - the response from getTpmQuote
+     * @return true if the proof leads from extendedNonce to quotedNonce, or if the
+     * response is not batched and quotedNonce equals extendedNonce
+     * @since Mt.Wilson 3.2
+     */
+    public static boolean verifyQuotedNonce(byte[] extendedNonce, byte[] quotedNonce, TpmQuoteResponse tpmQuoteResponse) {
+        try {
+            return Arrays.equals(quotedNonce, getQuotedNonce(extendedNonce, tpmQuoteResponse));
+        }
+        catch(IllegalArgumentException e) {
+            log.debug("Invalid quote batch proof: {}", e.getMessage());
+            return false;
+        }
+    }
+
     /**
      * Retrieves the TPM binding key certificate.
      * @return X509Certificate object with the TPM binding key certificate.
@@ -472,12 +589,8 @@ public class TrustAgentClient extends MtWilsonClient {
     */
     public X509Certificate getBindingKeyCertificate() {
         log.debug("target: {}", getTarget().getUri().toString());
-        X509Certificate aik = getTarget()
-                .path("/binding-key-certificate")
-                .request()
-                .accept(CryptoMediaType.APPLICATION_PKIX_CERT)
-                .get(X509Certificate.class);
-        return aik;
+        WebTarget target = getTarget().path("/binding-key-certificate");
+        return CredentialCache.get(target.getUri().toString(), target.request().accept(CryptoMediaType.APPLICATION_PKIX_CERT));
     }
     
     /**
@@ -525,7 +638,55 @@ public class TrustAgentClient extends MtWilsonClient {
     }
     
     /**
-     * Retrieves the complete VM attestation report.
+     * Retrieves the attestation status of many VMs with one request. The
+     * trust agent queries vRTM for the VMs concurrently.
+     * @param vmInstanceIds - the orchestration engine instance IDs.
+     * @return VMAttestationStatusesResponse object with the trust status of each VM instance, and the reason
+     * for each VM instance whose status could not be retrieved.
+     * @since Mt.Wilson 3.2
+     * @mtwContentTypeReturned JSON
+     * @mtwMethodType POST
+     * @mtwSampleRestCall
+     * <div style="word-wrap: break-word; width: 1024px"><pre><xmp>
+     * https://server.com:1443/v2/vrtm/statuses
+     * 
+     * Headers:
+     * Content-Type: application/json
+     * Accept: application/json
+     * 
+     * Input:
+     * {"vm_instance_ids":["a222c422-714f-42bd-89c6-7042870c5784","dcc4a894-869b-479a-a24a-659eef7a54bd"]}
+     * 
+     * Output:
+     * {
+     *   "trust_statuses": {"a222c422-714f-42bd-89c6-7042870c5784": true},
+     *   "errors": {"dcc4a894-869b-479a-a24a-659eef7a54bd": "No status from vRTM after 10000 ms"}
+     * }
+     * </xmp></pre></div>
+     * @mtwSampleApiCall
+     * <div style="word-wrap: break-word; width: 1024px"><pre><xmp>
+     *   TrustAgentClient client = new TrustAgentClient(properties, new TlsConnection(url, tlsPolicy));
+     *   VMAttestationStatusesResponse statuses = client.getVMAttestationStatuses(Arrays.asList("a222c422-714f-42bd-89c6-7042870c5784", "dcc4a894-869b-479a-a24a-659eef7a54bd"));
+     *   Boolean trusted = statuses.getTrustStatuses().get("a222c422-714f-42bd-89c6-7042870c5784");
+     * </xmp></pre></div>
+    */
+    public VMAttestationStatusesResponse getVMAttestationStatuses(Collection<String> vmInstanceIds) {
+        VMAttestationStatusesRequest vmAttestationStatusesRequest = new VMAttestationStatusesRequest(new ArrayList<String>(vmInstanceIds));
+        log.debug("target: {}", getTarget().getUri().toString());
+
+        VMAttestationStatusesResponse vmAttestationStatusesResponse = getTarget()
+                .path("/vrtm/statuses")
+                .request()
+                .accept(MediaType.APPLICATION_JSON)
+                .post(Entity.json(vmAttestationStatusesRequest), VMAttestationStatusesResponse.class);
+        return vmAttestationStatusesResponse;
+    }
+    
+    /**
+     * Retrieves the complete VM attestation report. Asks for the
+     * VMQuoteBundle encoding first and checks each file against the digest
+     * that follows it; a trust agent that does not have it answers in JSON
+     * instead.
      * @param obj - VMAttestationRequest object containing the 
      * @return VMQuoteResponse object containing the details of the VM attestation report including the following:
      * - Signed VM Quote having the nonce, vm instance id, and cumulative hash
@@ -694,12 +855,65 @@ public class TrustAgentClient extends MtWilsonClient {
     public VMQuoteResponse getVMAttestationReport(VMAttestationRequest obj) {
         
         log.debug("target: {}", getTarget().getUri().toString());
-        VMQuoteResponse vmQuoteResponse = getTarget()
+        Response response = getTarget()
                 .path("/vrtm/report")
                 .request()
-                .accept(MediaType.APPLICATION_JSON)
-                .post(Entity.json(obj), VMQuoteResponse.class);
-                
-        return vmQuoteResponse;
+                .accept(VMQuoteBundle.MEDIA_TYPE, MediaType.APPLICATION_JSON + ";q=0.5")
+                .post(Entity.json(obj));
+        if (response.getStatusInfo().getFamily() != Response.Status.Family.SUCCESSFUL) {
+            throw toException(response);
+        }
+        if (response.getStatus() == Response.Status.NO_CONTENT.getStatusCode()) {
+            return null;
+        }
+        if (response.getMediaType() != null && response.getMediaType().isCompatible(MediaType.valueOf(VMQuoteBundle.MEDIA_TYPE))) {
+            try (InputStream in = response.readEntity(InputStream.class)) {
+                return VMQuoteBundle.read(in);
+            }
+            catch(IOException e) {
+                throw new ProcessingException("Cannot read binary VM attestation report", e);
+            }
+        }
+        return response.readEntity(VMQuoteResponse.class);
+    }
+
+    /**
+     * Same report as getVMAttestationReport, read from the connection file
+     * by file so large measurement logs are not held in memory. The caller
+     * must close the reader. Returns null if the trust agent has no report
+     * for the instance, and fails if it does not support the VMQuoteBundle
+     * encoding.
+     * @mtwSampleApiCall
+     * <div style="word-wrap: break-word; width: 1024px"><pre><xmp>
+     *   try (VMQuoteBundle.Reader reader = client.getVMAttestationReportStream(request)) {
+     *       while (reader.next()) {
+     *           if (reader.getTag() == VMQuoteBundle.MEASUREMENTS) {
+     *               Files.copy(reader.getContent(), measurementsFile);
+     *           }
+     *       }
+     *   }
+     * </xmp></pre></div>
+     */
+    public VMQuoteBundle.Reader getVMAttestationReportStream(VMAttestationRequest obj) {
+        log.debug("target: {}", getTarget().getUri().toString());
+        Response response = getTarget()
+                .path("/vrtm/report")
+                .request()
+                .accept(VMQuoteBundle.MEDIA_TYPE)
+                .post(Entity.json(obj));
+        if (response.getStatusInfo().getFamily() != Response.Status.Family.SUCCESSFUL) {
+            throw toException(response);
+        }
+        if (response.getStatus() == Response.Status.NO_CONTENT.getStatusCode()) {
+            return null;
+        }
+        InputStream in = response.readEntity(InputStream.class);
+        try {
+            return new VMQuoteBundle.Reader(in);
+        }
+        catch(IOException e) {
+            response.close();
+            throw new ProcessingException("Cannot read binary VM attestation report", e);
+        }
     }
 }
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.client.jaxrs;
+
+import com.intel.mtwilson.jaxrs2.mediatype.CryptoMediaType;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.NotFoundException;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+import javax.ws.rs.client.ClientRequestContext;
+import javax.ws.rs.client.ClientRequestFilter;
+import javax.ws.rs.client.Invocation;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.MessageBodyReader;
+import javax.xml.bind.DatatypeConverter;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CredentialCacheTest {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(CredentialCacheTest.class);
+    private static final byte[] AIK = DatatypeConverter.parseBase64Binary(
+            "MIIBizCCATGgAwIBAgIUHsna2NfzzX9svh+J9LvjACaNlRkwCgYIKoZIzj0EAwIwGzEZMBcGA1UE"
+            + "AwwQSElTX0lkZW50aXR5X0tleTAeFw0yNjEwMTcwNTE5MjNaFw0zNjEwMTQwNTE5MjNaMBsxGTAX"
+            + "BgNVBAMMEEhJU19JZGVudGl0eV9LZXkwWTATBgcqhkjOPQIBBggqhkjOPQMBBwNCAARolJ67mATY"
+            + "blE9gX9uVgiIrYVwmBIQ5bXwXIFFD83x8F4KYH92aI5OyVDN6Q5z56zElAI/qG2hS8vXqTcgPyHl"
+            + "o1MwUTAdBgNVHQ4EFgQUI+dSg6wmfw8M3zwbXQoggNtzBhwwHwYDVR0jBBgwFoAUI+dSg6wmfw8M"
+            + "3zwbXQoggNtzBhwwDwYDVR0TAQH/BAUwAwEB/zAKBggqhkjOPQQDAgNIADBFAiEArEybLmCy55B2"
+            + "tMsKXTLrmIyHDqDZdrHITMdhKyNvMOsCIBXrQ9eWqv7+uaKZjit1nvbVtl8fEYXP3UtIegMifvKH");
+
+    /**
+     * Answers requests without a server, as a trust agent serving AIK with
+     * the current entity tag would.
+     */
+    private static class FakeTrustAgent implements ClientRequestFilter {
+        private final List<String> ifNoneMatch = new ArrayList<>();
+        private EntityTag etag = new EntityTag("first-der");
+        private int status = 200;
+
+        @Override
+        public void filter(ClientRequestContext request) {
+            String sent = request.getHeaderString(HttpHeaders.IF_NONE_MATCH);
+            ifNoneMatch.add(sent);
+            if (status != 200) {
+                request.abortWith(Response.status(status).build());
+            } else if (etag.toString().equals(sent)) {
+                request.abortWith(Response.notModified(etag).build());
+            } else {
+                request.abortWith(Response.ok(AIK, CryptoMediaType.APPLICATION_PKIX_CERT).tag(etag).build());
+            }
+        }
+    }
+
+    /**
+     * Decodes a new certificate for every 200 response, so the test can
+     * tell a cached certificate from a received one.
+     */
+    @Consumes(CryptoMediaType.APPLICATION_PKIX_CERT)
+    private static class DerReader implements MessageBodyReader<X509Certificate> {
+        @Override
+        public boolean isReadable(Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType) {
+            return X509Certificate.class.isAssignableFrom(type);
+        }
+
+        @Override
+        public X509Certificate readFrom(Class<X509Certificate> type, Type genericType, Annotation[] annotations, MediaType mediaType, MultivaluedMap<String, String> headers, InputStream entity) throws IOException {
+            try {
+                return (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(entity);
+            } catch (CertificateException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    private static Invocation.Builder request(FakeTrustAgent agent, String url) {
+        Client client = ClientBuilder.newClient().register(agent).register(new DerReader());
+        return client.target(url).request().accept(CryptoMediaType.APPLICATION_PKIX_CERT);
+    }
+
+    @Test
+    public void testNotModifiedReturnsCachedCertificate() {
+        String url = "https://trustagent.test:1443/v2/aik?test=not-modified";
+        FakeTrustAgent agent = new FakeTrustAgent();
+        X509Certificate first = CredentialCache.get(url, request(agent, url));
+        X509Certificate second = CredentialCache.get(url, request(agent, url));
+        log.debug("If-None-Match sent: {}", agent.ifNoneMatch);
+        Assert.assertNotNull(first);
+        Assert.assertSame(first, second);
+        Assert.assertNull(agent.ifNoneMatch.get(0));
+        Assert.assertEquals(agent.etag.toString(), agent.ifNoneMatch.get(1));
+    }
+
+    @Test
+    public void testNewTagReplacesCachedCertificate() {
+        String url = "https://trustagent.test:1443/v2/aik?test=replaced";
+        FakeTrustAgent agent = new FakeTrustAgent();
+        X509Certificate first = CredentialCache.get(url, request(agent, url));
+        agent.etag = new EntityTag("second-der");
+        X509Certificate second = CredentialCache.get(url, request(agent, url));
+        X509Certificate third = CredentialCache.get(url, request(agent, url));
+        Assert.assertNotSame(first, second);
+        Assert.assertEquals(first, second);
+        Assert.assertSame(second, third);
+        Assert.assertEquals("\"second-der\"", agent.ifNoneMatch.get(2));
+    }
+
+    @Test(expected = NotFoundException.class)
+    public void testErrorIsThrown() {
+        String url = "https://trustagent.test:1443/v2/aik?test=error";
+        FakeTrustAgent agent = new FakeTrustAgent();
+        agent.status = 404;
+        CredentialCache.get(url, request(agent, url));
+    }
+}
@@ -21,7 +21,9 @@ import java.io.StringReader;
 import java.net.SocketException;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -71,8 +73,36 @@ public class TrustagentConfiguration {
     public static final String TRUSTAGENT_ADMIN_USERNAME = "trustagent.admin.username";
     public final static String JETTY_THREAD_MIN = "jetty.thread.min";
     public final static String JETTY_THREAD_MAX = "jetty.thread.max";
+    public final static String TPM2_QUOTE_ENGINE = "tpm2.quote.engine"; // tools (default), device, or socket
+    public final static String TPM2_DEVICE = "tpm2.device"; // default /dev/tpmrm0
+    public final static String TPM2_TCTI_SOCKET_ADDRESS = "tpm2.tcti.socket.address"; // default 127.0.0.1
+    public final static String TPM2_TCTI_SOCKET_PORT = "tpm2.tcti.socket.port"; // default 2323 (resourcemgr), simulator is 2321
+    public final static String TPM12_ENGINE = "tpm12.engine"; // tools (default), device, or socket
+    public final static String TPM12_DEVICE = "tpm12.device"; // default /dev/tpm0
+    public final static String TPM12_SOCKET_ADDRESS = "tpm12.socket.address"; // default 127.0.0.1
+    public final static String TPM12_SOCKET_PORT = "tpm12.socket.port"; // default 6545 (TPM 1.2 software emulator)
+    public final static String TPM_QUOTE_SCRATCH_FOLDER = "tpm.quote.scratch.folder"; // default /run/trustagent (tmpfs, writable only by root) if available; must be a private directory of the trust agent user
+    public final static String TPM_QUOTE_BATCH_WINDOW = "tpm.quote.batch.window"; // milliseconds, default 0 (each request gets its own quote)
+    public final static String TPM_QUOTE_BATCH_MAX = "tpm.quote.batch.max"; // default 32 nonces per quote
+    public final static String TPM_DISPATCHER_QUEUE_MAX = "tpm.dispatcher.queue.max"; // default 64 requests waiting for the TPM, more are rejected with 503
+    public final static String TPM_DISPATCHER_QUEUE_WAIT = "tpm.dispatcher.queue.wait"; // milliseconds, default 30000
+    public final static String TCB_MEASUREMENT_MAX_SIZE = "tcb.measurement.max.size"; // bytes, default 16777216; a larger measurement.xml fails the quote
+    public final static String TRUSTAGENT_WARMUP_ENABLED = "trustagent.warmup.enabled"; // default true; /v2/ready reports not ready until the warm-up completes
+    public final static String VRTM_STATUS_BATCH_MAX = "vrtm.status.batch.max"; // default 1000 VM instances per /v2/vrtm/statuses request, more are rejected with 400
+    public final static String VRTM_STATUS_TIMEOUT = "vrtm.status.timeout"; // milliseconds, default 10000; VM instances without a status from vRTM by then are reported as errors
+    public final static String VRTM_STATUS_CACHE_TTL_TRUSTED = "vrtm.status.cache.ttl.trusted"; // milliseconds, default 60000; 0 asks vRTM on every request
+    public final static String VRTM_STATUS_CACHE_TTL_UNTRUSTED = "vrtm.status.cache.ttl.untrusted"; // milliseconds, default 5000; short because a new VM is untrusted until vRTM verifies it
+    public final static String VRTM_STATUS_CACHE_REFRESH = "vrtm.status.cache.refresh"; // milliseconds between background refreshes, default 1000
+    public final static String VRTM_INSTANCES_PATH = "vrtm.instances.path"; // default /var/lib/nova/instances; a change to an instance folder invalidates its cached status
                
+    private static final String TPM_VERSION_FILE = "tpm-version";
+    private static final String AIK_HANDLE_FILE = "aikhandle";
+    private static final String EK_HANDLE_FILE = "ekhandle";
+    private static final String AIK_NAME_FILE = "aikname";
+    static final List<String> SNAPSHOT_FILES = Arrays.asList("trustagent.properties", TPM_VERSION_FILE, AIK_HANDLE_FILE, EK_HANDLE_FILE, AIK_NAME_FILE);
+
     private Configuration conf;
+    private final Map<String,String> files; // contents of the small files in the configuration folder, or null to read them on each call
 
     public Configuration getConf() {
         return conf;
@@ -82,7 +112,11 @@ public class TrustagentConfiguration {
         this(new CommonsConfiguration(configuration));
     }
     public TrustagentConfiguration(Configuration configuration) {
+        this(configuration, null);
+    }
+    private TrustagentConfiguration(Configuration configuration, Map<String,String> files) {
         this.conf = configuration;
+        this.files = files;
 //        initEnvironmentConfiguration(configuration);
     }
     /*
@@ -186,11 +220,11 @@ public class TrustagentConfiguration {
         }
         */
         try {
-            if ( getTpmVersion().equals("1.2") ) {
+            if ( readTpmVersion().equals("1.2") ) {
                 return conf.get(AIK_INDEX, "1");                
             }
             else {
-                return readFromFile(Folders.configuration() + File.separator + "aikhandle");
+                return readConfigurationFile(AIK_HANDLE_FILE);
             }
         } catch (IOException ex) {
             Logger.getLogger(TrustagentConfiguration.class.getName()).log(Level.SEVERE, null, ex);
@@ -198,7 +232,8 @@ public class TrustagentConfiguration {
         }
     }
     public void setAikHandle(String khandle) throws IOException {
-        writeToFile(Folders.configuration() + File.separator + "aikhandle", khandle);
+        writeToFile(Folders.configuration() + File.separator + AIK_HANDLE_FILE, khandle);
+        TrustagentConfigurationWatcher.refresh();
     }
     
     public String getEkHandleHex() {
@@ -215,7 +250,7 @@ public class TrustagentConfiguration {
             }
             */
         try {
-            return readFromFile(Folders.configuration() + File.separator + "ekhandle");
+            return readConfigurationFile(EK_HANDLE_FILE);
         } catch (IOException ex) {
             Logger.getLogger(TrustagentConfiguration.class.getName()).log(Level.SEVERE, null, ex);
             throw new IllegalArgumentException("EK Handle", ex);
@@ -223,7 +258,8 @@ public class TrustagentConfiguration {
     }
     
     public void setEkHandle(String khandle) throws IOException {
-        writeToFile(Folders.configuration() + File.separator + "ekhandle", khandle);
+        writeToFile(Folders.configuration() + File.separator + EK_HANDLE_FILE, khandle);
+        TrustagentConfigurationWatcher.refresh();
     }
    
     public String getAikName() {
@@ -236,14 +272,15 @@ public class TrustagentConfiguration {
             }
             */
         try {
-            return readFromFile(Folders.configuration() + File.separator + "aikname");
+            return readConfigurationFile(AIK_NAME_FILE);
         } catch (IOException ex) {
             Logger.getLogger(TrustagentConfiguration.class.getName()).log(Level.SEVERE, null, ex);
             throw new IllegalArgumentException("AikName", ex);
         }
     }
     public void setAikName(String kname) throws IOException {
-        writeToFile(Folders.configuration() + File.separator + "aikname", kname);
+        writeToFile(Folders.configuration() + File.separator + AIK_NAME_FILE, kname);
+        TrustagentConfigurationWatcher.refresh();
     }
         
     public File getAikCertificateFile() {
@@ -330,6 +367,95 @@ public class TrustagentConfiguration {
         return Boolean.valueOf(conf.get(TPM_QUOTE_IPV4, "true"));
     }
     
+    /**
+     * "tools" runs tpm2_listpcrs and tpm2_quote for each quote; "device" and
+     * "socket" issue the commands in-process over the TPM device or the
+     * tcti socket respectively.
+     */
+    public String getTpm2QuoteEngine() {
+        return conf.get(TPM2_QUOTE_ENGINE, "tools");
+    }
+    public File getTpm2Device() {
+        return new File(conf.get(TPM2_DEVICE, "/dev/tpmrm0"));
+    }
+    public String getTpm2TctiSocketAddress() {
+        return conf.get(TPM2_TCTI_SOCKET_ADDRESS, "127.0.0.1");
+    }
+    public int getTpm2TctiSocketPort() {
+        return Integer.valueOf(conf.get(TPM2_TCTI_SOCKET_PORT, "2323"));
+    }
+    
+    /**
+     * "tools" runs aikquote, tpm_nvinfo and tpm_nvread; "device" and "socket"
+     * issue TPM 1.2 commands in-process over the TPM device or the socket of
+     * a software TPM. The device is only available when tcsd is not running.
+     */
+    public String getTpm12Engine() {
+        return conf.get(TPM12_ENGINE, "tools");
+    }
+    public File getTpm12Device() {
+        return new File(conf.get(TPM12_DEVICE, "/dev/tpm0"));
+    }
+    public String getTpm12SocketAddress() {
+        return conf.get(TPM12_SOCKET_ADDRESS, "127.0.0.1");
+    }
+    public int getTpm12SocketPort() {
+        return Integer.valueOf(conf.get(TPM12_SOCKET_PORT, "6545"));
+    }
+    public long getTpmQuoteBatchWindow() {
+        return Long.valueOf(conf.get(TPM_QUOTE_BATCH_WINDOW, "0"));
+    }
+    public int getTpmQuoteBatchMax() {
+        return Integer.valueOf(conf.get(TPM_QUOTE_BATCH_MAX, "32"));
+    }
+    public int getTpmDispatcherQueueMax() {
+        return Integer.valueOf(conf.get(TPM_DISPATCHER_QUEUE_MAX, "64"));
+    }
+    public long getTpmDispatcherQueueWait() {
+        return Long.valueOf(conf.get(TPM_DISPATCHER_QUEUE_WAIT, "30000"));
+    }
+    public long getTcbMeasurementMaxSize() {
+        return Long.valueOf(conf.get(TCB_MEASUREMENT_MAX_SIZE, "16777216"));
+    }
+    public boolean isTrustagentWarmupEnabled() {
+        return Boolean.valueOf(conf.get(TRUSTAGENT_WARMUP_ENABLED, "true"));
+    }
+    public int getVrtmStatusBatchMax() {
+        return Integer.valueOf(conf.get(VRTM_STATUS_BATCH_MAX, "1000"));
+    }
+    public long getVrtmStatusTimeout() {
+        return Long.valueOf(conf.get(VRTM_STATUS_TIMEOUT, "10000"));
+    }
+    public long getVrtmStatusCacheTtlTrusted() {
+        return Long.valueOf(conf.get(VRTM_STATUS_CACHE_TTL_TRUSTED, "60000"));
+    }
+    public long getVrtmStatusCacheTtlUntrusted() {
+        return Long.valueOf(conf.get(VRTM_STATUS_CACHE_TTL_UNTRUSTED, "5000"));
+    }
+    public long getVrtmStatusCacheRefresh() {
+        return Long.valueOf(conf.get(VRTM_STATUS_CACHE_REFRESH, "1000"));
+    }
+    public String getVrtmInstancesPath() {
+        return conf.get(VRTM_INSTANCES_PATH, "/var/lib/nova/instances");
+    }
+    
+    /**
+     * Where quote tools that need files get their reusable scratch folders;
+     * tmpfs keeps those files off the disk. /dev/shm is not used because any
+     * local user can create the folder there first.
+     */
+    public File getTpmQuoteScratchFolder() {
+        String folder = conf.get(TPM_QUOTE_SCRATCH_FOLDER, null);
+        if (folder != null && !folder.isEmpty()) {
+            return new File(folder);
+        }
+        File run = new File("/run");
+        if (run.isDirectory() && run.canWrite()) {
+            return new File(run, "trustagent");
+        }
+        return new File(Folders.repository() + File.separator + "scratch");
+    }
+    
     public String getHardwareUuid() {
         return conf.get(HARDWARE_UUID, null);
     }
@@ -359,6 +485,41 @@ public class TrustagentConfiguration {
     }
     
     
+    /**
+     * The configuration as it was last loaded in this process. Unlike
+     * loadConfiguration() this does not read or decrypt trustagent.properties
+     * or read the key handle files on each call; the snapshot is replaced
+     * when those files change on disk or are written through this class.
+     * Callers must not modify it.
+     */
+    public static TrustagentConfiguration getSnapshot() throws IOException {
+        return TrustagentConfigurationWatcher.getSnapshot();
+    }
+    
+    static TrustagentConfiguration loadSnapshot() throws IOException {
+        TrustagentConfiguration configuration = loadConfiguration();
+        HashMap<String,String> contents = new HashMap<>();
+        contents.put(TPM_VERSION_FILE, getTpmVersion());
+        for(String name : Arrays.asList(AIK_HANDLE_FILE, EK_HANDLE_FILE, AIK_NAME_FILE)) {
+            contents.put(name, readFromFile(Folders.configuration() + File.separator + name));
+        }
+        return new TrustagentConfiguration(configuration.conf, Collections.unmodifiableMap(contents));
+    }
+    
+    private String readConfigurationFile(String name) throws IOException {
+        if( files != null ) {
+            return files.get(name);
+        }
+        return readFromFile(Folders.configuration() + File.separator + name);
+    }
+    
+    private String readTpmVersion() throws IOException {
+        if( files != null ) {
+            return files.get(TPM_VERSION_FILE);
+        }
+        return getTpmVersion();
+    }
+    
     public static TrustagentConfiguration loadConfiguration() throws IOException {
         File file = new File(Folders.configuration() + File.separator + "trustagent.properties");
         if( file.exists() ) {
@@ -479,7 +640,7 @@ public class TrustagentConfiguration {
     }
 
     public static String getTpmVersion() throws IOException {
-        File tpmVerFileH = new File(Folders.configuration() + File.separator + "tpm-version");
+        File tpmVerFileH = new File(Folders.configuration() + File.separator + TPM_VERSION_FILE);
         
         //set tpm version to 1.2 by default
         String tpmVersion = "1.2";
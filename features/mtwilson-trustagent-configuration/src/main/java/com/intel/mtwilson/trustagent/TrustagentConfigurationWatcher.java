@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent;
+
+import com.intel.mtwilson.Folders;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Keeps the process-wide snapshot returned by
+ * TrustagentConfiguration.getSnapshot() and replaces it when
+ * trustagent.properties or one of the key handle files in the
+ * configuration folder changes.
+ *
+ * The snapshot is loaded once; after that a background thread waits on a
+ * WatchService and reloads after the folder has been quiet for a moment,
+ * so an editor or setup task writing several files causes one reload.
+ * Readers always see either the old or the new snapshot, never a mix.
+ * If a reload fails the previous snapshot stays in use.
+ */
+class TrustagentConfigurationWatcher implements Runnable {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(TrustagentConfigurationWatcher.class);
+    private static final long QUIET_PERIOD = 200; // milliseconds
+    private static final AtomicReference<TrustagentConfiguration> current = new AtomicReference<>();
+    private final Path folder;
+
+    private TrustagentConfigurationWatcher(Path folder) {
+        this.folder = folder;
+    }
+
+    static TrustagentConfiguration getSnapshot() throws IOException {
+        TrustagentConfiguration snapshot = current.get();
+        if (snapshot != null) {
+            return snapshot;
+        }
+        synchronized (TrustagentConfigurationWatcher.class) {
+            snapshot = current.get();
+            if (snapshot == null) {
+                snapshot = reload();
+                start();
+            }
+            return snapshot;
+        }
+    }
+
+    /**
+     * Reloads right away if a snapshot is in use, so a write by this
+     * process is visible to the next reader without waiting for the watcher.
+     */
+    static void refresh() {
+        if (current.get() == null) {
+            return;
+        }
+        try {
+            reload();
+        } catch (IOException e) {
+            log.error("Cannot reload configuration", e);
+        }
+    }
+
+    private static synchronized TrustagentConfiguration reload() throws IOException {
+        TrustagentConfiguration snapshot = TrustagentConfiguration.loadSnapshot();
+        current.set(snapshot);
+        log.debug("Loaded configuration snapshot");
+        return snapshot;
+    }
+
+    private static void start() {
+        Path folder = Paths.get(Folders.configuration());
+        if (!folder.toFile().isDirectory()) {
+            log.warn("Configuration folder {} does not exist, configuration will not be reloaded", folder);
+            return;
+        }
+        Thread thread = new Thread(new TrustagentConfigurationWatcher(folder), "trustagent-configuration-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+            folder.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            while (true) {
+                WatchKey key = watcher.take();
+                boolean changed = drain(key);
+                // let the writer finish; more events in the meantime are part of the same change
+                while ((key = watcher.poll(QUIET_PERIOD, TimeUnit.MILLISECONDS)) != null) {
+                    changed = drain(key) || changed;
+                }
+                if (changed) {
+                    refresh();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            log.debug("Configuration watcher stopped");
+        } catch (IOException e) {
+            log.error("Cannot watch configuration folder {}, configuration will not be reloaded", folder, e);
+        }
+    }
+
+    private static boolean drain(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                changed = true;
+            } else if (TrustagentConfiguration.SNAPSHOT_FILES.contains(event.context().toString())) {
+                changed = true;
+            }
+        }
+        key.reset();
+        return changed;
+    }
+}
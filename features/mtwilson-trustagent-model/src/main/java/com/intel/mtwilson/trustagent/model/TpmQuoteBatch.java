@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.model;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Merkle tree over the nonces of a batched quote. The trust agent quotes
+ * the root once and returns each caller its leaf index and the sibling
+ * hashes needed to recompute the root from its own nonce.
+ *
+ * Hashes are SHA-1 so the root fits the 20-byte external data of a TPM 1.2
+ * quote, like the nonces themselves. Leaves and inner nodes are
+ * domain-separated: leaf = SHA1(0x00 || nonce), node = SHA1(0x01 || left || right).
+ * A node without a sibling at the end of a level moves up unchanged.
+ */
+public final class TpmQuoteBatch {
+    public static final int HASH_LENGTH = 20;
+    private static final byte LEAF = 0x00;
+    private static final byte NODE = 0x01;
+
+    private TpmQuoteBatch() {
+    }
+
+    public static byte[] root(List<byte[]> nonces) {
+        List<byte[]> level = leaves(nonces);
+        while (level.size() > 1) {
+            level = parents(level);
+        }
+        return level.get(0);
+    }
+
+    /**
+     * @return the sibling hashes from the leaf up, concatenated
+     */
+    public static byte[] proof(List<byte[]> nonces, int index) {
+        List<byte[]> level = leaves(nonces);
+        byte[] proof = new byte[0];
+        while (level.size() > 1) {
+            int sibling = (index % 2 == 0) ? index + 1 : index - 1;
+            if (sibling < level.size()) {
+                proof = concat(proof, level.get(sibling));
+            }
+            level = parents(level);
+            index = index / 2;
+        }
+        return proof;
+    }
+
+    /**
+     * Recomputes the root from one nonce and its proof. The batch size is
+     * needed to know at which levels the node had no sibling.
+     */
+    public static byte[] rootFromProof(byte[] nonce, int index, int size, byte[] proof) {
+        if (index < 0 || index >= size || proof == null || proof.length % HASH_LENGTH != 0) {
+            throw new IllegalArgumentException("Invalid quote batch proof");
+        }
+        byte[] hash = sha1(LEAF, nonce);
+        int offset = 0;
+        while (size > 1) {
+            int sibling = (index % 2 == 0) ? index + 1 : index - 1;
+            if (sibling < size) {
+                if (offset + HASH_LENGTH > proof.length) {
+                    throw new IllegalArgumentException("Quote batch proof is too short");
+                }
+                byte[] siblingHash = Arrays.copyOfRange(proof, offset, offset + HASH_LENGTH);
+                offset += HASH_LENGTH;
+                hash = (index % 2 == 0) ? sha1(NODE, hash, siblingHash) : sha1(NODE, siblingHash, hash);
+            }
+            index = index / 2;
+            size = (size + 1) / 2;
+        }
+        if (offset != proof.length) {
+            throw new IllegalArgumentException("Quote batch proof is too long");
+        }
+        return hash;
+    }
+
+    private static List<byte[]> leaves(List<byte[]> nonces) {
+        if (nonces.isEmpty()) {
+            throw new IllegalArgumentException("Quote batch is empty");
+        }
+        ArrayList<byte[]> level = new ArrayList<>(nonces.size());
+        for (byte[] nonce : nonces) {
+            level.add(sha1(LEAF, nonce));
+        }
+        return level;
+    }
+
+    private static List<byte[]> parents(List<byte[]> level) {
+        ArrayList<byte[]> parents = new ArrayList<>((level.size() + 1) / 2);
+        for (int i = 0; i < level.size(); i += 2) {
+            if (i + 1 < level.size()) {
+                parents.add(sha1(NODE, level.get(i), level.get(i + 1)));
+            } else {
+                parents.add(level.get(i));
+            }
+        }
+        return parents;
+    }
+
+    private static byte[] sha1(byte prefix, byte[]... parts) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(prefix);
+            for (byte[] part : parts) {
+                digest.update(part);
+            }
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not available", e);
+        }
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+}
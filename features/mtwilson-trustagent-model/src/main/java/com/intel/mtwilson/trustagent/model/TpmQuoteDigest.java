@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.model;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+
+/**
+ * Digests of the TpmQuoteResponse fields a verifier can send back in
+ * TpmQuoteRequest so the trust agent leaves out what it already has.
+ * Both sides compute them the same way: SHA-256 of the field as it appears
+ * in the model, the UTF-8 bytes for eventLog (still base64) and
+ * tcbMeasurement, the DER encoding for the AIK certificate.
+ *
+ * A trust agent that accepts digests names the algorithm in the HEADER
+ * response header of every quote; clients send digests only to such agents.
+ */
+public final class TpmQuoteDigest {
+    public static final String HEADER = "Quote-Digest";
+    public static final String ALGORITHM = "SHA-256";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private TpmQuoteDigest() {
+    }
+
+    public static byte[] of(String value) {
+        if (value == null) {
+            return null;
+        }
+        return sha256(value.getBytes(UTF8));
+    }
+
+    public static byte[] of(X509Certificate value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return sha256(value.getEncoded());
+        } catch (CertificateEncodingException e) {
+            throw new IllegalArgumentException("Cannot encode certificate", e);
+        }
+    }
+
+    private static byte[] sha256(byte[] data) {
+        try {
+            return MessageDigest.getInstance(ALGORITHM).digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -5,6 +5,7 @@
 package com.intel.mtwilson.trustagent.model;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlRootElement;
 import java.util.ArrayList;
 import org.apache.commons.lang.StringUtils;
@@ -18,6 +19,14 @@ public class TpmQuoteRequest {
     private byte[] nonce; // must be 20 bytes
     private int[] pcrs; // variable-length array of pcr index numbers, each one 0-23 
     private String pcrbanks; //the selected PCR banks (SHA1, SHA256, or both) for TPM 2.0
+    // optional TpmQuoteDigest values of what the verifier already has from this
+    // host; the trust agent leaves out the matching fields of the response
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private byte[] eventLogDigest;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private byte[] tcbMeasurementDigest;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private byte[] aikDigest;
 
     public String getPcrbanks() {
         return pcrbanks;
@@ -52,5 +61,29 @@ public class TpmQuoteRequest {
     public int[] getPcrs() {
         return pcrs;
     }
+
+    public byte[] getEventLogDigest() {
+        return eventLogDigest;
+    }
+
+    public void setEventLogDigest(byte[] eventLogDigest) {
+        this.eventLogDigest = eventLogDigest;
+    }
+
+    public byte[] getTcbMeasurementDigest() {
+        return tcbMeasurementDigest;
+    }
+
+    public void setTcbMeasurementDigest(byte[] tcbMeasurementDigest) {
+        this.tcbMeasurementDigest = tcbMeasurementDigest;
+    }
+
+    public byte[] getAikDigest() {
+        return aikDigest;
+    }
+
+    public void setAikDigest(byte[] aikDigest) {
+        this.aikDigest = aikDigest;
+    }
     
 }
@@ -4,6 +4,7 @@
  */
 package com.intel.mtwilson.trustagent.model;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlRootElement;
@@ -16,7 +17,7 @@ import com.intel.mtwilson.jackson.X509CertificateSerializer;
  * @author jbuhacoff
  */
 @JacksonXmlRootElement(localName="tpm_quote_response")
-public class TpmQuoteResponse {
+public class TpmQuoteResponse implements Cloneable {
     public long timestamp;
     public String clientIp;
     public String errorCode;
@@ -33,6 +34,37 @@ public class TpmQuoteResponse {
     public boolean isTagProvisioned;
     public byte[] assetTag;
     
+    // only present when the quote answered several requests at once; the quoted
+    // nonce is then the TpmQuoteBatch root and batchProof leads from this
+    // request's nonce to it
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public Integer batchIndex;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public Integer batchSize;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public byte[] batchProof;
+    
+    // only present when the request carried the matching TpmQuoteDigest; true
+    // means the field was left out because the verifier already has it
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public Boolean eventLogUnchanged;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public Boolean tcbMeasurementUnchanged;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public Boolean aikUnchanged;
+    
+    /**
+     * @return a shallow copy with every field of this response, including
+     * fields added later; the arrays and the certificate are shared
+     */
+    public TpmQuoteResponse copy() {
+        try {
+            return (TpmQuoteResponse) super.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
     /**
         String responseXML =
                 "<client_request> "
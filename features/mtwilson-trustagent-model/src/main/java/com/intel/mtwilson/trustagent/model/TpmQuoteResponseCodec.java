@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import javax.xml.bind.DatatypeConverter;
+
+/**
+ * Binary encoding of TpmQuoteResponse, served by /v2/tpm/quote as
+ * application/vnd.mtwilson.trustagent.tpm-quote+tlv.
+ *
+ * The XML and JSON forms carry the quote, AIK certificate and asset tag in
+ * base64, and the event log as base64 of XML. Here every field is written
+ * once, in its natural form:
+ *
+ * header:  "TAQR" (4 bytes) || version (1 byte)
+ * field:   tag (1 byte) || length (4 bytes, big endian) || value
+ * trailer: tag 0 with length 0
+ *
+ * Strings are UTF-8, numbers are big endian, the AIK is its DER encoding
+ * and the event log is the XML itself. Absent fields are not written.
+ * Readers skip tags they do not know, so fields can be added without a new
+ * version; the version changes only if an existing field changes meaning.
+ */
+public final class TpmQuoteResponseCodec {
+    public static final String MEDIA_TYPE = "application/vnd.mtwilson.trustagent.tpm-quote+tlv";
+    public static final int VERSION = 1;
+    private static final byte[] MAGIC = new byte[] { 'T', 'A', 'Q', 'R' };
+    private static final int MAX_FIELD_LENGTH = 64 * 1024 * 1024;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int END = 0;
+    private static final int TIMESTAMP = 1;
+    private static final int CLIENT_IP = 2;
+    private static final int ERROR_CODE = 3;
+    private static final int ERROR_MESSAGE = 4;
+    private static final int AIK = 5;
+    private static final int QUOTE = 6;
+    private static final int EVENT_LOG = 7;
+    private static final int TCB_MEASUREMENT = 8;
+    private static final int SELECTED_PCR_BANKS = 9;
+    private static final int TAG_PROVISIONED = 10;
+    private static final int ASSET_TAG = 11;
+    private static final int BATCH_INDEX = 12;
+    private static final int BATCH_SIZE = 13;
+    private static final int BATCH_PROOF = 14;
+    private static final int EVENT_LOG_UNCHANGED = 15;
+    private static final int TCB_MEASUREMENT_UNCHANGED = 16;
+    private static final int AIK_UNCHANGED = 17;
+
+    private TpmQuoteResponseCodec() {
+    }
+
+    /**
+     * Writes the response field by field to the stream, without building
+     * the whole document in memory first. The stream is flushed but not closed.
+     */
+    public static void write(TpmQuoteResponse response, OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        out.write(MAGIC);
+        out.writeByte(VERSION);
+        out.writeByte(TIMESTAMP);
+        out.writeInt(8);
+        out.writeLong(response.timestamp);
+        writeString(out, CLIENT_IP, response.clientIp);
+        writeString(out, ERROR_CODE, response.errorCode);
+        writeString(out, ERROR_MESSAGE, response.errorMessage);
+        if (response.aik != null) {
+            try {
+                writeBytes(out, AIK, response.aik.getEncoded());
+            } catch (CertificateEncodingException e) {
+                throw new IOException("Cannot encode AIK certificate", e);
+            }
+        }
+        writeBytes(out, QUOTE, response.quote);
+        if (response.eventLog != null) {
+            writeBytes(out, EVENT_LOG, DatatypeConverter.parseBase64Binary(response.eventLog));
+        }
+        writeString(out, TCB_MEASUREMENT, response.tcbMeasurement);
+        writeString(out, SELECTED_PCR_BANKS, response.selectedPcrBanks);
+        writeBoolean(out, TAG_PROVISIONED, response.isTagProvisioned);
+        writeBytes(out, ASSET_TAG, response.assetTag);
+        writeInteger(out, BATCH_INDEX, response.batchIndex);
+        writeInteger(out, BATCH_SIZE, response.batchSize);
+        writeBytes(out, BATCH_PROOF, response.batchProof);
+        writeBoolean(out, EVENT_LOG_UNCHANGED, response.eventLogUnchanged);
+        writeBoolean(out, TCB_MEASUREMENT_UNCHANGED, response.tcbMeasurementUnchanged);
+        writeBoolean(out, AIK_UNCHANGED, response.aikUnchanged);
+        out.writeByte(END);
+        out.writeInt(0);
+        out.flush();
+    }
+
+    public static byte[] toByteArray(TpmQuoteResponse response) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        write(response, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Reads one response from the stream, up to and including its trailer.
+     * @throws IOException if the stream is not a supported version of this encoding or ends early
+     */
+    public static TpmQuoteResponse read(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not a binary TPM quote response");
+        }
+        int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new IOException(String.format("Unsupported binary TPM quote response version %d", version));
+        }
+        TpmQuoteResponse response = new TpmQuoteResponse();
+        while (true) {
+            int tag = in.readUnsignedByte();
+            int length = in.readInt();
+            if (length < 0 || length > MAX_FIELD_LENGTH) {
+                throw new IOException(String.format("Invalid length %d for field %d", length, tag));
+            }
+            if (tag == END) {
+                return response;
+            }
+            byte[] value = new byte[length];
+            in.readFully(value);
+            switch (tag) {
+                case TIMESTAMP:
+                    response.timestamp = new DataInputStream(new ByteArrayInputStream(value)).readLong();
+                    break;
+                case CLIENT_IP:
+                    response.clientIp = new String(value, UTF8);
+                    break;
+                case ERROR_CODE:
+                    response.errorCode = new String(value, UTF8);
+                    break;
+                case ERROR_MESSAGE:
+                    response.errorMessage = new String(value, UTF8);
+                    break;
+                case AIK:
+                    response.aik = readCertificate(value);
+                    break;
+                case QUOTE:
+                    response.quote = value;
+                    break;
+                case EVENT_LOG:
+                    // the model keeps the event log in the same form as the XML and JSON responses
+                    response.eventLog = DatatypeConverter.printBase64Binary(value);
+                    break;
+                case TCB_MEASUREMENT:
+                    response.tcbMeasurement = new String(value, UTF8);
+                    break;
+                case SELECTED_PCR_BANKS:
+                    response.selectedPcrBanks = new String(value, UTF8);
+                    break;
+                case TAG_PROVISIONED:
+                    response.isTagProvisioned = readBoolean(value);
+                    break;
+                case ASSET_TAG:
+                    response.assetTag = value;
+                    break;
+                case BATCH_INDEX:
+                    response.batchIndex = readInteger(value);
+                    break;
+                case BATCH_SIZE:
+                    response.batchSize = readInteger(value);
+                    break;
+                case BATCH_PROOF:
+                    response.batchProof = value;
+                    break;
+                case EVENT_LOG_UNCHANGED:
+                    response.eventLogUnchanged = readBoolean(value);
+                    break;
+                case TCB_MEASUREMENT_UNCHANGED:
+                    response.tcbMeasurementUnchanged = readBoolean(value);
+                    break;
+                case AIK_UNCHANGED:
+                    response.aikUnchanged = readBoolean(value);
+                    break;
+                default:
+                    // written by a newer trust agent, not needed here
+                    break;
+            }
+        }
+    }
+
+    public static TpmQuoteResponse fromByteArray(byte[] content) throws IOException {
+        return read(new ByteArrayInputStream(content));
+    }
+
+    private static void writeBytes(DataOutputStream out, int tag, byte[] value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        out.writeByte(tag);
+        out.writeInt(value.length);
+        out.write(value);
+    }
+
+    private static void writeString(DataOutputStream out, int tag, String value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        writeBytes(out, tag, value.getBytes(UTF8));
+    }
+
+    private static void writeInteger(DataOutputStream out, int tag, Integer value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        out.writeByte(tag);
+        out.writeInt(4);
+        out.writeInt(value);
+    }
+
+    private static void writeBoolean(DataOutputStream out, int tag, Boolean value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        out.writeByte(tag);
+        out.writeInt(1);
+        out.writeBoolean(value);
+    }
+
+    private static boolean readBoolean(byte[] value) {
+        return value.length > 0 && value[0] != 0;
+    }
+
+    private static Integer readInteger(byte[] value) throws IOException {
+        return new DataInputStream(new ByteArrayInputStream(value)).readInt();
+    }
+
+    private static X509Certificate readCertificate(byte[] value) throws IOException {
+        try {
+            CertificateFactory factory = CertificateFactory.getInstance("X.509");
+            return (X509Certificate) factory.generateCertificate(new ByteArrayInputStream(value));
+        } catch (CertificateException e) {
+            throw new IOException("Cannot decode AIK certificate", e);
+        }
+    }
+}
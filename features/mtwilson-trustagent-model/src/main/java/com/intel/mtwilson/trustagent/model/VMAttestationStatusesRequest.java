@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.model;
+
+import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlElementWrapper;
+import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlProperty;
+import com.fasterxml.jackson.dataformat.xml.annotation.JacksonXmlRootElement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The VM instances whose trust status is requested with one call to
+ * /v2/vrtm/statuses.
+ */
+@JacksonXmlRootElement(localName="vm_attestation_statuses_request")
+public class VMAttestationStatusesRequest {
+
+    private List<String> vmInstanceIds = new ArrayList<>();
+
+    public VMAttestationStatusesRequest() {
+    }
+
+    public VMAttestationStatusesRequest(List<String> vmInstanceIds) {
+        this.vmInstanceIds = vmInstanceIds;
+    }
+
+    @JacksonXmlElementWrapper(localName="vm_instance_ids")
+    @JacksonXmlProperty(localName="vm_instance_id")
+    public List<String> getVmInstanceIds() {
+        return vmInstanceIds;
+    }
+
+    public void setVmInstanceIds(List<String> vmInstanceIds) {
+        this.vmInstanceIds = vmInstanceIds;
+    }
+}
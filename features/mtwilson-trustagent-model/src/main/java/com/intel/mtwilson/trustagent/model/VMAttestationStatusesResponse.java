@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.model;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Trust status of each VM instance in a VMAttestationStatusesRequest. An
+ * instance whose status could not be retrieved from vRTM is in errors
+ * instead of trustStatuses, with the reason.
+ */
+public class VMAttestationStatusesResponse {
+
+    private Map<String, Boolean> trustStatuses = new LinkedHashMap<>();
+    private Map<String, String> errors = new LinkedHashMap<>();
+
+    public Map<String, Boolean> getTrustStatuses() {
+        return trustStatuses;
+    }
+
+    public void setTrustStatuses(Map<String, Boolean> trustStatuses) {
+        this.trustStatuses = trustStatuses;
+    }
+
+    public Map<String, String> getErrors() {
+        return errors;
+    }
+
+    public void setErrors(Map<String, String> errors) {
+        this.errors = errors;
+    }
+}
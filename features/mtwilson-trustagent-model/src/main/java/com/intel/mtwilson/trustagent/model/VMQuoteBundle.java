@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.model;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import javax.xml.bind.DatatypeConverter;
+
+/**
+ * Binary encoding of a VM attestation report, served by /v2/vrtm/report as
+ * application/vnd.mtwilson.trustagent.vm-quote+tlv.
+ *
+ * The JSON form carries measurement.xml, trustpolicy.xml and
+ * signed_report.xml in base64, so both sides hold each file several times
+ * over. Here the files are written as they are on disk, so the trust
+ * agent can copy them to the connection and the client can read them one
+ * after the other as streams:
+ *
+ * header:  "TAVQ" (4 bytes) || version (1 byte)
+ * field:   tag (1 byte) || length (4 bytes, big endian) || value
+ * trailer: tag 0 with length 0
+ *
+ * The first field is the quote type, a UTF-8 string. Each file is
+ * followed by a DIGEST field with the SHA-256 digest of its content, so
+ * the trust agent computes the digest while it copies the file and Reader
+ * checks it while the file is read.
+ */
+public final class VMQuoteBundle {
+    public static final String MEDIA_TYPE = "application/vnd.mtwilson.trustagent.vm-quote+tlv";
+    public static final int VERSION = 1;
+    public static final int QUOTE_TYPE = 1;
+    public static final int MEASUREMENTS = 2;
+    public static final int TRUST_POLICY = 3;
+    public static final int QUOTE = 4;
+    public static final int DIGEST = 5;
+    public static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final byte[] MAGIC = new byte[] { 'T', 'A', 'V', 'Q' };
+    private static final int END = 0;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private VMQuoteBundle() {
+    }
+
+    private static boolean isFile(int tag) {
+        return tag == MEASUREMENTS || tag == TRUST_POLICY || tag == QUOTE;
+    }
+
+    /**
+     * @return the digest as "SHA-256=" and the base64 digest
+     */
+    public static String formatDigest(byte[] digest) {
+        return DIGEST_ALGORITHM + "=" + DatatypeConverter.printBase64Binary(digest);
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(DIGEST_ALGORITHM + " not available", e);
+        }
+    }
+
+    /**
+     * Writes the magic, the version and the quote type field.
+     */
+    public static void writeHeader(OutputStream stream, VMQuoteResponse.QuoteType quoteType) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        out.write(MAGIC);
+        out.writeByte(VERSION);
+        byte[] value = quoteType.name().getBytes(UTF8);
+        out.writeByte(QUOTE_TYPE);
+        out.writeInt(value.length);
+        out.write(value);
+        out.flush();
+    }
+
+    /**
+     * Writes the tag and length of a field; the caller writes exactly
+     * length bytes of content next.
+     */
+    public static void writeFieldHeader(OutputStream stream, int tag, long length) throws IOException {
+        if (length < 0 || length > Integer.MAX_VALUE) {
+            throw new IOException(String.format("Invalid length %d for field %d", length, tag));
+        }
+        DataOutputStream out = new DataOutputStream(stream);
+        out.writeByte(tag);
+        out.writeInt((int) length);
+        out.flush();
+    }
+
+    /**
+     * Writes a file field and its DIGEST field. The content is copied from
+     * the channel and digested in the same pass.
+     *
+     * @param tag MEASUREMENTS, TRUST_POLICY or QUOTE
+     * @param length number of bytes to copy from the channel
+     * @throws IOException if the channel ends before length bytes
+     */
+    public static void writeFile(OutputStream stream, int tag, ReadableByteChannel content, long length) throws IOException {
+        writeFieldHeader(stream, tag, length);
+        MessageDigest digest = newDigest();
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long remaining = length;
+        while (remaining > 0) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), remaining));
+            int read = content.read(buffer);
+            if (read == -1) {
+                throw new IOException(String.format("Field %d ended after %d of %d bytes", tag, length - remaining, length));
+            }
+            digest.update(buffer.array(), 0, read);
+            stream.write(buffer.array(), 0, read);
+            remaining -= read;
+        }
+        byte[] value = digest.digest();
+        writeFieldHeader(stream, DIGEST, value.length);
+        stream.write(value);
+        stream.flush();
+    }
+
+    public static void writeTrailer(OutputStream stream) throws IOException {
+        writeFieldHeader(stream, END, 0);
+    }
+
+    /**
+     * Reads the whole report into a VMQuoteResponse.
+     *
+     * @param stream positioned at the magic
+     * @throws IOException if the stream is not a supported version of this
+     * encoding, ends early, or a file does not match its digest
+     */
+    public static VMQuoteResponse read(InputStream stream) throws IOException {
+        VMQuoteResponse response = new VMQuoteResponse();
+        Reader reader = new Reader(stream);
+        while (reader.next()) {
+            byte[] value = new byte[reader.getLength()];
+            new DataInputStream(reader.getContent()).readFully(value);
+            switch (reader.getTag()) {
+                case QUOTE_TYPE:
+                    response.setVmQuoteType(VMQuoteResponse.QuoteType.valueOf(new String(value, UTF8)));
+                    break;
+                case MEASUREMENTS:
+                    response.setVmMeasurements(value);
+                    break;
+                case TRUST_POLICY:
+                    response.setVmTrustPolicy(value);
+                    break;
+                case QUOTE:
+                    response.setVmQuote(value);
+                    break;
+                default:
+                    // written by a newer trust agent, not needed here
+                    break;
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Reads a report field by field. The content of each field is a stream
+     * over the connection, so a large file is never held in memory unless
+     * the caller copies it; the rest of a field that was not read is
+     * skipped by next. The DIGEST fields are checked and consumed by next,
+     * which fails if the content of a file did not match its digest, so a
+     * caller that acts on the content should wait until next returned false.
+     */
+    public static class Reader implements Closeable {
+        private final DataInputStream in;
+        private int tag = -1;
+        private int length = 0;
+        private FieldInputStream content = null;
+
+        /**
+         * @throws IOException if the stream is not a supported version of
+         * this encoding
+         */
+        public Reader(InputStream stream) throws IOException {
+            this.in = new DataInputStream(stream);
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not a binary VM attestation report");
+            }
+            int version = in.readUnsignedByte();
+            if (version != VERSION) {
+                throw new IOException(String.format("Unsupported binary VM attestation report version %d", version));
+            }
+        }
+
+        /**
+         * @return true if positioned at the next field, false at the trailer
+         * @throws IOException if the stream ends early or the previous field
+         * does not match its digest
+         */
+        public boolean next() throws IOException {
+            if (content != null) {
+                int previous = tag;
+                byte[] actual = content.getDigestBytes();
+                readFieldHeader();
+                if (tag == DIGEST) {
+                    if (length != actual.length) {
+                        throw new IOException(String.format("Invalid length %d for the digest of field %d", length, previous));
+                    }
+                    byte[] expected = new byte[length];
+                    in.readFully(expected);
+                    if (!MessageDigest.isEqual(expected, actual)) {
+                        throw new IOException(String.format("Field %d does not match its digest", previous));
+                    }
+                    readFieldHeader();
+                } else if (isFile(previous)) {
+                    throw new IOException(String.format("Field %d has no digest", previous));
+                }
+            } else {
+                readFieldHeader();
+            }
+            if (tag == DIGEST) {
+                throw new IOException("Digest without a field");
+            }
+            if (tag == END) {
+                content = null;
+                return false;
+            }
+            content = new FieldInputStream(in, length);
+            return true;
+        }
+
+        private void readFieldHeader() throws IOException {
+            tag = in.readUnsignedByte();
+            length = in.readInt();
+            if (length < 0) {
+                throw new IOException(String.format("Invalid length %d for field %d", length, tag));
+            }
+        }
+
+        public int getTag() {
+            return tag;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         * @return the content of the current field; valid until next
+         */
+        public InputStream getContent() {
+            return content;
+        }
+
+        /**
+         * Reads the rest of the field content, if any.
+         * @return the digest of the content of the current field, see formatDigest
+         */
+        public String getDigest() throws IOException {
+            return formatDigest(content.getDigestBytes());
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private static class FieldInputStream extends InputStream {
+        private final DigestInputStream digest;
+        private long remaining;
+        private byte[] value = null; // digest, once the content was read
+
+        private FieldInputStream(InputStream in, long length) {
+            this.digest = new DigestInputStream(in, newDigest());
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            int b = digest.read();
+            if (b == -1) {
+                throw new EOFException("Binary VM attestation report ends within a field");
+            }
+            remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            int read = digest.read(b, off, (int) Math.min(len, remaining));
+            if (read == -1) {
+                throw new EOFException("Binary VM attestation report ends within a field");
+            }
+            remaining -= read;
+            return read;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(digest.available(), remaining);
+        }
+
+        private byte[] getDigestBytes() throws IOException {
+            if (value == null) {
+                skipAll();
+                value = digest.getMessageDigest().digest();
+            }
+            return value;
+        }
+
+        private void skipAll() throws IOException {
+            byte[] buffer = new byte[8192];
+            while (read(buffer, 0, buffer.length) != -1) {
+                // digested and discarded
+            }
+        }
+
+        @Override
+        public void close() {
+            // the connection stays open for the next field
+        }
+    }
+}
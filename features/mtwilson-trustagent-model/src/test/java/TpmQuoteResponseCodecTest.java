@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.xml.XmlMapper;
+import com.intel.dcsg.cpg.crypto.RsaUtil;
+import com.intel.dcsg.cpg.x509.X509Builder;
+import com.intel.mtwilson.trustagent.model.TpmQuoteResponse;
+import com.intel.mtwilson.trustagent.model.TpmQuoteResponseCodec;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+import javax.xml.bind.DatatypeConverter;
+import org.apache.commons.io.IOUtils;
+import static org.junit.Assert.*;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * The benchmark only runs when requested:
+ * mvn test -Dtrustagent.benchmark=true
+ */
+public class TpmQuoteResponseCodecTest {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(TpmQuoteResponseCodecTest.class);
+    private static final int ITERATIONS = 1000;
+    private static X509Certificate aik = null; // generating the key pair is slow, so all tests share it
+
+    private TpmQuoteResponse createResponse() throws Exception {
+        InputStream in = getClass().getResourceAsStream("/measurement.xml");
+        String xml = IOUtils.toString(in, Charset.forName("UTF-8"));
+        SecureRandom random = new SecureRandom();
+        TpmQuoteResponse response = new TpmQuoteResponse();
+        response.timestamp = System.currentTimeMillis();
+        response.clientIp = "10.1.2.3";
+        response.errorCode = "0";
+        response.errorMessage = "OK";
+        if (aik == null) {
+            aik = X509Builder.factory().selfSigned("CN=HIS_Identity_Key", RsaUtil.generateRsaKeyPair(2048)).expires(1, TimeUnit.DAYS).build();
+        }
+        response.aik = aik;
+        response.quote = new byte[1024];
+        random.nextBytes(response.quote);
+        response.eventLog = DatatypeConverter.printBase64Binary(xml.getBytes(Charset.forName("UTF-8")));
+        response.tcbMeasurement = xml;
+        response.selectedPcrBanks = "SHA1 SHA256";
+        response.isTagProvisioned = true;
+        response.assetTag = new byte[20];
+        random.nextBytes(response.assetTag);
+        return response;
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        TpmQuoteResponse response = createResponse();
+        response.batchIndex = 2;
+        response.batchSize = 5;
+        response.batchProof = new byte[60];
+        response.tcbMeasurementUnchanged = false;
+        response.aikUnchanged = true;
+        TpmQuoteResponse copy = TpmQuoteResponseCodec.fromByteArray(TpmQuoteResponseCodec.toByteArray(response));
+        assertEquals(response.timestamp, copy.timestamp);
+        assertEquals(response.clientIp, copy.clientIp);
+        assertEquals(response.errorCode, copy.errorCode);
+        assertEquals(response.errorMessage, copy.errorMessage);
+        assertEquals(response.aik, copy.aik);
+        assertArrayEquals(response.quote, copy.quote);
+        assertEquals(response.eventLog, copy.eventLog);
+        assertEquals(response.tcbMeasurement, copy.tcbMeasurement);
+        assertEquals(response.selectedPcrBanks, copy.selectedPcrBanks);
+        assertTrue(copy.isTagProvisioned);
+        assertArrayEquals(response.assetTag, copy.assetTag);
+        assertEquals(response.batchIndex, copy.batchIndex);
+        assertEquals(response.batchSize, copy.batchSize);
+        assertArrayEquals(response.batchProof, copy.batchProof);
+        assertNull(copy.eventLogUnchanged);
+        assertEquals(Boolean.FALSE, copy.tcbMeasurementUnchanged);
+        assertEquals(Boolean.TRUE, copy.aikUnchanged);
+    }
+
+    @Test
+    public void testAbsentFields() throws Exception {
+        TpmQuoteResponse copy = TpmQuoteResponseCodec.fromByteArray(TpmQuoteResponseCodec.toByteArray(new TpmQuoteResponse()));
+        assertNull(copy.aik);
+        assertNull(copy.eventLog);
+        assertNull(copy.batchIndex);
+        assertFalse(copy.isTagProvisioned);
+    }
+
+    @Test
+    public void testSmallerThanXmlAndJson() throws Exception {
+        TpmQuoteResponse response = createResponse();
+        byte[] tlv = TpmQuoteResponseCodec.toByteArray(response);
+        assertTrue(tlv.length < new ObjectMapper().writeValueAsBytes(response).length);
+        assertTrue(tlv.length < new XmlMapper().writeValueAsBytes(response).length);
+    }
+
+    /**
+     * Compares the payload size and the time to parse a typical quote
+     * response in each format the /tpm/quote resource produces.
+     */
+    @Test
+    public void benchmarkFormats() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("trustagent.benchmark"));
+        TpmQuoteResponse response = createResponse();
+        XmlMapper xmlMapper = new XmlMapper();
+        ObjectMapper jsonMapper = new ObjectMapper();
+        byte[] xml = xmlMapper.writeValueAsBytes(response);
+        byte[] json = jsonMapper.writeValueAsBytes(response);
+        byte[] tlv = TpmQuoteResponseCodec.toByteArray(response);
+
+        // warm up
+        for (int i = 0; i < ITERATIONS; i++) {
+            xmlMapper.readValue(xml, TpmQuoteResponse.class);
+            jsonMapper.readValue(json, TpmQuoteResponse.class);
+            TpmQuoteResponseCodec.fromByteArray(tlv);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            xmlMapper.readValue(xml, TpmQuoteResponse.class);
+        }
+        long xmlTime = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            jsonMapper.readValue(json, TpmQuoteResponse.class);
+        }
+        long jsonTime = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            TpmQuoteResponseCodec.fromByteArray(tlv);
+        }
+        long tlvTime = System.nanoTime() - start;
+
+        log.info("xml:  {} bytes, {} us per parse", xml.length, xmlTime / ITERATIONS / 1000);
+        log.info("json: {} bytes, {} us per parse", json.length, jsonTime / ITERATIONS / 1000);
+        log.info("tlv:  {} bytes, {} us per parse", tlv.length, tlvTime / ITERATIONS / 1000);
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+
+import com.intel.mtwilson.trustagent.model.VMQuoteBundle;
+import com.intel.mtwilson.trustagent.model.VMQuoteResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import org.apache.commons.io.IOUtils;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class VMQuoteBundleTest {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(VMQuoteBundleTest.class);
+    private static final byte[] MEASUREMENTS = "<Measurements/>".getBytes();
+    private static final byte[] TRUST_POLICY = "<TrustPolicy/>".getBytes();
+    private static final byte[] QUOTE = new byte[100000];
+
+    private static void writeFile(ByteArrayOutputStream out, int tag, byte[] content) throws IOException {
+        VMQuoteBundle.writeFile(out, tag, Channels.newChannel(new ByteArrayInputStream(content)), content.length);
+    }
+
+    private static byte[] write() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        VMQuoteBundle.writeHeader(out, VMQuoteResponse.QuoteType.XML_DSIG);
+        writeFile(out, VMQuoteBundle.MEASUREMENTS, MEASUREMENTS);
+        writeFile(out, VMQuoteBundle.TRUST_POLICY, TRUST_POLICY);
+        writeFile(out, VMQuoteBundle.QUOTE, QUOTE);
+        VMQuoteBundle.writeTrailer(out);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testRead() throws IOException {
+        VMQuoteResponse response = VMQuoteBundle.read(new ByteArrayInputStream(write()));
+        assertEquals(VMQuoteResponse.QuoteType.XML_DSIG, response.getVmQuoteType());
+        assertArrayEquals(MEASUREMENTS, response.getVmMeasurements());
+        assertArrayEquals(TRUST_POLICY, response.getVmTrustPolicy());
+        assertArrayEquals(QUOTE, response.getVmQuote());
+    }
+
+    @Test
+    public void testReaderSkipsUnreadFields() throws IOException {
+        try (VMQuoteBundle.Reader reader = new VMQuoteBundle.Reader(new ByteArrayInputStream(write()))) {
+            byte[] trustPolicy = null;
+            while (reader.next()) {
+                if (reader.getTag() == VMQuoteBundle.TRUST_POLICY) {
+                    trustPolicy = IOUtils.toByteArray(reader.getContent());
+                }
+            }
+            assertArrayEquals(TRUST_POLICY, trustPolicy);
+        }
+    }
+
+    @Test
+    public void testReaderChecksEachFile() throws IOException {
+        byte[] encoded = write();
+        encoded[encoded.length - 1000] ^= 1; // within the quote
+        try (VMQuoteBundle.Reader reader = new VMQuoteBundle.Reader(new ByteArrayInputStream(encoded))) {
+            assertTrue(reader.next()); // quote type
+            assertTrue(reader.next());
+            assertTrue(reader.next());
+            assertEquals(VMQuoteBundle.TRUST_POLICY, reader.getTag());
+            assertArrayEquals(TRUST_POLICY, IOUtils.toByteArray(reader.getContent()));
+            assertTrue(reader.next()); // the trust policy matched its digest
+            assertEquals(VMQuoteBundle.QUOTE, reader.getTag());
+            try {
+                reader.next();
+                fail("Expected the quote not to match its digest");
+            } catch (IOException e) {
+                log.debug("Expected: {}", e.getMessage());
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testMissingDigest() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        VMQuoteBundle.writeHeader(out, VMQuoteResponse.QuoteType.XML_DSIG);
+        VMQuoteBundle.writeFieldHeader(out, VMQuoteBundle.MEASUREMENTS, MEASUREMENTS.length);
+        out.write(MEASUREMENTS);
+        VMQuoteBundle.writeTrailer(out);
+        VMQuoteBundle.read(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncated() throws IOException {
+        byte[] encoded = write();
+        VMQuoteBundle.read(new ByteArrayInputStream(Arrays.copyOf(encoded, encoded.length - 10)));
+    }
+}
@@ -18,6 +18,7 @@ import com.intel.mtwilson.privacyca.v2.model.IdentityChallenge;
 import com.intel.mtwilson.privacyca.v2.model.IdentityChallengeRequest;
 import com.intel.mtwilson.privacyca.v2.model.IdentityChallengeResponse;
 import com.intel.mtwilson.trustagent.TrustagentConfiguration;
+import com.intel.mtwilson.trustagent.shell.ProcessRunner;
 import static com.intel.mtwilson.trustagent.niarl.Util.fixMakeCredentialBlobForWindows;
 import com.intel.mtwilson.trustagent.tpmmodules.Tpm;
 import gov.niarl.his.privacyca.IdentityOS;
@@ -34,8 +35,10 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.security.cert.X509Certificate;
 import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.io.IOUtils;
 
@@ -192,7 +195,7 @@ public class CreateIdentity implements Configurable, Runnable {
 
                 writecert(aikcertfilepath, decrypted2);
                 writeblob(aikblobfilepath, aikblob);
-                Runtime.getRuntime().exec("chmod 600 " + aikblobfilepath);
+                ProcessRunner.getInstance().run("chmod", Arrays.asList("chmod", "600", aikblobfilepath), null, ProcessRunner.DEFAULT_TIMEOUT, TimeUnit.MILLISECONDS);
 
             } else {
                 // Windows
@@ -5,19 +5,23 @@
 package com.intel.mtwilson.trustagent.niarl;
 
 import com.intel.dcsg.cpg.crypto.RandomUtil;
+import com.intel.mtwilson.Folders;
 import com.intel.mtwilson.trustagent.TrustagentConfiguration;
+import com.intel.mtwilson.trustagent.shell.ProcessResult;
+import com.intel.mtwilson.trustagent.shell.ProcessRunner;
 import gov.niarl.his.privacyca.IdentityOS;
 import gov.niarl.his.privacyca.TpmModule;
-import com.intel.mtwilson.common.CommandResult;
-import com.intel.mtwilson.common.CommandUtil;
+import com.intel.mtwilson.common.ErrorCode;
 import com.intel.mtwilson.common.TAException;
 import gov.niarl.his.privacyca.TpmUtils;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.exec.CommandLine;
 import java.util.NoSuchElementException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -77,8 +81,13 @@ public class Util {
                 }
             }
             else {
-                CommandResult result = CommandUtil.runCommand("tpm2-isowner " + TpmUtils.byteArrayToHexString(secret));
-                if (result != null && result.getStdout() != null) {
+                CommandLine command = new CommandLine(Folders.application() + File.separator + "bin" + File.separator + "tpm2-isowner");
+                command.addArgument(TpmUtils.byteArrayToHexString(secret));
+                ProcessResult result = ProcessRunner.getInstance().execute(command);
+                if (result.getExitCode() != 0) {
+                    throw new TAException(ErrorCode.FATAL_ERROR, result.getExitCode() + ": Error while running command: tpm2-isowner");
+                }
+                if (result.getStdout() != null) {
                     if(result.getStdout().contains("1")) 
                         return true;
                 }
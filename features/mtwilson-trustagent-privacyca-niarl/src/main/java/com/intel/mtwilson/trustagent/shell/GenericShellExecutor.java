@@ -5,16 +5,12 @@
  */
 package com.intel.mtwilson.trustagent.shell;
 
-import com.intel.mtwilson.Folders;
-import com.intel.mtwilson.util.exec.ExecUtil;
-import com.intel.mtwilson.util.exec.Result;
-import java.io.BufferedReader;
-import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.StringTokenizer;
+import java.util.concurrent.TimeUnit;
 
 /**
  *
@@ -42,38 +38,10 @@ abstract class GenericShellExecutor implements ShellExecutor {
             log.debug(tmp);
         }
         
-        ProcessBuilder pb = new ProcessBuilder(cmd);                
-        Process p = pb.start();
-        
-        String line = "";
-        if (returnCount != 0) {
-            BufferedReader input = new BufferedReader(new InputStreamReader(p.getInputStream()));
-            String newLine;
-            try {
-                while ((newLine = input.readLine()) != null) {
-                    line = newLine;
-                    log.debug("executeTPM output line: {}", line);
-                }
-                log.debug("executeTPM last line: {}", line);
-
-                input.close();
-            } catch (Exception e) {
-                e.printStackTrace();
-            } finally {
-                if (input != null) {
-                    input.close();
-                }
-            }
-        }
-
-        //do a loop to wait for an exit value
-        try {
-            returnCode = p.waitFor();            
-        } catch (InterruptedException e) {
-            log.error("Interrupted while waiting for return value");
-            log.debug("Interrupted while waiting for return value", e);
-            returnCode = -1;
-        }
+        ProcessResult result = ProcessRunner.getInstance().run(commandName, cmd, null, ProcessRunner.DEFAULT_TIMEOUT, TimeUnit.MILLISECONDS);
+        returnCode = result.getExitCode();
+        String line = returnCount != 0 ? result.getLastLine() : "";
+        log.debug("executeTPM last line: {}", line);
 
         log.debug("Return code: " + returnCode);
         
@@ -92,5 +60,20 @@ abstract class GenericShellExecutor implements ShellExecutor {
     }    
     
     
+    @Override
+    public TpmBatch executeTpmBatch(TpmBatch batch) throws IOException {
+        List<String> cmd = new ArrayList<>();
+        cmd.add(TpmBatch.HELPER);
+        prepareCommandOverride(cmd);
+        
+        String script = batch.toScript();
+        log.debug("executeTpmBatch operations: {}", batch.getSteps().size());
+        ProcessResult result = ProcessRunner.getInstance().run(TpmBatch.HELPER, cmd, null, script.getBytes(Charset.forName("UTF-8")), ProcessRunner.DEFAULT_TIMEOUT, TimeUnit.MILLISECONDS);
+        log.debug("Return code: {}", result.getExitCode());
+        
+        batch.setResults(result.getExitCode(), result.getStdout());
+        return batch;
+    }
+    
     abstract void prepareCommandOverride(List<String> cmd);
 }
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.shell;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Latency and exit code histograms of one command, kept by ProcessRunner.
+ *
+ * Latency bucket i counts the runs that took at most LATENCY_BOUNDS[i]
+ * milliseconds and more than the previous bound; the last bucket counts
+ * the runs slower than every bound.
+ */
+public class ProcessMetrics {
+    public static final long[] LATENCY_BOUNDS = {10, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000};
+    private final String command;
+    private final long[] latency = new long[LATENCY_BOUNDS.length + 1];
+    private final Map<Integer, Long> exitCodes = new TreeMap<>();
+    private long count = 0;
+    private long totalMillis = 0;
+    private long maxMillis = 0;
+    private long timeouts = 0;
+    private long truncated = 0;
+
+    ProcessMetrics(String command) {
+        this.command = command;
+    }
+
+    private ProcessMetrics(ProcessMetrics other) {
+        this.command = other.command;
+        System.arraycopy(other.latency, 0, this.latency, 0, latency.length);
+        this.exitCodes.putAll(other.exitCodes);
+        this.count = other.count;
+        this.totalMillis = other.totalMillis;
+        this.maxMillis = other.maxMillis;
+        this.timeouts = other.timeouts;
+        this.truncated = other.truncated;
+    }
+
+    synchronized void record(ProcessResult result) {
+        long elapsed = result.getElapsed();
+        int bucket = 0;
+        while (bucket < LATENCY_BOUNDS.length && elapsed > LATENCY_BOUNDS[bucket]) {
+            bucket++;
+        }
+        latency[bucket]++;
+        Long exitCount = exitCodes.get(result.getExitCode());
+        exitCodes.put(result.getExitCode(), exitCount == null ? 1L : exitCount + 1);
+        count++;
+        totalMillis += elapsed;
+        maxMillis = Math.max(maxMillis, elapsed);
+        if (result.isTimedOut()) {
+            timeouts++;
+        }
+        if (result.isTruncated()) {
+            truncated++;
+        }
+    }
+
+    synchronized ProcessMetrics copy() {
+        return new ProcessMetrics(this);
+    }
+
+    public String getCommand() {
+        return command;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getTotalMillis() {
+        return totalMillis;
+    }
+
+    public synchronized long getMaxMillis() {
+        return maxMillis;
+    }
+
+    public synchronized long getTimeouts() {
+        return timeouts;
+    }
+
+    public synchronized long getTruncated() {
+        return truncated;
+    }
+
+    /**
+     * @return run counts per latency bucket, see LATENCY_BOUNDS
+     */
+    public synchronized long[] getLatencyHistogram() {
+        return Arrays.copyOf(latency, latency.length);
+    }
+
+    /**
+     * @return run counts per exit code
+     */
+    public synchronized Map<Integer, Long> getExitCodes() {
+        return new TreeMap<>(exitCodes);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%s count=%d avg=%dms max=%dms timeouts=%d truncated=%d latency=%s exit=%s",
+                command, count, count == 0 ? 0 : totalMillis / count, maxMillis, timeouts, truncated, Arrays.toString(latency), exitCodes);
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.shell;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+
+/**
+ * The outcome of a command run by ProcessRunner. The getters match the
+ * mtwilson-util-exec Result so callers of ExecUtil.execute() only change
+ * the type.
+ */
+public class ProcessResult {
+    private final String command;
+    private final int exitCode;
+    private final String stdout;
+    private final String stderr;
+    private final long elapsed;
+    private final boolean timedOut;
+    private final boolean truncated;
+
+    ProcessResult(String command, int exitCode, String stdout, String stderr, long elapsed, boolean timedOut, boolean truncated) {
+        this.command = command;
+        this.exitCode = exitCode;
+        this.stdout = stdout;
+        this.stderr = stderr;
+        this.elapsed = elapsed;
+        this.timedOut = timedOut;
+        this.truncated = truncated;
+    }
+
+    /**
+     * @return the name the command was recorded under
+     */
+    public String getCommand() {
+        return command;
+    }
+
+    public int getExitCode() {
+        return exitCode;
+    }
+
+    public String getStdout() {
+        return stdout;
+    }
+
+    public String getStderr() {
+        return stderr;
+    }
+
+    /**
+     * @return the last line of stdout, which is where the TPM tools print
+     * their results, or an empty string if there is no output
+     */
+    public String getLastLine() {
+        String line = "";
+        try (BufferedReader reader = new BufferedReader(new StringReader(stdout))) {
+            String next;
+            while ((next = reader.readLine()) != null) {
+                line = next;
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // not thrown by StringReader
+        }
+        return line;
+    }
+
+    /**
+     * @return milliseconds from start until the process exited or was killed
+     */
+    public long getElapsed() {
+        return elapsed;
+    }
+
+    /**
+     * @return true if the process was killed because it ran past its deadline;
+     * the exit code is then non-zero
+     */
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
+    /**
+     * @return true if stdout or stderr was longer than the output limit and
+     * only its beginning was kept
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+}
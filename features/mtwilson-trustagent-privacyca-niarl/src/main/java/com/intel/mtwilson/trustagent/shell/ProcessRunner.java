@@ -0,0 +1,433 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.shell;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.exec.CommandLine;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Runs every external command the trust agent starts: TPM tools, the NIARL
+ * TPM module, measurement scripts and host information commands.
+ *
+ * The calling thread reads stdout while stderr is read on a small shared
+ * pool, so running a command costs at most one pooled thread instead of
+ * two new threads. The pool has no queue: when every pump thread is busy,
+ * the calling thread reads both streams itself. Each command has a deadline; a command still running at
+ * its deadline is killed together with the processes it started, and the
+ * result is marked as timed out with a non-zero exit code. Output beyond
+ * OUTPUT_LIMIT bytes per stream is read and discarded so the process does
+ * not block on a full pipe.
+ *
+ * Latency and exit code histograms are kept per command name, which is the
+ * file name of the executable unless the caller gives one; see
+ * getMetrics().
+ */
+public class ProcessRunner {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(ProcessRunner.class);
+    public static final long DEFAULT_TIMEOUT = TimeUnit.MINUTES.toMillis(2);
+    public static final int OUTPUT_LIMIT = 4 * 1024 * 1024;
+    static final int PUMP_THREADS = 16;
+    static final Charset CHARSET = Charset.defaultCharset();
+    private static final boolean WINDOWS = File.separatorChar == '\\';
+    private static final ProcessRunner instance = new ProcessRunner();
+    private final ThreadPoolExecutor pumps;
+    private final ScheduledExecutorService watchdog;
+    private final Map<String, ProcessMetrics> metrics = new TreeMap<>();
+
+    ProcessRunner() {
+        pumps = new ThreadPoolExecutor(PUMP_THREADS, PUMP_THREADS, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new DaemonThreadFactory("trustagent-process-pump-"));
+        pumps.allowCoreThreadTimeOut(true);
+        watchdog = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("trustagent-process-watchdog-"));
+    }
+
+    public static ProcessRunner getInstance() {
+        return instance;
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        private DaemonThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * Reads a stream to the end, keeping the first OUTPUT_LIMIT bytes.
+     */
+    private static class Pump implements Callable<Void> {
+        private final InputStream in;
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private boolean truncated = false;
+
+        private Pump(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            byte[] buffer = new byte[8192];
+            try (InputStream input = in) {
+                int length;
+                while ((length = input.read(buffer)) != -1) {
+                    keep(buffer, length);
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Reads what the stream has without blocking.
+         *
+         * @return the number of bytes read
+         */
+        private int readAvailable(byte[] buffer) throws IOException {
+            int available = in.available();
+            if (available <= 0) {
+                return 0;
+            }
+            int length = in.read(buffer, 0, Math.min(available, buffer.length));
+            if (length > 0) {
+                keep(buffer, length);
+            }
+            return Math.max(length, 0);
+        }
+
+        private synchronized void keep(byte[] buffer, int length) {
+            int keep = Math.min(length, OUTPUT_LIMIT - out.size());
+            if (keep > 0) {
+                out.write(buffer, 0, keep);
+            }
+            if (keep < length) {
+                truncated = true;
+            }
+        }
+
+        /**
+         * @return the output read so far
+         */
+        private synchronized String getOutput() {
+            return new String(out.toByteArray(), CHARSET);
+        }
+
+        private synchronized boolean isTruncated() {
+            return truncated;
+        }
+    }
+
+    /**
+     * Same as ExecUtil.execute(command) with the default deadline.
+     */
+    public ProcessResult execute(CommandLine command) throws IOException {
+        return execute(command, null);
+    }
+
+    /**
+     * Same as ExecUtil.execute(command, environment) with the default
+     * deadline.
+     */
+    public ProcessResult execute(CommandLine command, Map<String, String> environment) throws IOException {
+        return execute(command, environment, DEFAULT_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    public ProcessResult execute(CommandLine command, Map<String, String> environment, long timeout, TimeUnit unit) throws IOException {
+        return run(new File(command.getExecutable()).getName(), Arrays.asList(command.toStrings()), environment, timeout, unit);
+    }
+
+    /**
+     * @param name the name under which metrics are kept, for example the
+     * executable name
+     * @param command the executable followed by its arguments
+     * @param environment variables added to the agent's environment, may be null
+     * @param timeout how long the command may run before it is killed
+     * @param unit unit of timeout
+     * @return the exit code and output of the command
+     * @throws IOException if the command cannot be started or its output
+     * cannot be read
+     */
+    public ProcessResult run(String name, List<String> command, Map<String, String> environment, long timeout, TimeUnit unit) throws IOException {
+        return run(name, command, environment, null, timeout, unit);
+    }
+
+    /**
+     * Like run(name, command, environment, timeout, unit) and writes input to
+     * the standard input of the command before reading its output. The input
+     * is meant for short scripts; it is written before stdout is read, so a
+     * command that writes more than a pipe buffer before reading all of its
+     * input will block until its deadline.
+     *
+     * @param input bytes for stdin, or null to close stdin right away
+     */
+    public ProcessResult run(String name, List<String> command, Map<String, String> environment, byte[] input, long timeout, TimeUnit unit) throws IOException {
+        ProcessBuilder builder = new ProcessBuilder(command);
+        if (environment != null) {
+            builder.environment().putAll(environment);
+        }
+        long start = System.currentTimeMillis();
+        final Process process = builder.start();
+        final AtomicBoolean timedOut = new AtomicBoolean(false);
+        ScheduledFuture<?> deadline = watchdog.schedule(new Runnable() {
+            @Override
+            public void run() {
+                timedOut.set(true);
+                destroyTree(process);
+            }
+        }, timeout, unit);
+        try (OutputStream stdin = process.getOutputStream()) {
+            if (input != null) {
+                stdin.write(input);
+            }
+        } catch (IOException e) {
+            // the command exited without reading all of its input; its output tells why
+            log.debug("Cannot write input of {}: {}", name, e.getMessage());
+        }
+        Pump stderr = new Pump(process.getErrorStream());
+        Pump stdout = new Pump(process.getInputStream());
+        Future<Void> stderrFuture;
+        try {
+            stderrFuture = pumps.submit(stderr);
+        } catch (RejectedExecutionException e) {
+            stderrFuture = null;
+        }
+        try {
+            try {
+                if (stderrFuture == null) {
+                    log.debug("All {} pump threads are busy, reading both streams of {}", PUMP_THREADS, name);
+                    pumpBoth(process, stdout, stderr);
+                } else {
+                    stdout.call();
+                    // stderr of a finished command is closed; wait for the pump past the deadline only if it is still running
+                    process.waitFor();
+                    long remaining = start + unit.toMillis(timeout) - System.currentTimeMillis();
+                    stderrFuture.get(Math.max(remaining, 1000), TimeUnit.MILLISECONDS);
+                }
+            } catch (IOException | ExecutionException e) {
+                // killing the process at its deadline may close the streams under the pumps
+                if (!timedOut.get()) {
+                    throw e;
+                }
+            }
+            int exitCode = process.waitFor();
+            ProcessResult result = new ProcessResult(name, exitCode, stdout.getOutput(), stderr.getOutput(),
+                    System.currentTimeMillis() - start, timedOut.get(), stdout.isTruncated() || stderr.isTruncated());
+            record(result);
+            return result;
+        } catch (InterruptedException e) {
+            destroyTree(process);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(String.format("Interrupted while running %s", name));
+        } catch (ExecutionException e) {
+            destroyTree(process);
+            throw new IOException(String.format("Cannot read error output of %s", name), e.getCause());
+        } catch (TimeoutException e) {
+            // a process the command left running in the background still holds stderr
+            destroyTree(process);
+            throw new IOException(String.format("Error output of %s was not closed", name), e);
+        } catch (IOException e) {
+            destroyTree(process);
+            throw e;
+        } finally {
+            deadline.cancel(false);
+            if (stderrFuture != null) {
+                stderrFuture.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Reads stdout and stderr on the calling thread. Neither stream may
+     * wait for the other, so until the process exits each is read only as
+     * far as it has data; after that both are read to the end.
+     */
+    private static void pumpBoth(Process process, Pump stdout, Pump stderr) throws IOException, InterruptedException {
+        byte[] buffer = new byte[8192];
+        while (true) {
+            boolean exited = hasExited(process);
+            int length = stdout.readAvailable(buffer) + stderr.readAvailable(buffer);
+            if (exited) {
+                break;
+            }
+            if (length == 0) {
+                Thread.sleep(5);
+            }
+        }
+        stdout.call();
+        stderr.call();
+    }
+
+    private static boolean hasExited(Process process) {
+        try {
+            process.exitValue();
+            return true;
+        } catch (IllegalThreadStateException e) {
+            return false;
+        }
+    }
+
+    void record(ProcessResult result) {
+        ProcessMetrics commandMetrics;
+        synchronized (metrics) {
+            commandMetrics = metrics.get(result.getCommand());
+            if (commandMetrics == null) {
+                commandMetrics = new ProcessMetrics(result.getCommand());
+                metrics.put(result.getCommand(), commandMetrics);
+            }
+        }
+        commandMetrics.record(result);
+        if (result.isTimedOut()) {
+            log.error("{} was killed after {} ms: {}", result.getCommand(), result.getElapsed(), commandMetrics);
+        } else if (result.isTruncated()) {
+            log.warn("{} wrote more than {} bytes, output truncated", result.getCommand(), OUTPUT_LIMIT);
+        }
+        log.debug("{} exited with {} after {} ms", result.getCommand(), result.getExitCode(), result.getElapsed());
+    }
+
+    /**
+     * Runs a task on the watchdog thread after a delay.
+     */
+    ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+        return watchdog.schedule(task, delay, unit);
+    }
+
+    /**
+     * @return a copy of the metrics of every command run so far, by command name
+     */
+    public Map<String, ProcessMetrics> getMetrics() {
+        Map<String, ProcessMetrics> copy = new TreeMap<>();
+        synchronized (metrics) {
+            for (Map.Entry<String, ProcessMetrics> entry : metrics.entrySet()) {
+                copy.put(entry.getKey(), entry.getValue().copy());
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Kills the process and every process it started. Java 7 has no API for
+     * the process tree, so on Linux the descendants are found in /proc and
+     * killed together with the process; elsewhere only the process is
+     * destroyed.
+     */
+    static void destroyTree(Process process) {
+        Integer pid = WINDOWS ? null : pid(process);
+        if (pid != null) {
+            List<String> kill = new ArrayList<>();
+            kill.add("kill");
+            kill.add("-KILL");
+            kill.add(pid.toString());
+            for (Integer descendant : descendants(pid)) {
+                kill.add(descendant.toString());
+            }
+            log.debug("Killing process {} and its descendants: {}", pid, StringUtils.join(kill.subList(3, kill.size()), " "));
+            try {
+                new ProcessBuilder(kill).redirectErrorStream(true).start().waitFor();
+            } catch (IOException e) {
+                log.warn("Cannot kill process {}: {}", pid, e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        process.destroy();
+    }
+
+    static Integer pid(Process process) {
+        try {
+            // Process.pid() exists from Java 9, before that only in the UNIXProcess implementation
+            Method method = Process.class.getMethod("pid");
+            return ((Long) method.invoke(process)).intValue();
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.trace("Process.pid() not available: {}", e.toString());
+        }
+        try {
+            Field field = process.getClass().getDeclaredField("pid");
+            field.setAccessible(true);
+            return field.getInt(process);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.debug("Cannot get the process id of {}: {}", process.getClass().getName(), e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * @return the processes started by pid, their children and so on, read
+     * from /proc/[pid]/stat
+     */
+    static List<Integer> descendants(int pid) {
+        Map<Integer, List<Integer>> children = new HashMap<>();
+        File[] entries = new File("/proc").listFiles();
+        if (entries == null) {
+            return new ArrayList<>();
+        }
+        for (File entry : entries) {
+            if (!entry.getName().matches("[0-9]+")) {
+                continue;
+            }
+            try {
+                String stat = new String(Files.readAllBytes(new File(entry, "stat").toPath()), CHARSET);
+                // the process name in parentheses may contain spaces
+                String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+                Integer parent = Integer.valueOf(fields[1]);
+                List<Integer> list = children.get(parent);
+                if (list == null) {
+                    list = new ArrayList<>();
+                    children.put(parent, list);
+                }
+                list.add(Integer.valueOf(entry.getName()));
+            } catch (IOException | RuntimeException e) {
+                // the process exited while we were looking
+            }
+        }
+        List<Integer> result = new ArrayList<>();
+        LinkedList<Integer> queue = new LinkedList<>();
+        queue.add(pid);
+        while (!queue.isEmpty()) {
+            List<Integer> list = children.get(queue.removeFirst());
+            if (list != null) {
+                result.addAll(list);
+                queue.addAll(list);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.shell;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.commons.exec.CommandLine;
+
+/**
+ * A shell that stays running and starts the TPM 1.2 tools (NIARL_TPM_Module,
+ * aikquote, tpm_nv*) for the agent. Commands are written to the shell over
+ * its stdin pipe, so the agent does not fork itself for every TPM
+ * operation; the shell starts the tool and writes a marker line with the
+ * exit code when it is done.
+ *
+ * Commands run one at a time. Each runs in a subshell with stdin from
+ * /dev/null and its environment variables exported only in that subshell,
+ * so passwords are not visible on the command line. A command still running
+ * at its deadline is killed together with the processes it started and the
+ * shell is kept; if the shell itself does not answer shortly after that it
+ * is replaced on the next command. Where no shell can be started the
+ * commands run through ProcessRunner instead. Results are recorded in the
+ * ProcessRunner metrics under the same names.
+ */
+public class ResidentShell {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(ResidentShell.class);
+    private static final String SHELL = "/bin/sh";
+    // how long the shell has after a killed command to print its marker before it is replaced
+    private static final long GRACE = TimeUnit.SECONDS.toMillis(5);
+    private static final boolean WINDOWS = File.separatorChar == '\\';
+    private static final ResidentShell instance = new ResidentShell(ProcessRunner.getInstance());
+    private final ProcessRunner runner;
+    private final LinkedBlockingQueue<String> errors = new LinkedBlockingQueue<>();
+    private Process shell = null;
+    private Integer pid = null;
+    private BufferedReader stdout = null;
+    private Writer stdin = null;
+    private String marker = null;
+    private boolean unavailable = WINDOWS || !new File(SHELL).canExecute();
+
+    ResidentShell(ProcessRunner runner) {
+        this.runner = runner;
+    }
+
+    public static ResidentShell getInstance() {
+        return instance;
+    }
+
+    /**
+     * Same as ProcessRunner.execute(command, environment).
+     */
+    public ProcessResult execute(CommandLine command, Map<String, String> environment) throws IOException {
+        return run(new File(command.getExecutable()).getName(), Arrays.asList(command.toStrings()), environment, ProcessRunner.DEFAULT_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Same as ProcessRunner.run(name, command, environment, timeout, unit).
+     */
+    public synchronized ProcessResult run(final String name, List<String> command, Map<String, String> environment, long timeout, TimeUnit unit) throws IOException {
+        if (shell != null && !isAlive(shell)) {
+            log.debug("Resident shell {} exited", pid);
+            stop();
+        }
+        if (!unavailable && shell == null) {
+            start();
+        }
+        if (unavailable) {
+            return runner.run(name, command, environment, timeout, unit);
+        }
+        String script = script(command, environment);
+        long start = System.currentTimeMillis();
+        final Process current = shell;
+        final Integer currentPid = pid;
+        final AtomicBoolean timedOut = new AtomicBoolean(false);
+        ScheduledFuture<?> deadline = runner.schedule(new Runnable() {
+            @Override
+            public void run() {
+                timedOut.set(true);
+                killCommand(current, currentPid);
+            }
+        }, unit.toMillis(timeout), TimeUnit.MILLISECONDS);
+        ScheduledFuture<?> replace = runner.schedule(new Runnable() {
+            @Override
+            public void run() {
+                log.warn("Resident shell {} did not finish {}, stopping it", currentPid, name);
+                ProcessRunner.destroyTree(current);
+            }
+        }, unit.toMillis(timeout) + GRACE, TimeUnit.MILLISECONDS);
+        try {
+            errors.clear();
+            stdin.write(script);
+            stdin.flush();
+            StringBuilder output = new StringBuilder();
+            boolean truncated = false;
+            Integer exitCode = null;
+            String line;
+            while ((line = stdout.readLine()) != null) {
+                if (line.startsWith(marker + " ")) {
+                    exitCode = Integer.valueOf(line.substring(marker.length() + 1));
+                    break;
+                }
+                truncated |= append(output, line);
+            }
+            if (exitCode == null) {
+                // the shell was stopped at the deadline, or exited on its own
+                stop();
+                if (!timedOut.get()) {
+                    throw new IOException(String.format("Resident shell exited while running %s", name));
+                }
+                exitCode = -1;
+            }
+            long remaining = start + unit.toMillis(timeout) - System.currentTimeMillis();
+            String error = errors.poll(Math.max(remaining, 1000), TimeUnit.MILLISECONDS);
+            ProcessResult result = new ProcessResult(name, exitCode, trim(output), error == null ? "" : error,
+                    System.currentTimeMillis() - start, timedOut.get(), truncated);
+            runner.record(result);
+            return result;
+        } catch (InterruptedException e) {
+            stop();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(String.format("Interrupted while running %s", name));
+        } catch (IOException | RuntimeException e) {
+            stop();
+            throw e;
+        } finally {
+            deadline.cancel(false);
+            replace.cancel(false);
+        }
+    }
+
+    /**
+     * Stops the shell; the next command starts a new one.
+     */
+    public synchronized void stop() {
+        if (shell != null) {
+            ProcessRunner.destroyTree(shell);
+            shell = null;
+            pid = null;
+            stdout = null;
+            stdin = null;
+        }
+    }
+
+    private void start() {
+        try {
+            final Process process = new ProcessBuilder(SHELL, "-s").start();
+            final String processMarker = "--- " + UUID.randomUUID().toString() + " ---";
+            Thread pump = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    pumpErrors(process, processMarker);
+                }
+            }, "trustagent-resident-shell-stderr");
+            pump.setDaemon(true);
+            pump.start();
+            shell = process;
+            pid = ProcessRunner.pid(process);
+            marker = processMarker;
+            stdout = new BufferedReader(new InputStreamReader(process.getInputStream(), ProcessRunner.CHARSET));
+            stdin = new OutputStreamWriter(process.getOutputStream(), ProcessRunner.CHARSET);
+            log.debug("Started resident shell {}", pid);
+        } catch (IOException e) {
+            log.warn("Cannot start resident shell, running TPM tools as separate processes: {}", e.getMessage());
+            unavailable = true;
+        }
+    }
+
+    private static boolean isAlive(Process process) {
+        try {
+            process.exitValue();
+            return false;
+        } catch (IllegalThreadStateException e) {
+            return true;
+        }
+    }
+
+    /**
+     * Reads the stderr of the shell, queueing the error output of each
+     * command when its marker arrives.
+     */
+    private void pumpErrors(Process process, String processMarker) {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getErrorStream(), ProcessRunner.CHARSET))) {
+            StringBuilder error = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.equals(processMarker)) {
+                    errors.add(trim(error));
+                    error.setLength(0);
+                } else {
+                    append(error, line);
+                }
+            }
+        } catch (IOException e) {
+            log.debug("Resident shell stderr closed: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Kills the processes started by the shell for the current command, or
+     * the shell itself if its process id is unknown.
+     */
+    private static void killCommand(Process process, Integer processPid) {
+        if (processPid == null) {
+            ProcessRunner.destroyTree(process);
+            return;
+        }
+        List<Integer> descendants = ProcessRunner.descendants(processPid);
+        if (descendants.isEmpty()) {
+            return;
+        }
+        String[] kill = new String[descendants.size() + 2];
+        kill[0] = "kill";
+        kill[1] = "-KILL";
+        for (int i = 0; i < descendants.size(); i++) {
+            kill[i + 2] = descendants.get(i).toString();
+        }
+        try {
+            new ProcessBuilder(kill).redirectErrorStream(true).start().waitFor();
+        } catch (IOException e) {
+            log.warn("Cannot kill the command of resident shell {}: {}", processPid, e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The command and its marker lines. A newline goes before each marker in
+     * case the command did not end its output with one; trim() removes it.
+     */
+    String script(List<String> command, Map<String, String> environment) {
+        StringBuilder script = new StringBuilder("(");
+        if (environment != null) {
+            for (Map.Entry<String, String> variable : environment.entrySet()) {
+                if (!variable.getKey().matches("[A-Za-z_][A-Za-z0-9_]*")) {
+                    throw new IllegalArgumentException(String.format("Invalid environment variable name: %s", variable.getKey()));
+                }
+                script.append("export ").append(variable.getKey()).append('=').append(quote(variable.getValue())).append("; ");
+            }
+        }
+        script.append("exec");
+        for (String arg : command) {
+            script.append(' ').append(quote(arg));
+        }
+        script.append(") < /dev/null; printf '\\n%s %d\\n' '").append(marker).append("' $?; ");
+        script.append("printf '\\n%s\\n' '").append(marker).append("' >&2\n");
+        return script.toString();
+    }
+
+    private static String quote(String value) {
+        return "'" + value.replace("'", "'\\''") + "'";
+    }
+
+    /**
+     * @return true if the line did not fit within the output limit
+     */
+    private static boolean append(StringBuilder output, String line) {
+        if (output.length() + line.length() + 1 > ProcessRunner.OUTPUT_LIMIT) {
+            return true;
+        }
+        output.append(line).append('\n');
+        return false;
+    }
+
+    /**
+     * Removes the newline written before the marker.
+     */
+    private static String trim(StringBuilder output) {
+        return output.length() == 0 ? "" : output.substring(0, output.length() - 1);
+    }
+}
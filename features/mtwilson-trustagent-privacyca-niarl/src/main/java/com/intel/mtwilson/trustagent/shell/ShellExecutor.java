@@ -14,4 +14,13 @@ import java.io.IOException;
 public interface ShellExecutor {
     CommandLineResult executeTpmCommand(String command, String[] args, int returnCount) throws IOException;
     
+    /**
+     * Runs all steps of the batch with one invocation of the batch helper
+     * and sets their results.
+     * 
+     * @return the batch
+     * @throws UnsupportedOperationException on platforms without the helper
+     */
+    TpmBatch executeTpmBatch(TpmBatch batch) throws IOException;
+    
 }
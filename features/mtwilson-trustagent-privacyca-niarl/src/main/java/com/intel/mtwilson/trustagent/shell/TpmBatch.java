@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.shell;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.StringTokenizer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Several TPM operations sent to the tpm2-batch.sh helper in one
+ * invocation instead of one script per operation:
+ *
+ * TpmBatch batch = new TpmBatch()
+ *     .addIfNvIndexExists(index, "nvrelease", 0, ownerAuthHex, index)
+ *     .add("nvdefine", 0, ownerAuthHex, indexAuthHex, index, "32", "0x02040002")
+ *     .add("nvwrite", 0, indexAuthHex, index, dataHex);
+ * shellExecutor.executeTpmBatch(batch);
+ *
+ * The helper reads one operation per line on stdin and prints one line per
+ * operation: the step number, the exit code or "skipped", and the result.
+ * It stops at the first operation that fails, so the steps after it have
+ * no result. See tpm2-batch.sh for the operations.
+ */
+public class TpmBatch {
+    public static final String HELPER = "tpm2-batch.sh";
+    private static final Pattern RESULT_LINE = Pattern.compile("^([0-9]+) ([0-9]+|skipped)(?: (.*))?$");
+    private final List<Step> steps = new ArrayList<>();
+    private int returnCode = -1;
+
+    public static class Step {
+        private final String condition;
+        private final String operation;
+        private final String[] args;
+        private final int returnCount;
+        private CommandLineResult result = null;
+        private boolean skipped = false;
+
+        private Step(String condition, String operation, String[] args, int returnCount) {
+            this.condition = condition;
+            this.operation = operation;
+            this.args = args;
+            this.returnCount = returnCount;
+        }
+
+        public String getOperation() {
+            return operation;
+        }
+
+        /**
+         * @return the result of the operation, or null if it was skipped or
+         * not reached because an earlier step failed
+         */
+        public CommandLineResult getResult() {
+            return result;
+        }
+
+        /**
+         * @return true if the operation did not run because its NV index
+         * condition was false
+         */
+        public boolean isSkipped() {
+            return skipped;
+        }
+    }
+
+    /**
+     * @param operation one of the operations of tpm2-batch.sh
+     * @param returnCount number of whitespace separated values expected in
+     * the result, as for ShellExecutor.executeTpmCommand
+     * @param args arguments of the operation; they may not contain whitespace
+     */
+    public TpmBatch add(String operation, int returnCount, String... args) {
+        return add(null, operation, returnCount, args);
+    }
+
+    /**
+     * Adds an operation that runs only if the NV index exists when the step
+     * is reached.
+     */
+    public TpmBatch addIfNvIndexExists(String index, String operation, int returnCount, String... args) {
+        return add(index, operation, returnCount, args);
+    }
+
+    private TpmBatch add(String condition, String operation, int returnCount, String[] args) {
+        checkWord(operation);
+        if (condition != null) {
+            checkWord(condition);
+        }
+        for (String arg : args) {
+            checkWord(arg);
+        }
+        steps.add(new Step(condition, operation, args, returnCount));
+        return this;
+    }
+
+    private static void checkWord(String word) {
+        if (word == null || word.isEmpty() || !word.equals(word.replaceAll("\\s", ""))) {
+            throw new IllegalArgumentException("Batch operations and arguments must be non-empty and without whitespace");
+        }
+    }
+
+    public List<Step> getSteps() {
+        return Collections.unmodifiableList(steps);
+    }
+
+    public Step getStep(int index) {
+        return steps.get(index);
+    }
+
+    /**
+     * @return the exit code of the helper, which is the exit code of the
+     * failed step if any
+     */
+    public int getReturnCode() {
+        return returnCode;
+    }
+
+    /**
+     * @return the first step that neither succeeded nor was skipped, or null
+     * if the whole batch succeeded
+     */
+    public Step getFailure() {
+        for (Step step : steps) {
+            if (!step.skipped && (step.result == null || step.result.getReturnCode() != 0)) {
+                return step;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the input for the helper, one line per step
+     */
+    String toScript() {
+        StringBuilder script = new StringBuilder();
+        for (Step step : steps) {
+            if (step.condition != null) {
+                script.append("if-nvindex ").append(step.condition).append(' ');
+            }
+            script.append(step.operation);
+            for (String arg : step.args) {
+                script.append(' ').append(arg);
+            }
+            script.append('\n');
+        }
+        return script.toString();
+    }
+
+    /**
+     * Sets the step results from the output of the helper.
+     */
+    void setResults(int helperReturnCode, String stdout) {
+        returnCode = helperReturnCode;
+        try (BufferedReader reader = new BufferedReader(new StringReader(stdout))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Matcher matcher = RESULT_LINE.matcher(line);
+                if (!matcher.matches()) {
+                    continue;
+                }
+                int index = Integer.parseInt(matcher.group(1));
+                if (index >= steps.size()) {
+                    continue;
+                }
+                Step step = steps.get(index);
+                if ("skipped".equals(matcher.group(2))) {
+                    step.skipped = true;
+                    continue;
+                }
+                int code = Integer.parseInt(matcher.group(2));
+                String output = matcher.group(3) == null ? "" : matcher.group(3);
+                step.result = new CommandLineResult(code, step.returnCount);
+                step.result.setReturnOutput(output);
+                if (code == 0 && step.returnCount != 0) {
+                    StringTokenizer st = new StringTokenizer(output);
+                    for (int i = 0; i < step.returnCount && st.hasMoreTokens(); i++) {
+                        step.result.setResult(i, st.nextToken());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // not thrown by StringReader
+        }
+    }
+}
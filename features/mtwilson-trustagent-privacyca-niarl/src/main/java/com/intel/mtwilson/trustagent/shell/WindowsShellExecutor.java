@@ -7,6 +7,7 @@ package com.intel.mtwilson.trustagent.shell;
 
 import com.intel.mtwilson.Folders;
 import java.io.File;
+import java.io.IOException;
 import java.util.List;
 
 /**
@@ -22,5 +23,11 @@ class WindowsShellExecutor extends GenericShellExecutor {
         cmd.add(0, "/c");
         cmd.add(0, "cmd.exe");
     }
+
+    @Override
+    public TpmBatch executeTpmBatch(TpmBatch batch) throws IOException {
+        // TPMTool.exe has no batch mode and none of the tpm2-batch.sh operations
+        throw new UnsupportedOperationException("TPM batches are not supported on Windows");
+    }
     
 }
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.tpm12;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Marshals a TPM 1.2 command buffer. Integers are big-endian as required by
+ * the TPM 1.2 specification part 3. The paramSize field of the header is
+ * filled in by toByteArray().
+ *
+ * Values written with uint8/uint16/uint32/bytes are the "1S" parameters
+ * that go into the authorization digest; handles written with handle() are
+ * not.
+ */
+public class Tpm12Command {
+    public static final int HEADER_SIZE = 10; // tag(2) paramSize(4) ordinal(4)
+    public static final int TPM_TAG_RQU_COMMAND = 0x00C1;
+    public static final int TPM_TAG_RQU_AUTH1_COMMAND = 0x00C2;
+    public static final int TPM_ORD_OIAP = 0x0000000A;
+    public static final int TPM_ORD_QUOTE = 0x00000016;
+    public static final int TPM_ORD_LOADKEY2 = 0x00000041;
+    public static final int TPM_ORD_GETCAPABILITY = 0x00000065;
+    public static final int TPM_ORD_FLUSHSPECIFIC = 0x000000BA;
+    public static final int TPM_ORD_NV_READVALUE = 0x000000CF;
+
+    private final int ordinal;
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+    private final DataOutputStream out = new DataOutputStream(buffer);
+    private final ByteArrayOutputStream parameters = new ByteArrayOutputStream(256);
+    private final DataOutputStream params = new DataOutputStream(parameters);
+
+    public Tpm12Command(int tag, int ordinal) throws IOException {
+        this.ordinal = ordinal;
+        out.writeShort(tag);
+        out.writeInt(0); // paramSize placeholder
+        out.writeInt(ordinal);
+        params.writeInt(ordinal);
+    }
+
+    public int getOrdinal() {
+        return ordinal;
+    }
+
+    public Tpm12Command handle(int value) throws IOException {
+        out.writeInt(value);
+        return this;
+    }
+
+    public Tpm12Command uint8(int value) throws IOException {
+        out.writeByte(value);
+        params.writeByte(value);
+        return this;
+    }
+
+    public Tpm12Command uint16(int value) throws IOException {
+        out.writeShort(value);
+        params.writeShort(value);
+        return this;
+    }
+
+    public Tpm12Command uint32(int value) throws IOException {
+        out.writeInt(value);
+        params.writeInt(value);
+        return this;
+    }
+
+    public Tpm12Command bytes(byte[] value) throws IOException {
+        out.write(value);
+        params.write(value);
+        return this;
+    }
+
+    /**
+     * Writes the authorization trailer of an AUTH1 command for an OIAP
+     * session. The session is not continued, so each authorized command
+     * uses a new session.
+     */
+    public Tpm12Command authorize(Tpm12Session session) throws IOException {
+        byte[] digest = Tpm12Session.sha1(parameters.toByteArray());
+        out.writeInt(session.getAuthHandle());
+        out.write(session.getNonceOdd());
+        out.writeByte(0); // continueAuthSession
+        out.write(session.hmac(digest, session.getNonceEven(), session.getNonceOdd(), new byte[]{0}));
+        return this;
+    }
+
+    public byte[] toByteArray() {
+        byte[] command = buffer.toByteArray();
+        ByteBuffer.wrap(command).putInt(2, command.length);
+        return command;
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.tpm12;
+
+import com.intel.mtwilson.trustagent.tpm2.Tpm2Transport;
+import gov.niarl.his.privacyca.TpmModule;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Issues TPM_LoadKey2, TPM_Quote, TPM_GetCapability and TPM_NV_ReadValue
+ * directly over a transport to the TPM 1.2 device or a software TPM instead
+ * of running aikquote, tpm_nvinfo and tpm_nvread.
+ *
+ * The AIK is loaded the first time it is used and stays loaded for later
+ * quotes until the engine is closed, so a quote costs one OIAP and one
+ * TPM_Quote round trip. Authorized responses are checked against the usage
+ * secret. The quote output is byte-for-byte the file aikquote writes:
+ * the TPM_PCR_COMPOSITE returned by the TPM followed by the 32-bit
+ * signature size and the signature.
+ */
+public class Tpm12Engine implements Closeable {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(Tpm12Engine.class);
+    public static final int TPM_KH_SRK = 0x40000000;
+    public static final int TPM_RT_KEY = 0x00000001;
+    public static final int TPM_CAP_NV_LIST = 0x0000000D;
+    public static final int TPM_INVALID_KEYHANDLE = 0x0000000C;
+    /**
+     * Usage secret of an SRK created with the well-known secret (20 zero
+     * bytes), which is how the trust agent takes ownership
+     */
+    public static final byte[] WELL_KNOWN_SECRET = new byte[20];
+    private static final int PCR_SELECT_SIZE = 3; // 24 PCRs
+    private final Tpm2Transport transport;
+    private byte[] loadedKeyBlob = null;
+    private int loadedKeyHandle = 0;
+
+    public Tpm12Engine(Tpm2Transport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Quotes with the key in keyBlob, loading it under the SRK if it is not
+     * loaded yet. If the TPM no longer knows the handle, for example after a
+     * reset, the key is loaded again and the quote repeated once.
+     *
+     * @param keyBlob TPM_KEY structure of the AIK, as in aik.blob
+     * @param keyAuth usage secret of the AIK
+     * @param srkAuth usage secret of the SRK
+     * @param externalData 20 bytes of qualifying data
+     * @param pcrs PCR indexes to quote
+     * @return TPM_PCR_COMPOSITE || sigSize || sig
+     */
+    public byte[] quote(byte[] keyBlob, byte[] keyAuth, byte[] srkAuth, byte[] externalData, Collection<Integer> pcrs) throws IOException, TpmModule.TpmModuleException {
+        int keyHandle = loadKey(keyBlob, srkAuth);
+        try {
+            return quote(keyHandle, keyAuth, externalData, pcrs);
+        } catch (TpmModule.TpmModuleException e) {
+            if (e.getErrorCode() == null || e.getErrorCode() != TPM_INVALID_KEYHANDLE) {
+                throw e;
+            }
+            log.debug("Key handle 0x{} is no longer valid, loading the key again", Integer.toHexString(keyHandle));
+            loadedKeyBlob = null;
+            return quote(loadKey(keyBlob, srkAuth), keyAuth, externalData, pcrs);
+        }
+    }
+
+    public byte[] quote(int keyHandle, byte[] keyAuth, byte[] externalData, Collection<Integer> pcrs) throws IOException, TpmModule.TpmModuleException {
+        if (externalData.length != 20) {
+            throw new IllegalArgumentException("TPM_Quote external data must be 20 bytes");
+        }
+        byte[] select = new byte[PCR_SELECT_SIZE];
+        for (Integer pcr : pcrs) {
+            if (pcr < 0 || pcr >= select.length * 8) {
+                throw new IllegalArgumentException(String.format("Invalid PCR index %d", pcr));
+            }
+            select[pcr / 8] |= (byte) (1 << (pcr % 8));
+        }
+        Tpm12Session session = oiap(keyAuth);
+        Tpm12Command command = new Tpm12Command(Tpm12Command.TPM_TAG_RQU_AUTH1_COMMAND, Tpm12Command.TPM_ORD_QUOTE);
+        command.handle(keyHandle);
+        command.bytes(externalData);
+        command.uint16(select.length).bytes(select);
+        command.authorize(session);
+        byte[] raw = transport.transmit(command.toByteArray());
+        Tpm12Response response = new Tpm12Response(raw, "TPM_Quote");
+        response.verify(session, Tpm12Command.TPM_ORD_QUOTE, 0);
+        response.bytes(response.uint16()); // pcrData.select
+        response.bytes(response.uint32()); // pcrData.pcrValue
+        byte[] signature = response.bytes(response.uint32());
+        log.debug("TPM_Quote returned {} bytes of signature", signature.length);
+        return Arrays.copyOfRange(raw, Tpm12Command.HEADER_SIZE, Tpm12Command.HEADER_SIZE + response.offset());
+    }
+
+    /**
+     * @return the handle of the key, loaded under the SRK unless it is the
+     * key that is already loaded
+     */
+    private int loadKey(byte[] keyBlob, byte[] srkAuth) throws IOException, TpmModule.TpmModuleException {
+        if (loadedKeyBlob != null && Arrays.equals(loadedKeyBlob, keyBlob)) {
+            return loadedKeyHandle;
+        }
+        if (loadedKeyBlob != null) {
+            flushKey();
+        }
+        loadedKeyHandle = loadKey2(TPM_KH_SRK, srkAuth, keyBlob);
+        loadedKeyBlob = keyBlob.clone();
+        return loadedKeyHandle;
+    }
+
+    public int loadKey2(int parentHandle, byte[] parentAuth, byte[] keyBlob) throws IOException, TpmModule.TpmModuleException {
+        Tpm12Session session = oiap(parentAuth);
+        Tpm12Command command = new Tpm12Command(Tpm12Command.TPM_TAG_RQU_AUTH1_COMMAND, Tpm12Command.TPM_ORD_LOADKEY2);
+        command.handle(parentHandle);
+        command.bytes(keyBlob);
+        command.authorize(session);
+        Tpm12Response response = new Tpm12Response(transport.transmit(command.toByteArray()), "TPM_LoadKey2");
+        int keyHandle = response.uint32();
+        response.verify(session, Tpm12Command.TPM_ORD_LOADKEY2, response.offset()); // the handle is not authorized
+        log.debug("Loaded key with handle 0x{}", Integer.toHexString(keyHandle));
+        return keyHandle;
+    }
+
+    public void flushSpecific(int handle, int resourceType) throws IOException, TpmModule.TpmModuleException {
+        Tpm12Command command = new Tpm12Command(Tpm12Command.TPM_TAG_RQU_COMMAND, Tpm12Command.TPM_ORD_FLUSHSPECIFIC);
+        command.handle(handle);
+        command.uint32(resourceType);
+        new Tpm12Response(transport.transmit(command.toByteArray()), "TPM_FlushSpecific");
+    }
+
+    private void flushKey() {
+        try {
+            flushSpecific(loadedKeyHandle, TPM_RT_KEY);
+        } catch (IOException | TpmModule.TpmModuleException e) {
+            log.debug("Cannot flush key handle 0x{}: {}", Integer.toHexString(loadedKeyHandle), e.getMessage());
+        }
+        loadedKeyBlob = null;
+    }
+
+    /**
+     * @return the NV indexes defined in the TPM, the same list tpm_nvinfo shows
+     */
+    public List<Integer> getNvIndexes() throws IOException, TpmModule.TpmModuleException {
+        Tpm12Command command = new Tpm12Command(Tpm12Command.TPM_TAG_RQU_COMMAND, Tpm12Command.TPM_ORD_GETCAPABILITY);
+        command.uint32(TPM_CAP_NV_LIST);
+        command.uint32(0); // subCapSize
+        Tpm12Response response = new Tpm12Response(transport.transmit(command.toByteArray()), "TPM_GetCapability");
+        int size = response.uint32();
+        List<Integer> indexes = new ArrayList<>();
+        for (int i = 0; i < size / 4; i++) {
+            indexes.add(response.uint32());
+        }
+        return indexes;
+    }
+
+    /**
+     * Reads an NV index that does not require authorization to read, like
+     * tpm_nvread without a password.
+     */
+    public byte[] nvReadValue(int index, int offset, int size) throws IOException, TpmModule.TpmModuleException {
+        Tpm12Command command = new Tpm12Command(Tpm12Command.TPM_TAG_RQU_COMMAND, Tpm12Command.TPM_ORD_NV_READVALUE);
+        command.uint32(index);
+        command.uint32(offset);
+        command.uint32(size);
+        Tpm12Response response = new Tpm12Response(transport.transmit(command.toByteArray()), "TPM_NV_ReadValue");
+        return response.bytes(response.uint32());
+    }
+
+    private Tpm12Session oiap(byte[] secret) throws IOException, TpmModule.TpmModuleException {
+        Tpm12Command command = new Tpm12Command(Tpm12Command.TPM_TAG_RQU_COMMAND, Tpm12Command.TPM_ORD_OIAP);
+        Tpm12Response response = new Tpm12Response(transport.transmit(command.toByteArray()), "TPM_OIAP");
+        int authHandle = response.uint32();
+        return new Tpm12Session(authHandle, response.bytes(20), secret);
+    }
+
+    /**
+     * Flushes the loaded key and closes the transport.
+     */
+    @Override
+    public void close() throws IOException {
+        if (loadedKeyBlob != null) {
+            flushKey();
+        }
+        transport.close();
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.tpm12;
+
+import gov.niarl.his.privacyca.TpmModule;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Unmarshals a TPM 1.2 response buffer. The constructor validates the
+ * header and throws a TpmModuleException carrying the TPM return code when
+ * the command failed, so callers only deal with the output parameters.
+ */
+public class Tpm12Response {
+    public static final int TPM_TAG_RSP_AUTH1_COMMAND = 0x00C5;
+    private static final int AUTH1_TRAILER_SIZE = 20 + 1 + 20; // nonceEven continueAuthSession resAuth
+    private final ByteBuffer buffer;
+    private final byte[] response;
+    private final int tag;
+
+    public Tpm12Response(byte[] response, String commandName) throws TpmModule.TpmModuleException {
+        this.response = response;
+        buffer = ByteBuffer.wrap(response);
+        if (response.length < Tpm12Command.HEADER_SIZE) {
+            throw new TpmModule.TpmModuleException(commandName + " returned a truncated response");
+        }
+        tag = buffer.getShort() & 0xffff;
+        int size = buffer.getInt();
+        int returnCode = buffer.getInt();
+        if (returnCode != 0) {
+            throw new TpmModule.TpmModuleException(String.format("%s failed with TPM error 0x%x", commandName, returnCode), returnCode);
+        }
+        if (size != response.length) {
+            throw new TpmModule.TpmModuleException(String.format("%s response size %d does not match received %d bytes", commandName, size, response.length));
+        }
+    }
+
+    public int uint8() throws TpmModule.TpmModuleException {
+        try {
+            return buffer.get() & 0xff;
+        } catch (BufferUnderflowException e) {
+            throw new TpmModule.TpmModuleException("Unexpected end of TPM response", e);
+        }
+    }
+
+    public int uint16() throws TpmModule.TpmModuleException {
+        try {
+            return buffer.getShort() & 0xffff;
+        } catch (BufferUnderflowException e) {
+            throw new TpmModule.TpmModuleException("Unexpected end of TPM response", e);
+        }
+    }
+
+    public int uint32() throws TpmModule.TpmModuleException {
+        try {
+            return buffer.getInt();
+        } catch (BufferUnderflowException e) {
+            throw new TpmModule.TpmModuleException("Unexpected end of TPM response", e);
+        }
+    }
+
+    public byte[] bytes(int length) throws TpmModule.TpmModuleException {
+        try {
+            byte[] value = new byte[length];
+            buffer.get(value);
+            return value;
+        } catch (BufferUnderflowException | NegativeArraySizeException e) {
+            throw new TpmModule.TpmModuleException("Unexpected end of TPM response", e);
+        }
+    }
+
+    /**
+     * @return the position of the next value relative to the end of the
+     * header, to pass to verify() as the start of the output parameters
+     */
+    public int offset() {
+        return buffer.position() - Tpm12Command.HEADER_SIZE;
+    }
+
+    /**
+     * Checks the resAuth of an AUTH1 response, which proves the response
+     * came from a TPM that knows the usage secret of the session.
+     *
+     * @param offset where the "2S" output parameters start, after any
+     * output handles
+     */
+    public void verify(Tpm12Session session, int ordinal, int offset) throws TpmModule.TpmModuleException {
+        int end = response.length - AUTH1_TRAILER_SIZE;
+        if (tag != TPM_TAG_RSP_AUTH1_COMMAND || end < Tpm12Command.HEADER_SIZE + offset) {
+            throw new TpmModule.TpmModuleException(String.format("TPM response to ordinal 0x%x has no authorization", ordinal));
+        }
+        byte[] header = ByteBuffer.allocate(8).putInt(0).putInt(ordinal).array(); // returnCode is 0 here
+        byte[] digest = Tpm12Session.sha1(header, Arrays.copyOfRange(response, Tpm12Command.HEADER_SIZE + offset, end));
+        byte[] nonceEven = Arrays.copyOfRange(response, end, end + 20);
+        byte[] continueAuthSession = Arrays.copyOfRange(response, end + 20, end + 21);
+        byte[] resAuth = Arrays.copyOfRange(response, end + 21, response.length);
+        byte[] expected = session.hmac(digest, nonceEven, session.getNonceOdd(), continueAuthSession);
+        if (!MessageDigest.isEqual(expected, resAuth)) {
+            throw new TpmModule.TpmModuleException(String.format("TPM response to ordinal 0x%x failed authorization check", ordinal));
+        }
+    }
+}
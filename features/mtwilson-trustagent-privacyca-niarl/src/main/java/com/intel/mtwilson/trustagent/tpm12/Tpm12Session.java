@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.tpm12;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * An OIAP authorization session: the handle and even nonce returned by
+ * TPM_OIAP, the odd nonce chosen by the caller and the usage secret of the
+ * entity being authorized.
+ */
+public class Tpm12Session {
+    private static final SecureRandom random = new SecureRandom();
+    private final int authHandle;
+    private final byte[] nonceEven;
+    private final byte[] nonceOdd;
+    private final byte[] secret;
+
+    public Tpm12Session(int authHandle, byte[] nonceEven, byte[] secret) {
+        this.authHandle = authHandle;
+        this.nonceEven = nonceEven;
+        this.secret = secret;
+        this.nonceOdd = new byte[20];
+        random.nextBytes(nonceOdd);
+    }
+
+    public int getAuthHandle() {
+        return authHandle;
+    }
+
+    public byte[] getNonceEven() {
+        return nonceEven;
+    }
+
+    public byte[] getNonceOdd() {
+        return nonceOdd;
+    }
+
+    /**
+     * @return HMAC-SHA1 keyed with the usage secret over the concatenated values
+     */
+    public byte[] hmac(byte[]... values) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA1");
+            mac.init(new SecretKeySpec(secret, "HmacSHA1"));
+            for (byte[] value : values) {
+                mac.update(value);
+            }
+            return mac.doFinal();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA1 is not available", e);
+        }
+    }
+
+    public static byte[] sha1(byte[]... values) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            for (byte[] value : values) {
+                md.update(value);
+            }
+            return md.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+    }
+}
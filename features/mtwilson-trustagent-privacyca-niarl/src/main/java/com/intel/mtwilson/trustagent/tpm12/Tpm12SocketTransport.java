@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.tpm12;
+
+import com.intel.mtwilson.trustagent.tpm2.Tpm2Transport;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/**
+ * Talks to a TPM 1.2 software emulator (the IBM software TPM tpm_server,
+ * default port 6545). Unlike the TPM 2.0 simulator there is no framing:
+ * the command buffer is sent as is and the response is read by the
+ * paramSize field of its header.
+ *
+ * This is not the tcsd protocol; while tcsd is running the TPM 1.2
+ * commands go through the external tools.
+ */
+public class Tpm12SocketTransport implements Tpm2Transport {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(Tpm12SocketTransport.class);
+    public static final int DEFAULT_EMULATOR_PORT = 6545;
+    private static final int MAX_RESPONSE_SIZE = 4096;
+    private static final int CONNECT_TIMEOUT = 5000; // milliseconds
+    private static final int READ_TIMEOUT = 120000; // milliseconds, key generation on some TPMs is slow
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    public Tpm12SocketTransport(String host, int port) throws IOException {
+        socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+        socket.setSoTimeout(READ_TIMEOUT);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        log.debug("Connected to TPM 1.2 emulator at {}:{}", host, port);
+    }
+
+    @Override
+    public byte[] transmit(byte[] command) throws IOException {
+        out.write(command);
+        out.flush();
+        byte[] header = new byte[Tpm12Command.HEADER_SIZE];
+        in.readFully(header);
+        int length = ByteBuffer.wrap(header).getInt(2);
+        if (length < Tpm12Command.HEADER_SIZE || length > MAX_RESPONSE_SIZE) {
+            throw new IOException(String.format("Invalid response size from TPM socket: %d", length));
+        }
+        byte[] response = new byte[length];
+        System.arraycopy(header, 0, response, 0, header.length);
+        in.readFully(response, header.length, length - header.length);
+        return response;
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.tpm2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Marshals a TPM 2.0 command buffer. Integers are big-endian as required
+ * by the TPM 2.0 specification part 1. The commandSize field of the header
+ * is filled in by toByteArray().
+ */
+public class Tpm2Command {
+    public static final int HEADER_SIZE = 10; // tag(2) size(4) code(4)
+    public static final int TPM_ST_NO_SESSIONS = 0x8001;
+    public static final int TPM_ST_SESSIONS = 0x8002;
+    public static final int TPM_CC_QUOTE = 0x00000158;
+    public static final int TPM_CC_PCR_READ = 0x0000017E;
+    public static final int TPM_RS_PW = 0x40000009;
+    public static final int TPM_ALG_NULL = 0x0010;
+
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+    private final DataOutputStream out = new DataOutputStream(buffer);
+
+    public Tpm2Command(int tag, int commandCode) throws IOException {
+        out.writeShort(tag);
+        out.writeInt(0); // commandSize placeholder
+        out.writeInt(commandCode);
+    }
+
+    public Tpm2Command uint8(int value) throws IOException {
+        out.writeByte(value);
+        return this;
+    }
+
+    public Tpm2Command uint16(int value) throws IOException {
+        out.writeShort(value);
+        return this;
+    }
+
+    public Tpm2Command uint32(int value) throws IOException {
+        out.writeInt(value);
+        return this;
+    }
+
+    public Tpm2Command bytes(byte[] value) throws IOException {
+        out.write(value);
+        return this;
+    }
+
+    /**
+     * Writes a TPM2B structure: 16-bit size followed by the value
+     */
+    public Tpm2Command sized(byte[] value) throws IOException {
+        out.writeShort(value.length);
+        out.write(value);
+        return this;
+    }
+
+    /**
+     * Writes the authorization area with a single password session
+     * (TPM_RS_PW), equivalent to the -P option of the tpm2 tools.
+     */
+    public Tpm2Command passwordSession(byte[] password) throws IOException {
+        out.writeInt(4 + 2 + 1 + 2 + password.length); // authorizationSize
+        out.writeInt(TPM_RS_PW);
+        out.writeShort(0); // nonceCaller, empty
+        out.writeByte(0); // sessionAttributes
+        sized(password);
+        return this;
+    }
+
+    public byte[] toByteArray() {
+        byte[] command = buffer.toByteArray();
+        ByteBuffer.wrap(command).putInt(2, command.length);
+        return command;
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.tpm2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * Talks to the kernel TPM character device. The in-kernel resource manager
+ * device /dev/tpmrm0 is preferred because it can be shared with the
+ * tpm2-tools processes used for provisioning; /dev/tpm0 only works when
+ * nothing else (e.g. resourcemgr) holds the device open.
+ *
+ * The driver expects exactly one write of the whole command followed by
+ * one read of the whole response.
+ */
+public class Tpm2DeviceTransport implements Tpm2Transport {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(Tpm2DeviceTransport.class);
+    private static final int MAX_RESPONSE_SIZE = 4096;
+    private final File path;
+    private final RandomAccessFile device;
+
+    public Tpm2DeviceTransport(File path) throws IOException {
+        this.path = path;
+        this.device = new RandomAccessFile(path, "rw");
+        log.debug("Opened TPM device {}", path.getAbsolutePath());
+    }
+
+    @Override
+    public byte[] transmit(byte[] command) throws IOException {
+        device.write(command);
+        byte[] buffer = new byte[MAX_RESPONSE_SIZE];
+        int length = device.read(buffer);
+        if (length < Tpm2Command.HEADER_SIZE) {
+            throw new IOException(String.format("Short response from %s: %d bytes", path.getAbsolutePath(), length));
+        }
+        return Arrays.copyOf(buffer, length);
+    }
+
+    @Override
+    public void close() throws IOException {
+        device.close();
+    }
+}
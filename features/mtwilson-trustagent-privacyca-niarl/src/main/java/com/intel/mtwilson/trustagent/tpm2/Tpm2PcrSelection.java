@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.tpm2;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * An ordered list of PCR banks and the PCRs selected in each bank, parsed
+ * from the same "-L" syntax accepted by tpm2_listpcrs and tpm2_quote,
+ * for example "0x04:16,17,18+0x0B:16,17,18".
+ *
+ * The bank order is preserved because it determines the order of the
+ * digests in the PCR dump and in the quoted TPML_PCR_SELECTION.
+ */
+public class Tpm2PcrSelection {
+    public static final int IMPLEMENTATION_PCR = 24;
+    public static final int PCR_SELECT_MAX = (IMPLEMENTATION_PCR + 7) / 8;
+
+    public static class Bank {
+        private final int hashAlg;
+        private final SortedSet<Integer> pcrs;
+
+        public Bank(int hashAlg, Collection<Integer> pcrs) {
+            this.hashAlg = hashAlg;
+            this.pcrs = Collections.unmodifiableSortedSet(new TreeSet<>(pcrs));
+        }
+
+        public int getHashAlg() {
+            return hashAlg;
+        }
+
+        public SortedSet<Integer> getPcrs() {
+            return pcrs;
+        }
+    }
+
+    private final List<Bank> banks;
+
+    public Tpm2PcrSelection(List<Bank> banks) {
+        this.banks = Collections.unmodifiableList(new ArrayList<>(banks));
+    }
+
+    public List<Bank> getBanks() {
+        return banks;
+    }
+
+    public static Tpm2PcrSelection valueOf(String text) {
+        ArrayList<Bank> banks = new ArrayList<>();
+        for (String item : text.split("\\+")) {
+            String[] parts = item.trim().split(":");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException(String.format("Invalid PCR selection: %s", item));
+            }
+            int hashAlg = Integer.decode(parts[0].trim());
+            ArrayList<Integer> pcrs = new ArrayList<>();
+            for (String pcr : parts[1].split(",")) {
+                int index = Integer.parseInt(pcr.trim());
+                if (index < 0 || index >= IMPLEMENTATION_PCR) {
+                    throw new IllegalArgumentException(String.format("Invalid PCR index: %d", index));
+                }
+                pcrs.add(index);
+            }
+            banks.add(new Bank(hashAlg, pcrs));
+        }
+        return new Tpm2PcrSelection(banks);
+    }
+
+    /**
+     * Writes a TPML_PCR_SELECTION with every bank in this selection
+     */
+    public void marshal(Tpm2Command command) throws IOException {
+        command.uint32(banks.size());
+        for (Bank bank : banks) {
+            marshal(command, bank.getHashAlg(), bank.getPcrs());
+        }
+    }
+
+    /**
+     * Writes a TPMS_PCR_SELECTION for one bank
+     */
+    static void marshal(Tpm2Command command, int hashAlg, Collection<Integer> pcrs) throws IOException {
+        byte[] pcrSelect = new byte[PCR_SELECT_MAX];
+        for (Integer pcr : pcrs) {
+            pcrSelect[pcr / 8] |= (byte) (1 << (pcr % 8));
+        }
+        command.uint16(hashAlg);
+        command.uint8(PCR_SELECT_MAX);
+        command.bytes(pcrSelect);
+    }
+}
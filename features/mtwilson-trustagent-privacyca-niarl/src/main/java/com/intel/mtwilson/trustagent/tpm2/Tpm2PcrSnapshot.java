@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.tpm2;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * The PCR values last sent with a quote, per PCR selection, so a quote
+ * whose PCRs have not changed does not need another tpm2_listpcrs or
+ * TPM2_PCR_Read.
+ *
+ * The quote is taken first. Its TPMS_QUOTE_INFO contains the selection
+ * and pcrDigest, the hash of the selected PCR values in selection order.
+ * If the digest equals the one of the snapshot for the same selection,
+ * the cached values are the quoted values. Otherwise the caller reads the
+ * PCRs and calls put(), which keeps them only if they hash to the quoted
+ * pcrDigest; values read after a PCR was extended again are returned but
+ * not cached.
+ *
+ * The quote argument is the tpm2_quote output layout produced by the tools
+ * and by Tpm2QuoteEngine: little-endian TPM2B_ATTEST size, the TPMS_ATTEST
+ * in TPM byte order, then the little-endian signature algorithm and hash.
+ */
+public class Tpm2PcrSnapshot {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(Tpm2PcrSnapshot.class);
+    private static final int TPM_GENERATED_VALUE = 0xff544347;
+    private static final int TPM_ST_ATTEST_QUOTE = 0x8018;
+    private static final int MAX_SELECTIONS = 16;
+    private static final Tpm2PcrSnapshot instance = new Tpm2PcrSnapshot();
+    private final Map<String, Snapshot> snapshots = new LinkedHashMap<String, Snapshot>(16, 0.75f, true) {
+        private static final long serialVersionUID = 0;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Snapshot> eldest) {
+            return size() > MAX_SELECTIONS;
+        }
+    };
+    private long hits = 0;
+    private long misses = 0;
+
+    private static class Snapshot {
+        private final byte[] pcrDigest;
+        private final byte[] pcrs;
+
+        private Snapshot(byte[] pcrDigest, byte[] pcrs) {
+            this.pcrDigest = pcrDigest;
+            this.pcrs = pcrs;
+        }
+    }
+
+    /**
+     * The parts of a quote that identify the quoted PCR values.
+     */
+    static class QuoteInfo {
+        private final String selection; // hex of the TPML_PCR_SELECTION
+        private final byte[] pcrDigest;
+        private final int hashAlg;
+
+        QuoteInfo(String selection, byte[] pcrDigest, int hashAlg) {
+            this.selection = selection;
+            this.pcrDigest = pcrDigest;
+            this.hashAlg = hashAlg;
+        }
+
+        String getSelection() {
+            return selection;
+        }
+
+        byte[] getPcrDigest() {
+            return pcrDigest;
+        }
+
+        int getHashAlg() {
+            return hashAlg;
+        }
+    }
+
+    Tpm2PcrSnapshot() {
+    }
+
+    public static Tpm2PcrSnapshot getInstance() {
+        return instance;
+    }
+
+    /**
+     * @param quote tpm2_quote output, without the PCR values
+     * @return the PCR values for this quote, or null if they have to be read
+     */
+    public byte[] get(byte[] quote) {
+        QuoteInfo info = parse(quote);
+        if (info == null) {
+            return null;
+        }
+        synchronized (snapshots) {
+            Snapshot snapshot = snapshots.get(info.selection);
+            if (snapshot != null && MessageDigest.isEqual(snapshot.pcrDigest, info.pcrDigest)) {
+                hits++;
+                log.debug("PCR values unchanged for selection {}, {} reused of {} quotes", info.selection, hits, hits + misses);
+                return snapshot.pcrs;
+            }
+            misses++;
+            return null;
+        }
+    }
+
+    /**
+     * Keeps the PCR values read for this quote if they are the quoted values.
+     */
+    public void put(byte[] quote, byte[] pcrs) {
+        QuoteInfo info = parse(quote);
+        if (info == null) {
+            return;
+        }
+        String algorithm = digestAlgorithm(info.hashAlg);
+        if (algorithm == null) {
+            log.debug("Unsupported quote hash algorithm 0x{}, PCR values not cached", Integer.toHexString(info.hashAlg));
+            return;
+        }
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance(algorithm).digest(pcrs);
+        } catch (NoSuchAlgorithmException e) {
+            log.debug("{} not available, PCR values not cached", algorithm);
+            return;
+        }
+        synchronized (snapshots) {
+            if (MessageDigest.isEqual(digest, info.pcrDigest)) {
+                snapshots.put(info.selection, new Snapshot(info.pcrDigest, pcrs));
+            } else {
+                // a PCR was extended between the quote and the read
+                log.debug("PCR values read do not match the quote, not cached");
+                snapshots.remove(info.selection);
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (snapshots) {
+            snapshots.clear();
+        }
+    }
+
+    /**
+     * @return the selection and pcrDigest of the quote, or null if it is not a TPM 2.0 quote
+     */
+    static QuoteInfo parse(byte[] quote) {
+        try {
+            ByteBuffer in = ByteBuffer.wrap(quote).order(ByteOrder.LITTLE_ENDIAN);
+            int attestSize = in.getShort() & 0xffff;
+            ByteBuffer attest = ByteBuffer.wrap(quote, 2, attestSize).slice().order(ByteOrder.BIG_ENDIAN);
+            in.position(2 + attestSize);
+            in.getShort(); // sigAlg
+            int hashAlg = in.getShort() & 0xffff;
+            if (attest.getInt() != TPM_GENERATED_VALUE || (attest.getShort() & 0xffff) != TPM_ST_ATTEST_QUOTE) {
+                log.debug("Quote does not contain a TPMS_ATTEST for TPM2_Quote");
+                return null;
+            }
+            skipSized(attest); // qualifiedSigner
+            skipSized(attest); // extraData
+            attest.position(attest.position() + 8 + 4 + 4 + 1); // clockInfo
+            attest.position(attest.position() + 8); // firmwareVersion
+            int selectionStart = attest.position();
+            int count = attest.getInt();
+            for (int i = 0; i < count; i++) {
+                attest.getShort(); // hash
+                int sizeofSelect = attest.get() & 0xff;
+                attest.position(attest.position() + sizeofSelect);
+            }
+            byte[] selection = new byte[attest.position() - selectionStart];
+            attest.position(selectionStart);
+            attest.get(selection);
+            byte[] pcrDigest = new byte[attest.getShort() & 0xffff];
+            attest.get(pcrDigest);
+            return new QuoteInfo(Hex.encodeHexString(selection), pcrDigest, hashAlg);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            log.debug("Cannot parse quote: {}", e.toString());
+            return null;
+        }
+    }
+
+    private static void skipSized(ByteBuffer buffer) {
+        int size = buffer.getShort() & 0xffff;
+        buffer.position(buffer.position() + size);
+    }
+
+    private static String digestAlgorithm(int hashAlg) {
+        switch (hashAlg) {
+            case 0x0004:
+                return "SHA-1";
+            case 0x000B:
+                return "SHA-256";
+            case 0x000C:
+                return "SHA-384";
+            case 0x000D:
+                return "SHA-512";
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.tpm2;
+
+import gov.niarl.his.privacyca.TpmModule;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Issues TPM2_PCR_Read and TPM2_Quote directly over a Tpm2Transport instead
+ * of running tpm2_listpcrs and tpm2_quote.
+ *
+ * The output is byte-for-byte what the trust agent used to assemble from
+ * the tool output files, so attestation servers do not see a difference:
+ * <ul>
+ * <li>tpm2_listpcrs -o writes the raw digest of each selected PCR, bank by
+ * bank in selection order and PCR index ascending within a bank</li>
+ * <li>tpm2_quote -o writes the in-memory TPM2B_ATTEST and TPMT_SIGNATURE
+ * structures, so their size and algorithm fields are little-endian while
+ * the attestation data itself stays in TPM (big-endian) format</li>
+ * </ul>
+ */
+public class Tpm2QuoteEngine {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(Tpm2QuoteEngine.class);
+    public static final int TPM_ALG_RSASSA = 0x0014;
+    public static final int TPM_ALG_RSAPSS = 0x0016;
+    private final Tpm2Transport transport;
+
+    public Tpm2QuoteEngine(Tpm2Transport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * The PCRs are read only if the quoted pcrDigest differs from the last
+     * Tpm2PcrSnapshot for the same selection.
+     * @return quote || pcrs, the same layout as the TpmQuoteResponse quote field
+     */
+    public byte[] quoteWithPcrs(int keyHandle, byte[] keyAuth, byte[] qualifyingData, Tpm2PcrSelection selection) throws IOException, TpmModule.TpmModuleException {
+        byte[] quote = quote(keyHandle, keyAuth, qualifyingData, selection);
+        Tpm2PcrSnapshot snapshot = Tpm2PcrSnapshot.getInstance();
+        byte[] pcrs = snapshot.get(quote);
+        if (pcrs == null) {
+            pcrs = readPcrs(selection);
+            snapshot.put(quote, pcrs);
+        }
+        byte[] combined = new byte[quote.length + pcrs.length];
+        System.arraycopy(quote, 0, combined, 0, quote.length);
+        System.arraycopy(pcrs, 0, combined, quote.length, pcrs.length);
+        return combined;
+    }
+
+    /**
+     * Same content as the file written by tpm2_listpcrs -L selection -o file.
+     * The TPM returns at most 8 digests per TPM2_PCR_Read so each bank may
+     * need several round trips.
+     */
+    public byte[] readPcrs(Tpm2PcrSelection selection) throws IOException, TpmModule.TpmModuleException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Tpm2PcrSelection.Bank bank : selection.getBanks()) {
+            TreeMap<Integer, byte[]> values = new TreeMap<>();
+            TreeSet<Integer> remaining = new TreeSet<>(bank.getPcrs());
+            while (!remaining.isEmpty()) {
+                Tpm2Command command = new Tpm2Command(Tpm2Command.TPM_ST_NO_SESSIONS, Tpm2Command.TPM_CC_PCR_READ);
+                command.uint32(1);
+                Tpm2PcrSelection.marshal(command, bank.getHashAlg(), remaining);
+                Tpm2Response response = new Tpm2Response(transport.transmit(command.toByteArray()), "TPM2_PCR_Read");
+                response.uint32(); // pcrUpdateCounter
+                ArrayList<Integer> returned = new ArrayList<>();
+                int selectionCount = response.uint32();
+                for (int i = 0; i < selectionCount; i++) {
+                    int hashAlg = response.uint16();
+                    byte[] pcrSelect = response.bytes(response.uint8());
+                    for (int pcr = 0; pcr < pcrSelect.length * 8; pcr++) {
+                        if (hashAlg == bank.getHashAlg() && (pcrSelect[pcr / 8] & (1 << (pcr % 8))) != 0) {
+                            returned.add(pcr);
+                        }
+                    }
+                }
+                int digestCount = response.uint32();
+                if (digestCount == 0 || digestCount != returned.size()) {
+                    throw new TpmModule.TpmModuleException(String.format("TPM2_PCR_Read returned %d digests for bank 0x%x, the bank may not be allocated", digestCount, bank.getHashAlg()));
+                }
+                for (int i = 0; i < digestCount; i++) {
+                    values.put(returned.get(i), response.sized());
+                    remaining.remove(returned.get(i));
+                }
+            }
+            for (Map.Entry<Integer, byte[]> entry : values.entrySet()) {
+                out.write(entry.getValue());
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Same content as the file written by
+     * tpm2_quote -k handle -P auth -L selection -q nonce -o file -X
+     */
+    public byte[] quote(int keyHandle, byte[] keyAuth, byte[] qualifyingData, Tpm2PcrSelection selection) throws IOException, TpmModule.TpmModuleException {
+        Tpm2Command command = new Tpm2Command(Tpm2Command.TPM_ST_SESSIONS, Tpm2Command.TPM_CC_QUOTE);
+        command.uint32(keyHandle);
+        command.passwordSession(keyAuth);
+        command.sized(qualifyingData);
+        command.uint16(Tpm2Command.TPM_ALG_NULL); // inScheme, use the key's scheme
+        selection.marshal(command);
+        Tpm2Response response = new Tpm2Response(transport.transmit(command.toByteArray()), "TPM2_Quote");
+        response.uint32(); // parameterSize
+        byte[] quoted = response.sized();
+        int sigAlg = response.uint16();
+        if (sigAlg != TPM_ALG_RSASSA && sigAlg != TPM_ALG_RSAPSS) {
+            throw new TpmModule.TpmModuleException(String.format("Unsupported quote signature algorithm 0x%x", sigAlg));
+        }
+        int hashAlg = response.uint16();
+        byte[] signature = response.sized();
+        log.debug("TPM2_Quote returned {} bytes of attestation data and {} bytes of signature", quoted.length, signature.length);
+        ByteBuffer out = ByteBuffer.allocate(2 + quoted.length + 6 + signature.length).order(ByteOrder.LITTLE_ENDIAN);
+        out.putShort((short) quoted.length);
+        out.put(quoted);
+        out.putShort((short) sigAlg);
+        out.putShort((short) hashAlg);
+        out.putShort((short) signature.length);
+        out.put(signature);
+        return out.array();
+    }
+}
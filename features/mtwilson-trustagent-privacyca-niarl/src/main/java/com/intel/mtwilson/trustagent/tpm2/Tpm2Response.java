@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.tpm2;
+
+import gov.niarl.his.privacyca.TpmModule;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Unmarshals a TPM 2.0 response buffer. The constructor validates the
+ * header and throws a TpmModuleException carrying the TPM response code
+ * when the command failed, so callers only deal with the parameters.
+ */
+public class Tpm2Response {
+    private final ByteBuffer buffer;
+
+    public Tpm2Response(byte[] response, String commandName) throws TpmModule.TpmModuleException {
+        buffer = ByteBuffer.wrap(response);
+        if (response.length < Tpm2Command.HEADER_SIZE) {
+            throw new TpmModule.TpmModuleException(commandName + " returned a truncated response");
+        }
+        buffer.getShort(); // tag
+        int size = buffer.getInt();
+        int responseCode = buffer.getInt();
+        if (responseCode != 0) {
+            throw new TpmModule.TpmModuleException(String.format("%s failed with TPM error 0x%x", commandName, responseCode), responseCode);
+        }
+        if (size != response.length) {
+            throw new TpmModule.TpmModuleException(String.format("%s response size %d does not match received %d bytes", commandName, size, response.length));
+        }
+    }
+
+    public int uint8() throws TpmModule.TpmModuleException {
+        try {
+            return buffer.get() & 0xff;
+        } catch (BufferUnderflowException e) {
+            throw new TpmModule.TpmModuleException("Unexpected end of TPM response", e);
+        }
+    }
+
+    public int uint16() throws TpmModule.TpmModuleException {
+        try {
+            return buffer.getShort() & 0xffff;
+        } catch (BufferUnderflowException e) {
+            throw new TpmModule.TpmModuleException("Unexpected end of TPM response", e);
+        }
+    }
+
+    public int uint32() throws TpmModule.TpmModuleException {
+        try {
+            return buffer.getInt();
+        } catch (BufferUnderflowException e) {
+            throw new TpmModule.TpmModuleException("Unexpected end of TPM response", e);
+        }
+    }
+
+    public byte[] bytes(int length) throws TpmModule.TpmModuleException {
+        try {
+            byte[] value = new byte[length];
+            buffer.get(value);
+            return value;
+        } catch (BufferUnderflowException e) {
+            throw new TpmModule.TpmModuleException("Unexpected end of TPM response", e);
+        }
+    }
+
+    /**
+     * Reads a TPM2B structure: 16-bit size followed by the value
+     */
+    public byte[] sized() throws TpmModule.TpmModuleException {
+        return bytes(uint16());
+    }
+}
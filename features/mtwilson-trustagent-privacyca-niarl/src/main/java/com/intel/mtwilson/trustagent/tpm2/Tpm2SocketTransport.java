@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.tpm2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Talks to the TPM over the same socket protocol as libtcti-socket from
+ * mtwilson-trustagent-tpm2-packages: either the resourcemgr daemon
+ * (default port 2323) or a TPM simulator command port (default 2321).
+ *
+ * Framing, all integers big-endian:
+ * <pre>
+ * request:  MS_SIM_TPM_SEND_COMMAND(4) locality(1) size(4) command
+ * response: size(4) response ack(4)
+ * </pre>
+ */
+public class Tpm2SocketTransport implements Tpm2Transport {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(Tpm2SocketTransport.class);
+    public static final int DEFAULT_RESMGR_TPM_PORT = 2323;
+    public static final int DEFAULT_SIMULATOR_TPM_PORT = 2321;
+    private static final int MS_SIM_TPM_SEND_COMMAND = 8;
+    private static final int TPM_SESSION_END = 20;
+    private static final int CONNECT_TIMEOUT = 5000; // milliseconds
+    private static final int READ_TIMEOUT = 120000; // milliseconds, key generation on some TPMs is slow
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    public Tpm2SocketTransport(String host, int port) throws IOException {
+        socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+        socket.setSoTimeout(READ_TIMEOUT);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        log.debug("Connected to TPM at {}:{}", host, port);
+    }
+
+    @Override
+    public byte[] transmit(byte[] command) throws IOException {
+        out.writeInt(MS_SIM_TPM_SEND_COMMAND);
+        out.writeByte(0); // locality
+        out.writeInt(command.length);
+        out.write(command);
+        out.flush();
+        int length = in.readInt();
+        if (length < Tpm2Command.HEADER_SIZE) {
+            throw new IOException(String.format("Invalid response size from TPM socket: %d", length));
+        }
+        byte[] response = new byte[length];
+        in.readFully(response);
+        int ack = in.readInt();
+        if (ack != 0) {
+            throw new IOException(String.format("TPM socket returned error acknowledgement: %d", ack));
+        }
+        return response;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            out.writeInt(TPM_SESSION_END);
+            out.flush();
+        } catch (IOException e) {
+            log.debug("Cannot send session end to TPM socket: {}", e.getMessage());
+        } finally {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,20 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.tpm2;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Sends one marshalled TPM 2.0 command buffer to the TPM and returns the
+ * complete response buffer (header included). TPM 1.2 commands have the
+ * same header size, so Tpm12Engine uses Tpm2DeviceTransport as well.
+ *
+ * Implementations are not required to be thread-safe; callers that share
+ * a transport must serialize access to it.
+ */
+public interface Tpm2Transport extends Closeable {
+    byte[] transmit(byte[] command) throws IOException;
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.tpmmodules;
+
+import com.intel.mtwilson.trustagent.tpmmodules.TpmDispatcher.Lane;
+import com.intel.mtwilson.trustagent.tpmmodules.TpmDispatcher.Permit;
+import gov.niarl.his.privacyca.TpmModule;
+import java.io.IOException;
+
+/**
+ * The asset tag NV index only changes when a tag is written through
+ * setAssetTag, so the quote path reads it from here instead of running
+ * the nv exists/read tools on every quote. Both outcomes are cached: the
+ * 32-byte tag hash, or "not provisioned". A miss costs one readAssetTag
+ * call, which on TPM 2.0 checks the index and reads it in one invocation
+ * of the batch helper.
+ *
+ * The result is kept in memory only: a TPM clear or a change of owner
+ * does not show in anything the agent could check without the TPM, so a
+ * restarted trust agent reads the index again. Errors other than "not
+ * provisioned" are never cached.
+ *
+ * Callers take the dispatcher permit before the monitor, so a thread
+ * waiting for the TPM does not block readers of a cached result.
+ */
+public class AssetTagCache {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(AssetTagCache.class);
+    private final TpmModuleProvider module;
+    private final TpmDispatcher dispatcher;
+    // guarded by this
+    private boolean valid = false;
+    private byte[] assetTag = null; // null when not provisioned
+
+    /**
+     * @param module the platform module, called directly
+     * @param dispatcher used for the TPM calls on a cache miss or write
+     */
+    public AssetTagCache(TpmModuleProvider module, TpmDispatcher dispatcher) {
+        this.module = module;
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * @throws AssetTagNotProvisionedException if the asset tag is not provisioned, like TpmModuleProvider.readAssetTag
+     */
+    public byte[] read(byte[] ownerAuth) throws IOException, TpmModule.TpmModuleException {
+        synchronized (this) {
+            if (valid) {
+                return cached();
+            }
+        }
+        // on the quote path, so a miss waits with the quotes
+        try (Permit permit = dispatcher.acquire(Lane.QUOTE)) {
+            synchronized (this) {
+                if (!valid) {
+                    populate(ownerAuth);
+                }
+                return cached();
+            }
+        }
+    }
+
+    /**
+     * Writes the asset tag and caches what the TPM returns for it afterwards.
+     */
+    public void write(byte[] ownerAuth, byte[] assetTagHash) throws IOException, TpmModule.TpmModuleException {
+        invalidate();
+        try (Permit permit = dispatcher.acquire(Lane.NV_WRITE)) {
+            synchronized (this) {
+                valid = false;
+                module.setAssetTag(ownerAuth, assetTagHash);
+                populate(ownerAuth);
+            }
+        }
+    }
+
+    public synchronized void invalidate() {
+        valid = false;
+        assetTag = null;
+    }
+
+    private byte[] cached() throws AssetTagNotProvisionedException {
+        if (assetTag == null) {
+            throw new AssetTagNotProvisionedException();
+        }
+        return assetTag.clone();
+    }
+
+    private void populate(byte[] ownerAuth) throws IOException, TpmModule.TpmModuleException {
+        try {
+            assetTag = module.readAssetTag(ownerAuth);
+        } catch (AssetTagNotProvisionedException e) {
+            assetTag = null;
+        }
+        valid = true;
+        log.debug("Asset tag is {}", assetTag == null ? "not provisioned" : "provisioned");
+    }
+}
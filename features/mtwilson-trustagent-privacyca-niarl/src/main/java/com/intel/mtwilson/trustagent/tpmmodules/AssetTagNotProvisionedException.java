@@ -0,0 +1,19 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.tpmmodules;
+
+import gov.niarl.his.privacyca.TpmModule;
+
+/**
+ * Thrown by TpmModuleProvider.readAssetTag when the asset tag NV index does
+ * not exist, so callers can tell it apart from a failure to read the TPM.
+ */
+public class AssetTagNotProvisionedException extends TpmModule.TpmModuleException {
+    private static final long serialVersionUID = 0;
+
+    public AssetTagNotProvisionedException() {
+        super("Asset Tag has not been provisioned on this TPM");
+    }
+}
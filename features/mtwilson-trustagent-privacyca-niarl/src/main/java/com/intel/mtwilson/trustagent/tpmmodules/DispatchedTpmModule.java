@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.tpmmodules;
+
+import com.intel.mtwilson.trustagent.shell.CommandLineResult;
+import com.intel.mtwilson.trustagent.shell.ShellExecutor;
+import com.intel.mtwilson.trustagent.shell.TpmBatch;
+import com.intel.mtwilson.trustagent.tpmmodules.TpmDispatcher.Lane;
+import com.intel.mtwilson.trustagent.tpmmodules.TpmDispatcher.Permit;
+import gov.niarl.his.privacyca.TpmIdentity;
+import gov.niarl.his.privacyca.TpmModule;
+import gov.niarl.his.privacyca.TpmUtils;
+import java.io.IOException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.HashMap;
+
+/**
+ * Runs every call of the platform module through the TpmDispatcher. This is
+ * what Tpm.getModule() returns. Asset tag reads are answered by the
+ * AssetTagCache, which only uses the TPM on a miss. A module that can quote
+ * in-process is wrapped in a DispatchedTpmQuoteModule instead, so the
+ * wrapper is a TpmQuoteProvider exactly when the module is one; use
+ * create().
+ */
+class DispatchedTpmModule implements TpmModuleProvider {
+    final TpmModuleProvider module;
+    final TpmDispatcher dispatcher;
+    private final AssetTagCache assetTagCache;
+    private final ShellExecutor shellExecutor;
+
+    DispatchedTpmModule(TpmModuleProvider module, TpmDispatcher dispatcher, AssetTagCache assetTagCache) {
+        this.module = module;
+        this.dispatcher = dispatcher;
+        this.assetTagCache = assetTagCache;
+        this.shellExecutor = new DispatchedShellExecutor(module.getShellExecutor(), dispatcher);
+    }
+
+    static DispatchedTpmModule create(TpmModuleProvider module, TpmDispatcher dispatcher, AssetTagCache assetTagCache) {
+        if (module instanceof TpmQuoteProvider) {
+            return new DispatchedTpmQuoteModule(module, dispatcher, assetTagCache);
+        }
+        return new DispatchedTpmModule(module, dispatcher, assetTagCache);
+    }
+
+    TpmModuleProvider getModule() {
+        return module;
+    }
+
+    /**
+     * Same as DispatchedTpmModule, and quotes in-process in the QUOTE lane.
+     */
+    static class DispatchedTpmQuoteModule extends DispatchedTpmModule implements TpmQuoteProvider {
+        DispatchedTpmQuoteModule(TpmModuleProvider module, TpmDispatcher dispatcher, AssetTagCache assetTagCache) {
+            super(module, dispatcher, assetTagCache);
+        }
+
+        @Override
+        public byte[] getQuote(byte[] aikAuth, String aikHandle, byte[] nonce, String pcrSelection) throws IOException, TpmModule.TpmModuleException {
+            try (Permit permit = dispatcher.acquire(Lane.QUOTE)) {
+                return ((TpmQuoteProvider) module).getQuote(aikAuth, aikHandle, nonce, pcrSelection);
+            }
+        }
+    }
+
+    /**
+     * Runs the commands of the module's shell executor in the NV_WRITE lane,
+     * since any of them may change the TPM state. The module's own calls
+     * already hold a permit and get a nested one. A busy TPM is reported as
+     * an IOException with the TpmBusyException as its cause, because the
+     * ShellExecutor methods only throw IOException.
+     */
+    private static class DispatchedShellExecutor implements ShellExecutor {
+        private final ShellExecutor shellExecutor;
+        private final TpmDispatcher dispatcher;
+
+        private DispatchedShellExecutor(ShellExecutor shellExecutor, TpmDispatcher dispatcher) {
+            this.shellExecutor = shellExecutor;
+            this.dispatcher = dispatcher;
+        }
+
+        private Permit acquire() throws IOException {
+            try {
+                return dispatcher.acquire(Lane.NV_WRITE);
+            } catch (TpmModule.TpmModuleException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public CommandLineResult executeTpmCommand(String command, String[] args, int returnCount) throws IOException {
+            try (Permit permit = acquire()) {
+                return shellExecutor.executeTpmCommand(command, args, returnCount);
+            }
+        }
+
+        @Override
+        public TpmBatch executeTpmBatch(TpmBatch batch) throws IOException {
+            try (Permit permit = acquire()) {
+                return shellExecutor.executeTpmBatch(batch);
+            }
+        }
+    }
+
+    @Override
+    public byte[] getCredential(byte[] ownerAuth, String credType) throws IOException, TpmModule.TpmModuleException {
+        try (Permit permit = dispatcher.acquire(Lane.READ)) {
+            return module.getCredential(ownerAuth, credType);
+        }
+    }
+
+    @Override
+    public void takeOwnership(byte[] ownerAuth, byte[] nonce) throws IOException, TpmModule.TpmModuleException {
+        try (Permit permit = dispatcher.acquire(Lane.NV_WRITE)) {
+            module.takeOwnership(ownerAuth, nonce);
+        }
+    }
+
+    @Override
+    public byte[] getEndorsementKeyModulus(byte[] ownerAuth, byte[] nonce) throws IOException, TpmModule.TpmModuleException {
+        try (Permit permit = dispatcher.acquire(Lane.READ)) {
+            return module.getEndorsementKeyModulus(ownerAuth, nonce);
+        }
+    }
+
+    @Override
+    public void setCredential(byte[] ownerAuth, String credType, byte[] credBlob) throws IOException, TpmModule.TpmModuleException {
+        try (Permit permit = dispatcher.acquire(Lane.NV_WRITE)) {
+            module.setCredential(ownerAuth, credType, credBlob);
+        }
+    }
+
+    @Override
+    public TpmIdentity collateIdentityRequest(byte[] ownerAuth, byte[] keyAuth, String keyLabel, byte[] pcaPubKeyBlob, int keyIndex, X509Certificate endorsmentCredential, boolean useECinNvram) throws IOException, TpmModule.TpmModuleException, CertificateEncodingException {
+        try (Permit permit = dispatcher.acquire(Lane.NV_WRITE)) {
+            return module.collateIdentityRequest(ownerAuth, keyAuth, keyLabel, pcaPubKeyBlob, keyIndex, endorsmentCredential, useECinNvram);
+        }
+    }
+
+    @Override
+    public HashMap<String, byte[]> activateIdentity2(byte[] ownerAuth, byte[] keyAuth, byte[] asymCaContents, byte[] symCaAttestation, int keyIndex) throws IOException, TpmModule.TpmModuleException {
+        try (Permit permit = dispatcher.acquire(Lane.NV_WRITE)) {
+            return module.activateIdentity2(ownerAuth, keyAuth, asymCaContents, symCaAttestation, keyIndex);
+        }
+    }
+
+    @Override
+    public byte[] activateIdentity(byte[] ownerAuth, byte[] keyAuth, byte[] asymCaContents, byte[] symCaAttestation, int keyIndex) throws IOException, TpmModule.TpmModuleException {
+        try (Permit permit = dispatcher.acquire(Lane.NV_WRITE)) {
+            return module.activateIdentity(ownerAuth, keyAuth, asymCaContents, symCaAttestation, keyIndex);
+        }
+    }
+
+    @Override
+    public void setAssetTag(byte[] ownerAuth, byte[] assetTagHash) throws IOException, TpmModule.TpmModuleException {
+        assetTagCache.write(ownerAuth, assetTagHash);
+    }
+
+    @Override
+    public byte[] readAssetTag(byte[] ownerAuth) throws IOException, TpmModule.TpmModuleException {
+        return assetTagCache.read(ownerAuth);
+    }
+
+    @Override
+    public String getAssetTagIndex() throws IOException, TpmModule.TpmModuleException {
+        try (Permit permit = dispatcher.acquire(Lane.READ)) {
+            return module.getAssetTagIndex();
+        }
+    }
+
+    @Override
+    public String getPcrBanks() throws IOException, TpmModule.TpmModuleException {
+        try (Permit permit = dispatcher.acquire(Lane.READ)) {
+            return module.getPcrBanks();
+        }
+    }
+
+    @Override
+    public void nvDefine(byte[] ownerAuth, byte[] indexPassword, String index, int size, String attributes) throws IOException, TpmModule.TpmModuleException {
+        assetTagCache.invalidate(); // could be the asset tag index
+        try (Permit permit = dispatcher.acquire(Lane.NV_WRITE)) {
+            module.nvDefine(ownerAuth, indexPassword, index, size, attributes);
+        }
+    }
+
+    @Override
+    public void nvRelease(byte[] ownerAuth, String index) throws IOException, TpmModule.TpmModuleException {
+        assetTagCache.invalidate(); // could be the asset tag index
+        try (Permit permit = dispatcher.acquire(Lane.NV_WRITE)) {
+            module.nvRelease(ownerAuth, index);
+        }
+    }
+
+    @Override
+    public byte[] nvRead(byte[] authPassword, String index, int size) throws IOException, TpmModule.TpmModuleException {
+        try (Permit permit = dispatcher.acquire(Lane.READ)) {
+            return module.nvRead(authPassword, index, size);
+        }
+    }
+
+    @Override
+    public void nvWrite(byte[] authPassword, String index, byte[] data) throws IOException, TpmModule.TpmModuleException {
+        assetTagCache.invalidate(); // could be the asset tag index
+        try (Permit permit = dispatcher.acquire(Lane.NV_WRITE)) {
+            module.nvWrite(authPassword, index, data);
+        }
+    }
+
+    @Override
+    public boolean nvIndexExists(String index) throws IOException, TpmModule.TpmModuleException {
+        try (Permit permit = dispatcher.acquire(Lane.READ)) {
+            return module.nvIndexExists(index);
+        }
+    }
+
+    @Override
+    public HashMap<String, byte[]> certifyKey(String keyType, byte[] keyAuth, int keyIndex, byte[] aikAuth, String aikIndex) throws IOException, TpmModule.TpmModuleException, TpmUtils.TpmBytestreamResouceException, TpmUtils.TpmUnsignedConversionException {
+        try (Permit permit = dispatcher.acquire(Lane.NV_WRITE)) {
+            return module.certifyKey(keyType, keyAuth, keyIndex, aikAuth, aikIndex);
+        }
+    }
+
+    @Override
+    public ShellExecutor getShellExecutor() {
+        return shellExecutor;
+    }
+}
@@ -20,6 +20,7 @@ import org.apache.commons.io.FileUtils;
 public class Tpm {
     private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(Tpm.class);
     public static TpmModuleProvider tpmModule = null;
+    private static DispatchedTpmModule dispatchedModule = null;
     public static String tpmVersion=null;
     public static String pcrBanks=null;  // initialized to SHA1 to accomodate tpm1.2. this value is updated if tpm version is 2.0 
 
@@ -44,11 +45,17 @@ public class Tpm {
         findModule();
     }
 
-    public static TpmModuleProvider getModule() {
+    /**
+     * @return the platform module; every call goes through the TpmDispatcher
+     */
+    public static synchronized TpmModuleProvider getModule() {
         if (tpmModule == null) {
             findModule();
         }
-        return tpmModule;
+        if (dispatchedModule == null || dispatchedModule.getModule() != tpmModule) {
+            dispatchedModule = DispatchedTpmModule.create(tpmModule, TpmDispatcher.getInstance(), new AssetTagCache(tpmModule, TpmDispatcher.getInstance()));
+        }
+        return dispatchedModule;
     }
     
     public static String getpcrBanks() {
@@ -65,6 +72,30 @@ public class Tpm {
         return pcrBanks;
     }
     
+    /**
+     * @return the in-process quote capability of the current module when
+     * tpm2.quote.engine, or tpm12.engine for TPM 1.2, selects it, or null to
+     * use the external tools
+     */
+    public static TpmQuoteProvider getQuoteProvider() {
+        TpmModuleProvider module = getModule();
+        if (!(module instanceof TpmQuoteProvider)) {
+            return null;
+        }
+        try {
+            if (tpmModule instanceof TpmModule12) {
+                return TpmModule12.isInProcess() ? (TpmQuoteProvider) module : null;
+            }
+            String engine = TrustagentConfiguration.getSnapshot().getTpm2QuoteEngine();
+            if ("device".equalsIgnoreCase(engine) || "socket".equalsIgnoreCase(engine)) {
+                return (TpmQuoteProvider) module; // dispatched
+            }
+        } catch (IOException ex) {
+            log.error("Cannot load configuration for the quote engine", ex);
+        }
+        return null;
+    }
+    
     private static void findModule() {
         String os = System.getProperty("os.name").toLowerCase();
 	if  (os.indexOf( "win" ) >= 0) { //Windows
@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.tpmmodules;
+
+import com.intel.dcsg.cpg.configuration.PropertiesConfiguration;
+import com.intel.mtwilson.trustagent.TrustagentConfiguration;
+import gov.niarl.his.privacyca.TpmModule;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Single point of access to the TPM. The TPM executes one command at a time
+ * anyway, so instead of letting every web server thread block inside the
+ * tools or the device driver, callers take a permit here:
+ *
+ * try (TpmDispatcher.Permit permit = TpmDispatcher.getInstance().acquire(TpmDispatcher.Lane.QUOTE)) {
+ *     ... use the TPM ...
+ * }
+ *
+ * Waiting callers are served by lane (quotes first, then NV writes and
+ * other state changes, then informational reads) and in arrival order
+ * within a lane. At most tpm.dispatcher.queue.max callers wait; more are
+ * rejected immediately, and a caller that waits longer than
+ * tpm.dispatcher.queue.wait milliseconds gives up. Both cases throw
+ * TpmBusyException with a Retry-After estimate so the web service can
+ * answer 503 instead of holding the connection.
+ *
+ * Permits are reentrant: a thread that already holds the TPM gets a nested
+ * permit without queueing, so a quote command can call the module.
+ */
+public class TpmDispatcher {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(TpmDispatcher.class);
+    private static TpmDispatcher instance = null;
+
+    public static enum Lane {
+        QUOTE, NV_WRITE, READ
+    }
+
+    public static class TpmBusyException extends TpmModule.TpmModuleException {
+        private static final long serialVersionUID = 0;
+        private final int retryAfter;
+
+        public TpmBusyException(String msg, int retryAfter) {
+            super(msg);
+            this.retryAfter = retryAfter;
+        }
+
+        /**
+         * @return suggested delay in seconds before trying again
+         */
+        public int getRetryAfter() {
+            return retryAfter;
+        }
+    }
+
+    public class Permit implements AutoCloseable {
+        private final Lane lane;
+        private boolean closed = false;
+
+        private Permit(Lane lane) {
+            this.lane = lane;
+        }
+
+        public Lane getLane() {
+            return lane;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                release();
+            }
+        }
+    }
+
+    /**
+     * Counters for one lane, serialized as-is by the /tpm/dispatcher resource.
+     */
+    public static class LaneMetrics {
+        public int queueDepth;
+        public long acquired;
+        public long rejected;
+        public long timedOut;
+        public long waitTotal; // milliseconds
+        public long waitMax; // milliseconds
+
+        private LaneMetrics copy() {
+            LaneMetrics copy = new LaneMetrics();
+            copy.queueDepth = queueDepth;
+            copy.acquired = acquired;
+            copy.rejected = rejected;
+            copy.timedOut = timedOut;
+            copy.waitTotal = waitTotal;
+            copy.waitMax = waitMax;
+            return copy;
+        }
+    }
+
+    public static class Metrics {
+        public boolean busy;
+        public int queueDepth;
+        public int queueMax;
+        public long queueWait; // configured limit, milliseconds
+        public long serviceTimeAverage; // milliseconds the TPM is held per permit, moving average
+        public Map<Lane, LaneMetrics> lanes = new LinkedHashMap<>();
+    }
+
+    private static class Ticket implements Comparable<Ticket> {
+        private final Lane lane;
+        private final long sequence;
+        private final Thread thread = Thread.currentThread();
+        private boolean granted = false;
+
+        private Ticket(Lane lane, long sequence) {
+            this.lane = lane;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Ticket other) {
+            if (lane != other.lane) {
+                return lane.compareTo(other.lane);
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private final int queueMax;
+    private final long queueWait;
+    private final Object lock = new Object();
+    // all fields below are guarded by lock
+    private final PriorityQueue<Ticket> waiting = new PriorityQueue<>();
+    private final Map<Lane, LaneMetrics> lanes = new LinkedHashMap<>();
+    private long sequence = 0;
+    private Thread owner = null;
+    private int holds = 0;
+    private long ownedSince = 0;
+    private double serviceTimeAverage = 0;
+
+    public TpmDispatcher(int queueMax, long queueWait) {
+        this.queueMax = queueMax;
+        this.queueWait = queueWait;
+        for (Lane lane : Lane.values()) {
+            lanes.put(lane, new LaneMetrics());
+        }
+    }
+
+    public static synchronized TpmDispatcher getInstance() {
+        if (instance == null) {
+            TrustagentConfiguration configuration;
+            try {
+                configuration = TrustagentConfiguration.getSnapshot();
+            } catch (IOException e) {
+                log.error("Cannot load configuration, using default TPM dispatcher settings", e);
+                configuration = new TrustagentConfiguration(new PropertiesConfiguration());
+            }
+            instance = new TpmDispatcher(configuration.getTpmDispatcherQueueMax(), configuration.getTpmDispatcherQueueWait());
+        }
+        return instance;
+    }
+
+    /**
+     * Waits until the TPM is available to the current thread.
+     * @throws TpmBusyException if the queue is full or the wait exceeds the configured limit
+     * @throws TpmModule.TpmModuleException if the thread is interrupted while waiting
+     */
+    public Permit acquire(Lane lane) throws TpmModule.TpmModuleException {
+        Thread current = Thread.currentThread();
+        synchronized (lock) {
+            LaneMetrics metrics = lanes.get(lane);
+            if (owner == current) {
+                holds++;
+                return new Permit(lane);
+            }
+            if (owner == null && waiting.isEmpty()) {
+                grant(current);
+                metrics.acquired++;
+                return new Permit(lane);
+            }
+            if (waiting.size() >= queueMax) {
+                metrics.rejected++;
+                int retryAfter = retryAfter();
+                log.warn("TPM queue is full ({} waiting), rejecting {} request", waiting.size(), lane);
+                throw new TpmBusyException(String.format("TPM is busy, %d requests waiting", waiting.size()), retryAfter);
+            }
+            Ticket ticket = new Ticket(lane, sequence++);
+            waiting.add(ticket);
+            metrics.queueDepth++;
+            long start = System.currentTimeMillis();
+            long deadline = start + queueWait;
+            try {
+                while (!ticket.granted) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        waiting.remove(ticket);
+                        metrics.timedOut++;
+                        log.warn("{} request waited {} ms for the TPM, giving up", lane, queueWait);
+                        throw new TpmBusyException(String.format("Timed out after %d ms waiting for the TPM", queueWait), retryAfter());
+                    }
+                    lock.wait(remaining);
+                }
+            } catch (InterruptedException e) {
+                waiting.remove(ticket);
+                current.interrupt();
+                if (!ticket.granted) {
+                    throw new TpmModule.TpmModuleException("Interrupted while waiting for the TPM", e);
+                }
+                // the TPM was handed over just before the interrupt; keep it, the caller releases it
+            } finally {
+                metrics.queueDepth--;
+            }
+            long wait = System.currentTimeMillis() - start;
+            metrics.acquired++;
+            metrics.waitTotal += wait;
+            metrics.waitMax = Math.max(metrics.waitMax, wait);
+            log.debug("{} request waited {} ms for the TPM", lane, wait);
+            return new Permit(lane);
+        }
+    }
+
+    private void release() {
+        synchronized (lock) {
+            if (--holds > 0) {
+                return;
+            }
+            long serviceTime = System.currentTimeMillis() - ownedSince;
+            serviceTimeAverage = serviceTimeAverage == 0 ? serviceTime : 0.8 * serviceTimeAverage + 0.2 * serviceTime;
+            owner = null;
+            Ticket next = waiting.poll();
+            if (next != null) {
+                next.granted = true;
+                grant(next.thread);
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private void grant(Thread thread) {
+        owner = thread;
+        holds = 1;
+        ownedSince = System.currentTimeMillis();
+    }
+
+    /**
+     * Time for the current queue to drain at the average service time,
+     * rounded up to whole seconds.
+     */
+    private int retryAfter() {
+        double drain = (waiting.size() + 1) * serviceTimeAverage;
+        return (int) Math.max(1, Math.ceil(drain / 1000));
+    }
+
+    public Metrics getMetrics() {
+        synchronized (lock) {
+            Metrics metrics = new Metrics();
+            metrics.busy = owner != null;
+            metrics.queueDepth = waiting.size();
+            metrics.queueMax = queueMax;
+            metrics.queueWait = queueWait;
+            metrics.serviceTimeAverage = Math.round(serviceTimeAverage);
+            for (Map.Entry<Lane, LaneMetrics> entry : lanes.entrySet()) {
+                metrics.lanes.put(entry.getKey(), entry.getValue().copy());
+            }
+            return metrics;
+        }
+    }
+}
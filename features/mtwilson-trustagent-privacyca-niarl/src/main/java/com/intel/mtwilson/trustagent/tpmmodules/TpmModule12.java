@@ -7,12 +7,17 @@ package com.intel.mtwilson.trustagent.tpmmodules;
 
 import com.intel.dcsg.cpg.crypto.RandomUtil;
 import com.intel.mtwilson.Folders;
+import com.intel.mtwilson.trustagent.TrustagentConfiguration;
 import com.intel.mtwilson.trustagent.shell.CommandLineResult;
+import com.intel.mtwilson.trustagent.shell.ProcessResult;
 import com.intel.mtwilson.trustagent.shell.ShellExecutor;
 import com.intel.mtwilson.trustagent.shell.ShellExecutorFactory;
+import com.intel.mtwilson.trustagent.tpm12.Tpm12Engine;
+import com.intel.mtwilson.trustagent.tpm12.Tpm12Session;
+import com.intel.mtwilson.trustagent.tpm12.Tpm12SocketTransport;
+import com.intel.mtwilson.trustagent.tpm2.Tpm2DeviceTransport;
+import com.intel.mtwilson.trustagent.tpm2.Tpm2Transport;
 import com.intel.mtwilson.util.exec.EscapeUtil;
-import com.intel.mtwilson.util.exec.ExecUtil;
-import com.intel.mtwilson.util.exec.Result;
 import gov.niarl.his.privacyca.TpmIdentity;
 import gov.niarl.his.privacyca.TpmModule;
 import gov.niarl.his.privacyca.TpmUtils;
@@ -22,7 +27,9 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.logging.Level;
@@ -36,8 +43,9 @@ import org.apache.commons.io.IOUtils;
  */
 
 /* this is the module for TPM 1.2 */
-public class TpmModule12 implements TpmModuleProvider {
+public class TpmModule12 implements TpmModuleProvider, TpmQuoteProvider {
     private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(TpmModule12.class);
+    private Tpm12Engine engine = null;
     
     @Override
     public byte[] getCredential(byte[] ownerAuth, String credType) throws IOException, TpmModule.TpmModuleException {
@@ -105,7 +113,7 @@ public class TpmModule12 implements TpmModuleProvider {
             log.debug("Asset Tag Index {} exists", index);
             return nvRead(ownerAuth, index, 32);
         } else {
-            throw new TpmModule.TpmModuleException("Asset Tag has not been provisoined on this TPM");
+            throw new AssetTagNotProvisionedException();
         }
     }
 
@@ -129,7 +137,7 @@ public class TpmModule12 implements TpmModuleProvider {
         command.addArgument("--permissions=" + attributes);
         command.addArgument(String.format("-s 0x%s", Integer.toHexString(size)), false);
         command.addArgument(String.format("-i %s", index), false);
-        Result result = ExecUtil.execute(command, environmentVariables);
+        ProcessResult result = TpmModule.executeTool(command, environmentVariables);
         if (result.getExitCode() != 0) {
             log.error("Error running command [{}]: {}", command.getExecutable(), result.getStderr());
             throw new TpmModule.TpmModuleException(result.getStderr());
@@ -149,7 +157,7 @@ public class TpmModule12 implements TpmModuleProvider {
         command.addArgument("-t");
         command.addArgument("-otpmOwnerPass");
         command.addArgument(String.format("-i %s", index), false);
-        Result result = ExecUtil.execute(command, environmentVariables);
+        ProcessResult result = TpmModule.executeTool(command, environmentVariables);
         if (result.getExitCode() != 0) {
             log.error("Error running command [{}]: {}", command.getExecutable(), result.getStderr());
             throw new TpmModule.TpmModuleException(result.getStderr());
@@ -181,7 +189,7 @@ public class TpmModule12 implements TpmModuleProvider {
             command.addArgument(String.format("-i %s", index), false);
             command.addArgument("-f");
             command.addArgument(EscapeUtil.doubleQuoteEscapeShellArgument(tmpFile.getPath()));
-            Result result = ExecUtil.execute(command, environmentVariables);
+            ProcessResult result = TpmModule.executeTool(command, environmentVariables);
             if (result.getExitCode() != 0) {
                 log.error("Error running command [{}]: {}", command.getExecutable(), result.getStderr());
                 throw new TpmModule.TpmModuleException(result.getStderr());
@@ -195,9 +203,12 @@ public class TpmModule12 implements TpmModuleProvider {
     
     @Override
     public boolean nvIndexExists(String index) throws IOException, TpmModule.TpmModuleException {
+        if (isInProcess()) {
+            return getNvIndexes().contains(Long.decode(index).intValue());
+        }
         CommandLine command = new CommandLine("/opt/trustagent/bin/tpm_nvinfo");
         command.addArgument(String.format("-i %s", index), false);        
-        Result result = ExecUtil.execute(command);
+        ProcessResult result = TpmModule.executeTool(command, null);
         if (result.getExitCode() != 0) {
             log.error("Error running command [{}]: {}", command.getExecutable(), result.getStderr());
             throw new TpmModule.TpmModuleException(result.getStderr());
@@ -212,6 +223,9 @@ public class TpmModule12 implements TpmModuleProvider {
 
     @Override
     public byte[] nvRead(byte[] authPassword, String index, int size) throws IOException, TpmModule.TpmModuleException {
+        if (isInProcess()) {
+            return nvReadValue(Long.decode(index).intValue(), size);
+        }
         File f = File.createTempFile("nvread", ".data");
         try (FileInputStream fis = new FileInputStream(f)) {
             String[] args = {
@@ -233,6 +247,96 @@ public class TpmModule12 implements TpmModuleProvider {
         }
     }
 
+    /**
+     * Quote with TPM_LoadKey2 and TPM_Quote issued in-process over the
+     * transport selected by tpm12.engine. Inputs and output are those of
+     * aikquote -p aikAuth -c nonceFile aikBlobFile pcrs... quoteFile: the
+     * password is hashed into the AIK usage secret like a TSS plain secret,
+     * and the nonce is hashed into the 20 bytes of external data. The AIK
+     * stays loaded between quotes.
+     *
+     * @param aikBlobFile path of the AIK blob
+     * @param pcrSelection PCR indexes separated by spaces
+     */
+    @Override
+    public synchronized byte[] getQuote(byte[] aikAuth, String aikBlobFile, byte[] nonce, String pcrSelection) throws IOException, TpmModule.TpmModuleException {
+        byte[] aikBlob;
+        try (FileInputStream in = new FileInputStream(aikBlobFile)) {
+            aikBlob = IOUtils.toByteArray(in);
+        }
+        List<Integer> pcrs = new ArrayList<>();
+        for (String pcr : pcrSelection.trim().split("\\s+")) {
+            pcrs.add(Integer.valueOf(pcr));
+        }
+        try {
+            return getEngine().quote(aikBlob, Tpm12Session.sha1(aikAuth), Tpm12Engine.WELL_KNOWN_SECRET, Tpm12Session.sha1(nonce), pcrs);
+        } catch (IOException e) {
+            closeEngine();
+            throw e;
+        }
+    }
+
+    private synchronized List<Integer> getNvIndexes() throws IOException, TpmModule.TpmModuleException {
+        try {
+            return getEngine().getNvIndexes();
+        } catch (IOException e) {
+            closeEngine();
+            throw e;
+        }
+    }
+
+    private synchronized byte[] nvReadValue(int index, int size) throws IOException, TpmModule.TpmModuleException {
+        try {
+            return getEngine().nvReadValue(index, 0, size);
+        } catch (IOException e) {
+            closeEngine();
+            throw e;
+        }
+    }
+
+    /**
+     * @return true if tpm12.engine selects the in-process commands instead
+     * of the external tools
+     */
+    static boolean isInProcess() throws IOException {
+        String mode = TrustagentConfiguration.getSnapshot().getTpm12Engine();
+        return "device".equalsIgnoreCase(mode) || "socket".equalsIgnoreCase(mode);
+    }
+
+    private Tpm12Engine getEngine() throws IOException {
+        if (engine == null) {
+            engine = new Tpm12Engine(openTransport(TrustagentConfiguration.getSnapshot()));
+        }
+        return engine;
+    }
+
+    /**
+     * The device or socket is no longer usable; it is opened again for the
+     * next command.
+     */
+    private void closeEngine() {
+        if (engine == null) {
+            return;
+        }
+        try {
+            engine.close();
+        } catch (IOException e) {
+            log.debug("Cannot close TPM transport: {}", e.getMessage());
+        }
+        engine = null;
+    }
+
+    private static Tpm2Transport openTransport(TrustagentConfiguration config) throws IOException {
+        if ("socket".equalsIgnoreCase(config.getTpm12Engine())) {
+            return new Tpm12SocketTransport(config.getTpm12SocketAddress(), config.getTpm12SocketPort());
+        }
+        File device = config.getTpm12Device();
+        if (!device.exists()) {
+            throw new IOException(String.format("TPM device %s does not exist", device.getAbsolutePath()));
+        }
+        return new Tpm2DeviceTransport(device);
+    }
+
     @Override
     public ShellExecutor getShellExecutor() {
         return ShellExecutorFactory.getInstance(ShellExecutorFactory.OS.Unix);
@@ -14,7 +14,12 @@ import com.intel.mtwilson.trustagent.TrustagentConfiguration;
 import com.intel.mtwilson.trustagent.shell.CommandLineResult;
 import com.intel.mtwilson.trustagent.shell.ShellExecutor;
 import com.intel.mtwilson.trustagent.shell.ShellExecutorFactory;
-import com.intel.mtwilson.util.exec.EscapeUtil;
+import com.intel.mtwilson.trustagent.shell.TpmBatch;
+import com.intel.mtwilson.trustagent.tpm2.Tpm2DeviceTransport;
+import com.intel.mtwilson.trustagent.tpm2.Tpm2PcrSelection;
+import com.intel.mtwilson.trustagent.tpm2.Tpm2QuoteEngine;
+import com.intel.mtwilson.trustagent.tpm2.Tpm2SocketTransport;
+import com.intel.mtwilson.trustagent.tpm2.Tpm2Transport;
 import gov.niarl.his.privacyca.TpmIdentity;
 import gov.niarl.his.privacyca.TpmKeyParams;
 import gov.niarl.his.privacyca.TpmModule;
@@ -52,28 +57,24 @@ import org.apache.commons.io.IOUtils;
  *
  * @author hxia5
  */
-public class TpmModule20 implements TpmModuleProvider {
+public class TpmModule20 implements TpmModuleProvider, TpmQuoteProvider {
 
     private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(TpmModule20.class);
+    private Tpm2Transport transport = null; // opened on first in-process quote and kept for the next ones
 
     @Override
     public void setAssetTag(byte[] ownerAuth, byte[] assetTagHash) throws IOException, TpmModule.TpmModuleException {
         String index = getAssetTagIndex();
         //byte[] randPasswd = ownerAuth; //RandomUtil.randomByteArray(20);
         
-        // Use ownerAuth for indexPassword
-        
-        if(nvIndexExists(index)) {
-            log.debug("Index exists. Releasing index...");
-            nvRelease(ownerAuth, index);
-            log.debug("Creating new index...");
-            nvDefine(ownerAuth, ownerAuth, index, 32, "0x02040002");
-        } else {
-            log.debug("Index does not exist. Creating it...");
-            nvDefine(ownerAuth, ownerAuth, index, 32, "0x02040002");
-        }
-        
-        nvWrite(ownerAuth, index, assetTagHash);
+        // Use ownerAuth for indexPassword; release the index if it exists, define and write it in one batch
+        String ownerAuthHex = TpmUtils.byteArrayToHexString(ownerAuth);
+        TpmBatch batch = new TpmBatch()
+                .addIfNvIndexExists(index, "nvrelease", 0, ownerAuthHex, index)
+                .add("nvdefine", 0, ownerAuthHex, ownerAuthHex, index, "32", "0x02040002")
+                .add("nvwrite", 0, ownerAuthHex, index, TpmUtils.byteArrayToHexString(assetTagHash));
+        executeTpmBatch("setAssetTag", batch);
+        log.debug("Index {}", batch.getStep(0).isSkipped() ? "did not exist, created it" : "existed, released and created it again");
         log.debug("Provisioned asset tag");
     }
 
@@ -81,12 +82,14 @@ public class TpmModule20 implements TpmModuleProvider {
     public byte[] readAssetTag(byte[] ownerAuth) throws IOException, TpmModule.TpmModuleException {
         String index = getAssetTagIndex();
         log.debug("Reading asset tag for Linux TPM 2.0...");
-        if(nvIndexExists(index)) {
-            log.debug("Asset Tag Index {} exists", index);
-            return nvRead(ownerAuth, index, 32);
-        } else {
-            throw new TpmModule.TpmModuleException("Asset Tag has not been provisioned on this TPM");
+        TpmBatch batch = new TpmBatch()
+                .addIfNvIndexExists(index, "nvread", 1, TpmUtils.byteArrayToHexString(ownerAuth), index, "32");
+        executeTpmBatch("readAssetTag", batch);
+        if (batch.getStep(0).isSkipped()) {
+            throw new AssetTagNotProvisionedException();
         }
+        log.debug("Asset Tag Index {} exists", index);
+        return TpmUtils.hexStringToByteArray(batch.getStep(0).getResult().getResult(0));
     }
 
     @Override
@@ -141,26 +144,11 @@ public class TpmModule20 implements TpmModuleProvider {
     }
 
     @Override
-    public void nvWrite(byte[] authPassword, String index, byte[] data) throws IOException, TpmModule.TpmModuleException {        
-        File file = File.createTempFile("nvwrite", "data");
-        try (FileOutputStream output = new FileOutputStream(file)) {
-            
-            IOUtils.write(data, output);        
-
-            String[] args  = {
-                TpmUtils.byteArrayToHexString(authPassword),
-                index,
-                EscapeUtil.doubleQuoteEscapeShellArgument(file.getPath())
-            };
-
-            CommandLineResult result = getShellExecutor().executeTpmCommand("tpm2-nvwrite.sh", args, 0);
-
-            if (result.getReturnCode() != 0) {
-                throw new TpmModule.TpmModuleException("TpmModule20.nvWrite returned nonzero error", result.getReturnCode());
-            }        
-        } finally {
-            file.delete();
-        }
+    public void nvWrite(byte[] authPassword, String index, byte[] data) throws IOException, TpmModule.TpmModuleException {
+        // the batch helper writes the data file for tpm2_nvwrite itself
+        TpmBatch batch = new TpmBatch()
+                .add("nvwrite", 0, TpmUtils.byteArrayToHexString(authPassword), index, TpmUtils.byteArrayToHexString(data));
+        executeTpmBatch("nvWrite", batch);
     }
 
     @Override
@@ -181,6 +169,15 @@ public class TpmModule20 implements TpmModuleProvider {
     public ShellExecutor getShellExecutor() {
         return ShellExecutorFactory.getInstance(ShellExecutorFactory.OS.Unix);
     }        
+
+    private void executeTpmBatch(String name, TpmBatch batch) throws IOException, TpmModule.TpmModuleException {
+        getShellExecutor().executeTpmBatch(batch);
+        TpmBatch.Step failed = batch.getFailure();
+        if (failed != null) {
+            int returnCode = failed.getResult() == null ? batch.getReturnCode() : failed.getResult().getReturnCode();
+            throw new TpmModule.TpmModuleException(String.format("TpmModule20.%s %s returned nonzero error", name, failed.getOperation()), returnCode);
+        }
+    }
     
     @Override
     public byte[] getCredential(byte[] ownerAuth, String credType) throws TpmModule.TpmModuleException, IOException {
@@ -371,6 +368,44 @@ public class TpmModule20 implements TpmModuleProvider {
         return result.getReturnOutput().trim();
     }      
 
+    /**
+     * Quote with TPM2_PCR_Read and TPM2_Quote issued in-process over the
+     * transport selected by tpm2.quote.engine. The TPM executes one command
+     * at a time, so callers are serialized on this module.
+     */
+    @Override
+    public synchronized byte[] getQuote(byte[] aikAuth, String aikHandle, byte[] nonce, String pcrSelection) throws IOException, TpmModule.TpmModuleException {
+        String handle = aikHandle.startsWith("0x") ? aikHandle.substring(2) : aikHandle; // aikhandle is saved without the 0x prefix
+        Tpm2PcrSelection selection = Tpm2PcrSelection.valueOf(pcrSelection);
+        if (transport == null) {
+            transport = openTransport(TrustagentConfiguration.getSnapshot());
+        }
+        try {
+            return new Tpm2QuoteEngine(transport).quoteWithPcrs((int) Long.parseLong(handle.trim(), 16), aikAuth, nonce, selection);
+        } catch (IOException e) {
+            // the device or socket is no longer usable; reopen it on the next quote
+            try {
+                transport.close();
+            } catch (IOException e2) {
+                log.debug("Cannot close TPM transport: {}", e2.getMessage());
+            }
+            transport = null;
+            throw e;
+        }
+    }
+
+    private static Tpm2Transport openTransport(TrustagentConfiguration config) throws IOException {
+        String engine = config.getTpm2QuoteEngine();
+        if ("socket".equalsIgnoreCase(engine)) {
+            return new Tpm2SocketTransport(config.getTpm2TctiSocketAddress(), config.getTpm2TctiSocketPort());
+        }
+        File device = config.getTpm2Device();
+        if (!device.exists()) {
+            throw new IOException(String.format("TPM device %s does not exist", device.getAbsolutePath()));
+        }
+        return new Tpm2DeviceTransport(device);
+    }
+
     @Override
     public HashMap<String, byte[]> certifyKey(String keyType, byte[] keyAuth, int keyIndex, byte[] aikAuth, String aikIndex) throws IOException, TpmModule.TpmModuleException, TpmUtils.TpmBytestreamResouceException, TpmUtils.TpmUnsignedConversionException {
         String srkHandle = "0x81000000";
@@ -382,53 +417,38 @@ public class TpmModule20 implements TpmModuleProvider {
         
         try {
 
-            String args[] = {
-                keyType,
-                srkHandle,
-                publicFile,
-                privateFile
-            };
-            CommandLineResult result = getShellExecutor().executeTpmCommand("tpm2-createkey.sh", args, 0);
-
-            if(result.getReturnCode() == 0) {
-                String args2[] = {
-                    srkHandle,
-                    aikIndex,
-                    TpmUtils.byteArrayToHexString(aikAuth),
-                    publicFile,
-                    privateFile,
-                    attestFile,
-                    sigFile
-                };
-                result = getShellExecutor().executeTpmCommand("tpm2-certifykey.sh", args2, 0);
-
-                if(result.getReturnCode() != 0) {
-                    throw new TpmModule.TpmModuleException("Failed to certify key after creation");
-                } else {
-                    HashMap<String, byte[]> res = new HashMap<String, byte[]>(); 
-                    
-                    try(FileInputStream pubFileStream = new FileInputStream(publicFile)){
-                        res.put("keymod", IOUtils.toByteArray(pubFileStream));                    
-                    }
-                    
-                    try(FileInputStream privateFileStream = new FileInputStream(privateFile)){
-                        res.put("keyblob", IOUtils.toByteArray(privateFileStream));
-                    }
-                    
-                    try(FileInputStream attestFileStream = new FileInputStream(attestFile)){
-                        res.put("keydata", IOUtils.toByteArray(attestFileStream));
-                    }
-                    
-                    try(FileInputStream sigFileStream = new FileInputStream(sigFile)){
-                        res.put("keysig", IOUtils.toByteArray(sigFileStream));
-                    }
-                    
-                    return res;
-                }
-            }
-            else { 
+            // create and certify the key with one invocation of the batch helper
+            TpmBatch batch = new TpmBatch()
+                    .add("exec", 0, "tpm2-createkey.sh", keyType, srkHandle, publicFile, privateFile)
+                    .add("exec", 0, "tpm2-certifykey.sh", srkHandle, aikIndex, TpmUtils.byteArrayToHexString(aikAuth), publicFile, privateFile, attestFile, sigFile);
+            getShellExecutor().executeTpmBatch(batch);
+            TpmBatch.Step failed = batch.getFailure();
+            if (failed == batch.getStep(0)) {
                 throw new TpmModule.TpmModuleException("Failed to create and certify key");
             }
+            if (failed != null) {
+                throw new TpmModule.TpmModuleException("Failed to certify key after creation");
+            }
+
+            HashMap<String, byte[]> res = new HashMap<String, byte[]>(); 
+
+            try(FileInputStream pubFileStream = new FileInputStream(publicFile)){
+                res.put("keymod", IOUtils.toByteArray(pubFileStream));                    
+            }
+
+            try(FileInputStream privateFileStream = new FileInputStream(privateFile)){
+                res.put("keyblob", IOUtils.toByteArray(privateFileStream));
+            }
+
+            try(FileInputStream attestFileStream = new FileInputStream(attestFile)){
+                res.put("keydata", IOUtils.toByteArray(attestFileStream));
+            }
+
+            try(FileInputStream sigFileStream = new FileInputStream(sigFile)){
+                res.put("keysig", IOUtils.toByteArray(sigFileStream));
+            }
+
+            return res;
         } finally {
             Files.deleteIfExists(Paths.get(publicFile));
             Files.deleteIfExists(Paths.get(privateFile));
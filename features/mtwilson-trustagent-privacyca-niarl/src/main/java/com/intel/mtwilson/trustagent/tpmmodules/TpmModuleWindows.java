@@ -7,11 +7,10 @@ package com.intel.mtwilson.trustagent.tpmmodules;
 
 import com.intel.dcsg.cpg.crypto.RandomUtil;
 import com.intel.mtwilson.Folders;
-import com.intel.mtwilson.common.CommandResult;
-import com.intel.mtwilson.common.CommandUtil;
-import com.intel.mtwilson.common.TAException;
 import com.intel.mtwilson.trustagent.TrustagentConfiguration;
 import com.intel.mtwilson.trustagent.shell.CommandLineResult;
+import com.intel.mtwilson.trustagent.shell.ProcessResult;
+import com.intel.mtwilson.trustagent.shell.ProcessRunner;
 import com.intel.mtwilson.trustagent.shell.ShellExecutor;
 import com.intel.mtwilson.trustagent.shell.ShellExecutorFactory;
 import gov.niarl.his.privacyca.TpmIdentity;
@@ -47,6 +46,7 @@ import java.util.logging.Logger;
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
+import org.apache.commons.exec.CommandLine;
 import org.apache.commons.io.IOUtils;
 
 /**
@@ -85,7 +85,7 @@ public class TpmModuleWindows implements TpmModuleProvider {
             log.debug("Asset Tag Index {} exists", index);
             return nvRead(ownerAuth, index, 32); //change the size to 32 bytes since we are using sha256 of asset tag
         } else {
-            throw new TpmModule.TpmModuleException("Asset Tag has not been provisioned on this TPM");
+            throw new AssetTagNotProvisionedException();
         }
     }
 
@@ -94,76 +94,78 @@ public class TpmModuleWindows implements TpmModuleProvider {
         return "2.0".equals(Tpm.getTpmVersion()) ? "0x01c10110" : "0x40000010";
     }
 
+    /**
+     * Runs tpmtool.exe from the trust agent bin folder.
+     */
+    private static ProcessResult tpmtool(String... args) throws IOException, TpmModuleException {
+        CommandLine command = new CommandLine(Folders.application() + File.separator + "bin" + File.separator + "tpmtool.exe");
+        command.addArguments(args, false);
+        ProcessResult result = ProcessRunner.getInstance().execute(command);
+        log.debug("tpmtool.exe {} stdout: {}", args[0], result.getStdout());
+        if (result.getExitCode() != 0) {
+            log.debug("tpmtool.exe {} stderr: {}", args[0], result.getStderr());
+            throw new TpmModule.TpmModuleException(result.getExitCode() + ": Error while running command: tpmtool.exe " + args[0]);
+        }
+        return result;
+    }
+
     @Override
     public void nvDefine(byte[] ownerAuth, byte[] indexPassword, String index, int size, String attribute) throws IOException, TpmModuleException {
+        log.debug("running command: tpmtool.exe nvdefine " + index + " 0x" + Integer.toHexString(size) + " XXXX " + attribute);
         try {
-            String cmd = "tpmtool.exe nvdefine " + index + " 0x" + Integer.toHexString(size) + " " + TpmUtils.byteArrayToHexString(indexPassword) + " " + attribute;
-            log.debug("running command: " + cmd);
-            CommandUtil.runCommand(cmd);
-        } catch (TAException ex) {
+            tpmtool("nvdefine", index, "0x" + Integer.toHexString(size), TpmUtils.byteArrayToHexString(indexPassword), attribute);
+        } catch (TpmModuleException ex) {
             log.error("error writing to nvram, " + ex.getMessage());
-            throw new TpmModule.TpmModuleException(ex);
+            throw ex;
         }
     }
 
     @Override
     public void nvRelease(byte[] ownerAuth, String index) throws IOException, TpmModuleException {
+        log.debug("running command: tpmtool.exe nvrelease " + index);
         try {
-            String cmd = "tpmtool.exe nvrelease " + index;
-            log.debug("running command: " + cmd);
-            CommandUtil.runCommand(cmd);
-        } catch (TAException ex) {
+            tpmtool("nvrelease", index);
+        } catch (TpmModuleException ex) {
             log.error("error releasing nvram index, " + ex.getMessage()); 
-            throw new TpmModule.TpmModuleException(ex);
+            throw ex;
         }
     }
 
     @Override
     public void nvWrite(byte[] authPassword, String index, byte[] data) throws IOException, TpmModuleException {
+        log.debug("running command: tpmtool.exe nvwrite " + index + " XXXX " + TpmUtils.byteArrayToHexString(data));
         try {
-            String cmd = "tpmtool.exe nvwrite " + index + " " + TpmUtils.byteArrayToHexString(authPassword) + " " + TpmUtils.byteArrayToHexString(data);
-            log.debug("running command: " + cmd);
-            CommandUtil.runCommand(cmd);
-        } catch (TAException ex) {
+            tpmtool("nvwrite", index, TpmUtils.byteArrayToHexString(authPassword), TpmUtils.byteArrayToHexString(data));
+        } catch (TpmModuleException ex) {
             log.error("error writing to nvram, " + ex.getMessage());
-            throw new TpmModule.TpmModuleException(ex);
+            throw ex;
         }
     }
 
     @Override
     public boolean nvIndexExists(String index) throws IOException, TpmModuleException {
         try {
-            CommandResult result = CommandUtil.runCommand("tpmtool.exe nvinfo " + index);
-            if (result != null && result.getStdout() != null) {
-                if (result.getStdout().contains("NVRAM index")) {
-                    return true;
-                }
+            ProcessResult result = tpmtool("nvinfo", index);
+            if (result.getStdout() != null && result.getStdout().contains("NVRAM index")) {
+                return true;
             }
-        } catch (TAException ex) {
+        } catch (TpmModuleException ex) {
             log.error("error getting nvram info, " + ex.getMessage());
-            throw new TpmModule.TpmModuleException(ex);
+            throw ex;
         }
         return false;
     }
 
     @Override
     public byte[] nvRead(byte[] ownerAuth, String index, int size) throws IOException, TpmModuleException {
+        log.debug("Running command: tpmtool.exe nvread " + index + " 0x" + Integer.toHexString(size));
         try {
-            String cmd = "tpmtool.exe nvread " + index + " 0x" + Integer.toHexString(size);
-            log.debug("Running command: " + cmd);
-            CommandResult cmdResult = CommandUtil.runCommand(cmd);
-            
-            // check if the cmd returns successfully. if so, set the assettag
-            if (cmdResult.getExitcode() == 0) {
-                log.debug("Provisioned Asset tag hash: {}", cmdResult.getStdout());
-                return TpmUtils.hexStringToByteArray(cmdResult.getStdout());
-            } else {
-                log.debug("Error reading Asset tag");
-                throw new TpmModule.TpmModuleException("nvread returned non zero error");
-            }
-        } catch (TAException ex) {
+            ProcessResult result = tpmtool("nvread", index, "0x" + Integer.toHexString(size));
+            log.debug("Provisioned Asset tag hash: {}", result.getStdout());
+            return TpmUtils.hexStringToByteArray(result.getStdout());
+        } catch (TpmModuleException ex) {
             log.error("error reading assetTag from nvram 0x40000010, " + ex.getMessage() );
-            throw new TpmModule.TpmModuleException(ex);
+            throw ex;
         }
     }
 
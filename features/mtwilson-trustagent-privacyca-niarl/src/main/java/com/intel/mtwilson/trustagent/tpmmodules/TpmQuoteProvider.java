@@ -0,0 +1,27 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.tpmmodules;
+
+import gov.niarl.his.privacyca.TpmModule;
+import java.io.IOException;
+
+/**
+ * Optional capability of a TpmModuleProvider that can produce a quote
+ * in-process, without running external tools or using temporary files.
+ * Use Tpm.getQuoteProvider() to find out if it is available and enabled.
+ */
+public interface TpmQuoteProvider {
+    /**
+     * For TPM 1.2 the AIK is a blob file and the output is that of aikquote;
+     * see TpmModule12.getQuote.
+     *
+     * @param aikAuth AIK authorization secret
+     * @param aikHandle persistent AIK handle, e.g. "0x81018000"; the AIK blob file for TPM 1.2
+     * @param nonce qualifying data to include in the quote
+     * @param pcrSelection banks and PCRs in tpm2_quote -L syntax, e.g. "0x04:0,17+0x0B:0,17"; PCR indexes separated by spaces for TPM 1.2
+     * @return quote || pcrs, the same bytes the tpm2 tools path produces
+     */
+    public byte[] getQuote(byte[] aikAuth, String aikHandle, byte[] nonce, String pcrSelection) throws IOException, TpmModule.TpmModuleException;
+}
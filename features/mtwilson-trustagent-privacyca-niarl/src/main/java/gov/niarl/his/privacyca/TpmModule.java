@@ -14,13 +14,17 @@
 package gov.niarl.his.privacyca;
 
 import com.intel.mtwilson.Folders;
+import com.intel.mtwilson.trustagent.shell.ProcessResult;
+import com.intel.mtwilson.trustagent.shell.ProcessRunner;
+import com.intel.mtwilson.trustagent.shell.ResidentShell;
 import gov.niarl.his.privacyca.TpmUtils.TpmBytestreamResouceException;
 import gov.niarl.his.privacyca.TpmUtils.TpmUnsignedConversionException;
 
 import java.io.*;
 import java.util.*;
-import java.util.logging.Logger;
+import java.util.concurrent.TimeUnit;
 import java.security.cert.*;
+import org.apache.commons.exec.CommandLine;
 import org.apache.commons.lang.StringUtils;
 
 //import com.intel.mountwilson.as.common.ResourceFinder;
@@ -35,6 +39,8 @@ import com.intel.mtwilson.util.ResourceFinder;
 
 public class TpmModule {
     private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(TpmModule.class);
+    // creating an identity generates an RSA key in the TPM, which is slow on some parts
+    private static final long TIMEOUT = TimeUnit.MINUTES.toMillis(5);
 
     public static class TpmModuleException extends Exception {
         private static final long serialVersionUID = 0;
@@ -122,6 +128,69 @@ public class TpmModule {
                 return results[index];
         }
     }
+    /**
+     * Settings from TPMModule.properties. They are read again when the
+     * file changes, checked at most every SETTINGS_CHECK_INTERVAL.
+     */
+    private static class Settings {
+        private final boolean trousersMode;
+        private final boolean debugMode;
+        private final boolean residentHelper;
+
+        private Settings(Properties properties) {
+            trousersMode = "true".equalsIgnoreCase(properties.getProperty("TrousersMode", "False").trim());
+            debugMode = "true".equalsIgnoreCase(properties.getProperty("DebugMode", "False").trim());
+            residentHelper = "true".equalsIgnoreCase(properties.getProperty("ResidentHelper", "True").trim());
+        }
+    }
+
+    private static final long SETTINGS_CHECK_INTERVAL = TimeUnit.SECONDS.toMillis(10);
+    private static Settings settings = null;
+    private static long settingsModified = 0;
+    private static long settingsChecked = 0;
+
+    private static synchronized Settings getSettings() {
+        long now = System.currentTimeMillis();
+        if (settings != null && now - settingsChecked < SETTINGS_CHECK_INTERVAL) {
+            return settings;
+        }
+        settingsChecked = now;
+        try {
+            File file = ResourceFinder.getFile("TPMModule.properties");
+            long modified = file.lastModified();
+            if (settings == null || modified != settingsModified) {
+                Properties properties = new Properties();
+                try (FileInputStream in = new FileInputStream(file)) {
+                    properties.load(in);
+                }
+                settings = new Settings(properties);
+                settingsModified = modified;
+                log.info("Loaded TPM Module settings from {}", file.getAbsolutePath());
+            }
+        } catch (FileNotFoundException e) {
+            if (settings == null) {
+                log.debug("Error finding TPM Module properties file; using defaults.");
+            }
+        } catch (IOException e) {
+            log.warn("Error loading TPM Module properties file; using {}.", settings == null ? "defaults" : "previous settings");
+        }
+        if (settings == null) {
+            settings = new Settings(new Properties());
+        }
+        return settings;
+    }
+
+    /**
+     * Runs a TPM 1.2 tool in the resident shell unless ResidentHelper is
+     * False in TPMModule.properties, in which case it runs as a new process.
+     */
+    public static ProcessResult executeTool(CommandLine command, Map<String, String> environment) throws IOException {
+        if (getSettings().residentHelper) {
+            return ResidentShell.getInstance().execute(command, environment);
+        }
+        return ProcessRunner.getInstance().execute(command, environment);
+    }
+
     /**
      * 
      * @param mode
@@ -135,45 +204,11 @@ public class TpmModule {
                     throws IOException {
 
         int returnCode;
-//		final String new_TPM_MODULE_EXE_PATH = "TpmModuleExePath";
-//		final String new_EXE_NAME = "ExeName";
-        final String new_TROUSERS_MODE = "TrousersMode";
-        final String DEBUG_MODE = "DebugMode";
-        FileInputStream PropertyFile = null;
         final String newTpmModuleExePath = Folders.application() + File.separator + "bin" ; // "./exe";
         final String newExeName = "NIARL_TPM_Module";
-        String newTrousersMode = "False";
-        String debugMode = "False";
-        String propertiesFileName = ResourceFinder.getLocation("TPMModule.properties");
-        Logger.getAnonymousLogger().info("Reading properties file" + propertiesFileName);
-        try {
-                PropertyFile = new FileInputStream(ResourceFinder.getFile("TPMModule.properties"));
-                Properties TpmModuleProperties = new Properties();
-                TpmModuleProperties.load(PropertyFile);
-//			newTpmModuleExePath = TpmModuleProperties.getProperty(new_TPM_MODULE_EXE_PATH, ".\\exe");
-//			newExeName = TpmModuleProperties.getProperty(new_EXE_NAME, "NIARL_TPM_Module");
-                newTrousersMode = TpmModuleProperties.getProperty(new_TROUSERS_MODE, "False");
-                debugMode = TpmModuleProperties.getProperty(DEBUG_MODE, "False");
-        } catch (FileNotFoundException e) {
-                log.debug("Error finding TPM Module properties file; using defaults.");
-        } catch (IOException e) {
-                log.warn("Error loading TPM Module properties file; using defaults.");
-        }
-        finally{
-                if (PropertyFile != null){
-                        try {
-                                PropertyFile.close();
-                        } catch (IOException e) {
-                                e.printStackTrace();
-                        }
-                }
-        }
-        boolean TrousersMode = false;
-        if (newTrousersMode.toLowerCase().equals("true"))
-                TrousersMode = true;
-        boolean DebugMode = false;
-        if (debugMode.toLowerCase().equals("true"))
-                DebugMode = true;
+        Settings settings = getSettings();
+        boolean TrousersMode = settings.trousersMode;
+        boolean DebugMode = settings.debugMode;
 
         // Parse the args parameter to populate the environment variables array
         String[] params = args.split(" ");
@@ -208,38 +243,16 @@ public class TpmModule {
                 commandLine += " -trousers";*/
         if (DebugMode) log.debug("Command line: {}", StringUtils.join(cmd, " "));
 
-        ProcessBuilder pb = new ProcessBuilder(cmd);
-        pb.environment().putAll(environmentVars);
-        Process p = pb.start();
-        //Process p = Runtime.getRuntime().exec(commandLine);
-        String line = "";
-        if (returnCount != 0){
-            BufferedReader input = new BufferedReader(new InputStreamReader(p.getInputStream()));
-            String newLine;
-            try {
-                    while ((newLine = input.readLine()) != null) {
-                            line = newLine;
-                    }
-                    input.close();
-            } catch (Exception e) {
-                    e.printStackTrace();
-            }
-            finally{
-                    if (input != null)
-                            input.close();
-            }
+        ProcessResult result;
+        if (settings.residentHelper) {
+            result = ResidentShell.getInstance().run(newExeName + " -mode " + mode, cmd, environmentVars, TIMEOUT, TimeUnit.MILLISECONDS);
+        } else {
+            result = ProcessRunner.getInstance().run(newExeName + " -mode " + mode, cmd, environmentVars, TIMEOUT, TimeUnit.MILLISECONDS);
         }
+        String line = returnCount != 0 ? result.getLastLine() : "";
         if (DebugMode) log.debug("Output: '{}'", line);
 
-        //do a loop to wait for an exit value
-        try {
-            returnCode = p.waitFor();
-        }
-        catch(InterruptedException e) {
-            log.error("Interrupted while waiting for return value");
-            log.debug("Interrupted while waiting for return value", e);
-            returnCode = -1;
-        }
+        returnCode = result.getExitCode();
 
         commandLineResult toReturn = new commandLineResult(returnCode, returnCount);
         if ((returnCode == 0)&&(returnCount != 0)) {
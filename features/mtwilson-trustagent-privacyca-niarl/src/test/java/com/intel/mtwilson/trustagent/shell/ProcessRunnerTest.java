@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.shell;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+public class ProcessRunnerTest {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(ProcessRunnerTest.class);
+
+    private static ProcessResult sh(ProcessRunner runner, String name, String script, long timeoutMillis) throws Exception {
+        return runner.run(name, Arrays.asList("/bin/sh", "-c", script), Collections.singletonMap("GREETING", "hello"), timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * A killed process that nobody has reaped yet is a zombie (state Z).
+     */
+    private static boolean isRunning(int pid) {
+        try {
+            String stat = new String(Files.readAllBytes(new File("/proc/" + pid + "/stat").toPath()), Charset.forName("UTF-8"));
+            return stat.charAt(stat.lastIndexOf(')') + 2) != 'Z';
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Test
+    public void testOutputAndMetrics() throws Exception {
+        Assume.assumeTrue(new File("/bin/sh").exists());
+        ProcessRunner runner = new ProcessRunner();
+        ProcessResult result = sh(runner, "echo", "echo first; echo $GREETING world; echo oops >&2; exit 3", 10000);
+        Assert.assertEquals(3, result.getExitCode());
+        Assert.assertEquals("first\nhello world\n", result.getStdout());
+        Assert.assertEquals("hello world", result.getLastLine());
+        Assert.assertEquals("oops\n", result.getStderr());
+        Assert.assertFalse(result.isTimedOut());
+        sh(runner, "echo", "true", 10000);
+        ProcessMetrics metrics = runner.getMetrics().get("echo");
+        log.debug("metrics: {}", metrics);
+        Assert.assertEquals(2, metrics.getCount());
+        Assert.assertEquals(Long.valueOf(1), metrics.getExitCodes().get(0));
+        Assert.assertEquals(Long.valueOf(1), metrics.getExitCodes().get(3));
+    }
+
+    @Test
+    public void testDeadlineKillsProcessTree() throws Exception {
+        Assume.assumeTrue(new File("/proc/self/stat").exists());
+        ProcessRunner runner = new ProcessRunner();
+        long start = System.currentTimeMillis();
+        // the background sleep keeps stdout open after the shell is killed unless it is killed too
+        ProcessResult result = sh(runner, "hang", "sleep 30 & echo $!; wait", 500);
+        long elapsed = System.currentTimeMillis() - start;
+        log.debug("killed after {} ms", elapsed);
+        Assert.assertTrue(result.isTimedOut());
+        Assert.assertTrue(result.getExitCode() != 0);
+        Assert.assertTrue(elapsed < 5000);
+        int child = Integer.parseInt(result.getLastLine().trim());
+        Thread.sleep(200);
+        Assert.assertFalse(isRunning(child));
+        Assert.assertEquals(1, runner.getMetrics().get("hang").getTimeouts());
+    }
+
+    @Test
+    public void testOutputLimit() throws Exception {
+        Assume.assumeTrue(new File("/bin/sh").exists());
+        ProcessRunner runner = new ProcessRunner();
+        ProcessResult result = sh(runner, "head", "head -c " + (ProcessRunner.OUTPUT_LIMIT + 100000) + " /dev/zero", 10000);
+        Assert.assertEquals(0, result.getExitCode());
+        Assert.assertTrue(result.isTruncated());
+        Assert.assertEquals(ProcessRunner.OUTPUT_LIMIT, result.getStdout().length());
+    }
+
+    private static Future<ProcessResult> submit(ExecutorService callers, final ProcessRunner runner, final String name, final String script, final long timeoutMillis) {
+        return callers.submit(new Callable<ProcessResult>() {
+            @Override
+            public ProcessResult call() throws Exception {
+                return sh(runner, name, script, timeoutMillis);
+            }
+        });
+    }
+
+    /**
+     * While every pump thread reads stderr of a slow command, more commands
+     * write more than a pipe buffer to stderr. Their callers read stderr
+     * themselves; waiting for a pump thread would block them past their
+     * deadline.
+     */
+    @Test
+    public void testMoreCommandsThanPumpThreads() throws Exception {
+        Assume.assumeTrue(new File("/bin/sh").exists());
+        ProcessRunner runner = new ProcessRunner();
+        ExecutorService callers = Executors.newCachedThreadPool();
+        List<Future<ProcessResult>> slow = new ArrayList<>();
+        for (int i = 0; i < ProcessRunner.PUMP_THREADS; i++) {
+            slow.add(submit(callers, runner, "slow", "sleep 4", 10000));
+        }
+        Thread.sleep(500);
+        List<Future<ProcessResult>> fast = new ArrayList<>();
+        for (int i = 0; i < ProcessRunner.PUMP_THREADS; i++) {
+            fast.add(submit(callers, runner, "fast", "head -c 200000 /dev/zero >&2; head -c 200000 /dev/zero", 2000));
+        }
+        for (Future<ProcessResult> future : fast) {
+            ProcessResult result = future.get();
+            Assert.assertEquals(0, result.getExitCode());
+            Assert.assertFalse(result.isTimedOut());
+            Assert.assertEquals(200000, result.getStdout().length());
+            Assert.assertEquals(200000, result.getStderr().length());
+        }
+        for (Future<ProcessResult> future : slow) {
+            Assert.assertEquals(0, future.get().getExitCode());
+        }
+        callers.shutdown();
+        Assert.assertEquals(ProcessRunner.PUMP_THREADS, runner.getMetrics().get("fast").getCount());
+    }
+}
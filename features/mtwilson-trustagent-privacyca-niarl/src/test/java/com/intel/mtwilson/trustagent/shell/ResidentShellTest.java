@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.shell;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+public class ResidentShellTest {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(ResidentShellTest.class);
+
+    private static ProcessResult sh(ResidentShell shell, String name, String script, long timeoutMillis) throws Exception {
+        return shell.run(name, Arrays.asList("/bin/sh", "-c", script), Collections.singletonMap("GREETING", "it's me"), timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void testOutputAndExitCode() throws Exception {
+        Assume.assumeTrue(new File("/bin/sh").exists());
+        ProcessRunner runner = new ProcessRunner();
+        ResidentShell shell = new ResidentShell(runner);
+        try {
+            ProcessResult result = sh(shell, "echo", "echo first; echo \"$GREETING\"; echo oops >&2; exit 3", 10000);
+            Assert.assertEquals(3, result.getExitCode());
+            Assert.assertEquals("first\nit's me\n", result.getStdout());
+            Assert.assertEquals("oops\n", result.getStderr());
+            // output without a final newline and a command that reads stdin
+            result = sh(shell, "echo", "printf abc; cat", 10000);
+            Assert.assertEquals(0, result.getExitCode());
+            Assert.assertEquals("abc", result.getStdout());
+            Assert.assertEquals("", result.getStderr());
+            Assert.assertEquals(2, runner.getMetrics().get("echo").getCount());
+        } finally {
+            shell.stop();
+        }
+    }
+
+    @Test
+    public void testDeadlineKeepsShell() throws Exception {
+        Assume.assumeTrue(new File("/proc/self/stat").exists());
+        ProcessRunner runner = new ProcessRunner();
+        ResidentShell shell = new ResidentShell(runner);
+        try {
+            ProcessResult first = sh(shell, "pid", "echo $PPID", 10000);
+            long start = System.currentTimeMillis();
+            ProcessResult result = sh(shell, "hang", "sleep 30", 500);
+            log.debug("killed after {} ms", System.currentTimeMillis() - start);
+            Assert.assertTrue(result.isTimedOut());
+            Assert.assertTrue(result.getExitCode() != 0);
+            Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+            ProcessResult next = sh(shell, "pid", "echo $PPID", 10000);
+            Assert.assertFalse(next.isTimedOut());
+            Assert.assertEquals(first.getStdout(), next.getStdout());
+        } finally {
+            shell.stop();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.shell;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TpmBatchTest {
+
+    private static TpmBatch setAssetTag() {
+        return new TpmBatch()
+                .addIfNvIndexExists("0x1c10110", "nvrelease", 0, "aa", "0x1c10110")
+                .add("nvdefine", 0, "aa", "aa", "0x1c10110", "32", "0x02040002")
+                .add("nvwrite", 0, "aa", "0x1c10110", "00ff")
+                .add("nvread", 1, "aa", "0x1c10110", "2");
+    }
+
+    @Test
+    public void testScript() {
+        Assert.assertEquals("if-nvindex 0x1c10110 nvrelease aa 0x1c10110\n"
+                + "nvdefine aa aa 0x1c10110 32 0x02040002\n"
+                + "nvwrite aa 0x1c10110 00ff\n"
+                + "nvread aa 0x1c10110 2\n", setAssetTag().toScript());
+    }
+
+    @Test
+    public void testResults() {
+        TpmBatch batch = setAssetTag();
+        batch.setResults(0, "0 skipped\n1 0 \ntpm2_nvwrite noise\n2 0 \n3 0 00ff\n");
+        Assert.assertTrue(batch.getStep(0).isSkipped());
+        Assert.assertNull(batch.getStep(0).getResult());
+        Assert.assertEquals(0, batch.getStep(1).getResult().getReturnCode());
+        Assert.assertEquals("00ff", batch.getStep(3).getResult().getResult(0));
+        Assert.assertNull(batch.getFailure());
+    }
+
+    @Test
+    public void testFailureStopsBatch() {
+        TpmBatch batch = setAssetTag();
+        batch.setResults(1, "0 0 \n1 1 failed\n");
+        Assert.assertSame(batch.getStep(1), batch.getFailure());
+        Assert.assertEquals(1, batch.getStep(1).getResult().getReturnCode());
+        Assert.assertNull(batch.getStep(2).getResult());
+        Assert.assertEquals(1, batch.getReturnCode());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testArgumentsCannotSpanLines() {
+        new TpmBatch().add("nvwrite", 0, "aa", "0x1c10110\nnvrelease", "00");
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.tpm12;
+
+import com.intel.mtwilson.trustagent.tpm2.Tpm2Transport;
+import gov.niarl.his.privacyca.TpmModule;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * The emulator tests only run when a TPM 1.2 software emulator with an
+ * owner set with the well-known SRK secret is available, for example:
+ * mvn test -Dtpm12.emulator.port=6545 -Dtpm12.emulator.aik.blob=/path/to/aik.blob -Dtpm12.emulator.aik.secret=...
+ * and optionally -Dtpm12.emulator.nv.index=0x40000010 for an index readable
+ * without authorization.
+ */
+public class Tpm12EngineTest {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(Tpm12EngineTest.class);
+    private static final byte[] AIK_SECRET = Tpm12Session.sha1("aik".getBytes());
+    private static final int AIK_HANDLE = 0x01000001;
+
+    /**
+     * Checks the authorization of TPM_LoadKey2 and TPM_Quote like a real TPM
+     * and authorizes its responses. Quotes return a composite of the
+     * selected PCRs, each filled with its index, and a fixed signature.
+     */
+    private static class FakeTpm implements Tpm2Transport {
+        private final byte[] nonceEven = new byte[20];
+        private final List<Integer> ordinals = new ArrayList<>();
+        private boolean loaded = false;
+        private boolean tamper = false;
+
+        @Override
+        public byte[] transmit(byte[] command) throws IOException {
+            ByteBuffer in = ByteBuffer.wrap(command);
+            in.getShort();
+            Assert.assertEquals(command.length, in.getInt());
+            int ordinal = in.getInt();
+            ordinals.add(ordinal);
+            ByteBuffer out = ByteBuffer.allocate(4096);
+            out.putShort((short) 0x00C4).putInt(0).putInt(0);
+            switch (ordinal) {
+                case Tpm12Command.TPM_ORD_OIAP:
+                    out.putInt(7).put(nonceEven);
+                    break;
+                case Tpm12Command.TPM_ORD_LOADKEY2:
+                    Assert.assertEquals(Tpm12Engine.TPM_KH_SRK, in.getInt());
+                    Tpm12Session srk = checkAuth(command, ordinal, Tpm12Engine.WELL_KNOWN_SECRET);
+                    loaded = true;
+                    out.putInt(AIK_HANDLE);
+                    authorize(out, srk, ordinal, out.position());
+                    break;
+                case Tpm12Command.TPM_ORD_QUOTE:
+                    if (!loaded || in.getInt() != AIK_HANDLE) {
+                        return error(Tpm12Engine.TPM_INVALID_KEYHANDLE);
+                    }
+                    Tpm12Session aik = checkAuth(command, ordinal, AIK_SECRET);
+                    in.position(in.position() + 20); // externalData
+                    byte[] select = new byte[in.getShort()];
+                    in.get(select);
+                    int start = out.position();
+                    out.putShort((short) select.length).put(select);
+                    int count = 0;
+                    for (int pcr = 0; pcr < select.length * 8; pcr++) {
+                        if ((select[pcr / 8] & (1 << (pcr % 8))) != 0) {
+                            count++;
+                        }
+                    }
+                    out.putInt(count * 20);
+                    for (int pcr = 0; pcr < select.length * 8; pcr++) {
+                        if ((select[pcr / 8] & (1 << (pcr % 8))) != 0) {
+                            byte[] value = new byte[20];
+                            Arrays.fill(value, (byte) pcr);
+                            out.put(value);
+                        }
+                    }
+                    out.putInt(4).put(new byte[]{9, 8, 7, 6});
+                    authorize(out, aik, ordinal, start);
+                    break;
+                case Tpm12Command.TPM_ORD_FLUSHSPECIFIC:
+                    loaded = false;
+                    break;
+                case Tpm12Command.TPM_ORD_GETCAPABILITY:
+                    Assert.assertEquals(Tpm12Engine.TPM_CAP_NV_LIST, in.getInt());
+                    out.putInt(8).putInt(0x10000001).putInt(0x40000010);
+                    break;
+                case Tpm12Command.TPM_ORD_NV_READVALUE:
+                    Assert.assertEquals(0x40000010, in.getInt());
+                    in.getInt(); // offset
+                    int size = in.getInt();
+                    out.putInt(size);
+                    for (int i = 0; i < size; i++) {
+                        out.put((byte) i);
+                    }
+                    break;
+                default:
+                    return error(0x0A); // TPM_BAD_ORDINAL
+            }
+            byte[] response = Arrays.copyOf(out.array(), out.position());
+            ByteBuffer.wrap(response).putInt(2, response.length);
+            return response;
+        }
+
+        private byte[] error(int returnCode) {
+            return ByteBuffer.allocate(10).putShort((short) 0x00C4).putInt(10).putInt(returnCode).array();
+        }
+
+        /**
+         * Checks the request HMAC; the "1S" parameters follow the single
+         * input handle.
+         */
+        private Tpm12Session checkAuth(byte[] command, int ordinal, byte[] secret) {
+            int trailer = command.length - 45;
+            byte[] nonceOdd = Arrays.copyOfRange(command, trailer + 4, trailer + 24);
+            byte[] digest = Tpm12Session.sha1(ByteBuffer.allocate(4).putInt(ordinal).array(), Arrays.copyOfRange(command, 14, trailer));
+            Tpm12Session session = new FakeSession(secret, nonceOdd);
+            byte[] expected = session.hmac(digest, nonceEven, nonceOdd, new byte[]{command[trailer + 24]});
+            Assert.assertArrayEquals(expected, Arrays.copyOfRange(command, trailer + 25, command.length));
+            return session;
+        }
+
+        private void authorize(ByteBuffer out, Tpm12Session session, int ordinal, int start) {
+            out.putShort(0, (short) Tpm12Response.TPM_TAG_RSP_AUTH1_COMMAND);
+            byte[] params = Arrays.copyOfRange(out.array(), start, out.position());
+            byte[] digest = Tpm12Session.sha1(ByteBuffer.allocate(8).putInt(0).putInt(ordinal).array(), params);
+            byte[] resAuth = session.hmac(digest, nonceEven, session.getNonceOdd(), new byte[]{0});
+            if (tamper) {
+                resAuth[0] ^= 1;
+            }
+            out.put(nonceEven).put((byte) 0).put(resAuth);
+        }
+
+        @Override
+        public void close() throws IOException {
+        }
+    }
+
+    /**
+     * A session as seen by the TPM, with the caller's odd nonce.
+     */
+    private static class FakeSession extends Tpm12Session {
+        private final byte[] nonceOdd;
+
+        private FakeSession(byte[] secret, byte[] nonceOdd) {
+            super(7, new byte[20], secret);
+            this.nonceOdd = nonceOdd;
+        }
+
+        @Override
+        public byte[] getNonceOdd() {
+            return nonceOdd;
+        }
+    }
+
+    @Test
+    public void testQuoteInAikquoteLayout() throws Exception {
+        FakeTpm tpm = new FakeTpm();
+        Tpm12Engine engine = new Tpm12Engine(tpm);
+        byte[] quote = engine.quote(new byte[]{1, 2, 3}, AIK_SECRET, Tpm12Engine.WELL_KNOWN_SECRET, new byte[20], Arrays.asList(0, 17, 18));
+        ByteBuffer buffer = ByteBuffer.wrap(quote);
+        Assert.assertEquals(3, buffer.getShort());
+        byte[] select = new byte[3];
+        buffer.get(select);
+        Assert.assertArrayEquals(new byte[]{1, 0, 6}, select);
+        Assert.assertEquals(3 * 20, buffer.getInt());
+        Assert.assertEquals(0, buffer.get());
+        buffer.position(buffer.position() + 19 + 20);
+        Assert.assertEquals(18, buffer.get());
+        buffer.position(buffer.position() + 19);
+        Assert.assertEquals(4, buffer.getInt());
+        Assert.assertEquals(quote.length, buffer.position() + 4);
+    }
+
+    @Test
+    public void testKeyStaysLoaded() throws Exception {
+        FakeTpm tpm = new FakeTpm();
+        Tpm12Engine engine = new Tpm12Engine(tpm);
+        byte[] blob = new byte[]{1, 2, 3};
+        engine.quote(blob, AIK_SECRET, Tpm12Engine.WELL_KNOWN_SECRET, new byte[20], Arrays.asList(0));
+        engine.quote(blob, AIK_SECRET, Tpm12Engine.WELL_KNOWN_SECRET, new byte[20], Arrays.asList(0));
+        Assert.assertEquals(1, count(tpm.ordinals, Tpm12Command.TPM_ORD_LOADKEY2));
+        // after a TPM reset the key is loaded again
+        tpm.loaded = false;
+        engine.quote(blob, AIK_SECRET, Tpm12Engine.WELL_KNOWN_SECRET, new byte[20], Arrays.asList(0));
+        Assert.assertEquals(2, count(tpm.ordinals, Tpm12Command.TPM_ORD_LOADKEY2));
+        engine.close();
+        Assert.assertEquals(Integer.valueOf(Tpm12Command.TPM_ORD_FLUSHSPECIFIC), tpm.ordinals.get(tpm.ordinals.size() - 1));
+    }
+
+    @Test(expected = TpmModule.TpmModuleException.class)
+    public void testResponseAuthorizationChecked() throws Exception {
+        FakeTpm tpm = new FakeTpm();
+        tpm.tamper = true;
+        new Tpm12Engine(tpm).quote(new byte[]{1}, AIK_SECRET, Tpm12Engine.WELL_KNOWN_SECRET, new byte[20], Arrays.asList(0));
+    }
+
+    @Test
+    public void testNvRead() throws Exception {
+        Tpm12Engine engine = new Tpm12Engine(new FakeTpm());
+        Assert.assertEquals(Arrays.asList(0x10000001, 0x40000010), engine.getNvIndexes());
+        byte[] data = engine.nvReadValue(0x40000010, 0, 32);
+        Assert.assertEquals(32, data.length);
+        Assert.assertEquals(31, data[31]);
+    }
+
+    private static int count(List<Integer> ordinals, int ordinal) {
+        int count = 0;
+        for (Integer value : ordinals) {
+            if (value == ordinal) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static Tpm12SocketTransport emulator() throws IOException {
+        return new Tpm12SocketTransport(System.getProperty("tpm12.emulator.host", "127.0.0.1"), Integer.valueOf(System.getProperty("tpm12.emulator.port")));
+    }
+
+    @Test
+    public void testEmulatorQuote() throws Exception {
+        Assume.assumeNotNull(System.getProperty("tpm12.emulator.port"), System.getProperty("tpm12.emulator.aik.blob"), System.getProperty("tpm12.emulator.aik.secret"));
+        byte[] blob = Files.readAllBytes(new File(System.getProperty("tpm12.emulator.aik.blob")).toPath());
+        byte[] secret = Tpm12Session.sha1(System.getProperty("tpm12.emulator.aik.secret").getBytes("UTF-8"));
+        try (Tpm12Engine engine = new Tpm12Engine(emulator())) {
+            byte[] first = engine.quote(blob, secret, Tpm12Engine.WELL_KNOWN_SECRET, new byte[20], Arrays.asList(0, 17, 18));
+            byte[] second = engine.quote(blob, secret, Tpm12Engine.WELL_KNOWN_SECRET, Tpm12Session.sha1(new byte[]{1}), Arrays.asList(0, 17, 18));
+            log.debug("Emulator quote is {} bytes", first.length);
+            // same PCR composite, signature over a different nonce
+            Assert.assertEquals(2 + 3 + 4 + 3 * 20 + 4 + 256, first.length);
+            Assert.assertArrayEquals(Arrays.copyOf(first, 2 + 3 + 4 + 3 * 20), Arrays.copyOf(second, 2 + 3 + 4 + 3 * 20));
+        }
+    }
+
+    @Test
+    public void testEmulatorNvRead() throws Exception {
+        Assume.assumeNotNull(System.getProperty("tpm12.emulator.port"), System.getProperty("tpm12.emulator.nv.index"));
+        int index = Long.decode(System.getProperty("tpm12.emulator.nv.index")).intValue();
+        try (Tpm12Engine engine = new Tpm12Engine(emulator())) {
+            Assert.assertTrue(engine.getNvIndexes().contains(index));
+            Assert.assertEquals(32, engine.nvReadValue(index, 0, 32).length);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.tpm2;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class Tpm2PcrSnapshotTest {
+
+    /**
+     * tpm2_quote output for a SHA-256 quote of PCRs 0, 17 and 18 with the
+     * given values concatenated in selection order.
+     */
+    private static byte[] quote(byte[] pcrs) throws Exception {
+        byte[] pcrDigest = MessageDigest.getInstance("SHA-256").digest(pcrs);
+        ByteBuffer attest = ByteBuffer.allocate(512);
+        attest.putInt(0xff544347).putShort((short) 0x8018);
+        attest.putShort((short) 4).put(new byte[]{0, 0x0B, 1, 2}); // qualifiedSigner
+        attest.putShort((short) 20).put(new byte[20]); // extraData
+        attest.putLong(1000).putInt(3).putInt(0).put((byte) 1); // clockInfo
+        attest.putLong(0x2015082400000000L); // firmwareVersion
+        attest.putInt(1).putShort((short) 0x000B).put((byte) 3).put(new byte[]{0x01, 0x00, 0x06});
+        attest.putShort((short) pcrDigest.length).put(pcrDigest);
+        int attestSize = attest.position();
+        ByteBuffer out = ByteBuffer.allocate(2 + attestSize + 6 + 4).order(ByteOrder.LITTLE_ENDIAN);
+        out.putShort((short) attestSize);
+        out.put(attest.array(), 0, attestSize);
+        out.putShort((short) Tpm2QuoteEngine.TPM_ALG_RSASSA).putShort((short) 0x000B);
+        out.putShort((short) 4).put(new byte[]{9, 8, 7, 6});
+        return out.array();
+    }
+
+    private static byte[] pcrs(int fill) {
+        byte[] pcrs = new byte[3 * 32];
+        Arrays.fill(pcrs, (byte) fill);
+        return pcrs;
+    }
+
+    @Test
+    public void testReuseWhileDigestUnchanged() throws Exception {
+        Tpm2PcrSnapshot snapshot = new Tpm2PcrSnapshot();
+        byte[] pcrs = pcrs(1);
+        byte[] quote = quote(pcrs);
+        Assert.assertNull(snapshot.get(quote));
+        snapshot.put(quote, pcrs);
+        Assert.assertArrayEquals(pcrs, snapshot.get(quote(pcrs)));
+        // a PCR was extended
+        Assert.assertNull(snapshot.get(quote(pcrs(2))));
+    }
+
+    @Test
+    public void testValuesNotMatchingQuoteAreNotCached() throws Exception {
+        Tpm2PcrSnapshot snapshot = new Tpm2PcrSnapshot();
+        byte[] quote = quote(pcrs(1));
+        snapshot.put(quote, pcrs(2));
+        Assert.assertNull(snapshot.get(quote));
+    }
+
+    @Test
+    public void testParse() throws Exception {
+        Tpm2PcrSnapshot.QuoteInfo info = Tpm2PcrSnapshot.parse(quote(pcrs(1)));
+        Assert.assertNotNull(info);
+        Assert.assertEquals("00000001000b03010006", info.getSelection());
+        Assert.assertEquals(32, info.getPcrDigest().length);
+        Assert.assertEquals(0x000B, info.getHashAlg());
+        Assert.assertNull(Tpm2PcrSnapshot.parse(new byte[]{3, 0, 1, 2, 3}));
+        Assert.assertNull(Tpm2PcrSnapshot.parse(new byte[0]));
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.tpm2;
+
+import gov.niarl.his.privacyca.TpmUtils;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * The simulator test only runs when a TPM 2.0 simulator with a persistent
+ * AIK is available, for example:
+ * mvn test -Dtpm2.simulator.port=2321 -Dtpm2.simulator.aik=81018000 -Dtpm2.simulator.aik.secret=...
+ */
+public class Tpm2QuoteEngineTest {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(Tpm2QuoteEngineTest.class);
+
+    /**
+     * Answers TPM2_PCR_Read with at most 8 digests per call like a real TPM,
+     * each digest filled with its PCR index, and TPM2_Quote with a fixed
+     * attestation and signature.
+     */
+    private static class FakeTpm implements Tpm2Transport {
+        private final ArrayList<byte[]> commands = new ArrayList<>();
+
+        @Override
+        public byte[] transmit(byte[] command) throws IOException {
+            commands.add(command);
+            ByteBuffer in = ByteBuffer.wrap(command);
+            in.getShort();
+            in.getInt();
+            int commandCode = in.getInt();
+            ByteBuffer out = ByteBuffer.allocate(4096);
+            out.putShort((short) Tpm2Command.TPM_ST_NO_SESSIONS).putInt(0).putInt(0);
+            if (commandCode == Tpm2Command.TPM_CC_PCR_READ) {
+                in.getInt(); // count
+                short hashAlg = in.getShort();
+                in.get(); // sizeofSelect
+                byte[] select = new byte[3];
+                in.get(select);
+                byte[] returned = new byte[3];
+                ArrayList<Integer> pcrs = new ArrayList<>();
+                for (int pcr = 0; pcr < 24 && pcrs.size() < 8; pcr++) {
+                    if ((select[pcr / 8] & (1 << (pcr % 8))) != 0) {
+                        returned[pcr / 8] |= (byte) (1 << (pcr % 8));
+                        pcrs.add(pcr);
+                    }
+                }
+                out.putInt(7).putInt(1).putShort(hashAlg).put((byte) 3).put(returned);
+                out.putInt(pcrs.size());
+                for (Integer pcr : pcrs) {
+                    byte[] digest = new byte[20];
+                    Arrays.fill(digest, pcr.byteValue());
+                    out.putShort((short) digest.length).put(digest);
+                }
+            } else if (commandCode == Tpm2Command.TPM_CC_QUOTE) {
+                out.putShort(0, (short) Tpm2Command.TPM_ST_SESSIONS);
+                out.putInt(2 + 3 + 2 + 2 + 2 + 4); // parameterSize
+                out.putShort((short) 3).put(new byte[]{1, 2, 3});
+                out.putShort((short) Tpm2QuoteEngine.TPM_ALG_RSASSA).putShort((short) 0x000B);
+                out.putShort((short) 4).put(new byte[]{9, 8, 7, 6});
+                out.putShort((short) 0).put((byte) 1).putShort((short) 0); // password session response
+            }
+            byte[] response = Arrays.copyOf(out.array(), out.position());
+            ByteBuffer.wrap(response).putInt(2, response.length);
+            return response;
+        }
+
+        @Override
+        public void close() throws IOException {
+        }
+    }
+
+    @Test
+    public void testReadPcrsInListpcrsOrder() throws Exception {
+        FakeTpm tpm = new FakeTpm();
+        Tpm2QuoteEngine engine = new Tpm2QuoteEngine(tpm);
+        byte[] pcrs = engine.readPcrs(Tpm2PcrSelection.valueOf("0x04:17,0,1,2,3,4,5,6,7,8,9+0x0B:18"));
+        Assert.assertEquals(3, tpm.commands.size()); // 11 PCRs in the first bank need two reads
+        Assert.assertEquals(12 * 20, pcrs.length);
+        Assert.assertEquals(0, pcrs[0]);
+        Assert.assertEquals(9, pcrs[9 * 20]);
+        Assert.assertEquals(17, pcrs[10 * 20]);
+        Assert.assertEquals(18, pcrs[11 * 20]);
+    }
+
+    @Test
+    public void testQuoteInTpm2ToolsLayout() throws Exception {
+        FakeTpm tpm = new FakeTpm();
+        Tpm2QuoteEngine engine = new Tpm2QuoteEngine(tpm);
+        byte[] quote = engine.quote(0x81018000, new byte[]{0x11, 0x22}, new byte[]{0x33}, Tpm2PcrSelection.valueOf("0x04:0"));
+        ByteBuffer buffer = ByteBuffer.wrap(quote).order(ByteOrder.LITTLE_ENDIAN);
+        Assert.assertEquals(3, buffer.getShort());
+        buffer.position(buffer.position() + 3);
+        Assert.assertEquals(Tpm2QuoteEngine.TPM_ALG_RSASSA, buffer.getShort());
+        Assert.assertEquals(0x000B, buffer.getShort());
+        Assert.assertEquals(4, buffer.getShort());
+        Assert.assertEquals(quote.length, buffer.position() + 4);
+        ByteBuffer command = ByteBuffer.wrap(tpm.commands.get(0));
+        Assert.assertEquals((short) Tpm2Command.TPM_ST_SESSIONS, command.getShort());
+        Assert.assertEquals(tpm.commands.get(0).length, command.getInt());
+        Assert.assertEquals(Tpm2Command.TPM_CC_QUOTE, command.getInt());
+        Assert.assertEquals(0x81018000, command.getInt());
+    }
+
+    @Test
+    public void testSimulatorQuote() throws Exception {
+        String port = System.getProperty("tpm2.simulator.port");
+        Assume.assumeNotNull(port, System.getProperty("tpm2.simulator.aik"), System.getProperty("tpm2.simulator.aik.secret"));
+        try (Tpm2SocketTransport transport = new Tpm2SocketTransport(System.getProperty("tpm2.simulator.host", "127.0.0.1"), Integer.valueOf(port))) {
+            Tpm2QuoteEngine engine = new Tpm2QuoteEngine(transport);
+            byte[] auth = TpmUtils.hexStringToByteArray(System.getProperty("tpm2.simulator.aik.secret"));
+            byte[] combined = engine.quoteWithPcrs((int) Long.parseLong(System.getProperty("tpm2.simulator.aik"), 16), auth, new byte[20], Tpm2PcrSelection.valueOf("0x0B:0,17,18"));
+            log.debug("Simulator quote || pcrs is {} bytes", combined.length);
+            Assert.assertTrue(combined.length > 3 * 32);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.tpmmodules;
+
+import com.intel.mtwilson.trustagent.tpmmodules.TpmDispatcher.Lane;
+import com.intel.mtwilson.trustagent.tpmmodules.TpmDispatcher.Permit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TpmDispatcherTest {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(TpmDispatcherTest.class);
+
+    private static Thread waitFor(final TpmDispatcher dispatcher, final Lane lane, final List<Lane> served) {
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try (Permit permit = dispatcher.acquire(lane)) {
+                    served.add(lane);
+                } catch (Exception e) {
+                    log.error("Cannot acquire TPM", e);
+                }
+            }
+        };
+        thread.start();
+        return thread;
+    }
+
+    private static void awaitQueueDepth(TpmDispatcher dispatcher, int depth) throws InterruptedException {
+        while (dispatcher.getMetrics().queueDepth < depth) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testQuoteLaneServedFirst() throws Exception {
+        TpmDispatcher dispatcher = new TpmDispatcher(10, 10000);
+        List<Lane> served = Collections.synchronizedList(new ArrayList<Lane>());
+        ArrayList<Thread> threads = new ArrayList<>();
+        try (Permit permit = dispatcher.acquire(Lane.READ)) {
+            threads.add(waitFor(dispatcher, Lane.READ, served));
+            awaitQueueDepth(dispatcher, 1);
+            threads.add(waitFor(dispatcher, Lane.NV_WRITE, served));
+            awaitQueueDepth(dispatcher, 2);
+            threads.add(waitFor(dispatcher, Lane.QUOTE, served));
+            awaitQueueDepth(dispatcher, 3);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(Lane.QUOTE, served.get(0));
+        Assert.assertEquals(Lane.NV_WRITE, served.get(1));
+        Assert.assertEquals(Lane.READ, served.get(2));
+        Assert.assertEquals(0, dispatcher.getMetrics().queueDepth);
+        Assert.assertEquals(1, dispatcher.getMetrics().lanes.get(Lane.QUOTE).acquired);
+    }
+
+    @Test
+    public void testRejectWhenQueueFull() throws Exception {
+        final TpmDispatcher dispatcher = new TpmDispatcher(1, 10000);
+        List<Lane> served = Collections.synchronizedList(new ArrayList<Lane>());
+        final ArrayList<Exception> errors = new ArrayList<>();
+        Thread waiter;
+        try (Permit permit = dispatcher.acquire(Lane.QUOTE)) {
+            waiter = waitFor(dispatcher, Lane.QUOTE, served);
+            awaitQueueDepth(dispatcher, 1);
+            Thread rejected = new Thread() {
+                @Override
+                public void run() {
+                    try (Permit permit = dispatcher.acquire(Lane.QUOTE)) {
+                        Assert.fail("Expected TpmBusyException");
+                    } catch (Exception e) {
+                        errors.add(e);
+                    }
+                }
+            };
+            rejected.start();
+            rejected.join();
+        }
+        waiter.join();
+        Assert.assertTrue(errors.get(0) instanceof TpmDispatcher.TpmBusyException);
+        Assert.assertTrue(((TpmDispatcher.TpmBusyException) errors.get(0)).getRetryAfter() >= 1);
+        Assert.assertEquals(1, served.size());
+        Assert.assertEquals(1, dispatcher.getMetrics().lanes.get(Lane.QUOTE).rejected);
+    }
+
+    @Test
+    public void testWaitDeadline() throws Exception {
+        final TpmDispatcher dispatcher = new TpmDispatcher(10, 50);
+        final ArrayList<Exception> errors = new ArrayList<>();
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                try (Permit permit = dispatcher.acquire(Lane.READ)) {
+                    Assert.fail("Expected TpmBusyException");
+                } catch (Exception e) {
+                    errors.add(e);
+                }
+            }
+        };
+        try (Permit permit = dispatcher.acquire(Lane.QUOTE)) {
+            waiter.start();
+            waiter.join();
+        }
+        Assert.assertTrue(errors.get(0) instanceof TpmDispatcher.TpmBusyException);
+        Assert.assertEquals(1, dispatcher.getMetrics().lanes.get(Lane.READ).timedOut);
+        Assert.assertFalse(dispatcher.getMetrics().busy);
+    }
+
+    @Test
+    public void testReentrant() throws Exception {
+        TpmDispatcher dispatcher = new TpmDispatcher(0, 0);
+        try (Permit quote = dispatcher.acquire(Lane.QUOTE)) {
+            try (Permit read = dispatcher.acquire(Lane.READ)) {
+                Assert.assertTrue(dispatcher.getMetrics().busy);
+            }
+            Assert.assertTrue(dispatcher.getMetrics().busy);
+        }
+        Assert.assertFalse(dispatcher.getMetrics().busy);
+    }
+}
@@ -16,8 +16,11 @@ import com.intel.mtwilson.shiro.file.cmd.Password;
 import com.intel.mtwilson.shiro.file.model.UserPassword;
 import com.intel.mtwilson.shiro.file.model.UserPermission;
 import com.intel.mtwilson.trustagent.TrustagentConfiguration;
+import com.intel.mtwilson.trustagent.shell.ProcessRunner;
 import java.io.File;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import org.apache.commons.io.FileUtils;
 
 /**
@@ -122,12 +125,12 @@ public class CreateAdminUser extends AbstractSetupTask {
         File privateDir = new File(Folders.configuration() + File.separator + "private");
         if( !privateDir.exists() ) { privateDir.mkdirs(); }
         if( Platform.isUnix() ) {
-            Runtime.getRuntime().exec("chmod 700 "+privateDir.getAbsolutePath());
+            ProcessRunner.getInstance().run("chmod", Arrays.asList("chmod", "700", privateDir.getAbsolutePath()), null, ProcessRunner.DEFAULT_TIMEOUT, TimeUnit.MILLISECONDS);
         }
         File passwordFile = privateDir.toPath().resolve("password.txt").toFile();
         FileUtils.writeStringToFile(passwordFile, ""); // first create an empty file so we can set permissions before writing the adminPassword to it
         if( Platform.isUnix() ) {
-            Runtime.getRuntime().exec("chmod 600 "+passwordFile.getAbsolutePath());
+            ProcessRunner.getInstance().run("chmod", Arrays.asList("chmod", "600", passwordFile.getAbsolutePath()), null, ProcessRunner.DEFAULT_TIMEOUT, TimeUnit.MILLISECONDS);
         }
         FileUtils.writeStringToFile(passwordFile, adminPassword);            
     }
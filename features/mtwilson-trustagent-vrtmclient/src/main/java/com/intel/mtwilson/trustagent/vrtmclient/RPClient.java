@@ -4,18 +4,18 @@ import com.fasterxml.jackson.dataformat.xml.XmlMapper;
 import com.intel.mtwilson.trustagent.vrtmclient.xml.MethodResponse;
 import com.intel.mtwilson.trustagent.vrtmclient.xml.Param;
 import com.intel.mtwilson.trustagent.vrtmclient.xml.Value;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import javax.xml.bind.DatatypeConverter;
 
 public class RPClient {
         private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(RPClient.class);
+        private static final XmlMapper mapper = new XmlMapper(); // thread-safe once configured, shared by all clients
 	private InetSocketAddress rpcoreEndpoint;
-        private Socket rpSock;  
+        private TimedSocketChannel rpChannel = null; // connected by the first request
+        private int timeout = 0; // milliseconds to connect and for each read or write, 0 waits forever
+        private long lastUsed = 0; // time of the last completed request, 0 before the first
 
         public InetSocketAddress getRpcoreEndpoint() {
             return rpcoreEndpoint;
@@ -25,48 +25,67 @@ public class RPClient {
             this.rpcoreEndpoint = new InetSocketAddress(hostName, port);
         }
 
+        /**
+         * @return the socket of the connection to rpcore, or null before the
+         * first request
+         */
         public Socket getRpSock() {
-            return rpSock;
+            return rpChannel == null ? null : rpChannel.getChannel().socket();
         }
 
+        /**
+         * Closes the connection; the next request connects again.
+         */
         public void setRpSock() {
-            this.rpSock = new Socket();
+            close();
+            this.rpChannel = null;
+        }
+
+        /**
+         * @param timeout in milliseconds to connect and for each read or
+         * write, or 0 to wait forever; applies from the next connection
+         */
+        public void setTimeout(int timeout) {
+            this.timeout = timeout;
         }
 
 	public RPClient(String hostName, int port){
 		this.rpcoreEndpoint = new InetSocketAddress(hostName, port);
-		this.rpSock = new Socket();
 	}
 	
 	public TCBuffer send(TCBuffer outTCBuffer) throws IOException {
-		if(!rpSock.isConnected()){
-			rpSock.connect(rpcoreEndpoint);
+		if(rpChannel == null){
+			rpChannel = TimedSocketChannel.connect(rpcoreEndpoint, timeout);
 		}
-		ByteArrayOutputStream rpOutStream = new ByteArrayOutputStream();
-		/*String rpId = String.valueOf(outTCBuffer.getRpId());
-		byte[] arr = rpId.getBytes();
-		rpOutStream.write(arr);
-		rpOutStream.write('\0');*/
-
-		OutputStream rpcoreOut = rpSock.getOutputStream();
-		rpOutStream.writeTo(rpcoreOut);
-		rpOutStream.flush();
-		rpcoreOut.flush();
-		
-		outTCBuffer.serializeTCBuffer(rpcoreOut);
-		
-		InputStream rpcoreIn = rpSock.getInputStream();
-		TCBuffer inTCBuffer = new TCBuffer();
-		inTCBuffer.deSerializeTCBuffer(rpcoreIn);
-		
+		TCBufferCodec.write(rpChannel, outTCBuffer);
+		TCBuffer inTCBuffer = TCBufferCodec.read(rpChannel);
+		lastUsed = System.currentTimeMillis();
 		return inTCBuffer;
 	}
+
+	/**
+	 * @return true if the connection to rpcore was not closed by this
+	 * client; a connection closed by rpcore is only detected by the next
+	 * request
+	 */
+	public boolean isOpen() {
+		return rpChannel != null && rpChannel.isOpen() && rpChannel.getChannel().isConnected();
+	}
+
+	/**
+	 * @return time of the last completed request in milliseconds since the
+	 * epoch, or 0 if the client was not used yet
+	 */
+	public long getLastUsed() {
+		return lastUsed;
+	}
 	
 	public void close(){
+		if(rpChannel == null){
+			return;
+		}
 		try{
-			rpSock.shutdownOutput();
-			rpSock.shutdownInput();
-			rpSock.close();
+			rpChannel.close();
 		}catch(Exception e){
                     log.error("Error during socket close.", e);
 		}
@@ -111,7 +130,6 @@ public class RPClient {
                     String xml = resultTcb.getRPCPayload();
                     log.debug("Method response: {}", xml);
 
-                    XmlMapper mapper = new XmlMapper();
                     MethodResponse response = mapper.readValue(xml, MethodResponse.class);
                     Param param[] = response.getParams();
                     Value value = param[0].getValue();
@@ -156,7 +174,6 @@ public class RPClient {
                     String xml = resultTcb.getRPCPayload();
                     log.debug("Method response: {}", xml);
 
-                    XmlMapper mapper = new XmlMapper();
                     MethodResponse response = mapper.readValue(xml, MethodResponse.class);
                     Param param[] = response.getParams();
                     Value value = param[0].getValue();
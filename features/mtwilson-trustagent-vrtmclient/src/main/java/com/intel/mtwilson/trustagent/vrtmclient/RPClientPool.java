@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.vrtmclient;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Persistent connections to rpcore shared by all requests, instead of one
+ * connection per request.
+ *
+ * At most maxConnections requests are sent at the same time; other
+ * requests wait up to BORROW_TIMEOUT for a connection. A connection is
+ * returned to the pool after a successful request and closed after a
+ * failed one. Connections idle for longer than idleTimeout are closed
+ * instead of reused, and a request that fails on a reused connection
+ * (because rpcore closed it) is sent once more on a new connection. The
+ * requests are queries, so sending them again is safe.
+ *
+ * The asynchronous methods send the request on one of maxConnections
+ * daemon threads, so a caller can have many requests outstanding without
+ * a thread of its own for each.
+ */
+public class RPClientPool {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(RPClientPool.class);
+    public static final String DEFAULT_HOST = "127.0.0.1";
+    public static final int DEFAULT_PORT = 16005;
+    private static final int MAX_CONNECTIONS = 8;
+    private static final long IDLE_TIMEOUT = 30000; // milliseconds a connection may stay idle and still be reused
+    private static final int TIMEOUT = 60000; // milliseconds to connect and per read or write, so a stuck rpcore does not hold a connection forever
+    private static final long BORROW_TIMEOUT = 30000; // milliseconds to wait for a connection when all are in use
+    private static RPClientPool instance = null;
+    private final String host;
+    private final int port;
+    private final long idleTimeout;
+    private final int maxConnections;
+    private final Semaphore permits;
+    private final ConcurrentLinkedDeque<RPClient> idle = new ConcurrentLinkedDeque<>(); // most recently used first
+    private volatile boolean closed = false;
+    private ExecutorService executor = null; // created by the first asynchronous request
+
+    private interface Call<T> {
+        T call(RPClient client) throws IOException;
+    }
+
+    public RPClientPool(String host, int port, int maxConnections, long idleTimeout) {
+        this.host = host;
+        this.port = port;
+        this.idleTimeout = idleTimeout;
+        this.maxConnections = maxConnections;
+        this.permits = new Semaphore(maxConnections, true);
+    }
+
+    /**
+     * @return the pool of connections to the local rpcore
+     */
+    public static synchronized RPClientPool getInstance() {
+        if (instance == null) {
+            instance = new RPClientPool(DEFAULT_HOST, DEFAULT_PORT, MAX_CONNECTIONS, IDLE_TIMEOUT);
+        }
+        return instance;
+    }
+
+    public boolean getVmStatus(final String vmInstanceId) throws IOException {
+        return execute(new Call<Boolean>() {
+            @Override
+            public Boolean call(RPClient client) throws IOException {
+                return client.getVmStatus(vmInstanceId);
+            }
+        });
+    }
+
+    public String getVMAttestationReportPath(final String vmInstanceId, final String nonce) throws IOException {
+        return execute(new Call<String>() {
+            @Override
+            public String call(RPClient client) throws IOException {
+                return client.getVMAttestationReportPath(vmInstanceId, nonce);
+            }
+        });
+    }
+
+    /**
+     * Sends a request to rpcore on a pooled connection.
+     *
+     * @param request to send
+     * @return the response
+     * @throws IOException if rpcore cannot be reached or no connection
+     * becomes available within BORROW_TIMEOUT
+     */
+    public TCBuffer send(final TCBuffer request) throws IOException {
+        return execute(new Call<TCBuffer>() {
+            @Override
+            public TCBuffer call(RPClient client) throws IOException {
+                return client.send(request);
+            }
+        });
+    }
+
+    public Future<Boolean> getVmStatusAsync(final String vmInstanceId) {
+        return getExecutor().submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws IOException {
+                return getVmStatus(vmInstanceId);
+            }
+        });
+    }
+
+    /**
+     * Sends a request to rpcore on a pooled connection without waiting for
+     * the response.
+     *
+     * @param request to send
+     * @return the response, or an ExecutionException with the IOException
+     */
+    public Future<TCBuffer> sendAsync(final TCBuffer request) {
+        return getExecutor().submit(new Callable<TCBuffer>() {
+            @Override
+            public TCBuffer call() throws IOException {
+                return send(request);
+            }
+        });
+    }
+
+    /**
+     * Closes the idle connections and stops the threads of the asynchronous
+     * requests; connections in use are closed when they are returned.
+     */
+    public void close() {
+        closed = true;
+        synchronized (this) {
+            if (executor != null) {
+                executor.shutdown();
+            }
+        }
+        RPClient client;
+        while ((client = idle.pollFirst()) != null) {
+            client.close();
+        }
+    }
+
+    private <T> T execute(Call<T> call) throws IOException {
+        if (closed) {
+            throw new IOException("vRTM client pool is closed");
+        }
+        try {
+            if (!permits.tryAcquire(BORROW_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                throw new IOException("No vRTM connection available after " + BORROW_TIMEOUT + " ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a vRTM connection");
+        }
+        try {
+            RPClient client = borrow();
+            boolean reused = client.getLastUsed() != 0;
+            try {
+                T result = call.call(client);
+                giveBack(client);
+                return result;
+            } catch (IOException e) {
+                client.close();
+                if (!reused || e instanceof InterruptedIOException) {
+                    throw e;
+                }
+                log.debug("Request on reused vRTM connection failed, retrying on a new connection: {}", e.getMessage());
+            }
+            RPClient retry = newClient();
+            try {
+                T result = call.call(retry);
+                giveBack(retry);
+                return result;
+            } catch (IOException e) {
+                retry.close();
+                throw e;
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            final AtomicInteger count = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(maxConnections, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "vrtm-client-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * @return the most recently used connection that is still open and not
+     * idle for longer than idleTimeout, or a new client that connects on
+     * its first request
+     */
+    private RPClient borrow() {
+        long now = System.currentTimeMillis();
+        RPClient client;
+        while ((client = idle.pollFirst()) != null) {
+            if (client.isOpen() && now - client.getLastUsed() < idleTimeout) {
+                return client;
+            }
+            client.close();
+        }
+        return newClient();
+    }
+
+    private RPClient newClient() {
+        RPClient client = new RPClient(host, port);
+        client.setTimeout(TIMEOUT);
+        return client;
+    }
+
+    private void giveBack(RPClient client) {
+        if (closed || !client.isOpen()) {
+            client.close();
+            return;
+        }
+        idle.offerFirst(client);
+    }
+}
@@ -1,43 +1,35 @@
 package com.intel.mtwilson.trustagent.vrtmclient;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
+/**
+ * A request or response to rpcore: a 12 byte little endian header with the
+ * call index, the payload size and the call status, followed by the
+ * payload. TCBufferCodec reads and writes frames on channels; the stream
+ * methods here are kept for callers that use sockets directly.
+ */
 public class TCBuffer {
 	public static final int SIZE = 20;
+	static final int HEADER_SIZE = 12;
 	private static final String EMPTY = "EMPTY"; 
-	//private ByteBuffer brpId;
-	private ByteBuffer brpcCallIndex;
-	private ByteBuffer brpcPayloadSize;
-	private ByteBuffer brpcCallStatus;
-	//private ByteBuffer boriginalRpId;
+	private int rpcCallIndex;
+	private int rpcPayloadSize;
+	private int rpcCallStatus;
 	private byte[]     rpcPayload;
 	
 	public TCBuffer(){
-		//brpId 		  = ByteBuffer.allocate(4);
-		brpcCallIndex = ByteBuffer.allocate(4);
-		brpcPayloadSize  = ByteBuffer.allocate(4);
-		brpcCallStatus   = ByteBuffer.allocate(4);
-		//boriginalRpId = ByteBuffer.allocate(4);
-		rpcPayload    =  "EMPTY".getBytes();
-		// set buffer to little endian format
-		//brpId.order(ByteOrder.LITTLE_ENDIAN);
-		brpcCallIndex.order(ByteOrder.LITTLE_ENDIAN);
-		brpcPayloadSize.order(ByteOrder.LITTLE_ENDIAN);
-		brpcCallStatus.order(ByteOrder.LITTLE_ENDIAN);
-		//boriginalRpId.order(ByteOrder.LITTLE_ENDIAN);
+		rpcPayload    =  EMPTY.getBytes();
 	}
 
 	public TCBuffer(int rpcCallIndex, int rpcCallStatus, String rpcPayload){
 		this();
-		//setRpId(rpId);
 		setRPCCallIndex(rpcCallIndex);
-		setRPCPayloadSize(rpcPayload.length());
 		setRPCCallStatus(rpcCallStatus);
-		//setOriginalRpId(originalRpId);
 		setRPCPayload(rpcPayload.getBytes());
 	}
 
@@ -54,115 +46,87 @@ public class TCBuffer {
 		setRPCPayloadSize(this.rpcPayload.length);
 	}
 
-/*	public int getRpId() {
-		if(null != brpId) {
-			brpId.rewind();
-			return brpId.getInt();
-		}
-		return -1;
-	}
-	public void setRpId(int rpId) {
-		brpId.clear();
-		brpId.putInt(rpId);
+	/**
+	 * @return the payload itself, not a copy
+	 */
+	byte[] getRPCPayloadBytes() {
+		return rpcPayload;
 	}
-*/	
+
 	public int getRPCCallIndex() {
-		if(null != brpcCallIndex){
-			brpcCallIndex.rewind();
-			return brpcCallIndex.getInt();
-		}
-		return -1;
+		return rpcCallIndex;
 	}
 	public void setRPCCallIndex(int rpcCallIndex) {
-		brpcCallIndex.clear();
-		brpcCallIndex.putInt(rpcCallIndex);
+		this.rpcCallIndex = rpcCallIndex;
 	}
 	
 	public int getRPCCallStatus() {
-		if( null != brpcCallStatus) {
-			brpcCallStatus.rewind();
-			return brpcCallStatus.getInt();
-		}
-		return -1;
+		return rpcCallStatus;
 	}
 	public void setRPCCallStatus(int callStatus) {
-		brpcCallStatus.clear();
-		brpcCallStatus.putInt(callStatus);
+		this.rpcCallStatus = callStatus;
 	}
 	
-	/*public int getOriginalRpId() {
-		if(null != boriginalRpId){
-			boriginalRpId.rewind();
-			return boriginalRpId.getInt();
-		}
-		return -1;
-	}
-	public void setOriginalRpId(int originalRpId) {
-		boriginalRpId.clear();
-		boriginalRpId.putInt(originalRpId);
-	}*/
-	
-	
 	public void setRPCPayloadSize(int payloadSize){
-		brpcPayloadSize.clear();
-		brpcPayloadSize.putInt(payloadSize);
+		this.rpcPayloadSize = payloadSize;
 	}
 	public int getRPCPayloadSize(){
-		if(null != brpcPayloadSize){
-			brpcPayloadSize.rewind();
-			return brpcPayloadSize.getInt();
-		}
-		return -1;
+		return rpcPayloadSize;
+	}
+
+	/**
+	 * Writes the header into the buffer at its position
+	 */
+	void putHeader(ByteBuffer buffer) {
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(rpcCallIndex);
+		buffer.putInt(rpcPayloadSize);
+		buffer.putInt(rpcCallStatus);
+	}
+
+	/**
+	 * Reads the header from the buffer at its position
+	 */
+	void getHeader(ByteBuffer buffer) {
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		rpcCallIndex = buffer.getInt();
+		rpcPayloadSize = buffer.getInt();
+		rpcCallStatus = buffer.getInt();
 	}
-	
 	
 	public void serializeTCBuffer(OutputStream out) throws IOException{
-		//out.write(brpId.array());
-		out.write(brpcCallIndex.array());
-		out.write(brpcPayloadSize.array());
-		out.write(brpcCallStatus.array());
-		//out.write(boriginalRpId.array());
-		out.write(rpcPayload);
+		ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + rpcPayload.length);
+		putHeader(frame);
+		frame.put(rpcPayload);
+		out.write(frame.array()); // one write, so the header and payload are sent together
 		out.flush();
 	}
-	private void setInternalValues(ByteBuffer buffer, byte[] b) {
-		buffer.clear();
-		buffer.put(b);
-	}
+
 	/**
-	 * This function only set first 20 byte of TCBuffer
-	 * @param tcBufferByteStream
-	 * @throws IOException
+	 * Reads the header and then exactly the number of payload bytes it
+	 * announces.
+	 * @param in
+	 * @throws IOException if the stream ends before the whole frame is read
 	 */
 	public void deSerializeTCBuffer(InputStream in) throws IOException{
-		byte[] bigBytes = new byte[4];
-		//in.read(bigBytes);
-		//setInternalValues(brpId, bigBytes);
-		int brpcCallIndexreturnValue = in.read(bigBytes);
-                if (brpcCallIndexreturnValue != 4) {
-                    throw new IOException("Error reading BRPC call index");
-                }
-                setInternalValues(brpcCallIndex, bigBytes);
-		
-		int brpcPayloadSizeReturnValue = in.read(bigBytes);
-                if (brpcPayloadSizeReturnValue != 4) {
-                    throw new IOException("Error reading BRPC payload size");
-                }
-		setInternalValues(brpcPayloadSize, bigBytes);
-                
-		int brpcCallStatusReturnValue = in.read(bigBytes);
-                if (brpcCallStatusReturnValue != 4) {
-                    throw new IOException("Error reading BRPC call status");
-                }
-		setInternalValues(brpcCallStatus, bigBytes);
-                
-		//in.read(bigBytes);
-		//setInternalValues(boriginalRpId, bigBytes);
-		
-                rpcPayload = new byte[getRPCPayloadSize()];
-		int rpcPayloadReturnValue = in.read(rpcPayload);
-                if (rpcPayloadReturnValue != rpcPayload.length && rpcPayloadReturnValue != -1) {
-                    throw new IOException("Error reading RPC payload");
-                }
+		byte[] header = new byte[HEADER_SIZE];
+		readFully(in, header, "Error reading BRPC header");
+		getHeader(ByteBuffer.wrap(header));
+		if (rpcPayloadSize < 0 || rpcPayloadSize > TCBufferCodec.MAX_PAYLOAD_SIZE) {
+			throw new IOException("Invalid RPC payload size " + rpcPayloadSize);
+		}
+		rpcPayload = new byte[rpcPayloadSize];
+		readFully(in, rpcPayload, "Error reading RPC payload");
+	}
+
+	private static void readFully(InputStream in, byte[] buffer, String message) throws IOException {
+		int offset = 0;
+		while (offset < buffer.length) {
+			int read = in.read(buffer, offset, buffer.length - offset);
+			if (read == -1) {
+				throw new EOFException(message + ": " + offset + " of " + buffer.length + " bytes");
+			}
+			offset += read;
+		}
 	}
 }
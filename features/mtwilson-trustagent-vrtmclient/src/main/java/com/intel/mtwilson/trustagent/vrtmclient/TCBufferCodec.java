@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.vrtmclient;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Reads and writes TCBuffer frames on channels.
+ *
+ * Each thread keeps one direct buffer of POOLED_BUFFER_SIZE bytes. A frame
+ * that fits is assembled in it and written with a single write; a larger
+ * frame is written from the header in the direct buffer and the payload
+ * array with one gathering write. Reads take exactly the 12 header bytes
+ * and then exactly the payload size they announce, however the bytes
+ * arrive, so a connection can carry any number of frames.
+ */
+public class TCBufferCodec {
+    public static final int MAX_PAYLOAD_SIZE = 16 * 1024 * 1024; // larger sizes mean the stream is out of sync
+    private static final int POOLED_BUFFER_SIZE = 64 * 1024;
+    private static final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(POOLED_BUFFER_SIZE);
+        }
+    };
+
+    private TCBufferCodec() {
+    }
+
+    public static void write(WritableByteChannel channel, TCBuffer tcBuffer) throws IOException {
+        byte[] payload = tcBuffer.getRPCPayloadBytes();
+        ByteBuffer buffer = buffers.get();
+        buffer.clear();
+        tcBuffer.putHeader(buffer);
+        if (payload.length <= buffer.remaining()) {
+            buffer.put(payload);
+            buffer.flip();
+            writeFully(channel, new ByteBuffer[]{buffer});
+        } else {
+            buffer.flip();
+            writeFully(channel, new ByteBuffer[]{buffer, ByteBuffer.wrap(payload)});
+        }
+    }
+
+    /**
+     * @return the next frame
+     * @throws EOFException if the channel ends before the whole frame is read
+     * @throws IOException if the payload size is negative or larger than
+     * MAX_PAYLOAD_SIZE
+     */
+    public static TCBuffer read(ReadableByteChannel channel) throws IOException {
+        ByteBuffer buffer = buffers.get();
+        buffer.clear();
+        buffer.limit(TCBuffer.HEADER_SIZE);
+        readFully(channel, buffer, "Error reading BRPC header");
+        buffer.flip();
+        TCBuffer tcBuffer = new TCBuffer();
+        tcBuffer.getHeader(buffer);
+        int size = tcBuffer.getRPCPayloadSize();
+        if (size < 0 || size > MAX_PAYLOAD_SIZE) {
+            throw new IOException("Invalid RPC payload size " + size);
+        }
+        byte[] payload = new byte[size];
+        if (size <= POOLED_BUFFER_SIZE) {
+            buffer.clear();
+            buffer.limit(size);
+            readFully(channel, buffer, "Error reading RPC payload");
+            buffer.flip();
+            buffer.get(payload);
+        } else {
+            readFully(channel, ByteBuffer.wrap(payload), "Error reading RPC payload");
+        }
+        tcBuffer.setRPCPayload(payload);
+        return tcBuffer;
+    }
+
+    private static void writeFully(WritableByteChannel channel, ByteBuffer[] buffers) throws IOException {
+        ByteBuffer last = buffers[buffers.length - 1];
+        if (channel instanceof GatheringByteChannel) {
+            while (last.hasRemaining()) {
+                ((GatheringByteChannel) channel).write(buffers);
+            }
+            return;
+        }
+        for (ByteBuffer buffer : buffers) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    private static void readFully(ReadableByteChannel channel, ByteBuffer buffer, String message) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) == -1) {
+                throw new EOFException(message + ": " + buffer.position() + " of " + buffer.limit() + " bytes");
+            }
+        }
+    }
+}
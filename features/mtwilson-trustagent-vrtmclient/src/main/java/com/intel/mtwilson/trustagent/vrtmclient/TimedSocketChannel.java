@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.vrtmclient;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A connected socket channel that blocks like a stream, but gives up after
+ * a timeout. The socket timeout does not apply to reads on a channel, so
+ * the channel is non-blocking and each read or write that cannot make
+ * progress waits on a selector for at most the timeout.
+ */
+class TimedSocketChannel implements ReadableByteChannel, GatheringByteChannel {
+    private final SocketChannel channel;
+    private final Selector selector;
+    private final int timeout; // milliseconds, 0 waits forever
+
+    private TimedSocketChannel(SocketChannel channel, Selector selector, int timeout) {
+        this.channel = channel;
+        this.selector = selector;
+        this.timeout = timeout;
+    }
+
+    /**
+     * @param endpoint to connect to
+     * @param timeout in milliseconds for the connection and for each read or
+     * write, or 0 to wait forever
+     */
+    static TimedSocketChannel connect(InetSocketAddress endpoint, int timeout) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().setTcpNoDelay(true); // each frame is one write, don't wait for the ack of the previous response
+            channel.socket().connect(endpoint, timeout);
+            channel.configureBlocking(false);
+            return new TimedSocketChannel(channel, Selector.open(), timeout);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        while (true) {
+            int read = channel.read(dst);
+            if (read != 0 || !dst.hasRemaining()) {
+                return read;
+            }
+            await(SelectionKey.OP_READ);
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        while (true) {
+            int written = channel.write(src);
+            if (written != 0 || !src.hasRemaining()) {
+                return written;
+            }
+            await(SelectionKey.OP_WRITE);
+        }
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        while (true) {
+            long written = channel.write(srcs, offset, length);
+            if (written != 0 || !srcs[offset + length - 1].hasRemaining()) {
+                return written;
+            }
+            await(SelectionKey.OP_WRITE);
+        }
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            selector.close();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void await(int operation) throws IOException {
+        channel.register(selector, operation);
+        long deadline = System.currentTimeMillis() + timeout;
+        while (selector.select(timeout == 0 ? 0 : Math.max(1, deadline - System.currentTimeMillis())) == 0) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedIOException("Interrupted while waiting for rpcore");
+            }
+            if (timeout != 0 && System.currentTimeMillis() >= deadline) {
+                throw new SocketTimeoutException("No progress from rpcore after " + timeout + " ms");
+            }
+        }
+        selector.selectedKeys().clear();
+    }
+}
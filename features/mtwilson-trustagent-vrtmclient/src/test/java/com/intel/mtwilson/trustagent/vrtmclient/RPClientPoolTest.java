@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.vrtmclient;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Runs the pool against a local server that answers each request with the
+ * same call index and payload.
+ */
+public class RPClientPoolTest {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(RPClientPoolTest.class);
+
+    private static class EchoServer implements Runnable {
+        private final ServerSocket serverSocket;
+        private final int requestsPerConnection;
+        private final AtomicInteger connections = new AtomicInteger();
+
+        private EchoServer(int requestsPerConnection) throws IOException {
+            this.serverSocket = new ServerSocket(0);
+            this.requestsPerConnection = requestsPerConnection;
+            Thread thread = new Thread(this, "rpcore-echo");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final Socket socket = serverSocket.accept();
+                    connections.incrementAndGet();
+                    Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            echo(socket);
+                        }
+                    }, "rpcore-echo-connection");
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+            } catch (IOException e) {
+                log.debug("Echo server stopped: {}", e.getMessage());
+            }
+        }
+
+        private void echo(Socket socket) {
+            try (Socket closing = socket) {
+                for (int i = 0; i < requestsPerConnection; i++) {
+                    TCBuffer request = new TCBuffer();
+                    request.deSerializeTCBuffer(closing.getInputStream());
+                    TCBuffer response = new TCBuffer(request.getRPCCallIndex(), 0);
+                    response.setRPCPayload(request.getRPCPayload().getBytes());
+                    response.serializeTCBuffer(closing.getOutputStream());
+                }
+            } catch (IOException e) {
+                log.debug("Connection closed: {}", e.getMessage());
+            }
+        }
+    }
+
+    private static TCBuffer request(String payload) {
+        TCBuffer request = Factory.newTCBuffer(RPCCall.IS_VM_VERIFIED);
+        request.setRPCPayload(payload.getBytes());
+        return request;
+    }
+
+    @Test
+    public void testConnectionReused() throws IOException {
+        EchoServer server = new EchoServer(Integer.MAX_VALUE);
+        RPClientPool pool = new RPClientPool("127.0.0.1", server.serverSocket.getLocalPort(), 2, 30000);
+        for (int i = 0; i < 5; i++) {
+            TCBuffer response = pool.send(request("request " + i));
+            Assert.assertEquals("request " + i, response.getRPCPayload());
+            Assert.assertEquals(RPAPIIndex.VM2RP_ISVMVERIFIED, response.getRPCCallIndex());
+        }
+        Assert.assertEquals(1, server.connections.get());
+        pool.close();
+        server.serverSocket.close();
+    }
+
+    @Test
+    public void testReconnectWhenClosedByServer() throws IOException {
+        EchoServer server = new EchoServer(1);
+        RPClientPool pool = new RPClientPool("127.0.0.1", server.serverSocket.getLocalPort(), 2, 30000);
+        Assert.assertEquals("first", pool.send(request("first")).getRPCPayload());
+        Assert.assertEquals("second", pool.send(request("second")).getRPCPayload());
+        Assert.assertEquals(2, server.connections.get());
+        pool.close();
+        server.serverSocket.close();
+    }
+
+    @Test
+    public void testSendAsync() throws Exception {
+        EchoServer server = new EchoServer(Integer.MAX_VALUE);
+        RPClientPool pool = new RPClientPool("127.0.0.1", server.serverSocket.getLocalPort(), 4, 30000);
+        List<Future<TCBuffer>> responses = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            responses.add(pool.sendAsync(request("request " + i)));
+        }
+        for (int i = 0; i < 20; i++) {
+            Assert.assertEquals("request " + i, responses.get(i).get().getRPCPayload());
+        }
+        Assert.assertTrue(server.connections.get() <= 4);
+        pool.close();
+        server.serverSocket.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void testClosedPool() throws IOException {
+        RPClientPool pool = new RPClientPool("127.0.0.1", 1, 1, 30000);
+        pool.close();
+        pool.send(request("closed"));
+    }
+}
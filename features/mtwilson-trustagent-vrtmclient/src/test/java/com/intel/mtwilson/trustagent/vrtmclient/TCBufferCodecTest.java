@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.vrtmclient;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * The benchmark only runs when requested:
+ * mvn test -Dtrustagent.benchmark=true
+ */
+public class TCBufferCodecTest {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(TCBufferCodecTest.class);
+
+    /**
+     * Returns one byte per read, like a slow connection
+     */
+    private static class TrickleChannel implements ReadableByteChannel {
+        private final ReadableByteChannel channel;
+
+        private TrickleChannel(byte[] content) {
+            this.channel = Channels.newChannel(new ByteArrayInputStream(content));
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (!dst.hasRemaining()) {
+                return 0;
+            }
+            ByteBuffer one = ByteBuffer.allocate(1);
+            int read = channel.read(one);
+            if (read > 0) {
+                one.flip();
+                dst.put(one);
+            }
+            return read;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    private static class TrickleInputStream extends FilterInputStream {
+        private TrickleInputStream(byte[] content) {
+            super(new ByteArrayInputStream(content));
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return super.read(b, off, Math.min(len, 1));
+        }
+    }
+
+    private static TCBuffer frame(int size) {
+        byte[] payload = new byte[size];
+        for (int i = 0; i < size; i++) {
+            payload[i] = (byte) i;
+        }
+        TCBuffer tcBuffer = new TCBuffer(RPAPIIndex.VM2RP_ISVMVERIFIED, 3);
+        tcBuffer.setRPCPayload(payload);
+        return tcBuffer;
+    }
+
+    private static byte[] encode(TCBuffer... tcBuffers) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (TCBuffer tcBuffer : tcBuffers) {
+            TCBufferCodec.write(Channels.newChannel(out), tcBuffer);
+        }
+        return out.toByteArray();
+    }
+
+    private static void assertFrameEquals(TCBuffer expected, TCBuffer actual) {
+        Assert.assertEquals(expected.getRPCCallIndex(), actual.getRPCCallIndex());
+        Assert.assertEquals(expected.getRPCCallStatus(), actual.getRPCCallStatus());
+        Assert.assertEquals(expected.getRPCPayloadSize(), actual.getRPCPayloadSize());
+        Assert.assertTrue(Arrays.equals(expected.getRPCPayloadBytes(), actual.getRPCPayloadBytes()));
+    }
+
+    @Test
+    public void testSameEncodingAsStream() throws IOException {
+        TCBuffer tcBuffer = frame(100);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        tcBuffer.serializeTCBuffer(out);
+        Assert.assertTrue(Arrays.equals(out.toByteArray(), encode(tcBuffer)));
+        Assert.assertEquals(TCBuffer.HEADER_SIZE + 100, out.size());
+        Assert.assertEquals(RPAPIIndex.VM2RP_ISVMVERIFIED, out.toByteArray()[0]); // little endian
+    }
+
+    @Test
+    public void testPartialReads() throws IOException {
+        TCBuffer small = frame(10);
+        TCBuffer empty = frame(0);
+        TCBuffer large = frame(100 * 1024); // larger than the pooled buffer
+        byte[] encoded = encode(small, empty, large);
+        TrickleChannel channel = new TrickleChannel(encoded);
+        assertFrameEquals(small, TCBufferCodec.read(channel));
+        assertFrameEquals(empty, TCBufferCodec.read(channel));
+        assertFrameEquals(large, TCBufferCodec.read(channel));
+        InputStream in = new TrickleInputStream(encoded);
+        for (TCBuffer expected : new TCBuffer[]{small, empty, large}) {
+            TCBuffer actual = new TCBuffer();
+            actual.deSerializeTCBuffer(in);
+            assertFrameEquals(expected, actual);
+        }
+    }
+
+    @Test(expected = EOFException.class)
+    public void testTruncatedFrame() throws IOException {
+        byte[] encoded = encode(frame(50));
+        TCBufferCodec.read(new TrickleChannel(Arrays.copyOf(encoded, encoded.length - 1)));
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalidPayloadSize() throws IOException {
+        byte[] encoded = encode(frame(0));
+        encoded[7] = (byte) 0x80; // negative size
+        TCBufferCodec.read(new TrickleChannel(encoded));
+    }
+
+    /**
+     * Writes a frame the way RPClient did before TCBufferCodec: an empty
+     * ByteArrayOutputStream, then the three header fields and the payload
+     * in separate writes on the unbuffered socket stream.
+     */
+    private static void writeBaseline(OutputStream out, TCBuffer frame) throws IOException {
+        new ByteArrayOutputStream().writeTo(out);
+        out.flush();
+        out.write(littleEndian(frame.getRPCCallIndex()));
+        out.write(littleEndian(frame.getRPCPayloadSize()));
+        out.write(littleEndian(frame.getRPCCallStatus()));
+        out.write(frame.getRPCPayloadBytes());
+        out.flush();
+    }
+
+    private static byte[] littleEndian(int value) {
+        return ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(value).array();
+    }
+
+    /**
+     * Round trips over loopback with the framing RPClient used before, and
+     * with the codec on a channel. Both sockets disable Nagle's algorithm,
+     * so only the framing differs.
+     */
+    @Test
+    public void benchmarkStreamAndChannel() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("trustagent.benchmark"));
+        final int ITERATIONS = 20000;
+        final ServerSocket serverSocket = new ServerSocket(0);
+        Thread server = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int connection = 0; connection < 2; connection++) {
+                        try (Socket socket = serverSocket.accept()) {
+                            socket.setTcpNoDelay(true);
+                            for (int i = 0; i < ITERATIONS * 2; i++) {
+                                TCBuffer request = new TCBuffer();
+                                request.deSerializeTCBuffer(socket.getInputStream());
+                                request.serializeTCBuffer(socket.getOutputStream());
+                            }
+                        }
+                    }
+                } catch (IOException e) {
+                    log.debug("Server stopped: {}", e.getMessage());
+                }
+            }
+        });
+        server.setDaemon(true);
+        server.start();
+        TCBuffer request = frame(300); // about the size of a get_verification_status call
+        try (Socket socket = new Socket("127.0.0.1", serverSocket.getLocalPort())) {
+            socket.setTcpNoDelay(true);
+            for (int i = 0; i < ITERATIONS; i++) { // warm up
+                writeBaseline(socket.getOutputStream(), request);
+                new TCBuffer().deSerializeTCBuffer(socket.getInputStream());
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                writeBaseline(socket.getOutputStream(), request);
+                new TCBuffer().deSerializeTCBuffer(socket.getInputStream());
+            }
+            log.info("baseline: {} us per round trip", (System.nanoTime() - start) / ITERATIONS / 1000);
+        }
+        try (TimedSocketChannel channel = TimedSocketChannel.connect(new InetSocketAddress("127.0.0.1", serverSocket.getLocalPort()), 10000)) {
+            for (int i = 0; i < ITERATIONS; i++) { // warm up
+                TCBufferCodec.write(channel, request);
+                TCBufferCodec.read(channel);
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                TCBufferCodec.write(channel, request);
+                TCBufferCodec.read(channel);
+            }
+            log.info("channel:  {} us per round trip", (System.nanoTime() - start) / ITERATIONS / 1000);
+        }
+        serverSocket.close();
+    }
+}
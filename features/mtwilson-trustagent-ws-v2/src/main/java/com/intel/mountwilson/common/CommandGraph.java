@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mountwilson.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a set of commands that share a context in dependency order instead
+ * of a fixed sequence. Each stage names the values it reads and the values
+ * it produces:
+ *
+ * new CommandGraph("quote")
+ *     .stage("aik", new ReadIdentityCmd(context), none(), of("aik"))
+ *     .tpmStage("quote", new GenerateQuoteCmd(context), none(), of("quote"))
+ *     .stage("response", new BuildQuoteXMLCmd(context), of("aik", "quote"), of("response"))
+ *     .execute();
+ *
+ * Ordinary stages run on a shared pool as soon as their inputs are
+ * available. TPM stages run one at a time on the calling thread, which
+ * takes its turn at the TPM like any other request, while the ordinary
+ * stages proceed in the background. The elapsed time of every stage is
+ * recorded for the caller to log, see getTimings.
+ *
+ * The first stage to fail stops the graph: stages not yet started are
+ * skipped, running stages are interrupted and waited for, and the failure
+ * is thrown to the caller as it was thrown by the command. The caller may
+ * release the shared context as soon as execute returns.
+ */
+public class CommandGraph {
+    /**
+     * Stages mostly wait on files and child processes rather than compute,
+     * so the pool has several threads per processor; otherwise the stages
+     * of concurrent quotes and host info requests would queue behind each
+     * other while the processors are idle. Idle threads exit after a minute.
+     */
+    private static final int POOL_SIZE = Math.max(16, 8 * Runtime.getRuntime().availableProcessors());
+    private static final ExecutorService pool = createPool();
+    private final String name;
+    private final List<Stage> stages = new ArrayList<>();
+    private final Map<String, Long> timings = new LinkedHashMap<>();
+
+    private static class Stage {
+        private final String name;
+        private final ICommand command;
+        private final Set<String> inputs;
+        private final Set<String> outputs;
+        private final boolean tpm;
+        private boolean started = false;
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private final CountDownLatch finished = new CountDownLatch(1);
+
+        private Stage(String name, ICommand command, Set<String> inputs, Set<String> outputs, boolean tpm) {
+            this.name = name;
+            this.command = command;
+            this.inputs = inputs;
+            this.outputs = outputs;
+            this.tpm = tpm;
+        }
+    }
+
+    private static ExecutorService createPool() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "trustagent-command-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    public CommandGraph(String name) {
+        this.name = name;
+    }
+
+    public static Set<String> of(String... values) {
+        return new HashSet<>(Arrays.asList(values));
+    }
+
+    public static Set<String> none() {
+        return Collections.emptySet();
+    }
+
+    /**
+     * Adds a stage that does not use the TPM and may run concurrently with
+     * other stages.
+     */
+    public CommandGraph stage(String stageName, ICommand command, Set<String> inputs, Set<String> outputs) {
+        stages.add(new Stage(stageName, command, inputs, outputs, false));
+        return this;
+    }
+
+    /**
+     * Adds a stage that uses the TPM. TPM stages run on the calling thread,
+     * one after another in the order they were added once their inputs are
+     * available.
+     */
+    public CommandGraph tpmStage(String stageName, ICommand command, Set<String> inputs, Set<String> outputs) {
+        stages.add(new Stage(stageName, command, inputs, outputs, true));
+        return this;
+    }
+
+    /**
+     * @return milliseconds spent in each stage that ran, in completion order
+     */
+    public Map<String, Long> getTimings() {
+        synchronized (timings) {
+            return new LinkedHashMap<>(timings);
+        }
+    }
+
+    public void execute() throws TAException {
+        validate();
+        Set<String> available = new HashSet<>();
+        CompletionService<Stage> completion = new ExecutorCompletionService<>(pool);
+        List<Future<Stage>> futures = new ArrayList<>();
+        int running = 0;
+        int remaining = stages.size();
+        try {
+            while (remaining > 0) {
+                for (final Stage stage : stages) {
+                    if (!stage.started && !stage.tpm && available.containsAll(stage.inputs)) {
+                        stage.started = true;
+                        running++;
+                        futures.add(completion.submit(new Callable<Stage>() {
+                            @Override
+                            public Stage call() throws Exception {
+                                if (!stage.claimed.compareAndSet(false, true)) {
+                                    return stage; // cancelled before it started
+                                }
+                                try {
+                                    run(stage);
+                                    return stage;
+                                } finally {
+                                    stage.finished.countDown();
+                                }
+                            }
+                        }));
+                    }
+                }
+                Stage next = nextTpmStage(available);
+                if (next != null) {
+                    next.started = true;
+                    run(next);
+                    available.addAll(next.outputs);
+                    remaining--;
+                    continue;
+                }
+                if (running == 0) {
+                    throw new IllegalStateException(String.format("Command graph %s cannot make progress, check stage inputs", name));
+                }
+                Stage done = completion.take().get();
+                running--;
+                available.addAll(done.outputs);
+                remaining--;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TAException(ErrorCode.ERROR, String.format("Interrupted while running %s", name), e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof TAException) {
+                throw (TAException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new TAException(ErrorCode.ERROR, String.format("Stage of %s failed", name), (Exception) cause);
+        } finally {
+            for (Future<Stage> future : futures) {
+                future.cancel(true);
+            }
+            awaitStarted();
+        }
+    }
+
+    /**
+     * Waits for every ordinary stage that already started to finish, so
+     * none of them is still using the context when execute returns. Stages
+     * that had not started yet are claimed here and will never run.
+     */
+    private void awaitStarted() {
+        boolean interrupted = false;
+        for (Stage stage : stages) {
+            if (stage.tpm || !stage.started || stage.claimed.compareAndSet(false, true)) {
+                continue;
+            }
+            while (true) {
+                try {
+                    stage.finished.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Stage nextTpmStage(Set<String> available) {
+        for (Stage stage : stages) {
+            if (stage.tpm && !stage.started) {
+                // TPM stages keep their order; a later one never overtakes a waiting one
+                return available.containsAll(stage.inputs) ? stage : null;
+            }
+        }
+        return null;
+    }
+
+    private void run(Stage stage) throws TAException {
+        long start = System.currentTimeMillis();
+        try {
+            stage.command.execute();
+        } finally {
+            long elapsed = System.currentTimeMillis() - start;
+            synchronized (timings) {
+                timings.put(stage.name, elapsed);
+            }
+        }
+    }
+
+    /**
+     * Every input must be the output of exactly one stage.
+     */
+    private void validate() {
+        Map<String, String> producers = new LinkedHashMap<>();
+        for (Stage stage : stages) {
+            for (String output : stage.outputs) {
+                String other = producers.put(output, stage.name);
+                if (other != null) {
+                    throw new IllegalStateException(String.format("%s is produced by both %s and %s", output, other, stage.name));
+                }
+            }
+        }
+        for (Stage stage : stages) {
+            for (String input : stage.inputs) {
+                if (!producers.containsKey(input)) {
+                    throw new IllegalStateException(String.format("%s needs %s but no stage produces it", stage.name, input));
+                }
+            }
+        }
+    }
+}
@@ -4,12 +4,16 @@
  */
 package com.intel.mountwilson.common;
 
-import com.intel.mountwilson.trustagent.datatype.IPAddress;
+import com.intel.mtwilson.trustagent.shell.ProcessResult;
+import com.intel.mtwilson.trustagent.shell.ProcessRunner;
 import java.io.*;
-import java.net.InetAddress;
-import java.net.NetworkInterface;
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 import org.apache.commons.lang.StringEscapeUtils;
 import org.apache.commons.lang.StringUtils;
@@ -43,39 +47,32 @@ public class CommandUtil {
         
         log.debug("Command to be executed is :" + commandLine);
 
-        Process p;
-        if( envp == null ) {
-            p = Runtime.getRuntime().exec(commandLine);
+        List<String> arguments = new ArrayList<>();
+        StringTokenizer tokens = new StringTokenizer(commandLine);
+        while (tokens.hasMoreTokens()) {
+            arguments.add(tokens.nextToken());
         }
-        else {
-            p = Runtime.getRuntime().exec(commandLine, envp);
-        }
-        // read stdout
-        InputReader stdout = new InputReader(p.getInputStream());
-        Thread stdoutThread = new Thread(stdout);
-        stdoutThread.start();
-        // read stderr
-        InputReader stderr = new InputReader(p.getErrorStream());
-        Thread stderrThread = new Thread(stderr);
-        stderrThread.start();
-        CommandResult result = new CommandResult();
-        try {
-        // wait until the process exits
-        result.exitcode = p.waitFor();
-        // after the process exits the stdout and stderr threads will terminate
-        stdoutThread.join(); // throws InterruptedException
-        stderrThread.join(); // throws InterruptedException
-        }
-        catch(InterruptedException e) {
-            log.error("Interrupted", e);
+        // the variables are added to the agent's environment
+        Map<String, String> environment = null;
+        if( envp != null ) {
+            environment = new HashMap<>();
+            for (String variable : envp) {
+                int separator = variable.indexOf('=');
+                if (separator > 0) {
+                    environment.put(variable.substring(0, separator), variable.substring(separator + 1));
+                }
+            }
         }
+        ProcessResult processResult = ProcessRunner.getInstance().run(new File(arguments.get(0)).getName(), arguments, environment, ProcessRunner.DEFAULT_TIMEOUT, TimeUnit.MILLISECONDS);
         
-        log.debug("stdout:\n{}", stdout.getResult());
-        log.debug("stderr:\n{}", stderr.getResult());
+        log.debug("stdout:\n{}", processResult.getStdout());
+        log.debug("stderr:\n{}", processResult.getStderr());
 
+        CommandResult result = new CommandResult();
         result.command = commandLine;
-        result.stdout = stdout.getResult();
-        result.stderr = stderr.getResult();
+        result.exitcode = processResult.getExitCode();
+        result.stdout = processResult.getStdout();
+        result.stderr = processResult.getStderr();
 
         if( result.exitcode != 0 ) {
             throw new TAException(ErrorCode.FATAL_ERROR, result.exitcode + ": Error while running command: " + commandLine);            
@@ -112,31 +109,12 @@ public class CommandUtil {
         }
     }
 
+    /**
+     * @return the first address of the host other than 127.0.0.1, cached by
+     * NetworkIdentity until the network interfaces change
+     */
     public static String getHostIpAddress() {
-        String localIpAddress = "127.0.0.1";
-        Enumeration<NetworkInterface> networkInterface;
-        try {
-
-            networkInterface = NetworkInterface.getNetworkInterfaces();
-            for (; networkInterface.hasMoreElements();) {
-                NetworkInterface e = networkInterface.nextElement();
-                log.debug( "Interface: {}", new Object[]{e.getName()});
-                Enumeration<InetAddress> ad = e.getInetAddresses();
-                for (; ad.hasMoreElements();) {
-                    InetAddress addr = ad.nextElement();
-                    String returnIpAddress = addr.getHostAddress();
-                    if (!returnIpAddress.equals(localIpAddress) && IPAddress.isValid(returnIpAddress)) {
-                        return returnIpAddress;
-                    } else {
-                        log.debug("{} == {} or ip validation failed.", new Object[]{returnIpAddress, localIpAddress});
-                    }
-                }
-            }
-
-        } catch (Exception ex) {
-            log.error("Error while getting the network interfaces returning 127.0.0.1", ex);
-        }
-        return localIpAddress;
+        return NetworkIdentity.getInstance().getHostIpAddress();
     }
 
     public static String generateErrorResponse(ErrorCode errorCode) {
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mountwilson.common;
+
+import com.intel.mountwilson.trustagent.datatype.IPAddress;
+import java.io.File;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.util.Arrays;
+import java.util.Enumeration;
+
+/**
+ * The local address reported as clientIp in quote, identity and error
+ * responses, found once instead of on every response.
+ *
+ * Enumerating every network interface and address takes tens of
+ * milliseconds on hosts with hundreds of veth and tap interfaces, so the
+ * address is kept and found again only when the list of interfaces in
+ * /sys/class/net changes (checked at most once per CHECK_INTERVAL) or
+ * after REFRESH_INTERVAL, which catches address changes on an existing
+ * interface such as a new DHCP lease. Where /sys/class/net does not exist
+ * (Windows) only the refresh interval applies.
+ */
+public class NetworkIdentity {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(NetworkIdentity.class);
+    private static final String LOCALHOST = "127.0.0.1";
+    private static final long CHECK_INTERVAL = 1000; // milliseconds between listings of /sys/class/net
+    private static final long REFRESH_INTERVAL = 60000; // milliseconds before the interfaces are enumerated again
+    private static NetworkIdentity instance = null;
+    private final File sysClassNet;
+    private final long checkInterval;
+    private final long refreshInterval;
+    private final Object lock = new Object();
+    // guarded by lock
+    private String[] interfaces = null;
+    private long refreshed = 0;
+    private long checked = 0;
+    private volatile String hostIpAddress = null;
+
+    NetworkIdentity(File sysClassNet, long checkInterval, long refreshInterval) {
+        this.sysClassNet = sysClassNet;
+        this.checkInterval = checkInterval;
+        this.refreshInterval = refreshInterval;
+    }
+
+    public static synchronized NetworkIdentity getInstance() {
+        if (instance == null) {
+            instance = new NetworkIdentity(new File("/sys/class/net"), CHECK_INTERVAL, REFRESH_INTERVAL);
+        }
+        return instance;
+    }
+
+    /**
+     * @return the first address of the host other than 127.0.0.1, or
+     * 127.0.0.1 if there is none
+     */
+    public String getHostIpAddress() {
+        synchronized (lock) {
+            long now = System.currentTimeMillis();
+            if (hostIpAddress != null && now - checked < checkInterval) {
+                return hostIpAddress;
+            }
+            checked = now;
+            String[] current = listInterfaces();
+            if (hostIpAddress == null || now - refreshed >= refreshInterval || !Arrays.equals(current, interfaces)) {
+                log.debug("Finding host address, interfaces changed: {}", !Arrays.equals(current, interfaces));
+                hostIpAddress = findHostIpAddress();
+                interfaces = current;
+                refreshed = now;
+            }
+            return hostIpAddress;
+        }
+    }
+
+    /**
+     * Forgets the address so the next call to getHostIpAddress finds it
+     * again.
+     */
+    public void refresh() {
+        synchronized (lock) {
+            hostIpAddress = null;
+        }
+    }
+
+    /**
+     * @return the sorted names of the network interfaces, or null if
+     * /sys/class/net is not available
+     */
+    private String[] listInterfaces() {
+        String[] names = sysClassNet.list();
+        if (names != null) {
+            Arrays.sort(names);
+        }
+        return names;
+    }
+
+    String findHostIpAddress() {
+        try {
+            Enumeration<NetworkInterface> networkInterfaces = NetworkInterface.getNetworkInterfaces();
+            while (networkInterfaces != null && networkInterfaces.hasMoreElements()) {
+                NetworkInterface networkInterface = networkInterfaces.nextElement();
+                Enumeration<InetAddress> addresses = networkInterface.getInetAddresses();
+                while (addresses.hasMoreElements()) {
+                    String address = addresses.nextElement().getHostAddress();
+                    if (!address.equals(LOCALHOST) && IPAddress.isValid(address)) {
+                        log.debug("Host address is {} on interface {}", address, networkInterface.getName());
+                        return address;
+                    }
+                }
+            }
+        } catch (Exception ex) {
+            log.error("Error while getting the network interfaces returning 127.0.0.1", ex);
+        }
+        return LOCALHOST;
+    }
+}
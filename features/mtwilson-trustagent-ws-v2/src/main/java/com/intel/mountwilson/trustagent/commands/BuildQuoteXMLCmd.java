@@ -33,7 +33,11 @@ public class BuildQuoteXMLCmd implements ICommand {
             tpmQuoteResponse.clientIp = CommandUtil.getHostIpAddress();
             tpmQuoteResponse.errorCode = String.valueOf(context.getErrorCode().getErrorCode());
             tpmQuoteResponse.errorMessage = context.getErrorCode().getMessage();
-            tpmQuoteResponse.aik = X509Util.decodePemCertificate(context.getAIKCertificate());
+            if (context.getAikX509Certificate() != null) {
+                tpmQuoteResponse.aik = context.getAikX509Certificate();
+            } else {
+                tpmQuoteResponse.aik = X509Util.decodePemCertificate(context.getAIKCertificate());
+            }
             tpmQuoteResponse.quote = context.getTpmQuote();
             tpmQuoteResponse.eventLog = context.getModules(); //base64-encoded  xml which the caller will interpret
             tpmQuoteResponse.tcbMeasurement = context.getTcbMeasurement();
@@ -9,7 +9,6 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 
 
-import org.apache.commons.codec.binary.Base64;
 
 import com.intel.mountwilson.common.ErrorCode;
 import com.intel.mountwilson.common.ICommand;
@@ -47,7 +46,7 @@ public class CreateNonceFileCmd implements ICommand {
 			stream = new FileOutputStream(
 			        context.getNonceFileName());
 			
-            byte[] nonce = Base64.decodeBase64(context.getNonce());
+            byte[] nonce = context.getNonceBytes();
 			stream.write(nonce);
 			
 			stream.flush();
@@ -8,10 +8,11 @@ import com.intel.dcsg.cpg.crypto.RandomUtil;
 import com.intel.mountwilson.common.ErrorCode;
 import com.intel.mountwilson.common.ICommand;
 import com.intel.mountwilson.common.TAException;
+import com.intel.mountwilson.trustagent.data.MeasureLogCache;
 import com.intel.mountwilson.trustagent.data.TADataContext;
 import com.intel.mtwilson.util.exec.EscapeUtil;
-import com.intel.mtwilson.util.exec.ExecUtil;
-import com.intel.mtwilson.util.exec.Result;
+import com.intel.mtwilson.trustagent.shell.ProcessResult;
+import com.intel.mtwilson.trustagent.shell.ProcessRunner;
 import java.io.IOException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -22,7 +23,6 @@ import java.util.HashMap;
 import java.util.Map;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.exec.CommandLine;
-import org.apache.commons.io.FileUtils;
 
 /**
  *
@@ -65,7 +65,7 @@ public class GenerateModulesCmd implements ICommand {
                             Map<String, String> variables = new HashMap<>();
                             variables.put("OUTFILE", EscapeUtil.doubleQuoteEscapeShellArgument(outputPath));
                             CommandLine command = new CommandLine(EscapeUtil.doubleQuoteEscapeShellArgument(context.getMeasureLogLaunchScript().getAbsolutePath()));
-                            Result result = ExecUtil.execute(command, variables);
+                            ProcessResult result = ProcessRunner.getInstance().execute(command, variables);
                             if (result.getExitCode() != 0) {
                                 log.error("Error running command [{}]: {}", command.getExecutable(), result.getStderr());
                                 throw new TAException(ErrorCode.ERROR, result.getStderr());
@@ -76,10 +76,14 @@ public class GenerateModulesCmd implements ICommand {
                             log.debug("measureLog.xml is created from txt-stat in Duration MilliSeconds {}", (endTime - startTime));
                         }
 			if( outputFile.exists() ) {
-                            String content = FileUtils.readFileToString(outputFile);
-                            log.debug("Content of the XML file before getting modules: " + content);
-                            
-                            getModulesFromMeasureLogXml(content);
+                            // read and encoded again only when module_analysis.sh has rewritten the file
+                            context.setModules(MeasureLogCache.getInstance().get(outputFile, new MeasureLogCache.Encoder() {
+                                @Override
+                                public String encode(String content) throws TAException {
+                                    log.debug("Read {} characters of measure log XML", content.length());
+                                    return getModulesFromMeasureLogXml(content);
+                                }
+                            }));
                             //outputFile.delete();  //why?
                         } else {
                             throw new TAException(ErrorCode.BAD_REQUEST, "Cannot read module log");
@@ -89,11 +93,14 @@ public class GenerateModulesCmd implements ICommand {
 			// We only show 'tbootxm' module for PCR14. Read the measurement and prepare the xml content.
 			File measurementFile = new File("C:\\Windows\\Logs\\MeasuredBoot\\measurement.sha1");
 			if( measurementFile.exists() ) {
-				String measurement = FileUtils.readFileToString(measurementFile);
-				String content = "<measureLog><txt><modules><module><pcrBank>SHA1</pcrBank><pcrNumber>14</pcrNumber><name>tbootxm</name><value>" + measurement + "</value></module></modules></txt></measureLog>";
-				
-				log.debug("Content of the XML file after reading measurement {} ", content);
-				getModulesFromMeasureLogXml(content);
+				context.setModules(MeasureLogCache.getInstance().get(measurementFile, new MeasureLogCache.Encoder() {
+					@Override
+					public String encode(String measurement) throws TAException {
+						String content = "<measureLog><txt><modules><module><pcrBank>SHA1</pcrBank><pcrNumber>14</pcrNumber><name>tbootxm</name><value>" + measurement + "</value></module></modules></txt></measureLog>";
+						log.debug("Content of the XML file after reading measurement {} ", content);
+						return getModulesFromMeasureLogXml(content);
+					}
+				}));
 			}
 			else {
             log.info("No measurement file available for reading tbootxm measurement");
@@ -103,11 +110,11 @@ public class GenerateModulesCmd implements ICommand {
     }
 
     /**
-     * Obtains <modules> tag under <txt> and add the string to TADataContext
+     * Obtains <modules> tag under <txt> and returns it base64-encoded for TADataContext
      *
      * @author skaja
      */
-    private void getModulesFromMeasureLogXml(String xmlInput) throws TAException {
+    private String getModulesFromMeasureLogXml(String xmlInput) throws TAException {
         try {
 
             // Since the output from the script will have lot of details and we are interested in just the module section, we will
@@ -120,12 +127,11 @@ public class GenerateModulesCmd implements ICommand {
             // removes any white space characters from the xml string
             String moduleInfo = xmlInput.replaceAll(">\\s*<", "><");
             
-            log.debug("Module information : " + moduleInfo);
+            log.debug("Module information is {} characters", moduleInfo.length());
             
             // If we have XML data, we we will have issues mapping the response to the ClientRequestType using JaxB unmarshaller. So,
             // we will encode the string and send it.
-            moduleInfo = Base64.encodeBase64String(moduleInfo.getBytes());
-            context.setModules(moduleInfo);
+            return Base64.encodeBase64String(moduleInfo.getBytes());
             
 
         } catch (Exception e) {
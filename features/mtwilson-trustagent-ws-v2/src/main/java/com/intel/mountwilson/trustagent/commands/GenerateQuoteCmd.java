@@ -13,10 +13,13 @@ import com.intel.mountwilson.common.TAException;
 import com.intel.mountwilson.trustagent.data.TADataContext;
 import com.intel.mtwilson.Folders;
 import com.intel.mtwilson.trustagent.TrustagentConfiguration;
+import com.intel.mtwilson.trustagent.tpm2.Tpm2PcrSnapshot;
 import com.intel.mtwilson.trustagent.tpmmodules.Tpm;
+import com.intel.mtwilson.trustagent.tpmmodules.TpmQuoteProvider;
 import com.intel.mtwilson.util.exec.EscapeUtil;
-import com.intel.mtwilson.util.exec.ExecUtil;
-import com.intel.mtwilson.util.exec.Result;
+import com.intel.mtwilson.trustagent.shell.ProcessResult;
+import com.intel.mtwilson.trustagent.shell.ProcessRunner;
+import gov.niarl.his.privacyca.TpmModule;
 import gov.niarl.his.privacyca.TpmUtils;
 import java.io.File;
 import java.io.IOException;
@@ -24,7 +27,6 @@ import java.io.InputStream;
 import java.util.logging.Level;
 import java.util.regex.Pattern;
 import org.apache.commons.exec.CommandLine;
-import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.exec.ExecuteException;
 import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
@@ -90,7 +92,7 @@ public class GenerateQuoteCmd implements ICommand {
         String osName = context.getOsName();
         String commandLine;
         String keyName = "HIS_Identity_Key";
-        byte[] nonce = Base64.decodeBase64(context.getNonce());
+        byte[] nonce = context.getNonceBytes();
 
         if (osName.toLowerCase().contains("windows")) {
             
@@ -174,27 +176,20 @@ public class GenerateQuoteCmd implements ICommand {
                         }
                     }
 
-                    /* 1st: get pcrs - tpm2_listpcrs -g 0x4 -o pcrs.out
-                     *      This commmand returns specified PCR bank pcr values (all 24 pcrs in the bank)
-                    */
-                    CommandLine command1 = new CommandLine("tpm2_listpcrs");
-                    command1.addArgument("-L");
-                    command1.addArgument(quoteAlgWithPcrs);
-                    command1.addArgument("-o");
-                    command1.addArgument(EscapeUtil.doubleQuoteEscapeShellArgument(context.getPcrsFileName()));
-                    Result result1 = ExecUtil.execute(command1);
-                    if (result1.getExitCode() != 0) {
-                        log.error("Error running command [{}]: {}", command1.getExecutable(), result1.getStderr());
-                        throw new TAException(ErrorCode.ERROR, result1.getStderr());
+                    TpmQuoteProvider quoteProvider = Tpm.getQuoteProvider();
+                    if (quoteProvider != null) {
+                        // in-process TPM2_PCR_Read + TPM2_Quote, same quote || pcrs bytes as the tools below
+                        TrustagentConfiguration TAconfig = TrustagentConfiguration.getSnapshot();
+                        context.setTpmQuote(quoteProvider.getQuote(TpmUtils.hexStringToByteArray(identityAuthKey), TAconfig.getAikHandle(), nonce, quoteAlgWithPcrs));
+                        return;
                     }
-                    log.debug("tpm2_listpcrs stdout: {}", result1.getStdout());
-    
-                    /* 2nd: get quote - tpm2_quote -k 0x80000001 -P abc123 -g 0x4 -l 16,17,18 -o outFile001 -X
+
+                    /* 1st: get quote - tpm2_quote -k 0x80000001 -P abc123 -g 0x4 -l 16,17,18 -o outFile001 -X
                      * this command returns two structures together
                         * the quoted information
                         * signature over quoted information
                     */
-                    TrustagentConfiguration TAconfig = TrustagentConfiguration.loadConfiguration();
+                    TrustagentConfiguration TAconfig = TrustagentConfiguration.getSnapshot();
                     CommandLine command = new CommandLine("tpm2_quote");
                     command.addArgument("-k");
                     command.addArgument(TAconfig.getAikHandle());
@@ -211,26 +206,45 @@ public class GenerateQuoteCmd implements ICommand {
                     command.addArguments("-X");   
                     //command.addArgument(EscapeUtil.doubleQuoteEscapeShellArgument(context.getNonceFileName()));
                     //command.addArgument(EscapeUtil.doubleQuoteEscapeShellArgument(context.getAikBlobFileName()));
-                    Result result = ExecUtil.execute(command);
+                    ProcessResult result = ProcessRunner.getInstance().execute(command);
                     if (result.getExitCode() != 0) {
 	                log.error("Error running command [{}]: {}", command.getExecutable(), result.getStderr());
 	                throw new TAException(ErrorCode.ERROR, result.getStderr());
 	            }
 	            log.debug("tpm2_quote stdout: {}", result.getStdout());
 	            log.debug("Create the quote {} ", context.getQuoteFileName());
-                    
-                    // 3rd: concatate the two output together and set the tpm quote return
-	            byte [] pcrs;
                     byte [] quoteResult;
-                    try (InputStream in = new FileResource(new File(context.getPcrsFileName())).getInputStream()) {
-	                pcrs = IOUtils.toByteArray(in);
-	            }
                     try (InputStream in = new FileResource(new File(context.getQuoteFileName())).getInputStream()) {
 	                quoteResult = IOUtils.toByteArray(in);
 	            }
+
+                    /* 2nd: get pcrs - tpm2_listpcrs -g 0x4 -o pcrs.out
+                     *      This commmand returns specified PCR bank pcr values (all 24 pcrs in the bank)
+                     *      Skipped when the quoted PCR digest shows the values sent last time are still current
+                    */
+                    Tpm2PcrSnapshot snapshot = Tpm2PcrSnapshot.getInstance();
+                    byte [] pcrs = snapshot.get(quoteResult);
+                    if (pcrs == null) {
+                        CommandLine command1 = new CommandLine("tpm2_listpcrs");
+                        command1.addArgument("-L");
+                        command1.addArgument(quoteAlgWithPcrs);
+                        command1.addArgument("-o");
+                        command1.addArgument(EscapeUtil.doubleQuoteEscapeShellArgument(context.getPcrsFileName()));
+                        ProcessResult result1 = ProcessRunner.getInstance().execute(command1);
+                        if (result1.getExitCode() != 0) {
+                            log.error("Error running command [{}]: {}", command1.getExecutable(), result1.getStderr());
+                            throw new TAException(ErrorCode.ERROR, result1.getStderr());
+                        }
+                        log.debug("tpm2_listpcrs stdout: {}", result1.getStdout());
+                        try (InputStream in = new FileResource(new File(context.getPcrsFileName())).getInputStream()) {
+                            pcrs = IOUtils.toByteArray(in);
+                        }
+                        snapshot.put(quoteResult, pcrs);
+                    }
                     //log.debug("pcrs: {}", pcrs.toString());
                     //log.debug("quote result: {}", quoteResult.toString());
                     
+                    // 3rd: concatate the two output together and set the tpm quote return
                     byte[] combined = new byte[pcrs.length + quoteResult.length];
                     System.arraycopy(quoteResult, 0, combined, 0, quoteResult.length);
                     System.arraycopy(pcrs, 0, combined, quoteResult.length, pcrs.length);
@@ -238,9 +252,17 @@ public class GenerateQuoteCmd implements ICommand {
                     
                 } catch (IOException ex) {
                     java.util.logging.Logger.getLogger(GenerateQuoteCmd.class.getName()).log(Level.SEVERE, null, ex);
+                } catch (TpmModule.TpmModuleException ex) {
+                    throw new TAException(ErrorCode.COMMAND_ERROR, "Error while generating quote", ex);
                 }
             } else {
                 try {   
+                        TpmQuoteProvider quoteProvider = Tpm.getQuoteProvider();
+                        if (quoteProvider != null) {
+                            // in-process TPM_LoadKey2 + TPM_Quote, same bytes as the aikquote output file
+                            context.setTpmQuote(quoteProvider.getQuote(identityAuthKey.getBytes("UTF-8"), context.getAikBlobFileName(), nonce, selectedPcrs));
+                            return;
+                        }
                         CommandLine command = new CommandLine("/opt/trustagent/share/tpmagent/bin/aikquote");
                         command.addArgument("-p");
                         command.addArgument(identityAuthKey);
@@ -249,7 +271,7 @@ public class GenerateQuoteCmd implements ICommand {
                         command.addArgument(EscapeUtil.doubleQuoteEscapeShellArgument(context.getAikBlobFileName()));
                         command.addArguments(selectedPcrs.split("\\s+"));
                         command.addArgument(EscapeUtil.doubleQuoteEscapeShellArgument(context.getQuoteFileName()));
-                        Result result = ExecUtil.execute(command);
+                        ProcessResult result = TpmModule.executeTool(command, null);
                         if (result.getExitCode() != 0) {
                             log.error("Error running command [{}]: {}", command.getExecutable(), result.getStderr());
                             throw new TAException(ErrorCode.ERROR, result.getStderr());
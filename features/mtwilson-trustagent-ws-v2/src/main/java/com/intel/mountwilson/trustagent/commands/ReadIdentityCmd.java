@@ -10,12 +10,13 @@ import com.intel.mountwilson.common.ICommand;
 import com.intel.mountwilson.common.TAException;
 import com.intel.mountwilson.trustagent.data.TADataContext;
 import com.intel.mtwilson.trustagent.TrustagentConfiguration;
+import com.intel.mtwilson.trustagent.TrustagentRepository;
 import java.io.File;
 import java.io.IOException;
+import java.security.cert.CertificateException;
 import java.util.logging.Level;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Response;
-import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -51,14 +52,18 @@ public class ReadIdentityCmd implements ICommand {
         */
         
         try {
-            TrustagentConfiguration configuration = TrustagentConfiguration.loadConfiguration();
+            TrustagentConfiguration configuration = TrustagentConfiguration.getSnapshot();
             File aikCertificateFile = configuration.getAikCertificateFile();
             if( !aikCertificateFile.exists() ) {
                 log.error("Missing AIK certificate file: {}", aikCertificateFile.getAbsolutePath());
                 throw new TAException(ErrorCode.CERT_MISSING,"Aik Certificate file is missing.");
             }
-            String aikPem = FileUtils.readFileToString(aikCertificateFile);
-            context.setAIKCertificate(aikPem);
+            // decoded once and shared until aik.pem changes
+            TrustagentRepository.Credential aik = new TrustagentRepository(configuration).getAikCredential();
+            context.setAIKCertificate(aik.getPem());
+            context.setAikX509Certificate(aik.getCertificate());
+        } catch (CertificateException ex) {
+            throw new TAException(ErrorCode.CERT_MISSING, "Cannot decode AIK certificate", ex);
         } catch (IOException ex) {
             throw new TAException(ErrorCode.CERT_MISSING, "Cannot load trustagent configuration");
         }
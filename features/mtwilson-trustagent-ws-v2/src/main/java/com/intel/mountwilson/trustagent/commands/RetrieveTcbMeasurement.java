@@ -5,18 +5,15 @@
  */
 package com.intel.mountwilson.trustagent.commands;
 
-import com.intel.dcsg.cpg.xml.JAXB;
 import com.intel.mountwilson.common.ErrorCode;
 import com.intel.mountwilson.common.ICommand;
 import com.intel.mountwilson.common.TAException;
 import com.intel.mountwilson.trustagent.data.TADataContext;
-import com.intel.mtwilson.trustagent.measurement.TcbMeasurement;
+import com.intel.mountwilson.trustagent.data.TcbMeasurementProvider;
+import com.intel.mtwilson.trustagent.TrustagentConfiguration;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.nio.charset.Charset;
-import org.apache.commons.io.IOUtils;
+import java.util.Arrays;
 
 /**
  *
@@ -37,39 +34,25 @@ public class RetrieveTcbMeasurement implements ICommand {
      */
     @Override
     public void execute() throws TAException {
-        File tcbMeasurementFile = context.getTcbMeasurementXmlFile();
-        if (!context.getTcbMeasurementXmlFile().exists()) {
-            log.warn("TCB measurement XML file not present at {}.", context.getTcbMeasurementXmlFile().getAbsolutePath());
-            // TODO: Need to make this configurable in tboot-xm so that user can make these changes directly and 
-            // we do not need to check at multiple locations.
-			
-			String osName = System.getProperty("os.name");
-			if (!osName.toLowerCase().contains("windows")) {
-				tcbMeasurementFile = new File("/var/log/trustagent/measurement.xml");
-			} else {
-				tcbMeasurementFile = new File("C:\\Windows\\Logs\\MeasuredBoot\\measurement.xml");
-			}
-
-            log.warn("Checking to see if the log file exists at {}.", tcbMeasurementFile.getAbsolutePath());
-            if (!tcbMeasurementFile.exists()) {
-                log.warn("TCB measurement XML file does not exist at {}.", tcbMeasurementFile.getAbsolutePath());
-                return;
-            }  
-        } 
-
+        // TODO: Need to make this configurable in tboot-xm so that user can make these changes directly and 
+        // we do not need to check at multiple locations.
+        File alternateFile;
+        String osName = System.getProperty("os.name");
+        if (!osName.toLowerCase().contains("windows")) {
+            alternateFile = new File("/var/log/trustagent/measurement.xml");
+        } else {
+            alternateFile = new File("C:\\Windows\\Logs\\MeasuredBoot\\measurement.xml");
+        }
+        long maxSize;
         try {
-            log.debug("Processing the TCB measurement XML file @ {}.", tcbMeasurementFile.getAbsolutePath());
-            try (InputStream in = new FileInputStream(tcbMeasurementFile)) {
-                String tcbMeasurementString = IOUtils.toString(in, Charset.forName("UTF-8"));
-                log.info("TCB measurement XML string: {}", tcbMeasurementString);
-                context.setTcbMeasurement(tcbMeasurementString);
-            }
+            maxSize = TrustagentConfiguration.getSnapshot().getTcbMeasurementMaxSize();
         } catch (IOException e) {
-            log.warn("IOException, invalid measurement.xml: {}", e.getMessage());
-            throw new TAException(ErrorCode.BAD_REQUEST, "Invalid measurement.xml file. Cannot unmarshal/marshal object using jaxb.");
-        } catch (Exception e) {
-            log.warn("Exception, invalid measurement.xml: {}", e.getMessage());
-            throw new TAException(ErrorCode.BAD_REQUEST, "Invalid measurement.xml file. Cannot unmarshal/marshal object using jaxb.");
+            throw new TAException(ErrorCode.ERROR, "Cannot load configuration", e);
+        }
+        // parsed once and cached until the file changes; does nothing if measurement.xml does not exist
+        TcbMeasurementProvider.Measurement measurement = TcbMeasurementProvider.getInstance().get(Arrays.asList(context.getTcbMeasurementXmlFile(), alternateFile), maxSize);
+        if (measurement != null) {
+            context.setTcbMeasurement(measurement.getXml());
         }
     }
 }
@@ -17,8 +17,8 @@ import com.intel.mtwilson.codec.HexUtil;
 import com.intel.mountwilson.common.ErrorCode;
 import com.intel.mountwilson.common.TAConfig;
 import com.intel.mtwilson.util.exec.EscapeUtil;
-import com.intel.mtwilson.util.exec.ExecUtil;
-import com.intel.mtwilson.util.exec.Result;
+import com.intel.mtwilson.trustagent.shell.ProcessResult;
+import com.intel.mtwilson.trustagent.shell.ProcessRunner;
 import java.io.File;
 import java.security.SecureRandom;
 import java.util.HashMap;
@@ -110,7 +110,7 @@ public class SetAssetTag implements ICommand{
             command.addArgument(String.format("-i %s", index), false);
             command.addArgument("-f");
             command.addArgument(EscapeUtil.doubleQuoteEscapeShellArgument(filename));
-            Result result = ExecUtil.execute(command, variables);
+            ProcessResult result = ProcessRunner.getInstance().execute(command, variables);
             if (result.getExitCode() != 0) {
                 log.error("Error running command [{}]: {}", command.getExecutable(), result.getStderr());
                 throw new TAException(ErrorCode.ERROR, result.getStderr());
@@ -151,7 +151,7 @@ public class SetAssetTag implements ICommand{
             CommandLine command = new CommandLine("/opt/trustagent/bin/hex2bin");
             command.addArgument(assetTagHash);
             command.addArgument(filename);
-            Result result = ExecUtil.execute(command);
+            ProcessResult result = ProcessRunner.getInstance().execute(command);
             if (result.getExitCode() != 0) {
                 log.error("Error running command [{}]: {}", command.getExecutable(), result.getStderr());
                 throw new TAException(ErrorCode.ERROR, result.getStderr());
@@ -189,7 +189,7 @@ public class SetAssetTag implements ICommand{
             command.addArgument("--permissions=AUTHWRITE");
             command.addArgument("-s 0x14", false);
             command.addArgument(String.format("-i %s", index), false);
-            Result result = ExecUtil.execute(command, variables);
+            ProcessResult result = ProcessRunner.getInstance().execute(command, variables);
             if (result.getExitCode() != 0) {
                 log.error("Error running command [{}]: {}", command.getExecutable(), result.getStderr());
                 throw new TAException(ErrorCode.ERROR, result.getStderr());
@@ -217,7 +217,7 @@ public class SetAssetTag implements ICommand{
             command.addArgument("-t");
             command.addArgument("-otpmOwnerPass");
             command.addArgument(String.format("-i %s", index), false);
-            Result result = ExecUtil.execute(command, variables);
+            ProcessResult result = ProcessRunner.getInstance().execute(command, variables);
             if (result.getExitCode() != 0) {
                 log.error("Error running command [{}]: {}", command.getExecutable(), result.getStderr());
                 throw new TAException(ErrorCode.ERROR, result.getStderr());
@@ -238,7 +238,7 @@ public class SetAssetTag implements ICommand{
         try {
             CommandLine command = new CommandLine("/opt/trustagent/bin/tpm_nvinfo");
             command.addArgument(String.format("-i %s", index), false);
-            Result result = ExecUtil.execute(command);
+            ProcessResult result = ProcessRunner.getInstance().execute(command);
             if (result.getExitCode() != 0) {
                 log.error("Error running command [{}]: {}", command.getExecutable(), result.getStderr());
                 throw new TAException(ErrorCode.ERROR, result.getStderr());
@@ -4,18 +4,25 @@
  */
 package com.intel.mountwilson.trustagent.commands.hostinfo;
 
+import com.intel.mountwilson.common.CommandGraph;
 import com.intel.mountwilson.common.ErrorCode;
 import com.intel.mountwilson.common.ICommand;
 import com.intel.mountwilson.common.TAException;
 import com.intel.mountwilson.trustagent.data.TADataContext;
-import com.intel.mtwilson.util.exec.ExecUtil;
-import com.intel.mtwilson.util.exec.Result;
+import com.intel.mtwilson.trustagent.shell.ProcessResult;
+import com.intel.mtwilson.trustagent.shell.ProcessRunner;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import org.apache.commons.exec.CommandLine;
 
 /**
+ * Collects the OS, BIOS, VMM, processor and UUID of the host. Values are
+ * read from /sys, /proc and /etc through SystemInfo where the files have
+ * the same content the commands would print, then from the output cached
+ * by "tagent update-system-info", and only when neither is available by
+ * running "tagent system-info". The five probes run concurrently.
  *
  * @author dsmagadx
  */
@@ -24,35 +31,112 @@ public class HostInfoCmd implements ICommand {
     private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(HostInfoCmd.class);
 
     TADataContext context = null;
+    private final SystemInfo systemInfo;
 
     public HostInfoCmd(TADataContext context) {
+        this(context, SystemInfo.getInstance());
+    }
+
+    HostInfoCmd(TADataContext context, SystemInfo systemInfo) {
         this.context = context;
+        this.systemInfo = systemInfo;
+    }
+
+    private interface Probe {
+        void run() throws TAException, IOException;
+    }
+
+    private ICommand probe(final Probe probe) {
+        return new ICommand() {
+            @Override
+            public void execute() throws TAException {
+                try {
+                    probe.run();
+                } catch (TAException | IOException ex) {
+                    log.debug("Error while getting OS details", ex);
+                    throw new TAException(ErrorCode.ERROR, "Error while getting OS details.", ex);
+                }
+            }
+        };
     }
 
     @Override
     public void execute() throws TAException {
+        // the VMM is probed even on XenServer, where the OS replaces it
+        // below, so that no probe waits for another
+        final TADataContext vmm = new TADataContext();
+        CommandGraph graph = new CommandGraph("hostinfo")
+                .stage("os", probe(new Probe() {
+                    @Override
+                    public void run() throws TAException, IOException {
+                        getOsAndVersion();
+                    }
+                }), CommandGraph.none(), CommandGraph.of("os"))
+                .stage("bios", probe(new Probe() {
+                    @Override
+                    public void run() throws TAException, IOException {
+                        getBiosAndVersion();
+                    }
+                }), CommandGraph.none(), CommandGraph.of("bios"))
+                .stage("vmm", probe(new Probe() {
+                    @Override
+                    public void run() throws TAException, IOException {
+                        getVmmAndVersion(vmm);
+                    }
+                }), CommandGraph.none(), CommandGraph.of("vmm"))
+                .stage("processor", probe(new Probe() {
+                    @Override
+                    public void run() throws TAException, IOException {
+                        // Retrieve the processor information as well.
+                        getProcessorInfo();
+                    }
+                }), CommandGraph.none(), CommandGraph.of("processor"))
+                .stage("uuid", probe(new Probe() {
+                    @Override
+                    public void run() throws TAException, IOException {
+                        getHostUUID();
+                    }
+                }), CommandGraph.none(), CommandGraph.of("uuid"));
         try {
-
-            getOsAndVersion();
-            getBiosAndVersion();
-            if (context.getOsName() != null && context.getOsName().toLowerCase().contains("xenserver")) {
-                context.setVmmName(context.getOsName());
-                context.setVmmVersion(context.getOsVersion());
-                log.debug("VMM Name: " + context.getVmmName());
-                log.debug("VMM Version: " + context.getVmmVersion());
-
-            } else {
-                getVmmAndVersion();
-
-            }
-            // Retrieve the processor information as well.
-            getProcessorInfo();
-            getHostUUID();
-        } catch (TAException | IOException ex) {
-            log.debug("Error while getting OS details", ex);
-            throw new TAException(ErrorCode.ERROR, "Error while getting OS details.", ex);
+            graph.execute();
+        } finally {
+            log.debug("performance: hostinfo stages {}", graph.getTimings());
+        }
+        if (context.getOsName() != null && context.getOsName().toLowerCase().contains("xenserver")) {
+            context.setVmmName(context.getOsName());
+            context.setVmmVersion(context.getOsVersion());
+        } else {
+            context.setVmmName(vmm.getVmmName());
+            context.setVmmVersion(vmm.getVmmVersion());
         }
+        log.debug("VMM Name: " + context.getVmmName());
+        log.debug("VMM Version: " + context.getVmmVersion());
+    }
 
+    /**
+     * Returns the output of a "tagent system-info" command, reading the file
+     * the script would print directly when it is readable.
+     *
+     * @param cachedFile name of the file in var/system-info
+     */
+    private String getSystemInfo(String cachedFile, String... args) throws TAException, IOException {
+        String cached = systemInfo.getCached(cachedFile);
+        if (cached != null) {
+            log.debug("cached {}: {}", cachedFile, cached);
+            return cached;
+        }
+        CommandLine command = new CommandLine("/opt/trustagent/bin/tagent");
+        command.addArgument("system-info");
+        for (String arg : args) {
+            command.addArgument(arg, false);
+        }
+        ProcessResult result = ProcessRunner.getInstance().execute(command);
+        if (result.getExitCode() != 0) {
+            log.error("Error running command [{}]: {}", command.getExecutable(), result.getStderr());
+            throw new TAException(ErrorCode.ERROR, result.getStderr());
+        }
+        log.debug("command stdout: {}", result.getStdout());
+        return result.getStdout();
     }
 
     /*
@@ -64,17 +148,20 @@ public class HostInfoCmd implements ICommand {
      Codename:       oneiric
      */
     private void getOsAndVersion() throws TAException, IOException {
-        CommandLine command = new CommandLine("/opt/trustagent/bin/tagent");
-        command.addArgument("system-info");
-        command.addArgument("lsb_release -a", false);
-        Result result = ExecUtil.execute(command);
-        if (result.getExitCode() != 0) {
-            log.error("Error running command [{}]: {}", command.getExecutable(), result.getStderr());
-            throw new TAException(ErrorCode.ERROR, result.getStderr());
+        // lsb_release reports DISTRIB_ID and DISTRIB_RELEASE when the
+        // distribution has /etc/lsb-release; others derive the name in
+        // ways that /etc/os-release does not match, like RedHatEnterpriseServer
+        Map<String, String> lsbRelease = systemInfo.getProperties("etc/lsb-release");
+        if (lsbRelease.get("DISTRIB_ID") != null && lsbRelease.get("DISTRIB_RELEASE") != null) {
+            context.setOsName(lsbRelease.get("DISTRIB_ID"));
+            context.setOsVersion(lsbRelease.get("DISTRIB_RELEASE"));
+            log.debug("OS Name: " + context.getOsName());
+            log.debug("OS Version: " + context.getOsVersion());
+            return;
         }
-        log.debug("command stdout: {}", result.getStdout());
-        if (result.getStdout() != null) {
-            String[] resultArray = result.getStdout().split("\n");
+        String stdout = getSystemInfo("lsb_release", "lsb_release -a");
+        if (stdout != null) {
+            String[] resultArray = stdout.split("\n");
             for (String str : resultArray) {
                 String[] parts = str.split(":");
 
@@ -91,11 +178,16 @@ public class HostInfoCmd implements ICommand {
                     }
                 }
             }
-            log.debug("OS Name: " + context.getOsName());
-            log.debug("OS Version: " + context.getOsVersion());
         } else {
             log.error("Error executing the lsb_release command to retrieve the OS details");
         }
+        if (context.getOsName() == null) {
+            Map<String, String> osRelease = systemInfo.getProperties("etc/os-release");
+            context.setOsName(osRelease.get("NAME"));
+            context.setOsVersion(osRelease.get("VERSION_ID"));
+        }
+        log.debug("OS Name: " + context.getOsName());
+        log.debug("OS Version: " + context.getOsVersion());
 
     }
 
@@ -109,20 +201,24 @@ public class HostInfoCmd implements ICommand {
      * response of dmidecode -s bios-vendor -> S5500.86B.01.00.0060.090920111354
      */
     private void getBiosAndVersion() throws TAException, IOException {
-        CommandLine command1 = new CommandLine("/opt/trustagent/bin/tagent");
-        command1.addArgument("system-info");
-        command1.addArgument("dmidecode");
-        command1.addArgument("-s bios-vendor", false);
-        Result result1 = ExecUtil.execute(command1);
-        if (result1.getExitCode() != 0) {
-            log.error("Error running command [{}]: {}", command1.getExecutable(), result1.getStderr());
-            throw new TAException(ErrorCode.ERROR, result1.getStderr());
+        context.setBiosOem(systemInfo.getDmi("bios_vendor"));
+        context.setBiosVersion(systemInfo.getDmi("bios_version"));
+        if (context.getBiosOem() == null) {
+            getBiosOem();
+        }
+        if (context.getBiosVersion() == null) {
+            getBiosVersion();
         }
-        log.debug("command stdout: {}", result1.getStdout());
-        if (result1 == null || result1.getStdout() == null) {
+        log.debug("Bios OEM: " + context.getBiosOem());
+        log.debug("Bios Version: " + context.getBiosVersion());
+    }
+
+    private void getBiosOem() throws TAException, IOException {
+        String stdout = getSystemInfo("dmidecode.bios-vendor", "dmidecode", "-s bios-vendor");
+        if (stdout == null) {
             throw new IOException("Command \"dmidecode -s bios-vendor\" gave a null response");
         }
-        List<String> resultList = Arrays.asList(result1.getStdout().split("\n"));
+        List<String> resultList = Arrays.asList(stdout.split("\n"));
         if (resultList != null && resultList.size() > 0) {
             for (String data : resultList) {
                 if (data.trim().startsWith("#")) // ignore the comments
@@ -133,22 +229,14 @@ public class HostInfoCmd implements ICommand {
                 break;
             }
         }
-        log.debug("Bios OEM: " + context.getBiosOem());
+    }
 
-        CommandLine command2 = new CommandLine("/opt/trustagent/bin/tagent");
-        command2.addArgument("system-info");
-        command2.addArgument("dmidecode");
-        command2.addArgument("-s bios-version", false);
-        Result result2 = ExecUtil.execute(command2);
-        if (result2.getExitCode() != 0) {
-            log.error("Error running command [{}]: {}", command2.getExecutable(), result2.getStderr());
-            throw new TAException(ErrorCode.ERROR, result2.getStderr());
-        }
-        log.debug("command stdout: {}", result2.getStdout());
-        if (result2 == null || result2.getStdout() == null) {
+    private void getBiosVersion() throws TAException, IOException {
+        String stdout = getSystemInfo("dmidecode.bios-version", "dmidecode", "-s bios-version");
+        if (stdout == null) {
             throw new IOException("Command \"dmidecode -s bios-version\" gave a null response");
         }
-        resultList = Arrays.asList(result2.getStdout().split("\n"));
+        List<String> resultList = Arrays.asList(stdout.split("\n"));
         if (resultList != null && resultList.size() > 0) {
             for (String data : resultList) {
                 if (data.trim().startsWith("#")) // ignore the comments
@@ -159,7 +247,6 @@ public class HostInfoCmd implements ICommand {
                 break;
             }
         }
-        log.debug("Bios Version: " + context.getBiosVersion());
     }
     /*
      * Sample response of "virsh version" command: 
@@ -170,21 +257,26 @@ public class HostInfoCmd implements ICommand {
      * Running hypervisor: QEMU 0.14.1
      */
 
-    private void getVmmAndVersion() throws TAException, IOException {
-        Result result;
-        result = null;
-        CommandLine dockerCommand = new CommandLine("/opt/trustagent/bin/tagent");
-        dockerCommand.addArgument("system-info");
-        dockerCommand.addArgument("docker version", false);
-        result = ExecUtil.execute(dockerCommand);
-        if (result == null || result.getExitCode() != 0 || result.getStdout() == null || result.getStdout().isEmpty()) {
-            // If Docker is not installed the exitcode is 127
-            log.info("Error running command [{}]", dockerCommand.getExecutable());
+    private void getVmmAndVersion(TADataContext context) throws TAException, IOException {
+        String dockerOutput = systemInfo.getCached("docker.version");
+        if (dockerOutput == null) {
+            CommandLine dockerCommand = new CommandLine("/opt/trustagent/bin/tagent");
+            dockerCommand.addArgument("system-info");
+            dockerCommand.addArgument("docker version", false);
+            ProcessResult result = ProcessRunner.getInstance().execute(dockerCommand);
+            if (result == null || result.getExitCode() != 0) {
+                // If Docker is not installed the exitcode is 127
+                log.info("Error running command [{}]", dockerCommand.getExecutable());
+            } else {
+                dockerOutput = result.getStdout();
+            }
+        }
+        if (dockerOutput == null || dockerOutput.isEmpty()) {
             log.info("Docker might not be installed or the docker version command returned a null response. Will check for the hypervisor installed.");
         } else {
             // Sample output would be
             // Docker version 1.9.1, build a34a1d5
-            String cmdOutput = result.getStdout();
+            String cmdOutput = dockerOutput;
             log.debug("getVmmAndVersion: output of docker -v command is {}.", cmdOutput);
             String[] resultArray = cmdOutput.split("\n");
             if (resultArray.length > 0) {
@@ -202,7 +294,7 @@ public class HostInfoCmd implements ICommand {
                     return;
                 }
             }
-            log.debug("command stdout: {}", result.getStdout());
+            log.debug("command stdout: {}", dockerOutput);
         }
         /* catch (TAException | IOException ex) {
             log.error("getVmmAndVersion: Error while running virsh command. {}", ex.getMessage());
@@ -216,16 +308,8 @@ public class HostInfoCmd implements ICommand {
         }
         */
 
-        CommandLine command = new CommandLine("/opt/trustagent/bin/tagent");
-        command.addArgument("system-info");
-        command.addArgument("virsh version", false);
-        result = ExecUtil.execute(command);
-        if (result.getExitCode() != 0) {
-            log.error("Error running command [{}]: {}", command.getExecutable(), result.getStderr());
-            throw new TAException(ErrorCode.ERROR, result.getStderr());
-        }
-
-        if (result == null || result.getStdout() == null || result.getStdout().isEmpty()) {
+        String virshOutput = getSystemInfo("virsh.version", "virsh version");
+        if (virshOutput == null || virshOutput.isEmpty()) {
             log.info("getVmmAndVersion: empty virsh version file, assuming no VMM installed");
             context.setVmmName("Host_No_VMM");
             context.setVmmVersion("0.0");
@@ -234,8 +318,8 @@ public class HostInfoCmd implements ICommand {
             //throw new TAException(ErrorCode.ERROR, "Not able to get VMM name and version.");
         }
 
-        if (result.getStdout() != null) {
-            String cmdOutput = result.getStdout();
+        if (virshOutput != null) {
+            String cmdOutput = virshOutput;
             log.debug("getVmmAndVersion: output of virsh version command is {}.", cmdOutput);
             String[] resultArray = cmdOutput.split("\n");
 
@@ -297,46 +381,52 @@ public class HostInfoCmd implements ICommand {
      * @throws TAException
      * @throws IOException
      */
-    private void getProcessorInfo() throws TAException, IOException {
-        CommandLine command = new CommandLine("/opt/trustagent/bin/tagent");
-        command.addArgument("system-info");
-        command.addArgument("dmidecode");
-        command.addArgument("--type processor", false);
-        Result result = ExecUtil.execute(command);
-        if (result.getExitCode() != 0) {
-            log.error("Error running command [{}]: {}", command.getExecutable(), result.getStderr());
-            throw new TAException(ErrorCode.ERROR, result.getStderr());
+    void getProcessorInfo() throws TAException, IOException {
+        // the SMBIOS processor ID is only readable by root; it is rebuilt
+        // from /proc/cpuinfo when the cached dmidecode output has no ID,
+        // and dmidecode runs only when neither has it
+        String stdout = systemInfo.getCached("dmidecode.processor");
+        String processorInfo = stdout == null ? "" : parseProcessorId(stdout);
+        if (processorInfo.isEmpty() && systemInfo.getProcessorId() != null) {
+            processorInfo = " " + systemInfo.getProcessorId(); // same as after "ID:" in dmidecode output
         }
-        log.debug("command stdout: {}", result.getStdout());
+        if (processorInfo.isEmpty() && stdout == null) {
+            stdout = getSystemInfo("dmidecode.processor", "dmidecode", "--type processor");
+            if (stdout == null) {
+                log.error("Error retrieving the processor information");
+                return;
+            }
+            processorInfo = parseProcessorId(stdout);
+        }
+        log.debug("Processor Information " + processorInfo);
+        context.setProcessorInfo(processorInfo);
+        log.debug("Context is being set with processor info: " + context.getProcessorInfo());
+    }
 
-        if (result.getStdout() != null) {
-            String[] resultArray = result.getStdout().split("\n");
-            String processorInfo = "";
+    /**
+     * @return the text after "ID:" in dmidecode --type processor output, or
+     * an empty string
+     */
+    private static String parseProcessorId(String stdout) {
+        String[] resultArray = stdout.split("\n");
 
-            // Sample output would look like below for a 2 CPU system. We will extract the processor info between CPU and the @ sign
-            //Processor Information
-            //Socket Designation: CPU1
-            //Type: Central Processor
-            //Family: Xeon
-            //Manufacturer: Intel(R) Corporation
-            //ID: C2 06 02 00 FF FB EB BF -- This is the CPU ID
-            //Signature: Type 0, Family 6, Model 44, Stepping 2
-            for (String entry : resultArray) {
-                if (entry != null && !entry.isEmpty() && entry.trim().startsWith("ID:")) {
-                    String[] parts = entry.trim().split(":");
-                    if (parts != null && parts.length > 1) {
-                        processorInfo = parts[1];
-                        break;
-                    }
+        // Sample output would look like below for a 2 CPU system. We will extract the processor info between CPU and the @ sign
+        //Processor Information
+        //Socket Designation: CPU1
+        //Type: Central Processor
+        //Family: Xeon
+        //Manufacturer: Intel(R) Corporation
+        //ID: C2 06 02 00 FF FB EB BF -- This is the CPU ID
+        //Signature: Type 0, Family 6, Model 44, Stepping 2
+        for (String entry : resultArray) {
+            if (entry != null && !entry.isEmpty() && entry.trim().startsWith("ID:")) {
+                String[] parts = entry.trim().split(":");
+                if (parts != null && parts.length > 1) {
+                    return parts[1];
                 }
             }
-
-            log.debug("Processor Information " + processorInfo);
-            context.setProcessorInfo(processorInfo);
-            log.debug("Context is being set with processor info: " + context.getProcessorInfo());
-        } else {
-            log.error("Error retrieving the processor information");
         }
+        return "";
     }
 
     /**
@@ -346,22 +436,18 @@ public class HostInfoCmd implements ICommand {
      * @throws IOException
      */
     public void getHostUUID() throws TAException, IOException {
-        CommandLine command = new CommandLine("/opt/trustagent/bin/tagent");
-        command.addArgument("system-info");
-        command.addArgument("dmidecode");
-        command.addArgument("-s system-uuid", false);
-        Result result = ExecUtil.execute(command);
-        if (result.getExitCode() != 0) {
-            log.error("Error running command [{}]: {}", command.getExecutable(), result.getStderr());
-            throw new TAException(ErrorCode.ERROR, result.getStderr());
+        context.setHostUUID(systemInfo.getSystemUuid()); // product_uuid is only readable by root
+        if (context.getHostUUID() != null) {
+            log.info("Context set with host UUID info: " + context.getHostUUID());
+            return;
         }
-        log.debug("command stdout: {}", result.getStdout());
+        String stdout = getSystemInfo("dmidecode.system-uuid", "dmidecode", "-s system-uuid");
 
         // sample output would look like: 4235D571-8542-FFD3-5BFE-6D9DAC874C84
-        if (result == null || result.getStdout() == null) {
+        if (stdout == null) {
             throw new IOException("Command \"dmidecode -s system-uuid\" gave a null response");
         }
-        List<String> resultList = Arrays.asList(result.getStdout().split("\n"));
+        List<String> resultList = Arrays.asList(stdout.split("\n"));
         if (resultList != null && resultList.size() > 0) {
             for (String data : resultList) {
                 if (data.trim().startsWith("#")) { // ignore the comments
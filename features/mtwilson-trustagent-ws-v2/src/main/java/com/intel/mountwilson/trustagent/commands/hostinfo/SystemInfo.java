@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mountwilson.trustagent.commands.hostinfo;
+
+import com.intel.mtwilson.Folders;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Reads host information from the files the kernel and the distribution
+ * already provide instead of running a command for each value:
+ *
+ * /sys/class/dmi/id/* for the BIOS vendor, BIOS version and system UUID
+ * (the same SMBIOS strings dmidecode prints), /etc/lsb-release and
+ * /etc/os-release for the OS, /proc/cpuinfo for the processor signature,
+ * and the output of "tagent update-system-info" cached in
+ * var/system-info for the values only root can read.
+ *
+ * Every method returns null when the value is not available so the caller
+ * can fall back to "tagent system-info".
+ */
+public class SystemInfo {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(SystemInfo.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String DMI_ID = "sys/class/dmi/id";
+    private static final String BOOT_ID = "proc/sys/kernel/random/boot_id";
+    /**
+     * DMI values that are readable without root and change when the
+     * firmware or the board changes
+     */
+    private static final String[] DMI_FINGERPRINT = {"bios_vendor", "bios_version", "bios_date", "sys_vendor", "product_name", "board_vendor", "board_name"};
+    /**
+     * Names /proc/cpuinfo uses for the CPUID leaf 1 EDX feature bits, by bit
+     * position; null for reserved bits
+     */
+    private static final String[] CPUID_EDX_FLAGS = {
+        "fpu", "vme", "de", "pse", "tsc", "msr", "pae", "mce",
+        "cx8", "apic", null, "sep", "mtrr", "pge", "mca", "cmov",
+        "pat", "pse36", "pn", "clflush", null, "dts", "acpi", "mmx",
+        "fxsr", "sse", "sse2", "ss", "ht", "tm", "ia64", "pbe"};
+    private static SystemInfo instance = null;
+    private final File root;
+    private final File cacheFolder;
+
+    SystemInfo(File root, File cacheFolder) {
+        this.root = root;
+        this.cacheFolder = cacheFolder;
+    }
+
+    public static synchronized SystemInfo getInstance() {
+        if (instance == null) {
+            instance = new SystemInfo(new File("/"), new File(Folders.application() + File.separator + "var" + File.separator + "system-info"));
+        }
+        return instance;
+    }
+
+    /**
+     * @param name file name in /sys/class/dmi/id like bios_vendor
+     * @return the value without the trailing newline, or null if the file
+     * is missing, empty or readable only by root (like product_uuid)
+     */
+    public String getDmi(String name) {
+        String value = read(new File(new File(root, DMI_ID), name));
+        if (value == null || value.trim().isEmpty()) {
+            return null;
+        }
+        return value.trim();
+    }
+
+    /**
+     * @return the system UUID in the same form as "dmidecode -s system-uuid"
+     */
+    public String getSystemUuid() {
+        String uuid = getDmi("product_uuid");
+        return uuid == null ? null : uuid.toUpperCase(Locale.ENGLISH);
+    }
+
+    /**
+     * @param name file written by "tagent update-system-info" like
+     * dmidecode.processor
+     * @return the cached command output, or null if it was not cached
+     */
+    public String getCached(String name) {
+        return read(new File(cacheFolder, name));
+    }
+
+    /**
+     * Parses a KEY=value file like /etc/os-release or /etc/lsb-release.
+     * Quotes around values are removed.
+     *
+     * @param path relative to the root, like etc/os-release
+     * @return the variables in the file, empty if it cannot be read
+     */
+    public Map<String, String> getProperties(String path) {
+        Map<String, String> properties = new HashMap<>();
+        String content = read(new File(root, path));
+        if (content == null) {
+            return properties;
+        }
+        for (String line : content.split("\n")) {
+            line = line.trim();
+            int equals = line.indexOf('=');
+            if (line.startsWith("#") || equals < 1) {
+                continue;
+            }
+            String value = line.substring(equals + 1).trim();
+            if (value.length() > 1 && (value.charAt(0) == '"' || value.charAt(0) == '\'') && value.charAt(value.length() - 1) == value.charAt(0)) {
+                value = value.substring(1, value.length() - 1);
+            }
+            properties.put(line.substring(0, equals).trim(), value);
+        }
+        return properties;
+    }
+
+    /**
+     * Builds the SMBIOS processor ID that dmidecode shows as "ID:" from the
+     * first processor in /proc/cpuinfo: the CPUID leaf 1 EAX signature
+     * followed by the EDX feature flags, both in little-endian byte order,
+     * like "C2 06 02 00 FF FB EB BF".
+     *
+     * @return the processor ID, or null if /proc/cpuinfo does not describe
+     * an x86 processor
+     */
+    public String getProcessorId() {
+        String content = read(new File(root, "proc/cpuinfo"));
+        if (content == null) {
+            return null;
+        }
+        Map<String, String> cpu = new HashMap<>();
+        for (String line : content.split("\n")) {
+            if (line.trim().isEmpty() && !cpu.isEmpty()) {
+                break; // only the first processor
+            }
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                cpu.put(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+            }
+        }
+        if (!cpu.containsKey("cpu family") || !cpu.containsKey("model") || !cpu.containsKey("stepping") || !cpu.containsKey("flags")) {
+            return null;
+        }
+        int family, model, stepping;
+        try {
+            family = Integer.parseInt(cpu.get("cpu family"));
+            model = Integer.parseInt(cpu.get("model"));
+            stepping = Integer.parseInt(cpu.get("stepping"));
+        } catch (NumberFormatException e) {
+            log.debug("Cannot parse processor signature from /proc/cpuinfo: {}", e.getMessage());
+            return null;
+        }
+        int baseFamily = family < 0xf ? family : 0xf;
+        int extendedFamily = family < 0xf ? 0 : family - 0xf;
+        int extendedModel = baseFamily == 0x6 || baseFamily == 0xf ? model >> 4 : 0;
+        int eax = (stepping & 0xf) | (model & 0xf) << 4 | baseFamily << 8 | (extendedModel & 0xf) << 16 | (extendedFamily & 0xff) << 20;
+        List<String> flags = Arrays.asList(cpu.get("flags").split("\\s+"));
+        int edx = 0;
+        for (int bit = 0; bit < CPUID_EDX_FLAGS.length; bit++) {
+            if (CPUID_EDX_FLAGS[bit] != null && flags.contains(CPUID_EDX_FLAGS[bit])) {
+                edx |= 1 << bit;
+            }
+        }
+        StringBuilder id = new StringBuilder();
+        for (int register : new int[]{eax, edx}) {
+            for (int i = 0; i < 4; i++) {
+                if (id.length() > 0) {
+                    id.append(' ');
+                }
+                id.append(String.format("%02X", (register >> (8 * i)) & 0xff));
+            }
+        }
+        return id.toString();
+    }
+
+    /**
+     * The host information can only change when the host reboots (a new
+     * boot ID), when the firmware changes (new DMI values) or when
+     * "tagent update-system-info" is run again.
+     *
+     * @return a value that changes whenever the host information may have
+     * changed, or null if the boot ID is not available
+     */
+    public String getFingerprint() {
+        String bootId = read(new File(root, BOOT_ID));
+        if (bootId == null) {
+            return null;
+        }
+        StringBuilder fingerprint = new StringBuilder(bootId.trim());
+        for (String name : DMI_FINGERPRINT) {
+            fingerprint.append('|').append(getDmi(name));
+        }
+        File[] cached = cacheFolder.listFiles();
+        long lastModified = 0;
+        if (cached != null) {
+            for (File file : cached) {
+                lastModified = Math.max(lastModified, file.lastModified());
+            }
+        }
+        fingerprint.append('|').append(lastModified);
+        return fingerprint.toString();
+    }
+
+    private String read(File file) {
+        if (!file.isFile() || !file.canRead()) {
+            return null;
+        }
+        try {
+            return new String(Files.readAllBytes(file.toPath()), UTF8);
+        } catch (IOException e) {
+            log.debug("Cannot read {}: {}", file.getPath(), e.getMessage());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mountwilson.trustagent.data;
+
+import com.intel.mountwilson.common.TAException;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Keeps the encoded event log that goes into every quote response.
+ * measureLog.xml is only written by module_analysis.sh (at boot, or when
+ * the file is missing), so the file is read and encoded again only when
+ * its size or modification time changes; otherwise the same encoded
+ * value is handed to every request.
+ */
+public class MeasureLogCache {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(MeasureLogCache.class);
+    private static final MeasureLogCache instance = new MeasureLogCache();
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Turns the file content into the value that is cached.
+     */
+    public interface Encoder {
+        String encode(String content) throws TAException;
+    }
+
+    private static class Entry {
+        private final long size;
+        private final long modified;
+        private final String encoded;
+
+        private Entry(long size, long modified, String encoded) {
+            this.size = size;
+            this.modified = modified;
+            this.encoded = encoded;
+        }
+    }
+
+    public static MeasureLogCache getInstance() {
+        return instance;
+    }
+
+    public String get(File file, Encoder encoder) throws IOException, TAException {
+        String path = file.getAbsolutePath();
+        // read the key before the content, so a file rewritten while we read it is read again next time
+        long size = file.length();
+        long modified = file.lastModified();
+        Entry entry = entries.get(path);
+        if (entry != null && entry.size == size && entry.modified == modified) {
+            return entry.encoded;
+        }
+        log.debug("Reading {} ({} bytes, modified {})", path, size, modified);
+        String encoded = encoder.encode(FileUtils.readFileToString(file));
+        entries.put(path, new Entry(size, modified, encoded));
+        return encoded;
+    }
+}
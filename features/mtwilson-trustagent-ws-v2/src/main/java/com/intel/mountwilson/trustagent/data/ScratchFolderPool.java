@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mountwilson.trustagent.data;
+
+import com.intel.dcsg.cpg.configuration.PropertiesConfiguration;
+import com.intel.mtwilson.trustagent.TrustagentConfiguration;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reusable scratch folders for the tools that can only exchange data
+ * through files (tpm2_listpcrs/tpm2_quote -o, aikquote, tpmtool).
+ *
+ * Folders live under tpm.quote.scratch.folder, which defaults to tmpfs
+ * (/run/trustagent) when it is available. That folder and the folders in
+ * it are created with mode 0700; an existing folder that is a symbolic
+ * link, is not owned by the trust agent user or is accessible to group or
+ * others is refused, so another local user cannot plant or link the files
+ * the tools write and the agent reads back. A folder is created the first time the
+ * pool needs it and then handed out again after release; releasing only
+ * deletes the files inside it, in-process, so a quote request does not
+ * mkdir or spawn "rm -rf". The pool grows to the peak number of concurrent
+ * requests that needed a folder.
+ */
+public class ScratchFolderPool {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(ScratchFolderPool.class);
+    private static ScratchFolderPool instance = null;
+    private final File base;
+    private final ConcurrentLinkedQueue<ScratchFolder> idle = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger created = new AtomicInteger(0);
+    private static final Set<PosixFilePermission> PRIVATE = PosixFilePermissions.fromString("rwx------");
+    private boolean baseVerified = false;
+
+    public static class ScratchFolder {
+        private final File directory;
+
+        private ScratchFolder(File directory) {
+            this.directory = directory;
+        }
+
+        public String getPath() {
+            return directory.getAbsolutePath();
+        }
+
+        private void clear() {
+            File[] files = directory.listFiles();
+            if (files == null) {
+                return;
+            }
+            for (File file : files) {
+                if (!file.delete()) {
+                    log.warn("Cannot delete scratch file {}", file.getAbsolutePath());
+                }
+            }
+        }
+    }
+
+    public ScratchFolderPool(File base) {
+        this.base = base;
+    }
+
+    public static synchronized ScratchFolderPool getInstance() {
+        if (instance == null) {
+            File base;
+            try {
+                base = TrustagentConfiguration.getSnapshot().getTpmQuoteScratchFolder();
+            } catch (IOException e) {
+                log.error("Cannot load configuration, using default scratch folder", e);
+                base = new TrustagentConfiguration(new PropertiesConfiguration()).getTpmQuoteScratchFolder();
+            }
+            log.debug("Scratch folder for quote tools is {}", base.getAbsolutePath());
+            instance = new ScratchFolderPool(base);
+        }
+        return instance;
+    }
+
+    public ScratchFolder acquire() throws IOException {
+        ScratchFolder folder = idle.poll();
+        if (folder != null && folder.directory.isDirectory()) {
+            return folder;
+        }
+        verifyBase();
+        File directory = new File(base, String.valueOf(created.incrementAndGet()));
+        // the folders may hold the nonce and the quote, keep them private to the trust agent user
+        createPrivateDirectory(directory.toPath());
+        log.debug("Created scratch folder {}", directory.getAbsolutePath());
+        folder = new ScratchFolder(directory);
+        folder.clear(); // left over from before a restart
+        return folder;
+    }
+
+    public void release(ScratchFolder folder) {
+        folder.clear();
+        idle.offer(folder);
+    }
+
+    private synchronized void verifyBase() throws IOException {
+        if (baseVerified) {
+            return;
+        }
+        Path parent = base.getAbsoluteFile().toPath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        createPrivateDirectory(base.toPath());
+        baseVerified = true;
+    }
+
+    /**
+     * Creates the directory with mode 0700, or checks that the existing one
+     * is a directory owned by the trust agent user without group or other
+     * permissions. Only the type is checked where the file system has no
+     * POSIX permissions.
+     */
+    static void createPrivateDirectory(Path directory) throws IOException {
+        boolean posix = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+        try {
+            if (posix) {
+                Files.createDirectory(directory, PosixFilePermissions.asFileAttribute(PRIVATE));
+            } else {
+                Files.createDirectory(directory);
+            }
+        } catch (FileAlreadyExistsException e) {
+            log.debug("Scratch folder {} exists", directory);
+        }
+        if (!posix) {
+            if (!Files.isDirectory(directory, LinkOption.NOFOLLOW_LINKS)) {
+                throw new IOException(String.format("Scratch folder %s is not a directory", directory));
+            }
+            return;
+        }
+        PosixFileAttributes attributes = Files.getFileAttributeView(directory, PosixFileAttributeView.class, LinkOption.NOFOLLOW_LINKS).readAttributes();
+        if (!attributes.isDirectory()) {
+            throw new IOException(String.format("Scratch folder %s is not a directory", directory));
+        }
+        UserPrincipal user = directory.getFileSystem().getUserPrincipalLookupService().lookupPrincipalByName(System.getProperty("user.name"));
+        if (!attributes.owner().equals(user)) {
+            throw new IOException(String.format("Scratch folder %s is owned by %s instead of %s", directory, attributes.owner().getName(), user.getName()));
+        }
+        if (!PRIVATE.containsAll(attributes.permissions())) {
+            throw new IOException(String.format("Scratch folder %s is accessible to other users (%s)", directory, PosixFilePermissions.toString(attributes.permissions())));
+        }
+    }
+}
@@ -5,6 +5,7 @@
 package com.intel.mountwilson.trustagent.data;
 
 import com.intel.dcsg.cpg.crypto.RandomUtil;
+import java.io.Closeable;
 import java.io.File;
 
 import com.intel.mountwilson.common.Config;
@@ -15,19 +16,30 @@ import com.intel.mtwilson.trustagent.model.TpmQuoteResponse;
 import com.intel.mtwilson.util.ResourceFinder;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.security.cert.X509Certificate;
 import java.util.Properties;
+import org.apache.commons.codec.binary.Base64;
 
 /**
+ * Per-request state of the quote command chain. Nonce, PCR and quote
+ * buffers are kept in memory; a scratch folder is only taken from the
+ * ScratchFolderPool when a command asks for a file name, and close()
+ * gives it back.
+ *
+ * Commands of one request may run concurrently (see CommandGraph); each
+ * sets its own fields, and the lazily created session id and scratch
+ * folder are synchronized.
  *
  * @author dsmagadX
  */
-public class TADataContext {
+public class TADataContext implements Closeable {
     private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(TADataContext.class);
 
     private ErrorCode errorCode = ErrorCode.OK;
     private String selectedPCRs = null;
-    private String nonceBase64;
+    private byte[] nonce;
     private String AIKCertificate = null;
+    private X509Certificate aikX509Certificate = null;
     private byte[] tpmQuote = null;
     private String responseXML = null;
     private byte[] daaChallenge;
@@ -47,6 +59,7 @@ public class TADataContext {
     private String sessionId;
     private String tcbMeasurement;
     private String selectedPcrBanks;
+    private ScratchFolderPool.ScratchFolder scratchFolder = null;
 
     public String getSelectedPcrBanks() {
         return selectedPcrBanks;
@@ -56,7 +69,7 @@ public class TADataContext {
         this.selectedPcrBanks = selectedPcrBanks;
     }
     
-    public String getSessionId() {
+    public synchronized String getSessionId() {
         if( sessionId == null ) {
             sessionId = RandomUtil.randomHexString(4);
             log.debug("Generated session id {}", sessionId);
@@ -121,11 +134,19 @@ public class TADataContext {
     }
 
     public String getNonce() {
-        return nonceBase64;
+        return nonce == null ? null : Base64.encodeBase64String(nonce);
+    }
+
+    public void setNonce(String nonceBase64) {
+        this.nonce = nonceBase64 == null ? null : Base64.decodeBase64(nonceBase64);
+    }
+
+    public byte[] getNonceBytes() {
+        return nonce;
     }
 
-    public void setNonce(String nonce) {
-        this.nonceBase64 = nonce;
+    public void setNonceBytes(byte[] nonce) {
+        this.nonce = nonce;
     }
 
     // issue #1038 prevent trust agent relay by default; customer can turn this off in configuration file by setting  tpm.quote.ipv4=false
@@ -180,19 +201,30 @@ public class TADataContext {
         return Folders.configuration();
     }
 
-    public String getDataFolder() {
-        String path = Folders.repository() + File.separator + getSessionId();
-        File dir = new File(path);
-        if( !dir.exists() ) {
-            if( dir.mkdirs() ) {
-                log.debug("Created session data folder {}", path);
+    public synchronized String getDataFolder() {
+        if( scratchFolder == null ) {
+            try {
+                scratchFolder = ScratchFolderPool.getInstance().acquire();
+                log.debug("Session {} using scratch folder {}", getSessionId(), scratchFolder.getPath());
             }
-            else {
-                log.error("Error creating data folder {}", path);
+            catch(IOException e) {
+                throw new IllegalStateException("Cannot allocate scratch folder", e);
             }
         }
         //return Config.getHomeFolder() + File.separator + Config.getInstance().getProperty("data.folder") + File.separator;
-        return path;
+        return scratchFolder.getPath();
+    }
+
+    /**
+     * Returns the scratch folder, if any, to the pool after deleting the
+     * files the commands left in it.
+     */
+    @Override
+    public synchronized void close() {
+        if( scratchFolder != null ) {
+            ScratchFolderPool.getInstance().release(scratchFolder);
+            scratchFolder = null;
+        }
     }
 
     public void setAIKCertificate(String certBytes) {
@@ -203,6 +235,18 @@ public class TADataContext {
         return AIKCertificate;
     }
 
+    /**
+     * @param certificate the decoded AIK certificate, shared with other
+     * requests by the TrustagentRepository credential store
+     */
+    public void setAikX509Certificate(X509Certificate certificate) {
+        this.aikX509Certificate = certificate;
+    }
+
+    public X509Certificate getAikX509Certificate() {
+        return aikX509Certificate;
+    }
+
     public void setDaaChallenge(byte[] bytes) {
         daaChallenge = bytes;
     }
@@ -247,7 +291,7 @@ public class TADataContext {
 
     public String getIdentityAuthKey() {
         try {
-            TrustagentConfiguration configuration = TrustagentConfiguration.loadConfiguration();
+            TrustagentConfiguration configuration = TrustagentConfiguration.getSnapshot();
             return configuration.getAikSecretHex();
             /*
             File aikAuthFile = ResourceFinder.getFile("trustagent.properties");
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mountwilson.trustagent.data;
+
+import com.intel.dcsg.cpg.xml.JAXB;
+import com.intel.mountwilson.common.ErrorCode;
+import com.intel.mountwilson.common.TAException;
+import com.intel.mtwilson.trustagent.measurement.TcbMeasurement;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.List;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Parses the tboot-xm measurement.xml into the TcbMeasurement model once
+ * and keeps its serialized form for the quote responses. The file is read
+ * again only when its path, size or modification time changes, and a file
+ * larger than tcb.measurement.max.size is rejected instead of being copied
+ * into every response.
+ *
+ * Only the SHA-256 digest of the file and its number of entries are
+ * logged, not the content.
+ */
+public class TcbMeasurementProvider {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(TcbMeasurementProvider.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final TcbMeasurementProvider instance = new TcbMeasurementProvider();
+    private volatile Measurement current = null;
+    private volatile boolean missingLogged = false;
+
+    public static class Measurement {
+        private final String path;
+        private final long size;
+        private final long modified;
+        private final TcbMeasurement model;
+        private final String xml;
+        private final String digest;
+        private final int entries;
+
+        private Measurement(String path, long size, long modified, TcbMeasurement model, String xml, String digest, int entries) {
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+            this.model = model;
+            this.xml = xml;
+            this.digest = digest;
+            this.entries = entries;
+        }
+
+        public TcbMeasurement getModel() {
+            return model;
+        }
+
+        /**
+         * @return the measurement.xml content, as sent in TpmQuoteResponse.tcbMeasurement
+         */
+        public String getXml() {
+            return xml;
+        }
+
+        /**
+         * @return hex SHA-256 of the measurement.xml content
+         */
+        public String getDigest() {
+            return digest;
+        }
+
+        public int getEntries() {
+            return entries;
+        }
+    }
+
+    public static TcbMeasurementProvider getInstance() {
+        return instance;
+    }
+
+    /**
+     * @param candidates locations of measurement.xml in order of preference
+     * @param maxSize largest file accepted, in bytes
+     * @return the measurement from the first candidate that exists, or null if none exists
+     * @throws TAException if the file is too large or is not a valid measurement
+     */
+    public Measurement get(List<File> candidates, long maxSize) throws TAException {
+        File file = null;
+        for (File candidate : candidates) {
+            if (candidate.exists()) {
+                file = candidate;
+                break;
+            }
+        }
+        if (file == null) {
+            if (!missingLogged) {
+                log.warn("TCB measurement XML file does not exist at {}", candidates);
+                missingLogged = true;
+            }
+            current = null;
+            return null;
+        }
+        missingLogged = false;
+        String path = file.getAbsolutePath();
+        long size = file.length();
+        long modified = file.lastModified();
+        Measurement measurement = current;
+        if (measurement != null && measurement.path.equals(path) && measurement.size == size && measurement.modified == modified) {
+            return measurement;
+        }
+        if (size > maxSize) {
+            log.error("TCB measurement XML file {} is {} bytes, larger than the {} bytes allowed by tcb.measurement.max.size", path, size, maxSize);
+            throw new TAException(ErrorCode.BAD_REQUEST, "measurement.xml file is too large");
+        }
+        measurement = load(file, path, size, modified);
+        current = measurement;
+        log.info("TCB measurement XML file {}: {} entries, sha256 {}", path, measurement.entries, measurement.digest);
+        return measurement;
+    }
+
+    private Measurement load(File file, String path, long size, long modified) throws TAException {
+        try {
+            byte[] content = FileUtils.readFileToByteArray(file);
+            String xml = new String(content, UTF8);
+            TcbMeasurement model = new JAXB().read(xml, TcbMeasurement.class);
+            String digest = Hex.encodeHexString(MessageDigest.getInstance("SHA-256").digest(content));
+            return new Measurement(path, size, modified, model, xml, digest, countEntries(content));
+        } catch (IOException e) {
+            log.warn("IOException, invalid measurement.xml: {}", e.getMessage());
+            throw new TAException(ErrorCode.BAD_REQUEST, "Invalid measurement.xml file. Cannot unmarshal/marshal object using jaxb.");
+        } catch (Exception e) {
+            log.warn("Exception, invalid measurement.xml: {}", e.getMessage());
+            throw new TAException(ErrorCode.BAD_REQUEST, "Invalid measurement.xml file. Cannot unmarshal/marshal object using jaxb.");
+        }
+    }
+
+    /**
+     * Counts the elements directly under the root (Dir, File, Symlink, ...).
+     */
+    private static int countEntries(byte[] content) throws XMLStreamException {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        XMLStreamReader reader = factory.createXMLStreamReader(new ByteArrayInputStream(content));
+        try {
+            int depth = 0;
+            int entries = 0;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    depth++;
+                    if (depth == 2) {
+                        entries++;
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    depth--;
+                }
+            }
+            return entries;
+        } finally {
+            reader.close();
+        }
+    }
+}
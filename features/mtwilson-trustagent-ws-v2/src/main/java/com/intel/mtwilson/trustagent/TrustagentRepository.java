@@ -4,33 +4,147 @@
  */
 package com.intel.mtwilson.trustagent;
 
+import com.intel.dcsg.cpg.crypto.SimpleKeystore;
+import com.intel.dcsg.cpg.io.FileResource;
 import com.intel.dcsg.cpg.x509.X509Util;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.security.KeyManagementException;
+import java.security.KeyStoreException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.UnrecoverableEntryException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.io.FileUtils;
 
 /**
+ * Certificates are decoded once and kept with their DER and PEM encodings
+ * and an entity tag, shared by all requests. An entry is read again when
+ * the size or modification time of its file changes, for example after
+ * the AIK is provisioned again.
  *
  * @author jbuhacoff
  */
 public class TrustagentRepository {
     private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(TrustagentRepository.class);
+    private static final ConcurrentHashMap<String, Credential> credentials = new ConcurrentHashMap<>();
     private TrustagentConfiguration configuration;
     public TrustagentRepository(TrustagentConfiguration configuration) { 
         this.configuration = configuration;
     }
     
-    public X509Certificate getExistingAikCertificate() throws IOException, CertificateException {
-        File aikCertificateFile = configuration.getAikCertificateFile();
-        if( !aikCertificateFile.exists() ) {
-            throw new FileNotFoundException(aikCertificateFile.getAbsolutePath());
+    /**
+     * A certificate with the encodings the web services return. The arrays
+     * are shared and must not be modified.
+     */
+    public static class Credential {
+        private final long size;
+        private final long modified;
+        private final X509Certificate certificate;
+        private final byte[] der;
+        private final String pem;
+        private final String etag;
+        
+        /**
+         * @param certificate a certificate that is not read from a file
+         */
+        public Credential(X509Certificate certificate) throws CertificateException {
+            this(0, 0, certificate);
+        }
+        
+        private Credential(long size, long modified, X509Certificate certificate) throws CertificateException {
+            this.size = size;
+            this.modified = modified;
+            this.certificate = certificate;
+            this.der = certificate.getEncoded();
+            this.pem = X509Util.encodePemCertificate(certificate);
+            try {
+                this.etag = Hex.encodeHexString(MessageDigest.getInstance("SHA-256").digest(der));
+            } catch (NoSuchAlgorithmException e) {
+                throw new CertificateException("SHA-256 is not available", e);
+            }
+        }
+        
+        public X509Certificate getCertificate() {
+            return certificate;
+        }
+        
+        public byte[] getDer() {
+            return der;
+        }
+        
+        public String getPem() {
+            return pem;
+        }
+        
+        /**
+         * @return hex SHA-256 of the DER encoding, without quotes
+         */
+        public String getEtag() {
+            return etag;
+        }
+    }
+    
+    interface Decoder {
+        X509Certificate decode(File file) throws IOException, CertificateException;
+    }
+    
+    static final Decoder PEM_FILE = new Decoder() {
+        @Override
+        public X509Certificate decode(File file) throws IOException, CertificateException {
+            return X509Util.decodePemCertificate(FileUtils.readFileToString(file));
+        }
+    };
+    
+    static Credential getCredential(String key, File file, Decoder decoder) throws IOException, CertificateException {
+        if( !file.exists() ) {
+            throw new FileNotFoundException(file.getAbsolutePath());
+        }
+        // read the key before the content, so a file rewritten while we read it is read again next time
+        long size = file.length();
+        long modified = file.lastModified();
+        Credential credential = credentials.get(key);
+        if( credential != null && credential.size == size && credential.modified == modified ) {
+            return credential;
         }
-        String aikPem = FileUtils.readFileToString(aikCertificateFile);
-        X509Certificate aikCertificate = X509Util.decodePemCertificate(aikPem);
-        return aikCertificate;
+        log.debug("Reading {} from {}", key, file.getAbsolutePath());
+        credential = new Credential(size, modified, decoder.decode(file));
+        credentials.put(key, credential);
+        return credential;
+    }
+    
+    public Credential getAikCredential() throws IOException, CertificateException {
+        return getCredential("aik", configuration.getAikCertificateFile(), PEM_FILE);
+    }
+    
+    public Credential getBindingKeyCredential() throws IOException, CertificateException {
+        return getCredential("binding-key", configuration.getBindingKeyX509CertificateFile(), PEM_FILE);
+    }
+    
+    /**
+     * @return the Privacy CA certificate stored in the trust agent keystore
+     */
+    public Credential getPrivacyCaCredential() throws IOException, CertificateException {
+        final String password = configuration.getTrustagentKeystorePassword();
+        return getCredential("privacy-ca", configuration.getTrustagentKeystoreFile(), new Decoder() {
+            @Override
+            public X509Certificate decode(File file) throws IOException, CertificateException {
+                try {
+                    SimpleKeystore keystore = new SimpleKeystore(new FileResource(file), password);
+                    return keystore.getX509Certificate("privacy", SimpleKeystore.CA);
+                } catch (KeyManagementException | NoSuchAlgorithmException | UnrecoverableEntryException | KeyStoreException e) {
+                    throw new CertificateException("Cannot load Privacy CA certificate from keystore", e);
+                }
+            }
+        });
+    }
+    
+    public X509Certificate getExistingAikCertificate() throws IOException, CertificateException {
+        return getAikCredential().getCertificate();
     }
     
     public X509Certificate getAikCertificate() throws IOException, CertificateException {
@@ -46,13 +160,7 @@ public class TrustagentRepository {
     
     public X509Certificate getBindingKeyCertificate() throws IOException, CertificateException {
         try {
-            File bkCertificateFile = configuration.getBindingKeyX509CertificateFile();
-            if (!bkCertificateFile.exists()) {
-                throw new FileNotFoundException(bkCertificateFile.getAbsolutePath());
-            }
-            String bkPem = FileUtils.readFileToString(bkCertificateFile);
-            X509Certificate bkCertificate = X509Util.decodePemCertificate(bkPem);
-            return bkCertificate;
+            return getBindingKeyCredential().getCertificate();
         } catch (IOException | CertificateException e) {
             log.debug("Cannot load Binding Key certificate", e);
             return null;
@@ -10,42 +10,39 @@ import com.intel.mtwilson.trustagent.TrustagentConfiguration;
 import com.intel.mtwilson.trustagent.TrustagentRepository;
 import java.io.IOException;
 import java.security.cert.CertificateException;
-import java.security.cert.X509Certificate;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 
 @V2
 @Path("/binding-key-certificate")
 public class BindingKey {
     private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(BindingKey.class);
-    private static X509Certificate binding = null;
     
     protected TrustagentConfiguration getConfiguration() throws IOException {
-        return TrustagentConfiguration.loadConfiguration();
+        return TrustagentConfiguration.getSnapshot();
     }
     
     @GET
     @Produces({CryptoMediaType.APPLICATION_PKIX_CERT, CryptoMediaType.APPLICATION_X_PEM_FILE})
-    public X509Certificate getCertificate() throws IOException, CertificateException {
-        if( binding == null ) {
-            TrustagentConfiguration configuration = getConfiguration();
-            if( configuration.isDaaEnabled() ) {
-                log.debug("daa is currently not supported");
-                return null;
-            }
-            else {
-                TrustagentRepository repository = new TrustagentRepository(configuration);
-                X509Certificate bkCertificate = repository.getBindingKeyCertificate();
-                if( bkCertificate == null ) {
-                    throw new WebApplicationException(Response.serverError().header("Error", "Cannot load Binding key certificate file").build());
-                }
-                binding = bkCertificate;
-            }
+    public Response getCertificate(@Context Request request, @Context HttpHeaders headers) throws IOException {
+        TrustagentConfiguration configuration = getConfiguration();
+        if( configuration.isDaaEnabled() ) {
+            log.debug("daa is currently not supported");
+            return null;
+        }
+        TrustagentRepository repository = new TrustagentRepository(configuration);
+        try {
+            return CredentialResponse.build(repository.getBindingKeyCredential(), request, headers);
+        } catch (IOException | CertificateException e) {
+            log.debug("Cannot load Binding Key certificate", e);
+            throw new WebApplicationException(Response.serverError().header("Error", "Cannot load Binding key certificate file").build());
         }
-        return binding;
     }
  
 }
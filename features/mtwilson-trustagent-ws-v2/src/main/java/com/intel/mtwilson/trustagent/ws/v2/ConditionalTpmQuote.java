@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.ws.v2;
+
+import com.intel.mtwilson.trustagent.model.TpmQuoteDigest;
+import com.intel.mtwilson.trustagent.model.TpmQuoteRequest;
+import com.intel.mtwilson.trustagent.model.TpmQuoteResponse;
+import java.security.MessageDigest;
+import java.security.cert.X509Certificate;
+
+/**
+ * Leaves the event log, TCB measurement and AIK certificate out of a quote
+ * response when the request shows the verifier already has them. None of
+ * them changes between boots, so after the first poll a verifier gets only
+ * the quote itself.
+ *
+ * Every quote response carries the TpmQuoteDigest.HEADER so a client knows
+ * it may send digests; an older trust agent could reject the unknown
+ * request fields.
+ */
+class ConditionalTpmQuote {
+    /**
+     * The event log and measurement are the same String instances from one
+     * request to the next while the files are unchanged, so their digests
+     * are computed once.
+     */
+    private static class Memo {
+        private final Object value;
+        private final byte[] digest;
+
+        private Memo(Object value, byte[] digest) {
+            this.value = value;
+            this.digest = digest;
+        }
+    }
+
+    private static volatile Memo eventLog = new Memo(null, null);
+    private static volatile Memo tcbMeasurement = new Memo(null, null);
+    private static volatile Memo aik = new Memo(null, null);
+
+    private ConditionalTpmQuote() {
+    }
+
+    static void apply(TpmQuoteRequest request, TpmQuoteResponse response) {
+        if (request.getEventLogDigest() != null) {
+            response.eventLogUnchanged = response.eventLog != null && MessageDigest.isEqual(request.getEventLogDigest(), eventLogDigest(response.eventLog));
+            if (response.eventLogUnchanged) {
+                response.eventLog = null;
+            }
+        }
+        if (request.getTcbMeasurementDigest() != null) {
+            response.tcbMeasurementUnchanged = response.tcbMeasurement != null && MessageDigest.isEqual(request.getTcbMeasurementDigest(), tcbMeasurementDigest(response.tcbMeasurement));
+            if (response.tcbMeasurementUnchanged) {
+                response.tcbMeasurement = null;
+            }
+        }
+        if (request.getAikDigest() != null) {
+            response.aikUnchanged = response.aik != null && MessageDigest.isEqual(request.getAikDigest(), aikDigest(response.aik));
+            if (response.aikUnchanged) {
+                response.aik = null;
+            }
+        }
+    }
+
+    private static byte[] eventLogDigest(String value) {
+        Memo memo = eventLog;
+        if (!value.equals(memo.value)) {
+            memo = new Memo(value, TpmQuoteDigest.of(value));
+            eventLog = memo;
+        }
+        return memo.digest;
+    }
+
+    private static byte[] tcbMeasurementDigest(String value) {
+        Memo memo = tcbMeasurement;
+        if (!value.equals(memo.value)) {
+            memo = new Memo(value, TpmQuoteDigest.of(value));
+            tcbMeasurement = memo;
+        }
+        return memo.digest;
+    }
+
+    private static byte[] aikDigest(X509Certificate value) {
+        Memo memo = aik;
+        if (!value.equals(memo.value)) {
+            memo = new Memo(value, TpmQuoteDigest.of(value));
+            aik = memo;
+        }
+        return memo.digest;
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.ws.v2;
+
+import com.intel.mtwilson.jaxrs2.mediatype.CryptoMediaType;
+import com.intel.mtwilson.trustagent.TrustagentRepository;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+
+/**
+ * Writes a cached credential in the requested encoding without encoding
+ * the certificate again, and answers 304 Not Modified when the client
+ * sends the entity tag of the certificate it already has in If-None-Match.
+ * The DER and PEM representations have different entity tags.
+ */
+class CredentialResponse {
+    private static final MediaType PKIX_CERT = MediaType.valueOf(CryptoMediaType.APPLICATION_PKIX_CERT);
+    private static final MediaType PEM_FILE = MediaType.valueOf(CryptoMediaType.APPLICATION_X_PEM_FILE);
+
+    private CredentialResponse() {
+    }
+
+    static Response build(TrustagentRepository.Credential credential, Request request, HttpHeaders headers) {
+        boolean pem = isPemAccepted(headers);
+        EntityTag etag = new EntityTag(credential.getEtag() + (pem ? "-pem" : "-der"));
+        Response.ResponseBuilder notModified = request.evaluatePreconditions(etag);
+        if (notModified != null) {
+            return notModified.header(HttpHeaders.VARY, HttpHeaders.ACCEPT).build();
+        }
+        Response.ResponseBuilder response = pem ? Response.ok(credential.getPem(), PEM_FILE) : Response.ok(credential.getDer(), PKIX_CERT);
+        return response.tag(etag).header(HttpHeaders.VARY, HttpHeaders.ACCEPT).build();
+    }
+
+    /**
+     * @return true if the client prefers PEM; DER is the default, as the
+     * first type in @Produces
+     */
+    private static boolean isPemAccepted(HttpHeaders headers) {
+        for (MediaType type : headers.getAcceptableMediaTypes()) { // most preferred first
+            if (type.isCompatible(PKIX_CERT)) {
+                return false;
+            }
+            if (type.isCompatible(PEM_FILE)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
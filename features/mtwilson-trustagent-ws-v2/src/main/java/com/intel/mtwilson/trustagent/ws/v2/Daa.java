@@ -4,6 +4,7 @@
  */
 package com.intel.mtwilson.trustagent.ws.v2;
 
+import com.intel.mountwilson.common.ErrorCode;
 import com.intel.mountwilson.common.TAException;
 import com.intel.mountwilson.trustagent.commands.daa.ChallengeResponseDaaCmd;
 import com.intel.mountwilson.trustagent.data.TADataContext;
@@ -11,6 +12,8 @@ import com.intel.mtwilson.launcher.ws.ext.V2;
 import com.intel.mtwilson.trustagent.TrustagentConfiguration;
 import com.intel.mtwilson.trustagent.model.DaaChallenge;
 import com.intel.mtwilson.trustagent.model.DaaResponse;
+import com.intel.mtwilson.trustagent.tpmmodules.TpmDispatcher;
+import gov.niarl.his.privacyca.TpmModule;
 import java.io.IOException;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
@@ -28,16 +31,23 @@ public class Daa {
     @POST
     @Path("/challenge")
     public DaaResponse daaChallenge(DaaChallenge daaChallenge) throws IOException, TAException {
-        TrustagentConfiguration configuration = TrustagentConfiguration.loadConfiguration();
+        TrustagentConfiguration configuration = TrustagentConfiguration.getSnapshot();
         if( !configuration.isDaaEnabled() ) {
             throw new WebApplicationException(Response.status(Response.Status.BAD_REQUEST).build());
         }
-        TADataContext context = new TADataContext();
-        context.setDaaChallenge(daaChallenge.getChallenge());
-        new ChallengeResponseDaaCmd(context).execute();
-        DaaResponse daaResponse = new DaaResponse();
-        daaResponse.setResponse(context.getDaaResponse());
-        return daaResponse; 
+        try (TADataContext context = new TADataContext()) {
+            context.setDaaChallenge(daaChallenge.getChallenge());
+            try (TpmDispatcher.Permit permit = TpmDispatcher.getInstance().acquire(TpmDispatcher.Lane.QUOTE)) {
+                new ChallengeResponseDaaCmd(context).execute();
+            } catch (TpmDispatcher.TpmBusyException e) {
+                throw Tpm.serviceUnavailable(e);
+            } catch (TpmModule.TpmModuleException e) {
+                throw new TAException(ErrorCode.ERROR, "Cannot access the TPM", e);
+            }
+            DaaResponse daaResponse = new DaaResponse();
+            daaResponse.setResponse(context.getDaaResponse());
+            return daaResponse;
+        }
     }
     
 }
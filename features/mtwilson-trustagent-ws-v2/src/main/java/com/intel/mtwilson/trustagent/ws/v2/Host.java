@@ -9,6 +9,7 @@ import com.intel.mountwilson.common.ICommand;
 import com.intel.mountwilson.common.TAException;
 import com.intel.mountwilson.trustagent.commands.hostinfo.HostInfoCmd;
 import com.intel.mountwilson.trustagent.commands.hostinfo.HostInfoCmdWin;
+import com.intel.mountwilson.trustagent.commands.hostinfo.SystemInfo;
 import com.intel.mountwilson.trustagent.data.TADataContext;
 import com.intel.mtwilson.launcher.ws.ext.V2;
 import java.util.Date;
@@ -24,21 +25,28 @@ import com.intel.mtwilson.trustagent.tpmmodules.Tpm;
 /**
  * Previously called host_info
  * 
+ * The host information is collected once and returned from memory until
+ * the host reboots, its firmware changes or the system information is
+ * updated, as detected by SystemInfo.getFingerprint().
+ * 
  * @author jbuhacoff
  */
 @V2
 @Path("/host")
 public class Host {
-    private static HostInfo hostInfo = null;
+    private static volatile HostInfo hostInfo = null;
+    private static volatile String hostInfoFingerprint = null;
     
     @GET
     @Produces({MediaType.APPLICATION_JSON,MediaType.APPLICATION_XML})
     public HostInfo getHostInformation() throws TAException {
-        if( hostInfo == null ) {
+        String osName = System.getProperty("os.name");
+        boolean windows = osName.toLowerCase().contains("windows");
+        String fingerprint = windows ? null : SystemInfo.getInstance().getFingerprint();
+        if( hostInfo == null || (fingerprint != null && !fingerprint.equals(hostInfoFingerprint)) ) {
             TADataContext context = new TADataContext();
             ICommand cmd;
-            String osName = System.getProperty("os.name");
-            if (osName.toLowerCase().contains("windows"))
+            if (windows)
                 cmd = new HostInfoCmdWin(context);
             else
                 cmd = new HostInfoCmd(context);
@@ -78,6 +86,7 @@ public class Host {
             return responseXML;
             */
             hostInfo = host;
+            hostInfoFingerprint = fingerprint;
         }
         return hostInfo;
     }
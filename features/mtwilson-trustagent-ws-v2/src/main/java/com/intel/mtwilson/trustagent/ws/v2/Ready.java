@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.ws.v2;
+
+import com.intel.mtwilson.launcher.ws.ext.V2;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+/**
+ * Readiness check for monit and load balancers: 200 once the warm-up has
+ * completed, 503 with Retry-After until then. Does not touch the TPM, so
+ * it is allowed without authentication in shiro.ini.
+ */
+@V2
+@Path("/ready")
+public class Ready {
+    private static final int RETRY_AFTER = 5; // seconds
+
+    @GET
+    @Produces({MediaType.APPLICATION_JSON, MediaType.APPLICATION_XML})
+    public Response getReady() {
+        WarmUp.Status status = WarmUp.getStatus();
+        if (!status.ready) {
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE).header("Retry-After", String.valueOf(RETRY_AFTER)).entity(status).build();
+        }
+        return Response.ok(status).build();
+    }
+}
@@ -24,6 +24,7 @@ import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import org.apache.commons.codec.binary.Hex;
 import com.intel.mtwilson.trustagent.tpmmodules.Tpm;
+import com.intel.mtwilson.trustagent.tpmmodules.TpmDispatcher;
 /**
  *
  * @author jbuhacoff
@@ -39,7 +40,11 @@ public class Tag {
         log.debug("writeTag uuid {} sha256 {}", tagInfo.getHardwareUuid(), Hex.encodeHexString(tagInfo.getTag()));       
         TrustagentConfiguration config = new TrustagentConfiguration(TAConfig.getConfiguration());        
         
-        Tpm.getModule().setAssetTag(config.getTpmOwnerSecret(), tagInfo.getTag());                
+        try {
+            Tpm.getModule().setAssetTag(config.getTpmOwnerSecret(), tagInfo.getTag());
+        } catch (TpmDispatcher.TpmBusyException e) {
+            throw com.intel.mtwilson.trustagent.ws.v2.Tpm.serviceUnavailable(e);
+        }
         
         log.debug("writeTag returning 204 status");
         response.setStatus(Response.Status.NO_CONTENT.getStatusCode());
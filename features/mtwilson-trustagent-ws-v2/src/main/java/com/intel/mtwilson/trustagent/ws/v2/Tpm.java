@@ -5,6 +5,9 @@
 package com.intel.mtwilson.trustagent.ws.v2;
 
 import com.intel.dcsg.cpg.net.IPv4Address;
+import com.intel.mountwilson.common.CommandGraph;
+import com.intel.mountwilson.common.ErrorCode;
+import com.intel.mountwilson.common.ICommand;
 import com.intel.mountwilson.common.TAException;
 import com.intel.mountwilson.trustagent.commands.BuildQuoteXMLCmd;
 import com.intel.mountwilson.trustagent.commands.CreateNonceFileCmd;
@@ -14,34 +17,34 @@ import com.intel.mountwilson.trustagent.commands.ReadIdentityCmd;
 import com.intel.mountwilson.trustagent.data.TADataContext;
 import com.intel.mtwilson.launcher.ws.ext.V2;
 import com.intel.dcsg.cpg.crypto.Sha1Digest;
-import com.intel.mountwilson.common.ErrorCode;
 import com.intel.mountwilson.trustagent.commands.ReadAssetTag;
 import com.intel.mountwilson.trustagent.commands.RetrieveTcbMeasurement;
 import com.intel.mtwilson.trustagent.TrustagentConfiguration;
+import com.intel.mtwilson.trustagent.tpmmodules.TpmDispatcher;
 import javax.ws.rs.Consumes;
+import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.MediaType;
 import com.intel.mtwilson.trustagent.model.TpmQuoteRequest;
+import com.intel.mtwilson.trustagent.model.TpmQuoteDigest;
 import com.intel.mtwilson.trustagent.model.TpmQuoteResponse;
-import com.intel.mtwilson.util.exec.EscapeUtil;
-import java.io.File;
-import com.intel.mtwilson.util.exec.ExecUtil;
-import com.intel.mtwilson.util.exec.Result;
+import com.intel.mtwilson.trustagent.model.TpmQuoteResponseCodec;
 import gov.niarl.his.privacyca.TpmModule;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 import org.apache.commons.codec.DecoderException;
-import org.apache.commons.codec.binary.Base64;
-import org.apache.commons.exec.CommandLine;
 import org.apache.commons.codec.binary.Hex;
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
 
 /**
@@ -52,31 +55,36 @@ import org.apache.commons.lang3.StringUtils;
 @Path("/tpm")
 public class Tpm {
     private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(Tpm.class);
-    private long t0 = System.currentTimeMillis();
+    private static TpmQuoteBatcher quoteBatcher = null;
     
 
-    /*
+    /**
+     * Same quote as tpmQuote, in the TLV encoding of TpmQuoteResponseCodec.
+     * The response is written to the connection field by field instead of
+     * being built as a document first.
+     */
     @POST
     @Path("/quote")
-    @Consumes(MediaType.APPLICATION_JSON)
-    @Produces(MediaType.APPLICATION_OCTET_STREAM)
-    public byte[] tpmQuoteBytes(TpmQuoteRequest tpmQuoteRequest, @Context HttpServletRequest request) throws IOException, TAException {
-        return null;
-    }
-    */
-    
-    private void logPerformance(String message) {
-        long t1 = System.currentTimeMillis();
-        log.debug("performance: after {} ms: {}", t1-t0, message);
-        t0 = t1;
+    @Consumes({MediaType.APPLICATION_XML,MediaType.APPLICATION_JSON})
+    @Produces(TpmQuoteResponseCodec.MEDIA_TYPE)
+    public StreamingOutput tpmQuoteBinary(TpmQuoteRequest tpmQuoteRequest, @Context HttpServletRequest request, @Context HttpServletResponse servletResponse) throws IOException, TAException {
+        final TpmQuoteResponse response = tpmQuote(tpmQuoteRequest, request, servletResponse);
+        if (response == null) {
+            return null;
+        }
+        return new StreamingOutput() {
+            @Override
+            public void write(OutputStream output) throws IOException {
+                TpmQuoteResponseCodec.write(response, output);
+            }
+        };
     }
     
     @POST
     @Path("/quote")
     @Consumes({MediaType.APPLICATION_XML,MediaType.APPLICATION_JSON})
     @Produces({MediaType.APPLICATION_XML,MediaType.APPLICATION_JSON})
-    public TpmQuoteResponse tpmQuote(TpmQuoteRequest tpmQuoteRequest, @Context HttpServletRequest request) throws IOException, TAException {
-        logPerformance("inside tpmQuote");
+    public TpmQuoteResponse tpmQuote(TpmQuoteRequest tpmQuoteRequest, @Context HttpServletRequest request, @Context HttpServletResponse servletResponse) throws IOException, TAException {
         /**
          * issue #1038 we will hash this ip address together with the input
          * nonce to produce the quote nonce; mtwilson server will do the same
@@ -91,8 +99,7 @@ public class Tpm {
          * will again has its ip address so it will be double-hashed and fail
          * verification
          */
-        TrustagentConfiguration configuration = TrustagentConfiguration.loadConfiguration();
-        logPerformance("TrustagentConfiguration.loadConfiguration()");
+        TrustagentConfiguration configuration = TrustagentConfiguration.getSnapshot();
         if( configuration.isTpmQuoteWithIpAddress() ) {
             if( IPv4Address.isValid(request.getLocalAddr()) ) {
                 IPv4Address ipv4 = new IPv4Address(request.getLocalAddr());
@@ -105,15 +112,15 @@ public class Tpm {
             }
         }
           
-        TADataContext context = new TADataContext(); // when we call getSessionId it will create a new random one
-        String osName = System.getProperty("os.name");
-        context.setOsName(osName);
+        final String osName = System.getProperty("os.name");
         
         //set PCR banks only applies to TPM 2.0
+        final String selectedPcrBanks;
         if (tpmQuoteRequest.getPcrbanks() == null)
-            context.setSelectedPcrBanks("SHA1");
+            selectedPcrBanks = "SHA1";
         else
-            context.setSelectedPcrBanks(tpmQuoteRequest.getPcrbanks());
+            selectedPcrBanks = tpmQuoteRequest.getPcrbanks();
+        final String selectedPcrs = joinIntegers(tpmQuoteRequest.getPcrs(), ' ');
 
         /* If it is Windows host, Here we read Geotag from nvram index 0x40000010 and do sha1(nonce | geotag) and use the result as the nonce for TPM quote
            As of now, we still keep the same geotag provisioning mechanism by writing it to TPM. there are other approaches as well, but not in implementation.
@@ -121,40 +128,37 @@ public class Tpm {
         boolean isTagProvisioned = false;        
         byte[] ownerAuth = configuration.getTpmOwnerSecret();
         byte[] assetTagHash = null;
+        // cached by the module until the tag is written again or the host reboots
         try {
             assetTagHash = com.intel.mtwilson.trustagent.tpmmodules.Tpm.getModule().readAssetTag(ownerAuth);
             log.debug("Asset Tag is: {}", assetTagHash);
             byte[] extendedNoncewithAssetTag = Sha1Digest.digestOf(tpmQuoteRequest.getNonce()).extend(assetTagHash).toByteArray();
             tpmQuoteRequest.setNonce(extendedNoncewithAssetTag);
             isTagProvisioned = true;
+        } catch (TpmDispatcher.TpmBusyException ex) {
+            throw serviceUnavailable(ex);
         } catch (TpmModule.TpmModuleException ex) {
             log.debug("Could not read Asset Tag from TPM");
             log.debug("Asset Tag is not provisioned");
         }               
 
-        context.setNonce(Base64.encodeBase64String(tpmQuoteRequest.getNonce()));
-        context.setSelectedPCRs(joinIntegers(tpmQuoteRequest.getPcrs(), ' '));
-
-        logPerformance("new TADataContext()");
-        new CreateNonceFileCmd(context).execute(); // FileUtils.write to file nonce (binary)
-        logPerformance("CreateNonceFileCmd");
-        new ReadIdentityCmd(context).execute();  // trustagentrepository.getaikcertificate
-        logPerformance("ReadIdentityCmd");
-
-        // Get the module information
-        new GenerateModulesCmd(context).execute(); // String moduleXml = getXmlFromMeasureLog(configuration);
-        logPerformance("GenerateModulesCmd");
-        new RetrieveTcbMeasurement(context).execute(); //does nothing if measurement.xml does not exist
-        logPerformance("RetrieveTcbMeasurement");
-    
-        new GenerateQuoteCmd(context).execute();
-        logPerformance("GenerateQuoteCmd");
-        new BuildQuoteXMLCmd(context).execute();
-        logPerformance("BuildQuoteXMLCmd");
-            
-        // return context.getResponseXML();
-        TpmQuoteResponse response = context.getTpmQuoteResponse();
-        logPerformance("context.getTpmQuoteResponse()");
+        /* Concurrent requests for the same PCRs can share one quote: the nonces
+           extended above become the leaves of a Merkle tree and the TPM quotes
+           its root. Disabled unless tpm.quote.batch.window is set.
+        */
+        TpmQuoteBatcher.Quoter quoter = new TpmQuoteBatcher.Quoter() {
+            @Override
+            public TpmQuoteResponse quote(byte[] nonce) throws IOException, TAException {
+                return Tpm.this.quote(nonce, osName, selectedPcrs, selectedPcrBanks);
+            }
+        };
+        TpmQuoteResponse response;
+        TpmQuoteBatcher batcher = getQuoteBatcher(configuration);
+        if (batcher == null) {
+            response = quoter.quote(tpmQuoteRequest.getNonce());
+        } else {
+            response = batcher.submit(selectedPcrs + "/" + selectedPcrBanks, tpmQuoteRequest.getNonce(), quoter);
+        }
 
         //assetTag 
         //#6560: Null pointer dereference of 'response' where null is returned from a method
@@ -162,26 +166,95 @@ public class Tpm {
             response.isTagProvisioned = isTagProvisioned;
             if (isTagProvisioned) 
                 response.assetTag = assetTagHash;
+            // leave out what the verifier already has from an earlier quote
+            ConditionalTpmQuote.apply(tpmQuoteRequest, response);
         }
+        servletResponse.setHeader(TpmQuoteDigest.HEADER, TpmQuoteDigest.ALGORITHM);
+
+        return response;
+    }
+    
+    TpmQuoteResponse quote(byte[] nonce, String osName, String selectedPcrs, String selectedPcrBanks) throws IOException, TAException {
+        final TADataContext context = new TADataContext(); // when we call getSessionId it will create a new random one
+        context.setOsName(osName);
+        context.setSelectedPcrBanks(selectedPcrBanks);
+        context.setNonceBytes(nonce);
+        context.setSelectedPCRs(selectedPcrs);
 
-        // delete temporary session directory
-        if (!osName.toLowerCase().contains("windows")) {
-            CommandLine command = new CommandLine("rm");
-            command.addArgument("-rf");
-            command.addArgument(EscapeUtil.doubleQuoteEscapeShellArgument(context.getDataFolder()));
-            Result result = ExecUtil.execute(command);
-            logPerformance("ExecUtil.execute(command)");
-            if (result.getExitCode() != 0) {
-                log.error("Error running command [{}]: {}", command.getExecutable(), result.getStderr());
-                throw new TAException(ErrorCode.ERROR, result.getStderr());
+        /* Only the quote needs the TPM. The AIK certificate, event log and
+           TCB measurement are read from files while the quote waits for the
+           TPM, and the response is built when all of them are available.
+        */
+        CommandGraph graph = new CommandGraph("quote");
+        Set<String> quoteInputs = CommandGraph.none();
+        // only the TPM 1.2 aikquote tool reads the nonce from a file; TPM 2.0 and Windows take it on the command line or in-process
+        if (!osName.toLowerCase().contains("windows") && "1.2".equals(com.intel.mtwilson.trustagent.tpmmodules.Tpm.getTpmVersion())) {
+            graph.stage("CreateNonceFileCmd", new CreateNonceFileCmd(context), CommandGraph.none(), CommandGraph.of("nonceFile")); // FileUtils.write to file nonce (binary)
+            quoteInputs = CommandGraph.of("nonceFile");
+        }
+        graph.stage("ReadIdentityCmd", new ReadIdentityCmd(context), CommandGraph.none(), CommandGraph.of("aik")); // trustagentrepository.getaikcertificate
+        graph.stage("GenerateModulesCmd", new GenerateModulesCmd(context), CommandGraph.none(), CommandGraph.of("eventLog")); // String moduleXml = getXmlFromMeasureLog(configuration);
+        graph.stage("RetrieveTcbMeasurement", new RetrieveTcbMeasurement(context), CommandGraph.none(), CommandGraph.of("tcbMeasurement")); //does nothing if measurement.xml does not exist
+        graph.tpmStage("GenerateQuoteCmd", new ICommand() {
+            @Override
+            public void execute() throws TAException {
+                try (TpmDispatcher.Permit permit = TpmDispatcher.getInstance().acquire(TpmDispatcher.Lane.QUOTE)) {
+                    new GenerateQuoteCmd(context).execute();
+                } catch (TpmDispatcher.TpmBusyException ex) {
+                    throw serviceUnavailable(ex);
+                } catch (TpmModule.TpmModuleException ex) {
+                    throw new TAException(ErrorCode.ERROR, "Cannot access the TPM", ex);
+                }
             }
-            log.debug("command stdout: {}", result.getStdout());
-        } else {
-            // we should use more neutral ways to delete the folder
-            FileUtils.forceDelete(new File(context.getDataFolder())); 
+        }, quoteInputs, CommandGraph.of("quote"));
+        graph.stage("BuildQuoteXMLCmd", new BuildQuoteXMLCmd(context), CommandGraph.of("aik", "eventLog", "tcbMeasurement", "quote"), CommandGraph.of("response"));
+        try {
+            graph.execute();
+            // return context.getResponseXML();
+            return context.getTpmQuoteResponse();
+        } finally {
+            log.debug("performance: quote stages {}", graph.getTimings());
+            // return the scratch folder, if a tool needed one, with its files deleted in-process
+            context.close();
         }
-        logPerformance("before return response");
-        return response;
+    }
+    
+    /**
+     * Queue depth and wait times of the TPM dispatcher, for monitoring.
+     */
+    @GET
+    @Path("/dispatcher")
+    @Produces({MediaType.APPLICATION_XML,MediaType.APPLICATION_JSON})
+    public TpmDispatcher.Metrics tpmDispatcherMetrics() {
+        return TpmDispatcher.getInstance().getMetrics();
+    }
+    
+    /**
+     * The TPM queue is full or the request waited too long for it; answer
+     * right away so the client retries later instead of piling up.
+     */
+    static WebApplicationException serviceUnavailable(TpmDispatcher.TpmBusyException e) {
+        log.debug("TPM busy: {}", e.getMessage());
+        return new WebApplicationException(Response.status(Response.Status.SERVICE_UNAVAILABLE).header("Retry-After", String.valueOf(e.getRetryAfter())).header("Error", e.getMessage()).build());
+    }
+    
+    /**
+     * The batcher follows the configuration snapshot: when the window or the
+     * batch size changes, a new batcher takes the following requests and the
+     * batches already open in the old one complete as they were.
+     */
+    private static synchronized TpmQuoteBatcher getQuoteBatcher(TrustagentConfiguration configuration) {
+        long window = configuration.getTpmQuoteBatchWindow();
+        int maxSize = configuration.getTpmQuoteBatchMax();
+        if (window <= 0) {
+            quoteBatcher = null;
+            return null;
+        }
+        if (quoteBatcher == null || quoteBatcher.window != window || quoteBatcher.maxSize != maxSize) {
+            log.debug("Batching quote requests for {} ms, at most {} per quote", window, maxSize);
+            quoteBatcher = new TpmQuoteBatcher(window, maxSize);
+        }
+        return quoteBatcher;
     }
     
     private String joinIntegers(int[] pcrs, char separator) {
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.ws.v2;
+
+import com.intel.mountwilson.common.ErrorCode;
+import com.intel.mountwilson.common.TAException;
+import com.intel.mtwilson.trustagent.model.TpmQuoteBatch;
+import com.intel.mtwilson.trustagent.model.TpmQuoteResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import javax.ws.rs.WebApplicationException;
+
+/**
+ * Collects the quote requests that arrive within tpm.quote.batch.window
+ * milliseconds for the same PCR selection and answers all of them with a
+ * single quote over the Merkle root of their nonces.
+ *
+ * The first request of a batch is the leader: it waits for the window to
+ * pass (or the batch to fill up), runs the quote, and wakes the other
+ * requests. A batch with only one request quotes that nonce directly so
+ * the response is exactly what an unbatched quote returns.
+ */
+class TpmQuoteBatcher {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(TpmQuoteBatcher.class);
+
+    interface Quoter {
+        TpmQuoteResponse quote(byte[] nonce) throws IOException, TAException;
+    }
+
+    private static class Batch {
+        private final ArrayList<byte[]> nonces = new ArrayList<>();
+        private boolean done = false;
+        private TpmQuoteResponse response;
+        private Exception error;
+
+        private synchronized void complete(TpmQuoteResponse response, Exception error) {
+            this.response = response;
+            this.error = error;
+            this.done = true;
+            notifyAll();
+        }
+
+        private synchronized void await() throws TAException {
+            while (!done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new TAException(ErrorCode.ERROR, "Interrupted while waiting for batched quote", e);
+                }
+            }
+        }
+    }
+
+    final long window;
+    final int maxSize;
+    private final HashMap<String, Batch> open = new HashMap<>(); // guarded by itself
+
+    TpmQuoteBatcher(long window, int maxSize) {
+        this.window = window;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @param key requests are only batched together when their keys are equal (same PCRs and banks)
+     * @param nonce the nonce after the IP address and asset tag extensions
+     */
+    TpmQuoteResponse submit(String key, byte[] nonce, Quoter quoter) throws IOException, TAException {
+        Batch batch;
+        int index;
+        boolean leader;
+        synchronized (open) {
+            batch = open.get(key);
+            leader = (batch == null);
+            if (leader) {
+                batch = new Batch();
+                open.put(key, batch);
+            }
+            index = batch.nonces.size();
+            batch.nonces.add(nonce);
+            if (batch.nonces.size() >= maxSize) {
+                open.remove(key); // full; later requests start a new batch
+                open.notifyAll();
+            }
+        }
+        if (leader) {
+            lead(key, batch, quoter);
+        }
+        batch.await();
+        if (batch.error != null) {
+            if (!leader && !(batch.error instanceof WebApplicationException)) {
+                throw new TAException(ErrorCode.ERROR, "Batched quote failed", batch.error);
+            }
+            if (batch.error instanceof IOException) {
+                throw (IOException) batch.error;
+            }
+            if (batch.error instanceof TAException) {
+                throw (TAException) batch.error;
+            }
+            throw (RuntimeException) batch.error; // including 503 when the TPM is busy, for every request in the batch
+        }
+        return responseFor(batch, index);
+    }
+
+    private void lead(String key, Batch batch, Quoter quoter) throws TAException {
+        long deadline = System.currentTimeMillis() + window;
+        synchronized (open) {
+            long remaining = window;
+            while (open.get(key) == batch && remaining > 0) {
+                try {
+                    open.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    open.remove(key);
+                    batch.complete(null, new TAException(ErrorCode.ERROR, "Interrupted while collecting quote batch", e));
+                    return;
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+            if (open.get(key) == batch) {
+                open.remove(key);
+            }
+        }
+        // the batch is closed, no more nonces are added to it
+        TpmQuoteResponse response = null;
+        Exception error = null;
+        boolean returned = false;
+        try {
+            byte[] quoted = batch.nonces.size() == 1 ? batch.nonces.get(0) : TpmQuoteBatch.root(batch.nonces);
+            log.debug("Quoting batch of {} requests", batch.nonces.size());
+            response = quoter.quote(quoted);
+            returned = true;
+        } catch (IOException | TAException | RuntimeException e) {
+            error = e;
+        } finally {
+            if (!returned && error == null) {
+                error = new IllegalStateException("Batched quote did not complete"); // an Error is propagating, don't leave the other requests waiting
+            }
+            batch.complete(response, error);
+        }
+    }
+
+    private static TpmQuoteResponse responseFor(Batch batch, int index) {
+        TpmQuoteResponse shared = batch.response;
+        if (batch.nonces.size() == 1 || shared == null) {
+            return shared;
+        }
+        TpmQuoteResponse response = shared.copy(); // each request sets its own asset tag and unchanged flags
+        response.batchIndex = index;
+        response.batchSize = batch.nonces.size();
+        response.batchProof = TpmQuoteBatch.proof(batch.nonces, index);
+        return response;
+    }
+}
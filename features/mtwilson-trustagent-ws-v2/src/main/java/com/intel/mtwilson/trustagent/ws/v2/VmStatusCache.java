@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.ws.v2;
+
+import com.intel.mtwilson.trustagent.TrustagentConfiguration;
+import com.intel.mtwilson.trustagent.vrtmclient.RPClientPool;
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Trust status of the VM instances by instance id, so /v2/vrtm/status does
+ * not ask vRTM on every request; the status only changes when a VM is
+ * launched, migrated or verified again.
+ *
+ * A trusted status is kept for vrtm.status.cache.ttl.trusted and an
+ * untrusted one for the shorter vrtm.status.cache.ttl.untrusted. A
+ * background thread asks vRTM again for statuses that are three quarters
+ * through their time to live, so instances that are polled regularly are
+ * always answered from memory, and drops instances that were not requested
+ * for EVICT_AFTER. A status is dropped at once when the folder of the
+ * instance under vrtm.instances.path is modified (its files are created or
+ * replaced when vRTM measures or verifies the VM) and when a new
+ * attestation report is generated for the instance. Failed queries are not
+ * cached. A time to live of 0 disables the cache.
+ */
+public class VmStatusCache {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(VmStatusCache.class);
+    private static final long EVICT_AFTER = 600000; // milliseconds without a request before an instance is no longer refreshed
+    private static final long REFRESH_TIMEOUT = 30000; // milliseconds to wait for vRTM during a background refresh
+    private static VmStatusCache instance = null;
+    private final RPClientPool pool;
+    private final File instancesFolder;
+    private final long trustedTtl;
+    private final long untrustedTtl;
+    private final long refreshInterval;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private ScheduledExecutorService scheduler = null; // started by the first cached status
+
+    private static class Entry {
+        private final boolean trustStatus;
+        private final long fetched; // when vRTM was asked
+        private final long folderModified; // of the instance folder before vRTM was asked
+        private volatile long accessed;
+
+        private Entry(boolean trustStatus, long fetched, long folderModified, long accessed) {
+            this.trustStatus = trustStatus;
+            this.fetched = fetched;
+            this.folderModified = folderModified;
+            this.accessed = accessed;
+        }
+    }
+
+    VmStatusCache(RPClientPool pool, File instancesFolder, long trustedTtl, long untrustedTtl, long refreshInterval) {
+        this.pool = pool;
+        this.instancesFolder = instancesFolder;
+        this.trustedTtl = trustedTtl;
+        this.untrustedTtl = untrustedTtl;
+        this.refreshInterval = refreshInterval;
+    }
+
+    public static synchronized VmStatusCache getInstance() throws IOException {
+        if (instance == null) {
+            TrustagentConfiguration configuration = TrustagentConfiguration.getSnapshot();
+            instance = new VmStatusCache(RPClientPool.getInstance(), new File(configuration.getVrtmInstancesPath()),
+                    configuration.getVrtmStatusCacheTtlTrusted(), configuration.getVrtmStatusCacheTtlUntrusted(), configuration.getVrtmStatusCacheRefresh());
+        }
+        return instance;
+    }
+
+    /**
+     * @return the cached trust status, or asks vRTM if it is not cached or
+     * no longer valid
+     * @throws IOException if vRTM cannot be reached
+     */
+    public boolean getTrustStatus(String vmInstanceId) throws IOException {
+        Boolean cached = getCachedTrustStatus(vmInstanceId);
+        if (cached != null) {
+            return cached;
+        }
+        long fetched = System.currentTimeMillis();
+        long folderModified = getFolderModified(vmInstanceId);
+        boolean trustStatus = pool.getVmStatus(vmInstanceId);
+        put(vmInstanceId, trustStatus, fetched, folderModified);
+        return trustStatus;
+    }
+
+    /**
+     * @return the cached trust status, or null if it is not cached or no
+     * longer valid
+     */
+    public Boolean getCachedTrustStatus(String vmInstanceId) {
+        Entry entry = entries.get(vmInstanceId);
+        if (entry == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (now - entry.fetched >= getTtl(entry.trustStatus)) {
+            return null;
+        }
+        if (getFolderModified(vmInstanceId) != entry.folderModified) {
+            log.debug("Folder of VM {} changed, dropping cached status", vmInstanceId);
+            entries.remove(vmInstanceId, entry);
+            return null;
+        }
+        entry.accessed = now;
+        return entry.trustStatus;
+    }
+
+    /**
+     * Caches a trust status just received from vRTM.
+     *
+     * @param fetched when vRTM was asked
+     * @param folderModified the result of getFolderModified before vRTM was
+     * asked, so a change while it answers is not missed
+     */
+    public void put(String vmInstanceId, boolean trustStatus, long fetched, long folderModified) {
+        if (getTtl(trustStatus) <= 0) {
+            return;
+        }
+        entries.put(vmInstanceId, new Entry(trustStatus, fetched, folderModified, System.currentTimeMillis()));
+        startRefresh();
+    }
+
+    public void invalidate(String vmInstanceId) {
+        entries.remove(vmInstanceId);
+    }
+
+    /**
+     * @return the modification time of the instance folder, 0 if it does
+     * not exist, or -1 if the instance id cannot be a folder name
+     */
+    public long getFolderModified(String vmInstanceId) {
+        if (vmInstanceId.isEmpty() || vmInstanceId.contains("/") || vmInstanceId.contains(File.separator) || vmInstanceId.startsWith(".")) {
+            return -1;
+        }
+        return new File(instancesFolder, vmInstanceId).lastModified();
+    }
+
+    private long getTtl(boolean trustStatus) {
+        return trustStatus ? trustedTtl : untrustedTtl;
+    }
+
+    private synchronized void startRefresh() {
+        if (scheduler != null || refreshInterval <= 0) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "vrtm-status-refresh");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refresh();
+                } catch (RuntimeException e) {
+                    log.warn("Cannot refresh VM trust status: {}", e.getMessage());
+                }
+            }
+        }, refreshInterval, refreshInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Drops instances that were not requested for EVICT_AFTER and asks
+     * vRTM again for the others whose status is three quarters through its
+     * time to live or whose folder changed.
+     */
+    void refresh() {
+        long now = System.currentTimeMillis();
+        Map<String, Future<Boolean>> pending = new LinkedHashMap<>();
+        Map<String, Long> folders = new LinkedHashMap<>();
+        for (Map.Entry<String, Entry> cached : entries.entrySet()) {
+            String vmInstanceId = cached.getKey();
+            Entry entry = cached.getValue();
+            if (now - entry.accessed >= EVICT_AFTER) {
+                entries.remove(vmInstanceId, entry);
+                continue;
+            }
+            long folderModified = getFolderModified(vmInstanceId);
+            if (folderModified != entry.folderModified || now - entry.fetched >= getTtl(entry.trustStatus) * 3 / 4) {
+                folders.put(vmInstanceId, folderModified);
+                pending.put(vmInstanceId, pool.getVmStatusAsync(vmInstanceId));
+            }
+        }
+        long deadline = now + REFRESH_TIMEOUT;
+        for (Map.Entry<String, Future<Boolean>> status : pending.entrySet()) {
+            String vmInstanceId = status.getKey();
+            try {
+                boolean trustStatus = status.getValue().get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                Entry entry = entries.get(vmInstanceId);
+                if (entry == null) {
+                    continue; // invalidated while vRTM answered
+                }
+                if (entry.trustStatus != trustStatus) {
+                    log.info("Trust status of VM {} changed to {}", vmInstanceId, trustStatus);
+                }
+                if (getTtl(trustStatus) > 0) {
+                    entries.replace(vmInstanceId, entry, new Entry(trustStatus, now, folders.get(vmInstanceId), entry.accessed));
+                } else {
+                    entries.remove(vmInstanceId, entry);
+                }
+            } catch (ExecutionException e) {
+                log.debug("Cannot refresh status of VM {}: {}", vmInstanceId, e.getCause().getMessage());
+            } catch (TimeoutException e) {
+                status.getValue().cancel(true);
+                log.debug("No status of VM {} from vRTM after {} ms", vmInstanceId, REFRESH_TIMEOUT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
@@ -12,11 +12,30 @@ import javax.ws.rs.core.MediaType;
 import com.intel.mtwilson.trustagent.model.VMQuoteResponse;
 import com.intel.mtwilson.trustagent.model.VMAttestationRequest;
 import com.intel.mtwilson.trustagent.model.VMAttestationResponse;
-import com.intel.mtwilson.trustagent.vrtmclient.RPClient;
+import com.intel.mtwilson.trustagent.model.VMAttestationStatusesRequest;
+import com.intel.mtwilson.trustagent.model.VMAttestationStatusesResponse;
+import com.intel.mtwilson.trustagent.model.VMQuoteBundle;
+import com.intel.mtwilson.trustagent.TrustagentConfiguration;
+import com.intel.mtwilson.trustagent.vrtmclient.RPClientPool;
 import java.io.File;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.POST;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 import org.apache.commons.io.FileUtils;
 
 
@@ -45,9 +64,7 @@ public class Vrtm {
         String vmInstanceId = vmAttestationRequest.getVmInstanceId();
         VMAttestationResponse vmAttestationResponse = new VMAttestationResponse();        
 
-        RPClient rpcInstance = new RPClient("127.0.0.1", 16005); // create instance of RPClient
-        boolean vmstatus = rpcInstance.getVmStatus(vmInstanceId);    // send tcBuffer to rpcore 
-        rpcInstance.close();   // close RPClient
+        boolean vmstatus = VmStatusCache.getInstance().getTrustStatus(vmInstanceId);    // cached, or send tcBuffer to rpcore on a pooled connection
         
         //set report
         vmAttestationResponse.setVmInstanceId(vmInstanceId);
@@ -56,6 +73,79 @@ public class Vrtm {
         return vmAttestationResponse;
 
     }
+
+    /**
+     * Trust status of many VM instances in one request. Cached statuses are
+     * used as is; the other instances are queried concurrently on the
+     * pooled vRTM connections, so at most as many as the pool has
+     * connections at a time; an instance without a status after
+     * vrtm.status.timeout is reported in errors and its query is cancelled.
+     *
+     * JSON input {"vm_instance_ids":["dcc4a894-869b-479a-a24a-659eef7a54bd","a222c422-714f-42bd-89c6-7042870c5784"]}
+     * JSON output: {"trust_statuses":{"dcc4a894-869b-479a-a24a-659eef7a54bd":true},"errors":{"a222c422-714f-42bd-89c6-7042870c5784":"Connection refused"}}
+     */
+    @POST
+    @Path("/statuses")
+    @Produces({MediaType.APPLICATION_JSON})
+    @Consumes({MediaType.APPLICATION_JSON,MediaType.APPLICATION_XML})
+    public VMAttestationStatusesResponse getVMAttestationStatuses(VMAttestationStatusesRequest vmAttestationStatusesRequest) throws IOException {
+        TrustagentConfiguration configuration = TrustagentConfiguration.getSnapshot();
+        return getVMAttestationStatuses(vmAttestationStatusesRequest, VmStatusCache.getInstance(), RPClientPool.getInstance(), configuration.getVrtmStatusBatchMax(), configuration.getVrtmStatusTimeout());
+    }
+
+    /**
+     * @param batchMax most VM instance ids in one request
+     * @param timeout milliseconds to wait for all statuses that are not cached
+     */
+    VMAttestationStatusesResponse getVMAttestationStatuses(VMAttestationStatusesRequest vmAttestationStatusesRequest, VmStatusCache cache, RPClientPool pool, int batchMax, long timeout) throws IOException {
+        Set<String> vmInstanceIds = new LinkedHashSet<>();
+        if (vmAttestationStatusesRequest != null && vmAttestationStatusesRequest.getVmInstanceIds() != null) {
+            for (String vmInstanceId : vmAttestationStatusesRequest.getVmInstanceIds()) {
+                if (vmInstanceId == null || vmInstanceId.trim().isEmpty()) {
+                    throw new WebApplicationException(Response.status(Response.Status.BAD_REQUEST).header("Error", "Empty VM instance id").build());
+                }
+                vmInstanceIds.add(vmInstanceId);
+            }
+        }
+        if (vmInstanceIds.size() > batchMax) {
+            throw new WebApplicationException(Response.status(Response.Status.BAD_REQUEST).header("Error", "More than " + batchMax + " VM instance ids").build());
+        }
+        
+        VMAttestationStatusesResponse response = new VMAttestationStatusesResponse();
+        long fetched = System.currentTimeMillis();
+        Map<String, Long> folders = new LinkedHashMap<>();
+        Map<String, Future<Boolean>> statuses = new LinkedHashMap<>();
+        for (String vmInstanceId : vmInstanceIds) {
+            Boolean cached = cache.getCachedTrustStatus(vmInstanceId);
+            if (cached != null) {
+                response.getTrustStatuses().put(vmInstanceId, cached);
+                continue;
+            }
+            folders.put(vmInstanceId, cache.getFolderModified(vmInstanceId));
+            statuses.put(vmInstanceId, pool.getVmStatusAsync(vmInstanceId));
+        }
+        long deadline = System.currentTimeMillis() + timeout;
+        for (Map.Entry<String, Future<Boolean>> status : statuses.entrySet()) {
+            try {
+                boolean trustStatus = status.getValue().get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                response.getTrustStatuses().put(status.getKey(), trustStatus);
+                cache.put(status.getKey(), trustStatus, fetched, folders.get(status.getKey()));
+            } catch (ExecutionException e) {
+                log.debug("Cannot get status of VM {} from vRTM", status.getKey(), e.getCause());
+                response.getErrors().put(status.getKey(), String.valueOf(e.getCause().getMessage()));
+            } catch (TimeoutException e) {
+                status.getValue().cancel(true);
+                response.getErrors().put(status.getKey(), "No status from vRTM after " + timeout + " ms");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                for (Future<Boolean> pending : statuses.values()) {
+                    pending.cancel(true);
+                }
+                throw new IOException("Interrupted while waiting for vRTM", e);
+            }
+        }
+        return response;
+    }
 	
     @POST
     @Path("/report")
@@ -68,9 +158,8 @@ public class Vrtm {
             String nonce = vmAttestationRequest.getNonce();
             
             // Call into the vRTM API and get the path information
-            RPClient rpcInstance = new RPClient("127.0.0.1", 16005);
-            String instanceFolderPath = rpcInstance.getVMAttestationReportPath(vmInstanceId, nonce);
-            rpcInstance.close();
+            String instanceFolderPath = RPClientPool.getInstance().getVMAttestationReportPath(vmInstanceId, nonce);
+            VmStatusCache.getInstance().invalidate(vmInstanceId); // vRTM verified the instance again for the report
             
             if (instanceFolderPath == null || instanceFolderPath.isEmpty()) {
                 String errorInfo = "Error during retrieval of the instance path. Please verify the input parameters.";
@@ -93,6 +182,72 @@ public class Vrtm {
         return null;
     }	
 
+    /**
+     * Same report as getVMAttestationReport, in the encoding of
+     * VMQuoteBundle. Each file is copied to the connection through a small
+     * buffer instead of being read into memory and encoded in base64, and
+     * its digest is computed in the same pass and sent after it.
+     */
+    @POST
+    @Path("/report")
+    @Produces(VMQuoteBundle.MEDIA_TYPE)
+    @Consumes({MediaType.APPLICATION_JSON,MediaType.APPLICATION_XML})
+    public Response getVMAttestationReportBundle(VMAttestationRequest vmAttestationRequest) throws IOException {
+        String vmInstanceId = vmAttestationRequest.getVmInstanceId();
+        String nonce = vmAttestationRequest.getNonce();
+        
+        // Call into the vRTM API and get the path information
+        String instanceFolderPath = RPClientPool.getInstance().getVMAttestationReportPath(vmInstanceId, nonce);
+        VmStatusCache.getInstance().invalidate(vmInstanceId); // vRTM verified the instance again for the report
+        
+        if (instanceFolderPath == null || instanceFolderPath.isEmpty()) {
+            log.error("Error during retrieval of the instance path. Please verify the input parameters.");
+            return null;
+        }
+        
+        final int[] tags = new int[] { VMQuoteBundle.MEASUREMENTS, VMQuoteBundle.TRUST_POLICY, VMQuoteBundle.QUOTE };
+        final String[] fileNames = new String[] { measurementXMLFileName, trustPolicyFileName, vmQuoteFileName };
+        final FileChannel[] files = new FileChannel[tags.length];
+        try {
+            // opened now so a missing file is an error response rather than a broken stream
+            for (int i = 0; i < tags.length; i++) {
+                files[i] = FileChannel.open(Paths.get(String.format("%s%s", instanceFolderPath, fileNames[i])), StandardOpenOption.READ);
+            }
+        } catch (IOException | RuntimeException e) {
+            log.error("Error during reading of VM quote information. {}", e.getMessage());
+            close(files);
+            throw e;
+        }
+        
+        StreamingOutput bundle = new StreamingOutput() {
+            @Override
+            public void write(OutputStream output) throws IOException {
+                try {
+                    VMQuoteBundle.writeHeader(output, VMQuoteResponse.QuoteType.XML_DSIG);
+                    for (int i = 0; i < tags.length; i++) {
+                        VMQuoteBundle.writeFile(output, tags[i], files[i], files[i].size());
+                    }
+                    VMQuoteBundle.writeTrailer(output);
+                } finally {
+                    close(files);
+                }
+            }
+        };
+        return Response.ok().entity(bundle).type(VMQuoteBundle.MEDIA_TYPE).build();
+    }
+    
+    private static void close(FileChannel[] files) {
+        for (FileChannel file : files) {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    log.debug("Cannot close VM quote file: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
 /*    @POST
     @Path("/report")
     @Produces({MediaType.APPLICATION_JSON,MediaType.APPLICATION_XML})
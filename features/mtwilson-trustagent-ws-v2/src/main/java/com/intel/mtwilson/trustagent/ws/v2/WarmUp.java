@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.ws.v2;
+
+import com.intel.mtwilson.trustagent.TrustagentConfiguration;
+import com.intel.mtwilson.trustagent.TrustagentRepository;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.nio.charset.Charset;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+/**
+ * Fills the caches the first requests after a restart would otherwise pay
+ * for: the TPM version and module, the host information, the AIK and
+ * Privacy CA certificates, the event log and the TPM tools or engine (by
+ * one quote of PCR 0 with a random nonce), and finally a request to
+ * /v2/ready over loopback TLS, which goes through the handshake, the
+ * Shiro filters, Jersey and Jackson like a verifier request.
+ *
+ * Registered as a listener in web.xml; the warm-up runs in the background
+ * while Jetty starts its connector. A step that fails is logged and
+ * skipped, because an agent that is not provisioned yet must still become
+ * ready. /v2/ready reports the progress and the duration of each step.
+ */
+public class WarmUp implements ServletContextListener {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(WarmUp.class);
+    private static final int CONNECT_ATTEMPTS = 20;
+    private static final long CONNECT_DELAY = 500; // milliseconds between attempts while the connector starts
+    private static final int READ_TIMEOUT = 30000; // milliseconds
+    private static final Object lock = new Object();
+    // guarded by lock
+    private static boolean ready = false;
+    private static long started = 0;
+    private static long duration = -1;
+    private static final Map<String, Long> steps = new LinkedHashMap<>();
+    private Thread thread = null;
+
+    /**
+     * Progress of the warm-up, returned by /v2/ready
+     */
+    public static class Status {
+        public boolean ready;
+        public long started; // time the warm-up started, milliseconds since the epoch
+        public long warmupMillis; // duration of the warm-up, -1 while it runs
+        public Map<String, Long> steps = new LinkedHashMap<>(); // milliseconds per completed step
+    }
+
+    private interface Step {
+        void run() throws Exception;
+    }
+
+    public static Status getStatus() {
+        Status status = new Status();
+        synchronized (lock) {
+            status.ready = ready;
+            status.started = started;
+            status.warmupMillis = duration;
+            status.steps.putAll(steps);
+        }
+        return status;
+    }
+
+    public static boolean isReady() {
+        synchronized (lock) {
+            return ready;
+        }
+    }
+
+    @Override
+    public void contextInitialized(ServletContextEvent event) {
+        synchronized (lock) {
+            ready = false;
+            started = System.currentTimeMillis();
+            duration = -1;
+            steps.clear();
+        }
+        try {
+            if (!TrustagentConfiguration.getSnapshot().isTrustagentWarmupEnabled()) {
+                log.info("Warm-up disabled");
+                finish();
+                return;
+            }
+        } catch (IOException e) {
+            log.warn("Cannot load configuration, starting warm-up with defaults: {}", e.getMessage());
+        }
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                warmUp();
+            }
+        }, "trustagent-warmup");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent event) {
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    private void warmUp() {
+        step("tpm", new Step() {
+            @Override
+            public void run() throws Exception {
+                com.intel.mtwilson.trustagent.tpmmodules.Tpm.getTpmVersion();
+                com.intel.mtwilson.trustagent.tpmmodules.Tpm.getModule();
+                com.intel.mtwilson.trustagent.tpmmodules.Tpm.getpcrBanks();
+            }
+        });
+        step("host", new Step() {
+            @Override
+            public void run() throws Exception {
+                new Host().getHostInformation();
+            }
+        });
+        step("aik", new Step() {
+            @Override
+            public void run() throws Exception {
+                TrustagentRepository repository = new TrustagentRepository(TrustagentConfiguration.getSnapshot());
+                repository.getAikCredential();
+                repository.getPrivacyCaCredential();
+            }
+        });
+        step("quote", new Step() {
+            @Override
+            public void run() throws Exception {
+                byte[] nonce = new byte[20];
+                new SecureRandom().nextBytes(nonce);
+                new Tpm().quote(nonce, System.getProperty("os.name"), "0", "SHA1");
+            }
+        });
+        step("http", new Step() {
+            @Override
+            public void run() throws Exception {
+                requestReady(TrustagentConfiguration.getSnapshot());
+            }
+        });
+        finish();
+    }
+
+    private void step(String name, Step step) {
+        if (Thread.currentThread().isInterrupted()) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        try {
+            step.run();
+        } catch (Exception | LinkageError e) {
+            log.warn("Warm-up step {} failed: {}", name, e.getMessage());
+            log.debug("Warm-up step {} failed", name, e);
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        log.debug("Warm-up step {} took {} ms", name, elapsed);
+        synchronized (lock) {
+            steps.put(name, elapsed);
+        }
+    }
+
+    private static void finish() {
+        synchronized (lock) {
+            ready = true;
+            duration = System.currentTimeMillis() - started;
+        }
+        log.info("Trust agent ready after warm-up of {} ms", getStatus().warmupMillis);
+    }
+
+    /**
+     * Sends GET /v2/ready to the local connector, trusting the certificates
+     * in the trust agent keystore, and reads the whole response.
+     */
+    private void requestReady(TrustagentConfiguration configuration) throws Exception {
+        if (configuration.getTrustagentKeystorePassword() == null) {
+            log.debug("Keystore password is not configured, skipping loopback request");
+            return;
+        }
+        KeyStore keystore = KeyStore.getInstance("JKS");
+        try (InputStream in = new FileInputStream(configuration.getTrustagentKeystoreFile())) {
+            keystore.load(in, configuration.getTrustagentKeystorePassword().toCharArray());
+        }
+        TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init(keystore);
+        SSLContext tls = SSLContext.getInstance("TLS");
+        tls.init(null, trustManagerFactory.getTrustManagers(), null);
+        int port = configuration.getTrustagentHttpTlsPort();
+        for (int attempt = 1;; attempt++) {
+            try (SSLSocket socket = (SSLSocket) tls.getSocketFactory().createSocket("127.0.0.1", port)) {
+                socket.setSoTimeout(READ_TIMEOUT);
+                socket.startHandshake();
+                OutputStream out = socket.getOutputStream();
+                out.write(("GET /v2/ready HTTP/1.1\r\nHost: 127.0.0.1:" + port + "\r\nAccept: application/json\r\nConnection: close\r\n\r\n").getBytes(Charset.forName("US-ASCII")));
+                out.flush();
+                InputStream in = socket.getInputStream();
+                byte[] buffer = new byte[4096];
+                while (in.read(buffer) != -1) {
+                    // the response only matters to the server side
+                }
+                return;
+            } catch (ConnectException e) {
+                if (attempt == CONNECT_ATTEMPTS) {
+                    throw e;
+                }
+                Thread.sleep(CONNECT_DELAY); // the connector starts after the web application
+            }
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mountwilson.common;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CommandGraphTest {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(CommandGraphTest.class);
+
+    private static class Sleep implements ICommand {
+        private final long millis;
+
+        private Sleep(long millis) {
+            this.millis = millis;
+        }
+
+        @Override
+        public void execute() throws TAException {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                throw new TAException(ErrorCode.ERROR, "interrupted", e);
+            }
+        }
+    }
+
+    /**
+     * Records when the wrapped command started and finished.
+     */
+    private static class Recorded implements ICommand {
+        private final ICommand command;
+        private volatile long started;
+        private volatile long finished;
+
+        private Recorded(ICommand command) {
+            this.command = command;
+        }
+
+        @Override
+        public void execute() throws TAException {
+            started = System.nanoTime();
+            try {
+                command.execute();
+            } finally {
+                finished = System.nanoTime();
+            }
+        }
+    }
+
+    /**
+     * Counts down its own latch and waits for the other one, so it only
+     * completes if the other stage is running at the same time.
+     */
+    private static class Rendezvous implements ICommand {
+        private final CountDownLatch mine;
+        private final CountDownLatch other;
+
+        private Rendezvous(CountDownLatch mine, CountDownLatch other) {
+            this.mine = mine;
+            this.other = other;
+        }
+
+        @Override
+        public void execute() throws TAException {
+            mine.countDown();
+            try {
+                if (!other.await(5, TimeUnit.SECONDS)) {
+                    throw new TAException(ErrorCode.ERROR, "stages did not overlap");
+                }
+            } catch (InterruptedException e) {
+                throw new TAException(ErrorCode.ERROR, "interrupted", e);
+            }
+        }
+    }
+
+    @Test
+    public void testFileStagesOverlapTpmStage() throws Exception {
+        final Thread caller = Thread.currentThread();
+        final Thread[] tpmThread = new Thread[1];
+        final CountDownLatch fileStarted = new CountDownLatch(1);
+        final CountDownLatch tpmStarted = new CountDownLatch(1);
+        Recorded a = new Recorded(new Rendezvous(fileStarted, tpmStarted));
+        Recorded b = new Recorded(new Sleep(50));
+        Recorded tpm = new Recorded(new ICommand() {
+            @Override
+            public void execute() throws TAException {
+                tpmThread[0] = Thread.currentThread();
+                new Rendezvous(tpmStarted, fileStarted).execute();
+            }
+        });
+        Recorded response = new Recorded(new Sleep(0));
+        CommandGraph graph = new CommandGraph("test")
+                .stage("a", a, CommandGraph.none(), CommandGraph.of("a"))
+                .stage("b", b, CommandGraph.none(), CommandGraph.of("b"))
+                .tpmStage("tpm", tpm, CommandGraph.none(), CommandGraph.of("quote"))
+                .stage("response", response, CommandGraph.of("a", "b", "quote"), CommandGraph.of("response"));
+        graph.execute();
+        Map<String, Long> timings = graph.getTimings();
+        log.debug("stages {}", timings);
+        Assert.assertSame(caller, tpmThread[0]);
+        Assert.assertEquals(4, timings.size());
+        // a and the TPM stage each waited for the other, so they overlapped
+        Assert.assertTrue(a.started < tpm.finished && tpm.started < a.finished);
+        Assert.assertTrue(response.started >= a.finished);
+        Assert.assertTrue(response.started >= b.finished);
+        Assert.assertTrue(response.started >= tpm.finished);
+    }
+
+    @Test
+    public void testStageWaitsForInputs() throws Exception {
+        final CountDownLatch produced = new CountDownLatch(1);
+        final boolean[] seen = new boolean[1];
+        new CommandGraph("test")
+                .stage("consumer", new ICommand() {
+                    @Override
+                    public void execute() throws TAException {
+                        seen[0] = produced.getCount() == 0;
+                    }
+                }, CommandGraph.of("value"), CommandGraph.none())
+                .stage("producer", new ICommand() {
+                    @Override
+                    public void execute() throws TAException {
+                        new Sleep(50).execute();
+                        produced.countDown();
+                    }
+                }, CommandGraph.none(), CommandGraph.of("value"))
+                .execute();
+        Assert.assertTrue(produced.await(1, TimeUnit.SECONDS));
+        Assert.assertTrue(seen[0]);
+    }
+
+    @Test
+    public void testFailureIsThrownToCaller() throws Exception {
+        final CountDownLatch slowStarted = new CountDownLatch(1);
+        final CountDownLatch never = new CountDownLatch(1);
+        Recorded slow = new Recorded(new ICommand() {
+            @Override
+            public void execute() throws TAException {
+                slowStarted.countDown();
+                try {
+                    never.await();
+                } catch (InterruptedException e) {
+                    throw new TAException(ErrorCode.ERROR, "interrupted", e);
+                }
+            }
+        });
+        CommandGraph graph = new CommandGraph("test")
+                .stage("slow", slow, CommandGraph.none(), CommandGraph.of("slow"))
+                .tpmStage("broken", new ICommand() {
+                    @Override
+                    public void execute() throws TAException {
+                        try {
+                            slowStarted.await();
+                        } catch (InterruptedException e) {
+                            throw new TAException(ErrorCode.ERROR, "interrupted", e);
+                        }
+                        throw new TAException(ErrorCode.CERT_MISSING, "missing");
+                    }
+                }, CommandGraph.none(), CommandGraph.of("aik"));
+        try {
+            graph.execute();
+            Assert.fail("expected TAException");
+        } catch (TAException e) {
+            Assert.assertEquals(ErrorCode.CERT_MISSING, e.getErrorCode());
+        }
+        // the running stage was interrupted and had finished before execute returned
+        Assert.assertTrue(slow.finished != 0);
+        Assert.assertEquals(1, never.getCount());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testMissingProducer() throws Exception {
+        new CommandGraph("test")
+                .stage("response", new Sleep(0), CommandGraph.of("quote"), CommandGraph.of("response"))
+                .execute();
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mountwilson.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class NetworkIdentityTest {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(NetworkIdentityTest.class);
+
+    private static class CountingNetworkIdentity extends NetworkIdentity {
+        private int count = 0;
+
+        private CountingNetworkIdentity(File sysClassNet, long refreshInterval) {
+            super(sysClassNet, 0, refreshInterval);
+        }
+
+        @Override
+        String findHostIpAddress() {
+            count++;
+            return "10.1.2." + count;
+        }
+    }
+
+    @Test
+    public void testRefreshWhenInterfacesChange() throws IOException {
+        File sysClassNet = Files.createTempDirectory("net").toFile();
+        sysClassNet.deleteOnExit();
+        new File(sysClassNet, "eth0").mkdir();
+        CountingNetworkIdentity identity = new CountingNetworkIdentity(sysClassNet, 60000);
+        Assert.assertEquals("10.1.2.1", identity.getHostIpAddress());
+        Assert.assertEquals("10.1.2.1", identity.getHostIpAddress());
+        Assert.assertEquals(1, identity.count);
+        new File(sysClassNet, "veth0").mkdir();
+        Assert.assertEquals("10.1.2.2", identity.getHostIpAddress());
+        new File(sysClassNet, "veth0").delete();
+        Assert.assertEquals("10.1.2.3", identity.getHostIpAddress());
+        identity.refresh();
+        Assert.assertEquals("10.1.2.4", identity.getHostIpAddress());
+        Assert.assertEquals(4, identity.count);
+    }
+
+    @Test
+    public void testRefreshInterval() {
+        CountingNetworkIdentity identity = new CountingNetworkIdentity(new File("/nonexistent/sys/class/net"), 0);
+        identity.getHostIpAddress();
+        identity.getHostIpAddress();
+        Assert.assertEquals(2, identity.count);
+    }
+
+    @Test
+    public void testHostIpAddress() {
+        String address = NetworkIdentity.getInstance().getHostIpAddress();
+        log.debug("Host address: {}", address);
+        Assert.assertNotNull(address);
+        Assert.assertEquals(address, CommandUtil.getHostIpAddress());
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mountwilson.trustagent.commands.hostinfo;
+
+import com.intel.mountwilson.trustagent.data.TADataContext;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HostInfoCmdTest {
+    private static final String CPUINFO = "processor\t: 0\nvendor_id\t: GenuineIntel\ncpu family\t: 6\nmodel\t\t: 44\nstepping\t: 2\n"
+            + "flags\t\t: fpu vme de pse tsc msr pae mce cx8 apic sep mtrr pge mca cmov pat pse36 clflush dts acpi mmx fxsr sse sse2 ss ht tm pbe syscall nx lm\n";
+
+    private static void write(File root, String path, String content) throws IOException {
+        File file = new File(root, path);
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), content.getBytes(Charset.forName("UTF-8")));
+    }
+
+    private static String getProcessorInfo(File root) throws Exception {
+        TADataContext context = new TADataContext();
+        new HostInfoCmd(context, new SystemInfo(root, new File(root, "var/system-info"))).getProcessorInfo();
+        return context.getProcessorInfo();
+    }
+
+    private static File createRoot() throws IOException {
+        File root = Files.createTempDirectory("hostinfo").toFile();
+        root.deleteOnExit();
+        write(root, "proc/cpuinfo", CPUINFO);
+        return root;
+    }
+
+    @Test
+    public void testCachedProcessorId() throws Exception {
+        File root = createRoot();
+        write(root, "var/system-info/dmidecode.processor", "Processor Information\n\tSocket Designation: CPU1\n\tID: A9 06 03 00 FF FB EB BF\n");
+        Assert.assertEquals(" A9 06 03 00 FF FB EB BF", getProcessorInfo(root));
+    }
+
+    @Test
+    public void testCachedOutputWithoutIdUsesCpuinfo() throws Exception {
+        File root = createRoot();
+        write(root, "var/system-info/dmidecode.processor", "# dmidecode 3.0\n# No SMBIOS nor DMI entry point found, sorry.\n");
+        Assert.assertEquals(" C2 06 02 00 FF FB EB BF", getProcessorInfo(root));
+    }
+
+    @Test
+    public void testNoCachedOutputUsesCpuinfo() throws Exception {
+        // dmidecode is not run; there is no tagent script in the test environment
+        Assert.assertEquals(" C2 06 02 00 FF FB EB BF", getProcessorInfo(createRoot()));
+    }
+}
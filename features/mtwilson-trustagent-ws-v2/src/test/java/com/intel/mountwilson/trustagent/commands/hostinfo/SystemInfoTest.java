@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mountwilson.trustagent.commands.hostinfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SystemInfoTest {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(SystemInfoTest.class);
+
+    private static void write(File root, String path, String content) throws IOException {
+        File file = new File(root, path);
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), content.getBytes(Charset.forName("UTF-8")));
+    }
+
+    private static File createRoot() throws IOException {
+        File root = Files.createTempDirectory("systeminfo").toFile();
+        root.deleteOnExit();
+        return root;
+    }
+
+    @Test
+    public void testReadFiles() throws IOException {
+        File root = createRoot();
+        write(root, "etc/os-release", "NAME=\"Ubuntu\"\nVERSION_ID=\"16.04\"\n# comment\nID=ubuntu\n");
+        write(root, "sys/class/dmi/id/bios_vendor", "Intel Corp.\n");
+        write(root, "sys/class/dmi/id/product_uuid", "4235d571-8542-ffd3-5bfe-6d9dac874c84\n");
+        write(root, "var/system-info/virsh.version", "Running hypervisor: QEMU 2.5.0\n");
+        SystemInfo info = new SystemInfo(root, new File(root, "var/system-info"));
+        Map<String, String> osRelease = info.getProperties("etc/os-release");
+        Assert.assertEquals("Ubuntu", osRelease.get("NAME"));
+        Assert.assertEquals("16.04", osRelease.get("VERSION_ID"));
+        Assert.assertEquals("ubuntu", osRelease.get("ID"));
+        Assert.assertTrue(info.getProperties("etc/lsb-release").isEmpty());
+        Assert.assertEquals("Intel Corp.", info.getDmi("bios_vendor"));
+        Assert.assertNull(info.getDmi("bios_version"));
+        Assert.assertEquals("4235D571-8542-FFD3-5BFE-6D9DAC874C84", info.getSystemUuid());
+        Assert.assertEquals("Running hypervisor: QEMU 2.5.0\n", info.getCached("virsh.version"));
+        Assert.assertNull(info.getCached("docker.version"));
+    }
+
+    @Test
+    public void testProcessorId() throws IOException {
+        File root = createRoot();
+        String flags = "fpu vme de pse tsc msr pae mce cx8 apic sep mtrr pge mca cmov pat pse36 clflush dts acpi mmx fxsr sse sse2 ss ht tm pbe syscall nx lm";
+        write(root, "proc/cpuinfo", "processor\t: 0\nvendor_id\t: GenuineIntel\ncpu family\t: 6\nmodel\t\t: 44\nstepping\t: 2\nflags\t\t: " + flags + "\n\n"
+                + "processor\t: 1\ncpu family\t: 15\nmodel\t\t: 4\nstepping\t: 1\nflags\t\t: fpu\n");
+        SystemInfo info = new SystemInfo(root, new File(root, "var/system-info"));
+        String id = info.getProcessorId();
+        log.debug("Processor ID: {}", id);
+        Assert.assertEquals("C2 06 02 00 FF FB EB BF", id); // as shown by dmidecode --type processor
+        write(root, "proc/cpuinfo", "processor\t: 0\nBogoMIPS\t: 48.00\nFeatures\t: fp asimd\n");
+        Assert.assertNull(info.getProcessorId());
+    }
+
+    @Test
+    public void testFingerprint() throws IOException {
+        File root = createRoot();
+        SystemInfo info = new SystemInfo(root, new File(root, "var/system-info"));
+        Assert.assertNull(info.getFingerprint());
+        write(root, "proc/sys/kernel/random/boot_id", "5f0e7b5c-3a4e-4d7f-9c43-1d2a4a0b7e11\n");
+        write(root, "sys/class/dmi/id/bios_version", "S5500.86B.01.00.0060\n");
+        String first = info.getFingerprint();
+        Assert.assertNotNull(first);
+        Assert.assertEquals(first, info.getFingerprint());
+        write(root, "sys/class/dmi/id/bios_version", "S5500.86B.01.00.0061\n");
+        String second = info.getFingerprint();
+        Assert.assertFalse(first.equals(second));
+        write(root, "proc/sys/kernel/random/boot_id", "0c8e0f4e-2b7a-44c1-8d8e-6b5d7c9a1f20\n");
+        Assert.assertFalse(second.equals(info.getFingerprint()));
+    }
+}
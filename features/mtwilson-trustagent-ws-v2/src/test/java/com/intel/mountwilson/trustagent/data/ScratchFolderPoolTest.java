@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mountwilson.trustagent.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+public class ScratchFolderPoolTest {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(ScratchFolderPoolTest.class);
+
+    private static Path createTempDirectory() throws IOException {
+        Assume.assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+        Path directory = Files.createTempDirectory("scratch");
+        directory.toFile().deleteOnExit();
+        return directory;
+    }
+
+    @Test
+    public void testCreatesPrivateFolders() throws IOException {
+        File base = new File(createTempDirectory().toFile(), "trustagent");
+        ScratchFolderPool pool = new ScratchFolderPool(base);
+        ScratchFolderPool.ScratchFolder folder = pool.acquire();
+        Assert.assertEquals("rwx------", PosixFilePermissions.toString(Files.getPosixFilePermissions(base.toPath())));
+        Assert.assertEquals("rwx------", PosixFilePermissions.toString(Files.getPosixFilePermissions(new File(folder.getPath()).toPath())));
+        pool.release(folder);
+        Assert.assertSame(folder, pool.acquire());
+    }
+
+    @Test
+    public void testRefusesSharedFolder() throws IOException {
+        Path base = createTempDirectory().resolve("trustagent");
+        Files.createDirectory(base);
+        Files.setPosixFilePermissions(base, PosixFilePermissions.fromString("rwxrwxrwx"));
+        try {
+            new ScratchFolderPool(base.toFile()).acquire();
+            Assert.fail("Expected IOException");
+        } catch (IOException e) {
+            log.debug("Expected: {}", e.getMessage());
+        }
+        Assert.assertFalse(Files.exists(base.resolve("1")));
+    }
+
+    @Test
+    public void testRefusesSymbolicLink() throws IOException {
+        Path temp = createTempDirectory();
+        Path target = Files.createDirectory(temp.resolve("target"), PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+        Path base = Files.createSymbolicLink(temp.resolve("trustagent"), target);
+        try {
+            new ScratchFolderPool(base.toFile()).acquire();
+            Assert.fail("Expected IOException");
+        } catch (IOException e) {
+            log.debug("Expected: {}", e.getMessage());
+        }
+        Assert.assertTrue(Files.isSymbolicLink(base));
+        Assert.assertFalse(Files.exists(target.resolve("1"), LinkOption.NOFOLLOW_LINKS));
+    }
+}
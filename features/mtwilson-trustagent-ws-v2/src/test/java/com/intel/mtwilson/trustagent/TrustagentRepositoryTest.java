@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent;
+
+import com.intel.dcsg.cpg.crypto.RsaUtil;
+import com.intel.dcsg.cpg.x509.X509Builder;
+import com.intel.dcsg.cpg.x509.X509Util;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TrustagentRepositoryTest {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(TrustagentRepositoryTest.class);
+
+    private static X509Certificate createCertificate(int keyLength) throws Exception {
+        return X509Builder.factory().selfSigned("CN=HIS_Identity_Key", RsaUtil.generateRsaKeyPair(keyLength)).expires(1, TimeUnit.DAYS).build();
+    }
+
+    private static File createPemFile(X509Certificate certificate) throws Exception {
+        File file = File.createTempFile("aik", ".pem");
+        file.deleteOnExit();
+        FileUtils.writeStringToFile(file, X509Util.encodePemCertificate(certificate));
+        return file;
+    }
+
+    @Test
+    public void testUnchangedFileIsNotReadAgain() throws Exception {
+        File file = createPemFile(createCertificate(1024));
+        TrustagentRepository.Credential first = TrustagentRepository.getCredential("test-unchanged", file, TrustagentRepository.PEM_FILE);
+        Assert.assertSame(first, TrustagentRepository.getCredential("test-unchanged", file, TrustagentRepository.PEM_FILE));
+    }
+
+    @Test
+    public void testSizeChangeReadsNewCertificate() throws Exception {
+        File file = createPemFile(createCertificate(1024));
+        long modified = file.lastModified();
+        TrustagentRepository.Credential first = TrustagentRepository.getCredential("test-size", file, TrustagentRepository.PEM_FILE);
+        X509Certificate replacement = createCertificate(2048);
+        FileUtils.writeStringToFile(file, X509Util.encodePemCertificate(replacement));
+        Assert.assertTrue(file.setLastModified(modified));
+        TrustagentRepository.Credential second = TrustagentRepository.getCredential("test-size", file, TrustagentRepository.PEM_FILE);
+        log.debug("etag {} replaced by {}", first.getEtag(), second.getEtag());
+        Assert.assertEquals(replacement, second.getCertificate());
+        Assert.assertFalse(first.getEtag().equals(second.getEtag()));
+    }
+
+    @Test
+    public void testModifiedTimeChangeReadsNewCertificate() throws Exception {
+        File file = createPemFile(createCertificate(1024));
+        TrustagentRepository.Credential first = TrustagentRepository.getCredential("test-modified", file, TrustagentRepository.PEM_FILE);
+        X509Certificate replacement = createCertificate(1024);
+        FileUtils.writeStringToFile(file, X509Util.encodePemCertificate(replacement));
+        // a later modification time is enough, even when both certificates encode to the same size
+        Assert.assertTrue(file.setLastModified(file.lastModified() + 2000));
+        TrustagentRepository.Credential second = TrustagentRepository.getCredential("test-modified", file, TrustagentRepository.PEM_FILE);
+        Assert.assertNotSame(first, second);
+        Assert.assertEquals(replacement, second.getCertificate());
+        Assert.assertFalse(first.getEtag().equals(second.getEtag()));
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void testMissingFile() throws Exception {
+        TrustagentRepository.getCredential("test-missing", new File("target", "missing.pem"), TrustagentRepository.PEM_FILE);
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.ws.v2;
+
+import com.intel.dcsg.cpg.crypto.RsaUtil;
+import com.intel.dcsg.cpg.x509.X509Builder;
+import com.intel.mtwilson.jaxrs2.mediatype.CryptoMediaType;
+import com.intel.mtwilson.trustagent.TrustagentRepository;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import org.glassfish.jersey.internal.MapPropertiesDelegate;
+import org.glassfish.jersey.server.ContainerRequest;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class CredentialResponseTest {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(CredentialResponseTest.class);
+    private static TrustagentRepository.Credential aik;
+
+    @BeforeClass
+    public static void createCredential() throws Exception {
+        aik = new TrustagentRepository.Credential(X509Builder.factory().selfSigned("CN=HIS_Identity_Key", RsaUtil.generateRsaKeyPair(1024)).expires(1, TimeUnit.DAYS).build());
+    }
+
+    /**
+     * @return a GET request for the AIK, which is also its HttpHeaders
+     */
+    private static ContainerRequest get(String accept, EntityTag ifNoneMatch) {
+        ContainerRequest request = new ContainerRequest(URI.create("https://localhost:1443/v2/"), URI.create("https://localhost:1443/v2/aik"), "GET", null, new MapPropertiesDelegate());
+        request.header(HttpHeaders.ACCEPT, accept);
+        if (ifNoneMatch != null) {
+            request.header(HttpHeaders.IF_NONE_MATCH, ifNoneMatch.toString());
+        }
+        return request;
+    }
+
+    private static Response build(TrustagentRepository.Credential credential, String accept, EntityTag ifNoneMatch) {
+        ContainerRequest request = get(accept, ifNoneMatch);
+        return CredentialResponse.build(credential, request, request);
+    }
+
+    @Test
+    public void testPemAndDerHaveDifferentTags() {
+        Response der = build(aik, CryptoMediaType.APPLICATION_PKIX_CERT, null);
+        Response pem = build(aik, CryptoMediaType.APPLICATION_X_PEM_FILE, null);
+        log.debug("der {} pem {}", der.getEntityTag(), pem.getEntityTag());
+        Assert.assertEquals(200, der.getStatus());
+        Assert.assertEquals(200, pem.getStatus());
+        Assert.assertArrayEquals(aik.getDer(), (byte[]) der.getEntity());
+        Assert.assertEquals(aik.getPem(), pem.getEntity());
+        Assert.assertFalse(der.getEntityTag().equals(pem.getEntityTag()));
+        Assert.assertEquals(HttpHeaders.ACCEPT, der.getHeaderString(HttpHeaders.VARY));
+    }
+
+    @Test
+    public void testMatchingTagIsNotModified() {
+        EntityTag etag = build(aik, CryptoMediaType.APPLICATION_PKIX_CERT, null).getEntityTag();
+        Response response = build(aik, CryptoMediaType.APPLICATION_PKIX_CERT, etag);
+        Assert.assertEquals(304, response.getStatus());
+        Assert.assertFalse(response.hasEntity());
+        Assert.assertEquals(HttpHeaders.ACCEPT, response.getHeaderString(HttpHeaders.VARY));
+    }
+
+    @Test
+    public void testDerTagDoesNotMatchPem() {
+        EntityTag der = build(aik, CryptoMediaType.APPLICATION_PKIX_CERT, null).getEntityTag();
+        Response response = build(aik, CryptoMediaType.APPLICATION_X_PEM_FILE, der);
+        Assert.assertEquals(200, response.getStatus());
+        Assert.assertEquals(aik.getPem(), response.getEntity());
+    }
+
+    @Test
+    public void testChangedCredentialHasNewTag() throws Exception {
+        EntityTag old = build(aik, CryptoMediaType.APPLICATION_PKIX_CERT, null).getEntityTag();
+        TrustagentRepository.Credential replaced = new TrustagentRepository.Credential(X509Builder.factory().selfSigned("CN=HIS_Identity_Key", RsaUtil.generateRsaKeyPair(1024)).expires(1, TimeUnit.DAYS).build());
+        Response response = build(replaced, CryptoMediaType.APPLICATION_PKIX_CERT, old);
+        Assert.assertEquals(200, response.getStatus());
+        Assert.assertArrayEquals(replaced.getDer(), (byte[]) response.getEntity());
+        Assert.assertFalse(old.equals(response.getEntityTag()));
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.ws.v2;
+
+import com.intel.mtwilson.trustagent.vrtmclient.RPClientPool;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class VmStatusCacheTest {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(VmStatusCacheTest.class);
+    private static final String VM = "a222c422-714f-42bd-89c6-7042870c5784";
+
+    /**
+     * Answers from a map instead of rpcore
+     */
+    private static class FakePool extends RPClientPool {
+        private final Map<String, Boolean> statuses = new ConcurrentHashMap<>();
+        private final AtomicInteger queries = new AtomicInteger();
+
+        private FakePool() {
+            super("127.0.0.1", 1, 2, 30000);
+        }
+
+        @Override
+        public boolean getVmStatus(String vmInstanceId) throws IOException {
+            queries.incrementAndGet();
+            Boolean status = statuses.get(vmInstanceId);
+            if (status == null) {
+                throw new IOException("Unknown VM " + vmInstanceId);
+            }
+            return status;
+        }
+    }
+
+    private static File createInstancesFolder() throws IOException {
+        File folder = Files.createTempDirectory("instances").toFile();
+        folder.deleteOnExit();
+        return folder;
+    }
+
+    @Test
+    public void testCached() throws IOException {
+        FakePool pool = new FakePool();
+        pool.statuses.put(VM, true);
+        VmStatusCache cache = new VmStatusCache(pool, createInstancesFolder(), 60000, 5000, 0);
+        Assert.assertNull(cache.getCachedTrustStatus(VM));
+        Assert.assertTrue(cache.getTrustStatus(VM));
+        Assert.assertTrue(cache.getTrustStatus(VM));
+        Assert.assertEquals(Boolean.TRUE, cache.getCachedTrustStatus(VM));
+        Assert.assertEquals(1, pool.queries.get());
+        cache.invalidate(VM);
+        pool.statuses.put(VM, false);
+        Assert.assertFalse(cache.getTrustStatus(VM));
+        Assert.assertEquals(2, pool.queries.get());
+    }
+
+    @Test
+    public void testTtlAndErrors() throws IOException {
+        FakePool pool = new FakePool();
+        pool.statuses.put(VM, false);
+        VmStatusCache cache = new VmStatusCache(pool, createInstancesFolder(), 60000, 0, 0);
+        Assert.assertFalse(cache.getTrustStatus(VM));
+        Assert.assertFalse(cache.getTrustStatus(VM));
+        Assert.assertEquals(2, pool.queries.get()); // untrusted status not cached
+        try {
+            cache.getTrustStatus("unknown");
+            Assert.fail("Expected IOException");
+        } catch (IOException e) {
+            log.debug("Expected: {}", e.getMessage());
+        }
+        Assert.assertNull(cache.getCachedTrustStatus("unknown"));
+    }
+
+    @Test
+    public void testFolderChange() throws IOException {
+        FakePool pool = new FakePool();
+        pool.statuses.put(VM, true);
+        File instances = createInstancesFolder();
+        File folder = new File(instances, VM);
+        folder.mkdir();
+        folder.setLastModified(1000000000000L);
+        VmStatusCache cache = new VmStatusCache(pool, instances, 60000, 5000, 0);
+        Assert.assertTrue(cache.getTrustStatus(VM));
+        Assert.assertEquals(Boolean.TRUE, cache.getCachedTrustStatus(VM));
+        folder.setLastModified(1000000001000L);
+        Assert.assertNull(cache.getCachedTrustStatus(VM));
+        Assert.assertEquals(-1, cache.getFolderModified("../etc"));
+    }
+
+    @Test
+    public void testRefresh() throws Exception {
+        FakePool pool = new FakePool();
+        pool.statuses.put(VM, true);
+        VmStatusCache cache = new VmStatusCache(pool, createInstancesFolder(), 100, 100, 0);
+        Assert.assertTrue(cache.getTrustStatus(VM));
+        pool.statuses.put(VM, false);
+        cache.refresh(); // not yet due
+        Assert.assertEquals(1, pool.queries.get());
+        Thread.sleep(80);
+        cache.refresh();
+        Assert.assertEquals(2, pool.queries.get());
+        Assert.assertEquals(Boolean.FALSE, cache.getCachedTrustStatus(VM));
+        pool.close();
+    }
+}
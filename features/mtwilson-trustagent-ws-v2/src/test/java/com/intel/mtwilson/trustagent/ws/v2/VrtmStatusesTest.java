@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2017 Intel Corporation
+ * All rights reserved.
+ */
+package com.intel.mtwilson.trustagent.ws.v2;
+
+import com.intel.mtwilson.trustagent.model.VMAttestationStatusesRequest;
+import com.intel.mtwilson.trustagent.model.VMAttestationStatusesResponse;
+import com.intel.mtwilson.trustagent.vrtmclient.RPClientPool;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.ws.rs.WebApplicationException;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class VrtmStatusesTest {
+    private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(VrtmStatusesTest.class);
+    private static final String TRUSTED = "a222c422-714f-42bd-89c6-7042870c5784";
+    private static final String UNKNOWN = "dcc4a894-869b-479a-a24a-659eef7a54bd";
+    private static final String HUNG = "5f0b3a46-33f3-4d1c-9a5e-0ac3c8f7e1b2";
+
+    /**
+     * Answers from a map instead of rpcore; the HUNG instance never answers
+     * until its query is interrupted
+     */
+    private static class FakePool extends RPClientPool {
+        private final Map<String, Boolean> statuses = new ConcurrentHashMap<>();
+        private final AtomicInteger queries = new AtomicInteger();
+        private final CountDownLatch interrupted = new CountDownLatch(1);
+
+        private FakePool() {
+            super("127.0.0.1", 1, 4, 30000);
+        }
+
+        @Override
+        public boolean getVmStatus(String vmInstanceId) throws IOException {
+            queries.incrementAndGet();
+            if (HUNG.equals(vmInstanceId)) {
+                try {
+                    new CountDownLatch(1).await();
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                    throw new IOException("Interrupted", e);
+                }
+            }
+            Boolean status = statuses.get(vmInstanceId);
+            if (status == null) {
+                throw new IOException("Unknown VM " + vmInstanceId);
+            }
+            return status;
+        }
+    }
+
+    private static VmStatusCache createCache(FakePool pool) throws IOException {
+        File folder = Files.createTempDirectory("instances").toFile();
+        folder.deleteOnExit();
+        return new VmStatusCache(pool, folder, 60000, 5000, 0);
+    }
+
+    private static VMAttestationStatusesResponse query(FakePool pool, VmStatusCache cache, int batchMax, long timeout, String... vmInstanceIds) throws IOException {
+        return new Vrtm().getVMAttestationStatuses(new VMAttestationStatusesRequest(Arrays.asList(vmInstanceIds)), cache, pool, batchMax, timeout);
+    }
+
+    @Test
+    public void testEmptyIdIsRejected() throws IOException {
+        FakePool pool = new FakePool();
+        try {
+            query(pool, createCache(pool), 10, 5000, TRUSTED, " ");
+            Assert.fail("Expected WebApplicationException");
+        } catch (WebApplicationException e) {
+            Assert.assertEquals(400, e.getResponse().getStatus());
+        }
+        Assert.assertEquals(0, pool.queries.get());
+        pool.close();
+    }
+
+    @Test
+    public void testTooManyIdsAreRejected() throws IOException {
+        FakePool pool = new FakePool();
+        try {
+            query(pool, createCache(pool), 2, 5000, TRUSTED, UNKNOWN, HUNG);
+            Assert.fail("Expected WebApplicationException");
+        } catch (WebApplicationException e) {
+            Assert.assertEquals(400, e.getResponse().getStatus());
+            log.debug("Expected: {}", e.getResponse().getHeaderString("Error"));
+        }
+        Assert.assertEquals(0, pool.queries.get());
+        pool.close();
+    }
+
+    @Test
+    public void testErrorsArePerInstance() throws IOException {
+        FakePool pool = new FakePool();
+        pool.statuses.put(TRUSTED, true);
+        VmStatusCache cache = createCache(pool);
+        VMAttestationStatusesResponse response = query(pool, cache, 10, 5000, TRUSTED, UNKNOWN);
+        Assert.assertEquals(Boolean.TRUE, response.getTrustStatuses().get(TRUSTED));
+        Assert.assertFalse(response.getTrustStatuses().containsKey(UNKNOWN));
+        Assert.assertEquals("Unknown VM " + UNKNOWN, response.getErrors().get(UNKNOWN));
+        Assert.assertEquals(Boolean.TRUE, cache.getCachedTrustStatus(TRUSTED));
+        query(pool, cache, 10, 5000, TRUSTED);
+        Assert.assertEquals(2, pool.queries.get()); // the second request used the cache
+        pool.close();
+    }
+
+    @Test
+    public void testDeadlineCancelsQuery() throws Exception {
+        FakePool pool = new FakePool();
+        pool.statuses.put(TRUSTED, true);
+        VMAttestationStatusesResponse response = query(pool, createCache(pool), 10, 200, HUNG, TRUSTED);
+        Assert.assertEquals("No status from vRTM after 200 ms", response.getErrors().get(HUNG));
+        Assert.assertEquals(Boolean.TRUE, response.getTrustStatuses().get(TRUSTED));
+        Assert.assertTrue(pool.interrupted.await(5, TimeUnit.SECONDS));
+        pool.close();
+    }
+}
@@ -893,6 +893,13 @@ if [ -z "$TRUSTAGENT_NOSETUP" ]; then
   tagent start
 fi
 
+# point the monit check at the configured https port
+if [ "$(whoami)" == "root" ] && [ -f /etc/monit/conf.d/ta.monit ]; then
+  trustagent_tls_port=$(tagent config trustagent.http.tls.port)
+  trustagent_tls_port=${trustagent_tls_port:-${TRUSTAGENT_HTTP_TLS_PORT:-1443}}
+  sed -i "s/ port [0-9]* type tcpssl / port $trustagent_tls_port type tcpssl /" /etc/monit/conf.d/ta.monit
+fi
+
 # NOTE:  monit should only be restarted AFTER trustagent is up and running
 #        so that it doesn't try to start it before we're done with our setup
 #        tasks.
@@ -0,0 +1,127 @@
+#!/bin/bash
+# WARNING:
+# *** do NOT use TABS for indentation, use SPACES
+# *** TABS will cause errors in some linux distributions
+
+# Runs several TPM 2.0 operations in one invocation. Each line of stdin is
+#
+#   [if-nvindex <index>] <operation> [arguments...]
+#
+# and produces one line of output
+#
+#   <step> <status> [result]
+#
+# where step counts from 0 and status is the exit code of the operation,
+# or "skipped" if the index named by if-nvindex does not exist. The first
+# operation that fails ends the batch with its exit code.
+#
+# operations:
+#   nvindex-exists <index>                                   result is 1 or 0
+#   nvrelease <ownerpasswd> <index>
+#   nvdefine <ownerpasswd> <indexpasswd> <index> <size> <attributes>
+#   nvwrite <authpasswd> <index> <hexdata>
+#   nvread <authpasswd> <index> <size>                       result is hex
+#   exec <script> [arguments...]                             runs a script in this folder;
+#                                                            result is its last line of output
+
+bindir=$(dirname "$0")
+
+# the operations call the TPM tools the same way as the tpm2-nv*.sh
+# scripts, without starting a script for each of them
+
+nvindex_exists() {
+  local list
+  list=`tpm2_nvlist`
+  if [[ $? != 0 ]]; then
+    echo "failed"
+    return 1
+  fi
+  if [[ $list == *$1* ]]; then
+    echo "1"
+  else
+    echo "0"
+  fi
+}
+
+# writes hex as binary, for example 00ff as \x00\xff
+hex_to_binary() {
+  local escaped= i
+  for (( i = 0; i < ${#1}; i += 2 )); do
+    escaped+="\\x${1:i:2}"
+  done
+  printf "%b" "$escaped"
+}
+
+nvread() {
+  local result lines
+  result=`tpm2_nvread -x $2 -a $2 -P $1 -s $3 -o 0 -X`
+  if [[ $? != 0 ]]; then
+    echo "failed"
+    return 1
+  fi
+  mapfile -t lines <<< "$result"
+  echo "${lines[2]// /}"
+}
+
+run_operation() {
+  local operation=$1
+  shift
+  case $operation in
+    nvindex-exists)
+      nvindex_exists $1
+      ;;
+    nvrelease)
+      tpm2_nvrelease -x $2 -a 0x40000001 -P $1 -X > /dev/null
+      ;;
+    nvdefine)
+      tpm2_nvdefine -x $3 -a 0x40000001 -P $1 -s $4 -t $5 -I $2 -X > /dev/null
+      ;;
+    nvwrite)
+      # the data comes through a pipe instead of a temporary file
+      tpm2_nvwrite -x $2 -a 0x40000001 -P $1 -f <(hex_to_binary $3) -X > /dev/null
+      ;;
+    nvread)
+      nvread $1 $2 $3
+      ;;
+    exec)
+      if [[ $1 == */* || ! -x "$bindir/$1" ]]; then
+        echo "unknown script $1" >&2
+        return 2
+      fi
+      "$bindir/$@"
+      ;;
+    *)
+      echo "unknown operation $operation" >&2
+      return 2
+      ;;
+  esac
+}
+
+step=0
+while read -r -a words; do
+  if [[ ${#words[@]} == 0 ]]; then
+    continue
+  fi
+  if [[ ${words[0]} == "if-nvindex" ]]; then
+    exists=`nvindex_exists ${words[1]}`
+    if [[ $? != 0 ]]; then
+      echo "$step 1 failed"
+      exit 1
+    fi
+    if [[ $exists != "1" ]]; then
+      echo "$step skipped"
+      step=$((step + 1))
+      continue
+    fi
+    words=("${words[@]:2}")
+  fi
+  output=`run_operation "${words[@]}"`
+  status=$?
+  echo "$step $status `echo "$output" | tail -n 1`"
+  if [[ $status != 0 ]]; then
+    exit $status
+  fi
+  step=$((step + 1))
+done
+
+exit 0